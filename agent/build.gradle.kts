@@ -18,6 +18,8 @@ tasks.jar {
         attributes(
             "Manifest-Version" to "1.0",
             "Premain-Class" to "com.jaf.agent.JafAgent",
+            "Agent-Class" to "com.jaf.agent.JafAgent",
+            "Main-Class" to "com.jaf.agent.AttachLauncher",
             "Can-Retransform-Classes" to "true"
         )
     }
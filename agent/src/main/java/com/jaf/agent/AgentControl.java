@@ -0,0 +1,30 @@
+package com.jaf.agent;
+
+/** Operations on the installed instrumentation that {@link CoverageServer} exposes to fuzzers. */
+interface AgentControl {
+    /** Control for a server running without instrumentation, e.g. in tests. */
+    AgentControl NONE =
+            new AgentControl() {
+                @Override
+                public boolean isInstrumented() {
+                    return false;
+                }
+
+                @Override
+                public int rescope(ClassScope scope) {
+                    throw new IllegalStateException("JAF agent instrumentation is not installed");
+                }
+            };
+
+    /** Whether the agent's transformers are installed. */
+    boolean isInstrumented();
+
+    /**
+     * Replaces the instrumentation scope and retransforms the loaded classes whose membership
+     * changed.
+     *
+     * @return the number of classes retransformed
+     * @throws IllegalStateException if instrumentation is not installed or cannot retransform
+     */
+    int rescope(ClassScope scope);
+}
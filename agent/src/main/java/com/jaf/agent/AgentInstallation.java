@@ -0,0 +1,185 @@
+package com.jaf.agent;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+
+/**
+ * The transformers the agent registered with one {@link Instrumentation} instance.
+ *
+ * <p>Every transformer is wrapped so the names of the classes it changed are remembered. That is
+ * what makes the agent removable: {@link #uninstall()} unregisters the transformers and
+ * retransforms exactly those classes, which the JVM then rebuilds from their original bytes.</p>
+ *
+ * <p>Retransformation runs in batches on a small thread pool. Each batch is one
+ * {@link Instrumentation#retransformClasses} call; the JVM runs the transformers on the calling
+ * thread and only serializes installing the new bytes, so the ASM work of a large attach is spread
+ * over all cores. A batch that fails is split in halves and retried, so one bad class does not keep
+ * the rest of its batch uninstrumented.</p>
+ */
+final class AgentInstallation {
+    static final int BATCH_SIZE = 128;
+
+    private final Instrumentation inst;
+    private final List<ClassFileTransformer> transformers = new ArrayList<>();
+    private final Set<String> changedClasses = ConcurrentHashMap.newKeySet();
+
+    AgentInstallation(Instrumentation inst) {
+        this.inst = inst;
+    }
+
+    /** Registers {@code transformer} as retransformation capable. */
+    void add(ClassFileTransformer transformer) {
+        ClassFileTransformer tracking = new TrackingTransformer(transformer, changedClasses);
+        transformers.add(tracking);
+        inst.addTransformer(tracking, true);
+    }
+
+    boolean canRetransform() {
+        return inst.isRetransformClassesSupported();
+    }
+
+    /**
+     * Retransforms every loaded, modifiable class accepted by {@code filter}.
+     *
+     * @return the number of classes retransformed
+     */
+    int retransform(Predicate<Class<?>> filter) {
+        List<Class<?>> classes = new ArrayList<>();
+        for (Class<?> loaded : inst.getAllLoadedClasses()) {
+            if (inst.isModifiableClass(loaded) && filter.test(loaded)) {
+                classes.add(loaded);
+            }
+        }
+        return retransformInBatches(classes);
+    }
+
+    /**
+     * Unregisters the transformers and restores every class they changed.
+     *
+     * @return the number of classes restored
+     */
+    int uninstall() {
+        for (ClassFileTransformer transformer : transformers) {
+            inst.removeTransformer(transformer);
+        }
+        transformers.clear();
+        int restored = retransform(loaded -> changedClasses.contains(internalName(loaded)));
+        changedClasses.clear();
+        return restored;
+    }
+
+    static String internalName(Class<?> type) {
+        return type.getName().replace('.', '/');
+    }
+
+    private int retransformInBatches(List<Class<?>> classes) {
+        if (classes.isEmpty()) {
+            return 0;
+        }
+        int threads =
+                Math.max(
+                        1,
+                        Math.min(
+                                Runtime.getRuntime().availableProcessors(),
+                                (classes.size() + BATCH_SIZE - 1) / BATCH_SIZE));
+        AtomicInteger retransformed = new AtomicInteger();
+        if (threads == 1) {
+            retransformBatch(classes, retransformed);
+            return retransformed.get();
+        }
+        AtomicInteger threadIndex = new AtomicInteger();
+        ExecutorService executor =
+                Executors.newFixedThreadPool(
+                        threads,
+                        runnable -> {
+                            Thread thread =
+                                    new Thread(
+                                            runnable,
+                                            "jaf-retransform-" + threadIndex.incrementAndGet());
+                            thread.setDaemon(true);
+                            return thread;
+                        });
+        try {
+            List<Future<?>> batches = new ArrayList<>();
+            for (int start = 0; start < classes.size(); start += BATCH_SIZE) {
+                List<Class<?>> batch =
+                        classes.subList(start, Math.min(classes.size(), start + BATCH_SIZE));
+                batches.add(executor.submit(() -> retransformBatch(batch, retransformed)));
+            }
+            for (Future<?> batch : batches) {
+                batch.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            System.err.println("[JAF] Retransformation failed: " + e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+        return retransformed.get();
+    }
+
+    private void retransformBatch(List<Class<?>> batch, AtomicInteger retransformed) {
+        try {
+            inst.retransformClasses(batch.toArray(new Class<?>[0]));
+            retransformed.addAndGet(batch.size());
+            return;
+        } catch (UnmodifiableClassException | RuntimeException | LinkageError | InternalError e) {
+            // InternalError is how the JVM reports a class it refuses to redefine.
+            if (batch.size() == 1) {
+                System.err.println(
+                        "[JAF] Failed to retransform " + batch.get(0).getName() + ": " + e);
+                return;
+            }
+        }
+        int half = batch.size() / 2;
+        retransformBatch(batch.subList(0, half), retransformed);
+        retransformBatch(batch.subList(half, batch.size()), retransformed);
+    }
+
+    private static final class TrackingTransformer implements ClassFileTransformer {
+        private final ClassFileTransformer delegate;
+        private final Set<String> changedClasses;
+
+        TrackingTransformer(ClassFileTransformer delegate, Set<String> changedClasses) {
+            this.delegate = delegate;
+            this.changedClasses = changedClasses;
+        }
+
+        @Override
+        public byte[] transform(
+                Module module,
+                ClassLoader loader,
+                String className,
+                Class<?> classBeingRedefined,
+                ProtectionDomain protectionDomain,
+                byte[] classfileBuffer)
+                throws IllegalClassFormatException {
+            byte[] transformed =
+                    delegate.transform(
+                            module,
+                            loader,
+                            className,
+                            classBeingRedefined,
+                            protectionDomain,
+                            classfileBuffer);
+            if (transformed != null && className != null) {
+                changedClasses.add(className);
+            }
+            return transformed;
+        }
+    }
+}
@@ -0,0 +1,122 @@
+package com.jaf.agent;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Options passed in the {@code -javaagent:jaf-agent.jar=<options>} argument.
+ *
+ * <p>Options are a comma-separated list of {@code key=value} entries:</p>
+ * <ul>
+ *   <li>{@code include=<pattern>}, {@code exclude=<pattern>} and {@code scopeFile=<path>} build the
+ *       {@link ClassScope} of classes that get instrumented;</li>
+ *   <li>{@code record=<path>} switches to recording mode: instead of edge coverage, classes only
+ *       get method-entry probes and those that run during traced requests are appended to the
+ *       file (see {@link ClassUsageRecorder});</li>
+ *   <li>{@code allowlist=<path>} restricts edge coverage to exactly the classes listed in a file
+ *       written by a recording run;</li>
+ *   <li>{@code detach}, only meaningful when attaching to a running JVM, removes a previously
+ *       attached agent's instrumentation.</li>
+ * </ul>
+ */
+final class AgentOptions {
+    private final ClassScope scope;
+    private final Path recordFile;
+    private final Set<String> allowlist;
+    private final boolean detach;
+
+    private AgentOptions(
+            ClassScope scope, Path recordFile, Set<String> allowlist, boolean detach) {
+        this.scope = scope;
+        this.recordFile = recordFile;
+        this.allowlist = allowlist;
+        this.detach = detach;
+    }
+
+    /**
+     * Parses agent arguments; {@code null} or blank arguments yield the defaults.
+     *
+     * @throws IllegalArgumentException on an unknown entry or an unreadable file
+     */
+    static AgentOptions parse(String agentArgs) {
+        ClassScope.Builder scope = new ClassScope.Builder();
+        Path recordFile = null;
+        Set<String> allowlist = null;
+        boolean detach = false;
+        if (agentArgs != null) {
+            for (String entry : agentArgs.split(",")) {
+                String trimmed = entry.trim();
+                if (trimmed.isEmpty()) {
+                    continue;
+                }
+                int eq = trimmed.indexOf('=');
+                String key = eq < 0 ? trimmed : trimmed.substring(0, eq).trim();
+                String value = eq < 0 ? "" : trimmed.substring(eq + 1).trim();
+                switch (key) {
+                    case "include":
+                        scope.include(value);
+                        break;
+                    case "exclude":
+                        scope.exclude(value);
+                        break;
+                    case "scopeFile":
+                        scope.addFile(Path.of(value));
+                        break;
+                    case "record":
+                        recordFile = Path.of(value);
+                        break;
+                    case "allowlist":
+                        allowlist = readAllowlist(Path.of(value));
+                        break;
+                    case "detach":
+                        detach = true;
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown agent argument: " + trimmed);
+                }
+            }
+        }
+        return new AgentOptions(scope.build(), recordFile, allowlist, detach);
+    }
+
+    static AgentOptions defaults() {
+        return new AgentOptions(ClassScope.ALL, null, null, false);
+    }
+
+    ClassScope scope() {
+        return scope;
+    }
+
+    /** Returns the file recording mode appends to, or {@code null} outside recording mode. */
+    Path recordFile() {
+        return recordFile;
+    }
+
+    /** Returns the internal names of the classes to instrument, or {@code null} for no allowlist. */
+    Set<String> allowlist() {
+        return allowlist;
+    }
+
+    boolean detach() {
+        return detach;
+    }
+
+    private static Set<String> readAllowlist(Path file) {
+        Set<String> classes = new HashSet<>();
+        try {
+            for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+                String trimmed = line.trim();
+                if (!trimmed.isEmpty() && !trimmed.startsWith("#")) {
+                    classes.add(trimmed.replace('.', '/'));
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Cannot read allowlist " + file + ": " + e, e);
+        }
+        return classes;
+    }
+}
@@ -0,0 +1,46 @@
+package com.jaf.agent;
+
+import com.sun.tools.attach.VirtualMachine;
+import java.io.File;
+import java.net.URISyntaxException;
+
+/**
+ * Loads the agent into a running JVM: {@code java -jar jaf-agent.jar <pid> [agent-args]}.
+ *
+ * <p>The agent arguments are the same as for {@code -javaagent}; pass {@code detach} to remove the
+ * instrumentation from a JVM the agent was attached to earlier.</p>
+ */
+public final class AttachLauncher {
+    private AttachLauncher() {}
+
+    public static void main(String[] args) throws Exception {
+        if (args.length < 1 || args.length > 2) {
+            System.err.println("Usage: java -jar jaf-agent.jar <pid> [agent-args|detach]");
+            System.exit(2);
+        }
+        String agentJar = agentJarPath();
+        VirtualMachine vm = VirtualMachine.attach(args[0]);
+        try {
+            vm.loadAgent(agentJar, args.length > 1 ? args[1] : null);
+        } finally {
+            vm.detach();
+        }
+        System.out.println(
+                "Loaded " + agentJar + " into JVM " + args[0]
+                        + ". See the target's output for the result.");
+    }
+
+    private static String agentJarPath() throws URISyntaxException {
+        File location =
+                new File(
+                        AttachLauncher.class
+                                .getProtectionDomain()
+                                .getCodeSource()
+                                .getLocation()
+                                .toURI());
+        if (!location.isFile()) {
+            throw new IllegalStateException("Not running from the agent jar: " + location);
+        }
+        return location.getAbsolutePath();
+    }
+}
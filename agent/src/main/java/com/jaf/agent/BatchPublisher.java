@@ -0,0 +1,115 @@
+package com.jaf.agent;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+
+/**
+ * Hands items from any number of producer threads to a single consumer thread, in batches.
+ *
+ * <p>Producers append to a lock-free queue and only wake the consumer when it is parked. The
+ * consumer drains up to {@code maxBatch} items at a time and passes them on together: under load
+ * batches fill up, while an idle publisher passes each item on by itself. The list handed to the
+ * consumer is reused for the next batch.</p>
+ *
+ * <p>At most {@code capacity} items are queued or being consumed; beyond that producers wait, so a
+ * stalled consumer holds up its producers instead of filling the heap.</p>
+ */
+final class BatchPublisher<T> {
+    private static final long STOP_TIMEOUT_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    private static final long STOP_CHECK_MILLIS = 100;
+
+    private final ConcurrentLinkedQueue<T> queue = new ConcurrentLinkedQueue<>();
+    private final Semaphore space;
+    private final int maxBatch;
+    private final Consumer<List<T>> consumer;
+    private final Thread thread;
+    private volatile boolean idle;
+    private volatile boolean stopped;
+
+    BatchPublisher(String threadName, int capacity, int maxBatch, Consumer<List<T>> consumer) {
+        if (capacity < 1 || maxBatch < 1) {
+            throw new IllegalArgumentException(
+                    "capacity and maxBatch must be positive: " + capacity + ", " + maxBatch);
+        }
+        this.space = new Semaphore(capacity);
+        this.maxBatch = maxBatch;
+        this.consumer = consumer;
+        this.thread = new Thread(this::run, threadName);
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    /**
+     * Queues an item, waiting while the publisher is full. The item is dropped if the publisher
+     * stops or the calling thread is interrupted while waiting.
+     */
+    void offer(T item) {
+        try {
+            while (!space.tryAcquire(STOP_CHECK_MILLIS, TimeUnit.MILLISECONDS)) {
+                if (stopped) {
+                    return;
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return;
+        }
+        queue.offer(item);
+        // The consumer re-checks the queue after announcing it is idle, so either it sees the item
+        // or this sees the flag.
+        if (idle) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /** Passes on the items queued so far and stops the consumer thread. */
+    void stop() {
+        stopped = true;
+        LockSupport.unpark(thread);
+        if (thread == Thread.currentThread()) {
+            return;
+        }
+        try {
+            thread.join(STOP_TIMEOUT_MILLIS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        List<T> batch = new ArrayList<>(maxBatch);
+        while (true) {
+            T item = queue.poll();
+            if (item == null) {
+                if (stopped) {
+                    return;
+                }
+                idle = true;
+                if (queue.isEmpty() && !stopped) {
+                    LockSupport.park(this);
+                }
+                idle = false;
+                continue;
+            }
+            do {
+                batch.add(item);
+            } while (batch.size() < maxBatch && (item = queue.poll()) != null);
+            try {
+                consumer.accept(batch);
+            } catch (RuntimeException e) {
+                System.err.println("[JAF] Failed to publish " + batch.size() + " items: " + e);
+            } finally {
+                space.release(batch.size());
+                batch.clear();
+            }
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.jaf.agent;
+
+import java.util.List;
+
+/**
+ * The agent classes {@link JafAgent} appends to the bootstrap class path, so that instrumented JDK
+ * and application classes in any loader can reach them.
+ *
+ * <p>The rest of the agent stays in the system class loader. Although both halves share the
+ * {@code com.jaf.agent} package name, they are in different runtime packages, so every member of
+ * these classes that the rest of the agent uses must be public.</p>
+ */
+final class BootstrapHelpers {
+    static final List<String> CLASS_FILES =
+            List.of(
+                    "com/jaf/agent/FuzzingRequestContext.class",
+                    "com/jaf/agent/FuzzingRequestContext$RequestState.class",
+                    "com/jaf/agent/FuzzingRequestContext$RequestFinishedListener.class",
+                    "com/jaf/agent/CoverageRuntime.class",
+                    "com/jaf/agent/CoverageRuntime$TraceState.class",
+                    "com/jaf/agent/CoverageRuntime$TraceBuffer.class",
+                    "com/jaf/agent/SparseTrace.class",
+                    "com/jaf/agent/InlineCounters.class",
+                    "com/jaf/agent/ProbeSwitch.class",
+                    "com/jaf/agent/Hints.class",
+                    "com/jaf/agent/Hints$Log.class",
+                    "com/jaf/agent/TracePropagation.class",
+                    "com/jaf/agent/TracePropagation$TracedRunnable.class",
+                    "com/jaf/agent/TracePropagation$TracedCallable.class",
+                    "com/jaf/agent/ClassUsageRecorder.class",
+                    "com/jaf/agent/ServletRegistry.class");
+
+    private BootstrapHelpers() {}
+}
@@ -0,0 +1,177 @@
+package com.jaf.agent;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Include/exclude rules deciding which application classes get coverage instrumentation.
+ *
+ * <p>Rules are compiled into a character trie over internal class names, so a class is matched
+ * with a single walk over its name no matter how many rules are configured. A pattern ending in
+ * {@code *} (for example {@code com.ourco.*} or {@code com.ourco.Parser*}) matches every class
+ * whose name starts with the part before the star; any other pattern names a single class together
+ * with its nested classes. The longest matching pattern decides, with excludes winning ties. A
+ * class no pattern matches is instrumented only when no include patterns are configured.</p>
+ *
+ * <p>Rules come from the agent arguments (see {@link AgentOptions}) and scope files. A scope file
+ * lists one pattern per line, prefixed with {@code +} (include, also the default) or {@code -}
+ * (exclude); blank lines and lines starting with {@code #} are ignored.</p>
+ */
+final class ClassScope {
+    /** Instruments every class. */
+    static final ClassScope ALL = new ClassScope(new Node(), false);
+
+    private static final byte NO_RULE = 0;
+    private static final byte INCLUDE = 1;
+    private static final byte EXCLUDE = 2;
+
+    private final Node root;
+    private final boolean hasIncludes;
+
+    private ClassScope(Node root, boolean hasIncludes) {
+        this.root = root;
+        this.hasIncludes = hasIncludes;
+    }
+
+    /** Returns whether {@code internalName} (slash-separated) is in scope. */
+    boolean includes(String internalName) {
+        byte decision = NO_RULE;
+        Node node = root;
+        int length = internalName.length();
+        for (int i = 0; i < length && node != null; i++) {
+            if (node.prefixRule != NO_RULE) {
+                decision = node.prefixRule;
+            }
+            node = node.child(internalName.charAt(i));
+        }
+        if (node != null) {
+            byte exact = merge(node.classRule, node.prefixRule);
+            if (exact != NO_RULE) {
+                decision = exact;
+            }
+        }
+        if (decision == NO_RULE) {
+            return !hasIncludes;
+        }
+        return decision == INCLUDE;
+    }
+
+    /** Combines two rules for the same pattern length; excludes win. */
+    private static byte merge(byte first, byte second) {
+        if (first == EXCLUDE || second == EXCLUDE) {
+            return EXCLUDE;
+        }
+        return first == INCLUDE || second == INCLUDE ? INCLUDE : NO_RULE;
+    }
+
+    static final class Builder {
+        private final Node root = new Node();
+        private boolean hasIncludes;
+
+        Builder include(String pattern) {
+            add(pattern, INCLUDE);
+            hasIncludes = true;
+            return this;
+        }
+
+        Builder exclude(String pattern) {
+            add(pattern, EXCLUDE);
+            return this;
+        }
+
+        Builder addFile(Path file) {
+            List<String> lines;
+            try {
+                lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+            } catch (IOException e) {
+                throw new IllegalArgumentException("Cannot read scope file " + file + ": " + e, e);
+            }
+            for (String line : lines) {
+                String trimmed = line.trim();
+                if (trimmed.isEmpty() || trimmed.startsWith("#")) {
+                    continue;
+                }
+                if (trimmed.startsWith("-")) {
+                    exclude(trimmed.substring(1).trim());
+                } else if (trimmed.startsWith("+")) {
+                    include(trimmed.substring(1).trim());
+                } else {
+                    include(trimmed);
+                }
+            }
+            return this;
+        }
+
+        ClassScope build() {
+            return new ClassScope(root, hasIncludes);
+        }
+
+        private void add(String pattern, byte rule) {
+            String name = pattern == null ? "" : pattern.trim().replace('.', '/');
+            boolean prefix = name.endsWith("*");
+            if (prefix) {
+                // "com.ourco.**" and "com.ourco.*" both cover subpackages.
+                while (name.endsWith("*")) {
+                    name = name.substring(0, name.length() - 1);
+                }
+            }
+            if (name.isEmpty() && !prefix) {
+                throw new IllegalArgumentException("Empty class scope pattern");
+            }
+            Node node = root;
+            for (int i = 0; i < name.length(); i++) {
+                node = node.childOrCreate(name.charAt(i));
+            }
+            if (prefix) {
+                node.prefixRule = merge(node.prefixRule, rule);
+            } else {
+                // A class pattern also covers the class's nested classes.
+                node.classRule = merge(node.classRule, rule);
+                Node nested = node.childOrCreate('$');
+                nested.prefixRule = merge(nested.prefixRule, rule);
+            }
+        }
+    }
+
+    private static final class Node {
+        private static final char[] NO_KEYS = new char[0];
+        private static final Node[] NO_CHILDREN = new Node[0];
+
+        // Sorted by key; most nodes have a single child.
+        private char[] keys = NO_KEYS;
+        private Node[] children = NO_CHILDREN;
+        /** Rule for every name continuing from this node. */
+        private byte prefixRule;
+        /** Rule for the name ending exactly at this node. */
+        private byte classRule;
+
+        Node child(char key) {
+            int index = Arrays.binarySearch(keys, key);
+            return index >= 0 ? children[index] : null;
+        }
+
+        Node childOrCreate(char key) {
+            int index = Arrays.binarySearch(keys, key);
+            if (index >= 0) {
+                return children[index];
+            }
+            int insertAt = -index - 1;
+            char[] newKeys = new char[keys.length + 1];
+            Node[] newChildren = new Node[children.length + 1];
+            System.arraycopy(keys, 0, newKeys, 0, insertAt);
+            System.arraycopy(children, 0, newChildren, 0, insertAt);
+            newKeys[insertAt] = key;
+            newChildren[insertAt] = new Node();
+            System.arraycopy(keys, insertAt, newKeys, insertAt + 1, keys.length - insertAt);
+            System.arraycopy(
+                    children, insertAt, newChildren, insertAt + 1, children.length - insertAt);
+            keys = newKeys;
+            children = newChildren;
+            return newChildren[insertAt];
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.jaf.agent;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Records which classes execute while a request is traced ("recording" mode).
+ *
+ * <p>{@link ClassUsageTransformer} registers every class it instruments here and adds a call to
+ * {@link #onEnter(int)} at the start of each of its methods. The first time a method of a class
+ * runs on a thread that is tracing a request, the class's binary name is appended to the recording
+ * file; from then on the probe is a single array read. The file therefore lists, one name per
+ * line, the classes reachable from the fuzzed endpoints rather than everything touched while the
+ * SUT starts up, and is meant to be fed back as the coverage allowlist of a later run.</p>
+ *
+ * <p>The file is appended to, so several recording runs accumulate into one list.</p>
+ */
+public final class ClassUsageRecorder {
+    static final int MAX_CLASSES = 1 << 18;
+
+    private static final boolean[] SEEN = new boolean[MAX_CLASSES];
+    private static final List<String> NAMES = new ArrayList<>();
+    private static final Map<String, Integer> IDS = new HashMap<>();
+    private static FileChannel output;
+    private static boolean capacityReported;
+
+    private ClassUsageRecorder() {}
+
+    /** Starts appending recorded classes to {@code file}. */
+    public static synchronized void start(Path file) throws IOException {
+        if (output != null) {
+            return;
+        }
+        output =
+                FileChannel.open(
+                        file,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE,
+                        StandardOpenOption.APPEND);
+    }
+
+    /** Stops recording; classes seen from now on are no longer written out. */
+    public static synchronized void stop() throws IOException {
+        if (output != null) {
+            output.close();
+            output = null;
+        }
+    }
+
+    /**
+     * Returns the identifier of {@code internalName} for its entry probes, assigning one on first
+     * use, or {@code -1} when no more classes can be tracked. Classes of the same name share an
+     * identifier, so retransforming a class keeps its identifier.
+     */
+    public static synchronized int register(String internalName) {
+        Integer existing = IDS.get(internalName);
+        if (existing != null) {
+            return existing;
+        }
+        if (NAMES.size() == MAX_CLASSES) {
+            if (!capacityReported) {
+                capacityReported = true;
+                System.err.println(
+                        "[JAF] Class usage recording is limited to " + MAX_CLASSES
+                                + " classes, later classes are not recorded.");
+            }
+            return -1;
+        }
+        int classId = NAMES.size();
+        NAMES.add(internalName);
+        IDS.put(internalName, classId);
+        return classId;
+    }
+
+    /** Probe called on method entry. */
+    public static void onEnter(int classId) {
+        if (SEEN[classId] || !CoverageRuntime.isTracingActive()) {
+            return;
+        }
+        record(classId);
+    }
+
+    /** Returns whether the class with the given identifier has run during a traced request. */
+    static boolean wasSeen(int classId) {
+        return SEEN[classId];
+    }
+
+    private static synchronized void record(int classId) {
+        if (SEEN[classId]) {
+            return;
+        }
+        SEEN[classId] = true;
+        if (output == null) {
+            return;
+        }
+        String line = NAMES.get(classId).replace('/', '.') + "\n";
+        try {
+            ByteBuffer bytes = ByteBuffer.wrap(line.getBytes(StandardCharsets.UTF_8));
+            while (bytes.hasRemaining()) {
+                output.write(bytes);
+            }
+        } catch (IOException e) {
+            System.err.println("[JAF] Failed to record class usage, recording stopped: " + e);
+            try {
+                output.close();
+            } catch (IOException ignored) {
+            }
+            output = null;
+        }
+    }
+}
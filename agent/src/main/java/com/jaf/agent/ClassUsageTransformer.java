@@ -0,0 +1,103 @@
+package com.jaf.agent;
+
+import java.lang.instrument.IllegalClassFormatException;
+import java.security.ProtectionDomain;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.commons.AdviceAdapter;
+
+/**
+ * Adds a {@link ClassUsageRecorder#onEnter(int)} probe to the start of every method of the
+ * classes in scope. Used instead of {@link EdgeCoverageTransformer} in recording mode.
+ *
+ * <p>JDK classes are never recorded: the allowlist is meant to narrow down application and
+ * library code, and the probe itself runs JDK code to look up the current thread's trace.</p>
+ */
+class ClassUsageTransformer implements ScopedTransformer {
+    private static final String RECORDER_INTERNAL = "com/jaf/agent/ClassUsageRecorder";
+
+    private volatile ClassScope scope;
+
+    ClassUsageTransformer(ClassScope scope) {
+        this.scope = scope;
+    }
+
+    @Override
+    public void setScope(ClassScope scope) {
+        this.scope = scope;
+    }
+
+    @Override
+    public byte[] transform(
+            Module module,
+            ClassLoader loader,
+            String className,
+            Class<?> classBeingRedefined,
+            ProtectionDomain protectionDomain,
+            byte[] classfileBuffer)
+            throws IllegalClassFormatException {
+        if (!shouldRecord(className)) {
+            return null;
+        }
+        try {
+            ClassReader reader = new ClassReader(classfileBuffer);
+            int classId = ClassUsageRecorder.register(className);
+            if (classId < 0) {
+                return null;
+            }
+            ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+            ClassVisitor visitor =
+                    new ClassVisitor(Opcodes.ASM9, writer) {
+                        @Override
+                        public MethodVisitor visitMethod(
+                                int access,
+                                String name,
+                                String descriptor,
+                                String signature,
+                                String[] exceptions) {
+                            MethodVisitor baseVisitor =
+                                    super.visitMethod(access, name, descriptor, signature, exceptions);
+                            if (baseVisitor == null
+                                    || (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) {
+                                return baseVisitor;
+                            }
+                            return new AdviceAdapter(
+                                    Opcodes.ASM9, baseVisitor, access, name, descriptor) {
+                                @Override
+                                protected void onMethodEnter() {
+                                    push(classId);
+                                    visitMethodInsn(
+                                            Opcodes.INVOKESTATIC,
+                                            RECORDER_INTERNAL,
+                                            "onEnter",
+                                            "(I)V",
+                                            false);
+                                }
+                            };
+                        }
+                    };
+            reader.accept(visitor, ClassReader.EXPAND_FRAMES);
+            return writer.toByteArray();
+        } catch (Exception e) {
+            throw new IllegalClassFormatException(
+                    "Failed to add class usage probes to " + className + ": " + e.getMessage());
+        }
+    }
+
+    private boolean shouldRecord(String className) {
+        if (className == null
+                || className.startsWith("java/")
+                || className.startsWith("javax/")
+                || className.startsWith("jdk/")
+                || className.startsWith("sun/")
+                || className.startsWith("com/sun/")
+                || className.startsWith("com/jaf/agent")
+                || className.startsWith("org/objectweb/asm")) {
+            return false;
+        }
+        return scope.includes(className);
+    }
+}
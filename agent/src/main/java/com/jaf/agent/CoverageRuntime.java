@@ -1,81 +1,220 @@
 package com.jaf.agent;
 
 import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.LockSupport;
 
 /**
  * Coverage runtime modeled after AFL's edge coverage scheme.
  *
- * <p>Instrumented code calls {@link #enterEdge(int)} at the beginning of each basic block. When
- * tracing is enabled for the current thread, the runtime tracks a rolling previous-location value
- * per thread and bumps a byte-sized counter in the thread-local coverage bitmap using
- * {@code prev ^ cur} as the index.</p>
+ * <p>Instrumented code calls {@link #enterEdge(int)} at the beginning of each basic block and at
+ * every branch target. Probe identifiers are handed out sequentially by {@link ProbeIdAllocator},
+ * so when tracing is enabled for the current thread the runtime bumps the byte-sized counter at
+ * exactly that index; there is no hashing and therefore no aliasing between probes.</p>
+ *
+ * <p>The map holds at most {@link #MAP_SIZE} probes, configurable through the
+ * {@value #MAP_SIZE_PROPERTY} system property. Trace buffers start small and grow towards that
+ * bound as higher probe identifiers are hit, so their footprint follows the number of probes
+ * actually emitted.</p>
+ *
+ * <p>Trace buffers are pooled and reused across requests. Alongside the counter array each buffer
+ * keeps the list of indices touched since it was acquired, so finishing a trace only copies and
+ * clears the dirty slots instead of allocating and zero-filling a whole map per request.</p>
+ *
+ * <p>Setting {@value #PROBE_MODE_PROPERTY} to {@code inline} switches the transformer to probes
+ * that increment {@link InlineCounters#counters} directly instead of calling
+ * {@link #enterEdge(int)}. The runtime then binds that shared region to the outermost tracing scope
+ * and harvests it when the scope closes; see {@link InlineCounters} for the trade-offs.</p>
+ *
+ * <p>A request's trace can follow its work onto other threads: {@link #currentContext()} captures
+ * the trace on the submitting thread and {@link #attachContext(Object)} opens a child trace for it
+ * on the executing thread (see {@link TracePropagation}). Each child records into its own buffer;
+ * when it detaches its entries are queued on the request's trace and merged into it when the
+ * request's outermost scope closes. Work usually signals completion just before its child detaches,
+ * so closing waits up to {@value #CHILD_GRACE_MILLIS} ms for attached children; anything still
+ * running after that is dropped.
+ * Inline probes already write to one shared region from every thread, so there is nothing to
+ * attach in inline mode.</p>
  */
 public final class CoverageRuntime {
-    static final int MAP_SIZE = 1 << 16; // 64K entries, must stay a power of two.
+    static final String MAP_SIZE_PROPERTY = "jaf.coverage.mapSize";
+    private static final int DEFAULT_MAP_SIZE = 1 << 20;
+    public static final int MAP_SIZE = configuredMapSize();
+    static final String PROBE_MODE_PROPERTY = "jaf.coverage.probes";
+    public static final boolean INLINE_PROBES =
+            "inline".equals(System.getProperty(PROBE_MODE_PROPERTY));
+    private static final int INITIAL_BUFFER_SIZE = 1 << 12;
+    private static final int MAX_POOLED_BUFFERS = 64;
+    static final long CHILD_GRACE_MILLIS = 20;
 
+    /** Hits of every request traced since the last reset, for health reporting and tooling. */
     private static final byte[] GLOBAL_COVERAGE_MAP = new byte[MAP_SIZE];
     private static final ThreadLocal<TraceState> TRACE_STATE = new ThreadLocal<>();
+    private static final ArrayBlockingQueue<TraceBuffer> BUFFER_POOL =
+            new ArrayBlockingQueue<>(MAX_POOLED_BUFFERS);
 
     private CoverageRuntime() {}
 
     /**
-     * Records the execution of an edge identified by the provided block identifier.
+     * Records the execution of the probe with the provided identifier.
      *
      * <p>If tracing is not active for the current thread, the call is ignored.</p>
      *
-     * @param currentLocation pre-hashed block identifier (must already fit into {@link #MAP_SIZE})
+     * @param probeId probe identifier allocated at transform time (must be below {@link #MAP_SIZE})
      */
-    public static void enterEdge(int currentLocation) {
+    public static void enterEdge(int probeId) {
         TraceState state = TRACE_STATE.get();
         if (state == null || !state.isActive()) {
             return;
         }
-
-        int prev = state.previousLocation;
-        int index = (prev ^ currentLocation) & (MAP_SIZE - 1);
-        state.recordHit(index);
-        state.previousLocation = (currentLocation >>> 1) & (MAP_SIZE - 1);
+        if (INLINE_PROBES) {
+            InlineCounters.hit(probeId);
+            return;
+        }
+        state.recordHit(probeId);
     }
 
     /**
-     * Enables tracing for the current thread. When tracing transitions from inactive to active, the
-     * per-thread coverage bitmap is cleared.
+     * Enables tracing for the current thread. When tracing transitions from inactive to active, a
+     * clean trace buffer is taken from the pool, or the inline counter region is bound in inline
+     * probe mode.
      */
     public static void startTracing() {
         TraceState state = TRACE_STATE.get();
-        if (state == null) {
-            state = new TraceState();
+        if (state == null || state.isPropagated()) {
+            // A request starting on a thread that carries propagated work gets a trace of its own;
+            // the propagated one is set aside and restored when the request's trace closes.
+            state = new TraceState(INLINE_PROBES ? null : acquireBuffer(), null, state);
             TRACE_STATE.set(state);
+            if (INLINE_PROBES) {
+                InlineCounters.bind(state);
+            }
         }
         state.start();
     }
 
     /**
      * Disables tracing for the current thread. When this call closes the outermost tracing scope,
-     * the trace bitmap collected for the scope is returned. Inner scopes yield {@code null} to
-     * signal that tracing is still active.
+     * the entries touched during the scope are returned and the trace buffer goes back to the pool.
+     * Inner scopes yield {@code null} to signal that tracing is still active.
      *
-     * @return the completed trace bitmap, or {@code null} if tracing remains active
+     * @return the completed sparse trace, or {@code null} if tracing remains active
      */
-    public static byte[] stopTracing() {
+    public static SparseTrace stopTracing() {
         TraceState state = TRACE_STATE.get();
-        if (state == null) {
+        if (state == null || state.isPropagated()) {
+            // Propagated traces are closed by detachContext, never by an unbalanced stop.
             return null;
         }
         if (!state.stop()) {
             return null;
         }
-        TRACE_STATE.remove();
-        return state.bitmap;
+        restorePrevious(state);
+        if (!INLINE_PROBES) {
+            state.awaitChildren();
+        }
+        state.finished = true;
+        SparseTrace trace;
+        if (INLINE_PROBES) {
+            trace = InlineCounters.unbind(state);
+        } else {
+            TraceBuffer buffer = state.buffer;
+            SparseTrace child;
+            while ((child = state.childTraces.poll()) != null) {
+                buffer.merge(child);
+            }
+            trace = buffer.drain();
+            releaseBuffer(buffer);
+        }
+        accumulate(trace);
+        return trace;
     }
 
-    /** Returns the trace bitmap for the current thread without modifying tracing state. */
+    /**
+     * Returns an opaque handle to the request trace active on the calling thread, or {@code null}
+     * if the thread is not tracing. Work that captures the handle can later be traced on another
+     * thread with {@link #attachContext(Object)}.
+     */
+    public static Object currentContext() {
+        TraceState state = TRACE_STATE.get();
+        if (INLINE_PROBES || state == null || !state.isActive()) {
+            return null;
+        }
+        return state.root;
+    }
+
+    /**
+     * Starts tracing the calling thread into the request trace identified by {@code context}. The
+     * thread keeps its own trace if it is already serving a request, and nothing happens if the
+     * request has finished. Attaching on a thread that already carries propagated work nests a new
+     * child, so each task hands its entries over as soon as it detaches.
+     *
+     * @return a token to pass to {@link #detachContext(Object)}, or {@code null} if nothing was
+     *     attached
+     */
+    public static Object attachContext(Object context) {
+        if (!(context instanceof TraceState)) {
+            return null;
+        }
+        TraceState root = (TraceState) context;
+        TraceState current = TRACE_STATE.get();
+        if (current != null && !current.isActive()) {
+            // Left behind by work that outlived its request, e.g. a pool thread started by it.
+            TRACE_STATE.remove();
+            discard(current);
+            current = null;
+        }
+        if (current != null && !current.isPropagated()) {
+            return null;
+        }
+        root.activeChildren.incrementAndGet();
+        if (root.finished) {
+            root.activeChildren.decrementAndGet();
+            return null;
+        }
+        TraceState child = new TraceState(acquireBuffer(), root, current);
+        child.start();
+        TRACE_STATE.set(child);
+        return child;
+    }
+
+    /**
+     * Ends tracing started by {@link #attachContext(Object)} and hands the entries recorded on this
+     * thread to the request trace.
+     */
+    public static void detachContext(Object token) {
+        if (!(token instanceof TraceState)) {
+            return;
+        }
+        TraceState child = (TraceState) token;
+        if (!child.stop() || child.finished) {
+            // Already discarded by restorePrevious; its buffer is back in the pool.
+            return;
+        }
+        restorePrevious(child);
+        child.finished = true;
+        TraceBuffer buffer = child.buffer;
+        child.root.offerChildTrace(buffer.drain());
+        releaseBuffer(buffer);
+        child.root.activeChildren.decrementAndGet();
+    }
+
+    /**
+     * Returns the live counter array backing the current thread's trace without modifying tracing
+     * state. The array is pooled and must not be retained after tracing stops.
+     */
     public static byte[] currentTraceBitmap() {
         TraceState state = TRACE_STATE.get();
         if (state == null || !state.isActive()) {
             return null;
         }
-        return state.bitmap;
+        if (INLINE_PROBES) {
+            return InlineCounters.boundRegion(state);
+        }
+        return state.buffer.counters;
     }
 
     /** Returns whether tracing is currently active for the calling thread. */
@@ -87,7 +226,23 @@ public final class CoverageRuntime {
     /** Resets the global coverage map and clears any per-thread tracing state. */
     public static void reset() {
         Arrays.fill(GLOBAL_COVERAGE_MAP, (byte) 0);
+        TraceState state = TRACE_STATE.get();
         TRACE_STATE.remove();
+        if (state != null && INLINE_PROBES) {
+            InlineCounters.unbind(state);
+        } else if (state != null) {
+            TraceBuffer buffer = state.buffer;
+            buffer.drain();
+            releaseBuffer(buffer);
+        }
+    }
+
+    /**
+     * Clears the global coverage map, starting a new accumulation period, without touching any
+     * thread's tracing state.
+     */
+    public static void resetGlobalCoverage() {
+        Arrays.fill(GLOBAL_COVERAGE_MAP, (byte) 0);
     }
 
     /** Returns a defensive copy of the global coverage map for analysis tooling. */
@@ -110,16 +265,119 @@ public final class CoverageRuntime {
         return GLOBAL_COVERAGE_MAP;
     }
 
+    /**
+     * Adds a finished request trace to the global coverage map, saturating at 255. Requests
+     * finishing concurrently may lose an increment to each other, which is fine for a map that only
+     * tells which probes were hit and roughly how often.
+     */
+    private static void accumulate(SparseTrace trace) {
+        if (trace == null) {
+            return;
+        }
+        for (int i = 0; i < trace.size(); i++) {
+            int index = trace.indexAt(i);
+            if (index < GLOBAL_COVERAGE_MAP.length) {
+                int current = GLOBAL_COVERAGE_MAP[index] & 0xFF;
+                GLOBAL_COVERAGE_MAP[index] = (byte) Math.min(current + trace.countAt(i), 0xFF);
+            }
+        }
+    }
+
+    /**
+     * Reinstates the trace that {@code closing} displaced on this thread. A displaced trace whose
+     * request has finished in the meantime is discarded.
+     */
+    private static void restorePrevious(TraceState closing) {
+        if (TRACE_STATE.get() != closing) {
+            return;
+        }
+        TraceState previous = closing.previous;
+        if (previous != null && previous.isActive()) {
+            TRACE_STATE.set(previous);
+            return;
+        }
+        TRACE_STATE.remove();
+        if (previous != null) {
+            discard(previous);
+        }
+    }
+
+    /** Drops a propagated trace that can no longer record, returning its buffer to the pool. */
+    private static void discard(TraceState state) {
+        if (state.buffer == null || state.finished) {
+            return;
+        }
+        state.finished = true;
+        state.buffer.drain();
+        releaseBuffer(state.buffer);
+    }
+
+    private static TraceBuffer acquireBuffer() {
+        TraceBuffer buffer = BUFFER_POOL.poll();
+        return buffer != null ? buffer : new TraceBuffer();
+    }
+
+    private static void releaseBuffer(TraceBuffer buffer) {
+        // When the pool is full the buffer is simply left to the garbage collector.
+        BUFFER_POOL.offer(buffer);
+    }
+
+    private static int configuredMapSize() {
+        Integer configured = Integer.getInteger(MAP_SIZE_PROPERTY);
+        if (configured == null) {
+            return DEFAULT_MAP_SIZE;
+        }
+        if (configured <= 0) {
+            System.err.println(
+                    "[JAF] Ignoring non-positive " + MAP_SIZE_PROPERTY + "=" + configured);
+            return DEFAULT_MAP_SIZE;
+        }
+        return configured;
+    }
+
     private static final class TraceState {
-        private final byte[] bitmap = new byte[MAP_SIZE];
-        private int previousLocation = 0;
+        private final TraceBuffer buffer;
+        /** Request trace this state records for; {@code this} unless the state is propagated. */
+        private final TraceState root;
+        /** Trace displaced on this thread when this state was installed, restored on close. */
+        private final TraceState previous;
+        /** Entries recorded by propagated children, merged when the root closes. */
+        private final ConcurrentLinkedQueue<SparseTrace> childTraces;
+        /** Propagated children currently attached to this root. */
+        private final AtomicInteger activeChildren;
         private int depth = 0;
+        private volatile boolean finished;
 
-        void start() {
-            if (depth == 0) {
-                Arrays.fill(bitmap, (byte) 0);
-                previousLocation = 0;
+        TraceState(TraceBuffer buffer, TraceState root, TraceState previous) {
+            this.buffer = buffer;
+            this.root = root != null ? root : this;
+            this.previous = previous;
+            this.childTraces = root == null ? new ConcurrentLinkedQueue<>() : null;
+            this.activeChildren = root == null ? new AtomicInteger() : null;
+        }
+
+        /** Gives attached children a short grace period to detach before the root closes. */
+        void awaitChildren() {
+            if (activeChildren.get() == 0) {
+                return;
+            }
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CHILD_GRACE_MILLIS);
+            while (activeChildren.get() > 0 && System.nanoTime() < deadline) {
+                LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(50));
+            }
+        }
+
+        boolean isPropagated() {
+            return root != this;
+        }
+
+        void offerChildTrace(SparseTrace trace) {
+            if (!finished && !trace.isEmpty()) {
+                childTraces.add(trace);
             }
+        }
+
+        void start() {
             depth++;
         }
 
@@ -128,22 +386,88 @@ public final class CoverageRuntime {
                 return false;
             }
             depth--;
-            if (depth == 0) {
-                previousLocation = 0;
-                return true;
-            }
-            return false;
+            return depth == 0;
         }
 
         boolean isActive() {
-            return depth > 0;
+            // Propagated work that outlives its request stops recording.
+            return depth > 0 && !root.finished;
         }
 
         void recordHit(int index) {
-            byte value = bitmap[index];
-            if (value != (byte) 0xFF) {
-                bitmap[index] = (byte) (value + 1);
+            buffer.recordHit(index);
+        }
+    }
+
+    /**
+     * Reusable counter array plus the list of slots dirtied since the buffer was last drained. The
+     * counter array is all zeroes whenever the buffer sits in the pool.
+     */
+    private static final class TraceBuffer {
+        private byte[] counters = new byte[Math.min(INITIAL_BUFFER_SIZE, MAP_SIZE)];
+        private int[] touched = new int[256];
+        private int touchedCount = 0;
+
+        void recordHit(int index) {
+            if (index >= counters.length && !growCounters(index)) {
+                return;
+            }
+            byte value = counters[index];
+            if (value == 0) {
+                if (touchedCount == touched.length) {
+                    // System.arraycopy is intrinsic and never instrumented, unlike Arrays.copyOf.
+                    int[] grown = new int[touched.length << 1];
+                    System.arraycopy(touched, 0, grown, 0, touchedCount);
+                    touched = grown;
+                }
+                touched[touchedCount++] = index;
+                counters[index] = 1;
+            } else if (value != (byte) 0xFF) {
+                counters[index] = (byte) (value + 1);
+            }
+        }
+
+        private boolean growCounters(int index) {
+            if (index >= MAP_SIZE) {
+                return false;
+            }
+            int length = counters.length;
+            while (length <= index && length < MAP_SIZE) {
+                length = (int) Math.min((long) length << 1, MAP_SIZE);
+            }
+            byte[] grown = new byte[length];
+            System.arraycopy(counters, 0, grown, 0, counters.length);
+            counters = grown;
+            return true;
+        }
+
+        /** Adds the counts of {@code trace} to this buffer, saturating at 255. */
+        void merge(SparseTrace trace) {
+            for (int i = 0; i < trace.size(); i++) {
+                int index = trace.indexAt(i);
+                if (index >= counters.length && !growCounters(index)) {
+                    continue;
+                }
+                int current = counters[index] & 0xFF;
+                if (current == 0) {
+                    if (touchedCount == touched.length) {
+                        int[] grown = new int[touched.length << 1];
+                        System.arraycopy(touched, 0, grown, 0, touchedCount);
+                        touched = grown;
+                    }
+                    touched[touchedCount++] = index;
+                }
+                counters[index] = (byte) Math.min(current + trace.countAt(i), 0xFF);
+            }
+        }
+
+        SparseTrace drain() {
+            SparseTrace trace = SparseTrace.capture(touched, touchedCount, counters);
+            for (int i = 0; i < touchedCount; i++) {
+                counters[touched[i]] = 0;
             }
+            touchedCount = 0;
+            return trace;
         }
     }
 }
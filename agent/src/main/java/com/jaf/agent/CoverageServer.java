@@ -1,10 +1,28 @@
 package com.jaf.agent;
 
-import com.google.protobuf.ByteString;
+import com.jaf.proto.CoverageProto.Comparison;
+import com.jaf.proto.CoverageProto.ConfigureRequest;
+import com.jaf.proto.CoverageProto.ConfigureResponse;
 import com.jaf.proto.CoverageProto.CoverageEvent;
+import com.jaf.proto.CoverageProto.CoverageEventBatch;
+import com.jaf.proto.CoverageProto.CoverageMode;
+import com.jaf.proto.CoverageProto.ExecuteRequest;
+import com.jaf.proto.CoverageProto.ExecuteResult;
+import com.jaf.proto.CoverageProto.FetchTraceRequest;
+import com.jaf.proto.CoverageProto.HealthRequest;
+import com.jaf.proto.CoverageProto.HealthResponse;
+import com.jaf.proto.CoverageProto.OverflowPolicy;
+import com.jaf.proto.CoverageProto.ProbeLookupRequest;
+import com.jaf.proto.CoverageProto.ProbeLookupResponse;
+import com.jaf.proto.CoverageProto.ProbeSymbol;
+import com.jaf.proto.CoverageProto.ResetCoverageRequest;
+import com.jaf.proto.CoverageProto.ResetCoverageResponse;
+import com.jaf.proto.CoverageProto.ScopeUpdate;
 import com.jaf.proto.CoverageProto.SubscribeRequest;
+import com.jaf.proto.CoverageProto.TraceEncoding;
 import com.jaf.proto.CoverageServiceGrpc;
 import io.grpc.Server;
+import io.grpc.Status;
 import io.grpc.netty.shaded.io.grpc.netty.NettyServerBuilder;
 import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
@@ -14,28 +32,79 @@ import io.grpc.netty.shaded.io.netty.channel.epoll.EpollServerDomainSocketChanne
 import io.grpc.netty.shaded.io.netty.channel.epoll.EpollEventLoopGroup;
 import io.grpc.netty.shaded.io.netty.channel.unix.DomainSocketAddress;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.http.HttpClient;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.Collections;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 final class CoverageServer {
+    /** Traces omitted from novelty-only events that FetchTrace can still return. */
+    static final int MAX_OMITTED_TRACES = 256;
+    /** Finished requests whose events are built and sent together by the publisher thread. */
+    static final int MAX_BATCH_EVENTS = 64;
+    /** Finished requests waiting for the publisher thread before request threads have to wait. */
+    static final int MAX_QUEUED_REQUESTS = 4096;
+    /** Events queued per subscriber while its stream is not ready, unless it asks otherwise. */
+    static final int DEFAULT_MAX_QUEUED_EVENTS = 1024;
+    /** Multiple of max_queued_events a FINGERPRINT_ONLY queue may reach with trace-less events. */
+    static final int DOWNGRADED_QUEUE_FACTOR = 8;
+    private static final long BLOCK_POLL_MILLIS = 100;
+    private static final List<TraceEncoding> SUPPORTED_ENCODINGS =
+            List.of(TraceEncoding.DENSE, TraceEncoding.SPARSE, TraceEncoding.RUN_LENGTH);
+
     private final Path socketPath;
-    private final Set<StreamObserver<CoverageEvent>> observers =
-            Collections.newSetFromMap(new ConcurrentHashMap<>());
+    private final AgentControl control;
+    private final Map<StreamObserver<?>, Subscriber> subscribers = new ConcurrentHashMap<>();
+    private final BatchPublisher<FinishedRequest> publisher =
+            new BatchPublisher<>(
+                    "jaf-coverage-publisher", MAX_QUEUED_REQUESTS, MAX_BATCH_EVENTS, this::publish);
+    /** Inputs of Execute streams waiting for their request to finish, by request ID. */
+    private final Map<String, CompletableFuture<FinishedRequest>> executions =
+            new ConcurrentHashMap<>();
+    private final Set<ExecuteSession> executeSessions = ConcurrentHashMap.newKeySet();
+    private final AtomicLong nextExecutionId = new AtomicLong();
     private final AtomicBoolean clientConnected = new AtomicBoolean(false);
     private final CountDownLatch firstClientLatch = new CountDownLatch(1);
+    private volatile CoverageMode mode = CoverageMode.HIT_COUNTS;
+    private final Map<String, OmittedTrace> omittedTraces =
+            new LinkedHashMap<>(16, 0.75f, false) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<String, OmittedTrace> eldest) {
+                    return size() > MAX_OMITTED_TRACES;
+                }
+            };
 
     private Server server;
     private EventLoopGroup bossGroup;
     private EventLoopGroup workerGroup;
+    /** Created with the first Execute stream; guarded by this. */
+    private ExecutorService executeExecutor;
+    private HttpClient executeClient;
 
     CoverageServer(Path socketPath) {
+        this(socketPath, AgentControl.NONE);
+    }
+
+    CoverageServer(Path socketPath, AgentControl control) {
         this.socketPath = socketPath;
+        this.control = control;
     }
 
     void start() throws IOException {
@@ -55,11 +124,13 @@ final class CoverageServer {
                         .addService(new CoverageServiceImpl())
                         .build()
                         .start();
+        publisher.start();
         FuzzingRequestContext.registerRequestFinishedListener(this::handleRequestFinished);
     }
 
     void stop() {
         FuzzingRequestContext.registerRequestFinishedListener(null);
+        publisher.stop();
         if (server != null) {
             server.shutdown();
             try {
@@ -80,24 +151,279 @@ final class CoverageServer {
             // best effort cleanup
         }
         firstClientLatch.countDown();
-        observers.clear();
+        for (Subscriber subscriber : subscribers.values()) {
+            subscriber.close();
+        }
+        subscribers.clear();
+        for (ExecuteSession session : executeSessions) {
+            session.close();
+        }
+        executions.clear();
+        synchronized (this) {
+            if (executeExecutor != null) {
+                executeExecutor.shutdownNow();
+                executeExecutor = null;
+                executeClient = null;
+            }
+        }
+        updateActivation();
     }
 
     private final class CoverageServiceImpl extends CoverageServiceGrpc.CoverageServiceImplBase {
         @Override
         public void subscribe(
                 SubscribeRequest request, StreamObserver<CoverageEvent> responseObserver) {
-            observers.add(responseObserver);
-            if (clientConnected.compareAndSet(false, true)) {
-                firstClientLatch.countDown();
+            addSubscriber(responseObserver, newSubscriber(request, responseObserver, null));
+        }
+
+        @Override
+        public void subscribeBatches(
+                SubscribeRequest request, StreamObserver<CoverageEventBatch> responseObserver) {
+            addSubscriber(responseObserver, newSubscriber(request, null, responseObserver));
+        }
+
+        @Override
+        public StreamObserver<ExecuteRequest> execute(
+                StreamObserver<ExecuteResult> responseObserver) {
+            ExecuteSession session;
+            synchronized (CoverageServer.this) {
+                if (executeClient == null) {
+                    executeExecutor =
+                            Executors.newCachedThreadPool(
+                                    task -> {
+                                        Thread thread = new Thread(task, "jaf-execute");
+                                        thread.setDaemon(true);
+                                        return thread;
+                                    });
+                    executeClient =
+                            HttpClient.newBuilder()
+                                    .version(HttpClient.Version.HTTP_1_1)
+                                    .executor(executeExecutor)
+                                    .build();
+                }
+                session =
+                        new ExecuteSession(
+                                CoverageServer.this,
+                                responseObserver,
+                                executeClient,
+                                executeExecutor);
+            }
+            executeSessions.add(session);
+            updateActivation();
+            noteClientConnected();
+            return session;
+        }
+
+        @Override
+        public void lookupProbes(
+                ProbeLookupRequest request, StreamObserver<ProbeLookupResponse> responseObserver) {
+            ProbeSymbolTable symbols = ProbeSymbolTable.global();
+            ProbeLookupResponse.Builder response = ProbeLookupResponse.newBuilder();
+            for (int probeId : request.getProbeIdsList()) {
+                ProbeSymbolTable.Symbol symbol = symbols.lookup(probeId);
+                if (symbol == null) {
+                    continue;
+                }
+                response.addSymbols(
+                        ProbeSymbol.newBuilder()
+                                .setProbeId(symbol.probeId)
+                                .setClassName(symbol.className)
+                                .setMethodName(symbol.methodName)
+                                .setMethodDescriptor(symbol.descriptor)
+                                .setBlockIndex(symbol.blockIndex)
+                                .setLine(Math.max(symbol.line, 0)));
+            }
+            responseObserver.onNext(response.build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void configure(
+                ConfigureRequest request, StreamObserver<ConfigureResponse> responseObserver) {
+            int retransformed = 0;
+            if (request.hasScope()) {
+                try {
+                    retransformed = control.rescope(toClassScope(request.getScope()));
+                } catch (IllegalArgumentException e) {
+                    responseObserver.onError(
+                            Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asException());
+                    return;
+                } catch (IllegalStateException e) {
+                    responseObserver.onError(
+                            Status.FAILED_PRECONDITION
+                                    .withDescription(e.getMessage())
+                                    .asException());
+                    return;
+                }
+            }
+            if (request.hasMode()) {
+                mode = request.getMode();
+            }
+            responseObserver.onNext(
+                    ConfigureResponse.newBuilder()
+                            .setRetransformedClasses(retransformed)
+                            .setMode(mode)
+                            .build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void resetCoverage(
+                ResetCoverageRequest request,
+                StreamObserver<ResetCoverageResponse> responseObserver) {
+            int covered = CoverageRuntime.nonZeroCount();
+            CoverageRuntime.resetGlobalCoverage();
+            responseObserver.onNext(
+                    ResetCoverageResponse.newBuilder().setCoveredProbes(covered).build());
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void fetchTrace(
+                FetchTraceRequest request, StreamObserver<CoverageEvent> responseObserver) {
+            OmittedTrace omitted;
+            synchronized (omittedTraces) {
+                omitted = omittedTraces.remove(request.getRequestId());
             }
-            if (responseObserver instanceof ServerCallStreamObserver<CoverageEvent> serverObserver) {
-                serverObserver.setOnCancelHandler(() -> observers.remove(responseObserver));
-                serverObserver.setOnCloseHandler(() -> observers.remove(responseObserver));
+            if (omitted == null) {
+                responseObserver.onError(
+                        Status.NOT_FOUND
+                                .withDescription("No trace kept for " + request.getRequestId())
+                                .asException());
+                return;
             }
+            responseObserver.onNext(
+                    inlineEvent(
+                            request.getRequestId(),
+                            omitted.trace(),
+                            omitted.mapSize(),
+                            null,
+                            acceptedEncodings(request.getTraceEncodingsList())));
+            responseObserver.onCompleted();
+        }
+
+        @Override
+        public void health(HealthRequest request, StreamObserver<HealthResponse> responseObserver) {
+            long queued = 0;
+            long dropped = 0;
+            long downgraded = 0;
+            for (Subscriber subscriber : subscribers.values()) {
+                synchronized (subscriber) {
+                    queued += subscriber.queue.size();
+                    dropped += subscriber.dropped;
+                    downgraded += subscriber.downgraded;
+                }
+            }
+            responseObserver.onNext(
+                    HealthResponse.newBuilder()
+                            .setInstrumented(control.isInstrumented())
+                            .setSubscribers(subscribers.size())
+                            .setMapSize(ProbeIdAllocator.global().allocatedCount())
+                            .setCoveredProbes(CoverageRuntime.nonZeroCount())
+                            .setMode(mode)
+                            .setUptimeMillis(ManagementFactory.getRuntimeMXBean().getUptime())
+                            .addAllListeningPorts(ListeningPorts.current())
+                            .setQueuedEvents(queued)
+                            .setDroppedEvents(dropped)
+                            .setDowngradedEvents(downgraded)
+                            .addAllTraceEncodings(SUPPORTED_ENCODINGS)
+                            .setInlineProbes(CoverageRuntime.INLINE_PROBES)
+                            .build());
+            responseObserver.onCompleted();
+        }
+    }
+
+    private static ClassScope toClassScope(ScopeUpdate update) {
+        ClassScope.Builder scope = new ClassScope.Builder();
+        for (String pattern : update.getIncludeList()) {
+            scope.include(pattern);
+        }
+        for (String pattern : update.getExcludeList()) {
+            scope.exclude(pattern);
+        }
+        return scope.build();
+    }
+
+    private static SharedCoverageWriter openSharedRegion(String shmPath) {
+        if (shmPath == null || shmPath.isEmpty()) {
+            return null;
+        }
+        try {
+            return SharedCoverageWriter.open(Path.of(shmPath));
+        } catch (IOException | RuntimeException e) {
+            System.err.println(
+                    "Failed to map shared coverage region "
+                            + shmPath
+                            + ", falling back to inline traces: "
+                            + e);
+            return null;
+        }
+    }
+
+    private Subscriber newSubscriber(
+            SubscribeRequest request,
+            StreamObserver<CoverageEvent> observer,
+            StreamObserver<CoverageEventBatch> batchObserver) {
+        StreamObserver<?> stream = observer != null ? observer : batchObserver;
+        return new Subscriber(
+                observer,
+                batchObserver,
+                stream instanceof ServerCallStreamObserver<?> serverObserver
+                        ? serverObserver
+                        : null,
+                openSharedRegion(request.getShmPath()),
+                request.getNoveltyOnly() ? new NoveltyTracker() : null,
+                request.getFingerprintCacheSize() > 0
+                        ? new FingerprintCache(request.getFingerprintCacheSize())
+                        : null,
+                request.getOverflowPolicy(),
+                request.getMaxQueuedEvents() > 0
+                        ? request.getMaxQueuedEvents()
+                        : DEFAULT_MAX_QUEUED_EVENTS,
+                acceptedEncodings(request.getTraceEncodingsList()),
+                omittedTraces);
+    }
+
+    private void addSubscriber(StreamObserver<?> observer, Subscriber subscriber) {
+        subscribers.put(observer, subscriber);
+        updateActivation();
+        noteClientConnected();
+        if (subscriber.flowControl != null) {
+            subscriber.flowControl.setOnReadyHandler(subscriber::drain);
+            subscriber.flowControl.setOnCancelHandler(() -> removeSubscriber(observer));
+            subscriber.flowControl.setOnCloseHandler(() -> removeSubscriber(observer));
         }
     }
 
+    private void removeSubscriber(StreamObserver<?> observer) {
+        Subscriber subscriber = subscribers.remove(observer);
+        if (subscriber != null) {
+            subscriber.close();
+            updateActivation();
+        }
+    }
+
+    void removeExecuteSession(ExecuteSession session) {
+        if (executeSessions.remove(session)) {
+            updateActivation();
+        }
+    }
+
+    private void noteClientConnected() {
+        if (clientConnected.compareAndSet(false, true)) {
+            firstClientLatch.countDown();
+        }
+    }
+
+    // Requests are only traced and probes only record while a fuzzer is listening; the state is
+    // re-read under the lock so concurrent subscribe/unsubscribe calls always settle on the current
+    // subscriber set.
+    private synchronized void updateActivation() {
+        boolean active = !subscribers.isEmpty() || !executeSessions.isEmpty();
+        FuzzingRequestContext.setTracingEnabled(active);
+        ProbeSwitch.setArmed(active);
+    }
+
     Path getSocketPath() {
         return socketPath;
     }
@@ -120,15 +446,488 @@ final class CoverageServer {
         return firstClientLatch.await(timeout, unit);
     }
 
-    private void handleRequestFinished(String requestId, byte[] traceBitmap) {
-        byte[] payload = traceBitmap == null ? new byte[0] : traceBitmap;
-        CoverageEvent event =
+    /**
+     * Returns a new request ID for an input of an Execute stream; {@code finished} completes when
+     * the request with that ID finishes.
+     */
+    String registerExecution(CompletableFuture<FinishedRequest> finished) {
+        // Base 36 has no '-', so these never clash with the UUIDs of fuzzer-sent requests.
+        String requestId = "x" + Long.toString(nextExecutionId.incrementAndGet(), 36);
+        executions.put(requestId, finished);
+        return requestId;
+    }
+
+    void forgetExecution(String requestId) {
+        executions.remove(requestId);
+    }
+
+    /** The inline coverage event of an executed input; empty if its request never finished. */
+    CoverageEvent executionCoverage(
+            String requestId, FinishedRequest finished, Set<TraceEncoding> encodings) {
+        SparseTrace trace = finished != null ? finished.trace() : null;
+        int mapSize = ProbeIdAllocator.global().allocatedCount();
+        if (trace != null) {
+            mapSize = Math.max(mapSize, trace.maxIndex() + 1);
+            if (mode == CoverageMode.EDGES_ONLY) {
+                trace = trace.withUnitCounts();
+            }
+        }
+        return inlineEvent(
+                requestId,
+                trace,
+                mapSize,
+                finished != null ? finished.comparisons() : null,
+                encodings);
+    }
+
+    // Runs on the request's thread, so it only queues the request; building and sending the events
+    // happens on the publisher thread, or on the Execute stream's executor for executed inputs.
+    private void handleRequestFinished(
+            String requestId, boolean triage, SparseTrace trace, String[] comparisons) {
+        if (requestId != null && !executions.isEmpty()) {
+            CompletableFuture<FinishedRequest> execution = executions.remove(requestId);
+            if (execution != null) {
+                execution.complete(new FinishedRequest(requestId, triage, trace, comparisons));
+                return;
+            }
+        }
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        publisher.offer(
+                new FinishedRequest(
+                        requestId != null ? requestId : "", triage, trace, comparisons));
+    }
+
+    /**
+     * Builds the events of a batch of finished requests and sends them, one stream message per
+     * batch subscriber. Runs on the publisher thread, the only thread that sends coverage events,
+     * so every subscriber sees them in the order its novelty and fingerprint state was updated.
+     */
+    private void publish(List<FinishedRequest> requests) {
+        if (subscribers.isEmpty()) {
+            return;
+        }
+        int allocated = ProbeIdAllocator.global().allocatedCount();
+        for (FinishedRequest request : requests) {
+            collectEvents(request, allocated);
+        }
+        for (Subscriber subscriber : subscribers.values()) {
+            subscriber.drain();
+        }
+    }
+
+    private void collectEvents(FinishedRequest request, int allocated) {
+        String id = request.requestId();
+        SparseTrace trace = request.trace();
+        String[] comparisons = request.comparisons();
+        int mapSize = allocated;
+        if (trace != null) {
+            mapSize = Math.max(mapSize, trace.maxIndex() + 1);
+            if (mode == CoverageMode.EDGES_ONLY) {
+                trace = trace.withUnitCounts();
+            }
+        }
+        SparseTrace finished = trace != null ? trace : SparseTrace.empty();
+        long fingerprint = 0;
+        boolean fingerprinted = false;
+        // Shared by the subscribers that take the trace inline in the same encodings.
+        CoverageEvent inlineEvent = null;
+        Set<TraceEncoding> inlineEncodings = null;
+        for (Subscriber subscriber : subscribers.values()) {
+            if (subscriber.fingerprints != null && !fingerprinted) {
+                fingerprint = finished.fingerprint();
+                fingerprinted = true;
+            }
+            if (subscriber.policy == OverflowPolicy.BLOCK) {
+                subscriber.awaitSpace();
+            } else if (subscriber.policy == OverflowPolicy.FINGERPRINT_ONLY
+                    && subscriber.novelty == null
+                    && subscriber.isFull()) {
+                // Decided before the event is built, so the trace takes no shared-memory slot and
+                // leaves the fingerprint cache alone.
+                if (!fingerprinted) {
+                    fingerprint = finished.fingerprint();
+                    fingerprinted = true;
+                }
+                synchronized (omittedTraces) {
+                    omittedTraces.put(id, new OmittedTrace(finished, mapSize));
+                }
+                CoverageEvent.Builder event =
+                        CoverageEvent.newBuilder()
+                                .setRequestId(id)
+                                .setMapSize(mapSize)
+                                .setTraceFingerprint(fingerprint)
+                                .setTraceDropped(true);
+                addComparisons(event, comparisons);
+                subscriber.enqueueDowngraded(event.build());
+                continue;
+            }
+            if (subscriber.novelty != null) {
+                // Minimizer and determinism reruns must not use up the buckets they reach, or the
+                // same input triaged later would look boring; they get their trace via FetchTrace.
+                boolean novel = request.triage() && subscriber.novelty.update(trace);
+                if (!novel) {
+                    // The common case: a one-bit event; the trace is kept in case it is asked for.
+                    synchronized (omittedTraces) {
+                        omittedTraces.put(id, new OmittedTrace(finished, mapSize));
+                    }
+                    CoverageEvent.Builder event =
+                            CoverageEvent.newBuilder().setRequestId(id).setMapSize(mapSize);
+                    addComparisons(event, comparisons);
+                    subscriber.enqueue(event.build());
+                    continue;
+                }
+                if (subscriber.policy != OverflowPolicy.BLOCK && subscriber.isFull()) {
+                    // Novel events are never dropped, so past the queue's capacity they go without
+                    // their trace; the subscriber fetches it.
+                    synchronized (omittedTraces) {
+                        omittedTraces.put(id, new OmittedTrace(finished, mapSize));
+                    }
+                    CoverageEvent.Builder event =
+                            CoverageEvent.newBuilder()
+                                    .setRequestId(id)
+                                    .setMapSize(mapSize)
+                                    .setHasNewCoverage(true)
+                                    .setTraceDropped(true);
+                    addComparisons(event, comparisons);
+                    subscriber.enqueueDowngraded(event.build());
+                    continue;
+                }
+                subscriber.enqueue(
+                        publishedEvent(subscriber, id, trace, mapSize, comparisons)
+                                .setHasNewCoverage(true)
+                                .build());
+                continue;
+            }
+            if (subscriber.fingerprints != null) {
+                if (subscriber.fingerprints.touch(fingerprint)) {
+                    CoverageEvent.Builder event =
+                            CoverageEvent.newBuilder()
+                                    .setRequestId(id)
+                                    .setMapSize(mapSize)
+                                    .setTraceFingerprint(fingerprint)
+                                    .setTraceCached(true);
+                    addComparisons(event, comparisons);
+                    subscriber.enqueueCached(event.build(), new OmittedTrace(finished, mapSize));
+                } else {
+                    subscriber.enqueue(
+                            publishedEvent(subscriber, id, trace, mapSize, comparisons)
+                                    .setTraceFingerprint(fingerprint)
+                                    .build());
+                }
+                continue;
+            }
+            if (subscriber.shm != null) {
+                subscriber.enqueue(
+                        publishedEvent(subscriber, id, trace, mapSize, comparisons).build());
+                continue;
+            }
+            if (inlineEvent == null || !inlineEncodings.equals(subscriber.encodings)) {
+                inlineEvent = inlineEvent(id, trace, mapSize, comparisons, subscriber.encodings);
+                inlineEncodings = subscriber.encodings;
+            }
+            subscriber.enqueue(inlineEvent);
+        }
+    }
+
+    /**
+     * Builds the event carrying {@code trace} for one subscriber: through its shared-memory region
+     * when it has one with a free slot, inline otherwise.
+     */
+    private static CoverageEvent.Builder publishedEvent(
+            Subscriber subscriber,
+            String requestId,
+            SparseTrace trace,
+            int mapSize,
+            String[] comparisons) {
+        int slot = subscriber.shm != null ? subscriber.shm.publish(trace, mapSize) : -1;
+        if (slot < 0) {
+            return inlineEvent(requestId, trace, mapSize, comparisons, subscriber.encodings)
+                    .toBuilder();
+        }
+        CoverageEvent.Builder event =
                 CoverageEvent.newBuilder()
-                        .setRequestId(requestId != null ? requestId : "")
-                        .setTraceBitmap(ByteString.copyFrom(payload))
-                        .build();
-        for (StreamObserver<CoverageEvent> observer : observers) {
-            observer.onNext(event);
+                        .setRequestId(requestId)
+                        .setMapSize(mapSize)
+                        .setShmSlot(slot);
+        addComparisons(event, comparisons);
+        return event;
+    }
+
+    private static CoverageEvent inlineEvent(
+            String requestId,
+            SparseTrace trace,
+            int mapSize,
+            String[] comparisons,
+            Set<TraceEncoding> encodings) {
+        TraceEncoder.Encoded encoded = TraceEncoder.encode(trace, mapSize, encodings);
+        CoverageEvent.Builder event =
+                CoverageEvent.newBuilder()
+                        .setRequestId(requestId)
+                        .setTraceBitmap(encoded.bytes())
+                        .setTraceEncoding(encoded.encoding())
+                        .setMapSize(mapSize);
+        addComparisons(event, comparisons);
+        return event.build();
+    }
+
+    /** The encodings a subscriber decodes: the ones it lists, plus dense. */
+    static Set<TraceEncoding> acceptedEncodings(List<TraceEncoding> listed) {
+        EnumSet<TraceEncoding> encodings = EnumSet.of(TraceEncoding.DENSE);
+        for (TraceEncoding encoding : listed) {
+            if (encoding != TraceEncoding.UNRECOGNIZED) {
+                encodings.add(encoding);
+            }
+        }
+        return encodings;
+    }
+
+    private static void addComparisons(CoverageEvent.Builder event, String[] comparisons) {
+        if (comparisons == null) {
+            return;
+        }
+        for (int i = 0; i + 1 < comparisons.length; i += 2) {
+            event.addComparisons(
+                    Comparison.newBuilder().setLeft(comparisons[i]).setRight(comparisons[i + 1]));
+        }
+    }
+
+    record FinishedRequest(
+            String requestId, boolean triage, SparseTrace trace, String[] comparisons) {}
+
+    private record OmittedTrace(SparseTrace trace, int mapSize) {}
+
+    /**
+     * Fingerprints recently sent to one subscriber, least recently used first. The subscriber keeps
+     * an LRU of the same capacity and updates it with every event, so both sides evict the same
+     * entries.
+     */
+    private static final class FingerprintCache extends LinkedHashMap<Long, Boolean> {
+        private final int capacity;
+
+        FingerprintCache(int capacity) {
+            super(16, 0.75f, true);
+            this.capacity = capacity;
+        }
+
+        /** Returns whether {@code fingerprint} was cached; either way it is now the most recent. */
+        boolean touch(long fingerprint) {
+            if (get(fingerprint) != null) {
+                return true;
+            }
+            put(fingerprint, Boolean.TRUE);
+            return false;
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > capacity;
+        }
+    }
+
+    private static final class Subscriber {
+        /** Stream of single events, {@code null} for a subscriber of batches. */
+        private final StreamObserver<CoverageEvent> observer;
+        private final StreamObserver<CoverageEventBatch> batchObserver;
+        /** Readiness of the stream, {@code null} when the observer does not expose it. */
+        private final ServerCallStreamObserver<?> flowControl;
+        private final SharedCoverageWriter shm;
+        /** Virgin map of a novelty-only subscriber, {@code null} for subscribers of every trace. */
+        private final NoveltyTracker novelty;
+        /** Fingerprints the subscriber holds traces for, {@code null} without a cache. */
+        private final FingerprintCache fingerprints;
+        private final OverflowPolicy policy;
+        private final int capacity;
+        private final Set<TraceEncoding> encodings;
+        /** Where the traces of events downgraded to {@code trace_dropped} go for FetchTrace. */
+        private final Map<String, OmittedTrace> omittedTraces;
+        /** Events the stream was not ready for yet. Guarded by this, like the fields below. */
+        private final ArrayDeque<CoverageEvent> queue = new ArrayDeque<>();
+        /** Traces of the queued {@code trace_cached} events, by request ID. */
+        private final Map<String, OmittedTrace> cachedTraces = new HashMap<>();
+        private long dropped;
+        private long downgraded;
+        private boolean closed;
+
+        Subscriber(
+                StreamObserver<CoverageEvent> observer,
+                StreamObserver<CoverageEventBatch> batchObserver,
+                ServerCallStreamObserver<?> flowControl,
+                SharedCoverageWriter shm,
+                NoveltyTracker novelty,
+                FingerprintCache fingerprints,
+                OverflowPolicy policy,
+                int capacity,
+                Set<TraceEncoding> encodings,
+                Map<String, OmittedTrace> omittedTraces) {
+            this.observer = observer;
+            this.batchObserver = batchObserver;
+            this.flowControl = flowControl;
+            this.shm = shm;
+            this.novelty = novelty;
+            this.fingerprints = fingerprints;
+            this.policy = policy;
+            this.capacity = capacity;
+            this.encodings = encodings;
+            this.omittedTraces = omittedTraces;
+        }
+
+        synchronized boolean isFull() {
+            return queue.size() >= capacity;
+        }
+
+        /** Waits until the queue has room or the stream is gone; only for {@code BLOCK}. */
+        synchronized void awaitSpace() {
+            while (queue.size() >= capacity && !closed) {
+                drain();
+                if (queue.size() < capacity) {
+                    return;
+                }
+                try {
+                    wait(BLOCK_POLL_MILLIS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+
+        /** Queues an event, making room according to the overflow policy if the queue is full. */
+        synchronized void enqueue(CoverageEvent event) {
+            if (closed) {
+                releaseSlot(event);
+                return;
+            }
+            int limit =
+                    policy == OverflowPolicy.FINGERPRINT_ONLY
+                            ? capacity * DOWNGRADED_QUEUE_FACTOR
+                            : capacity;
+            // Added before making room, so that dropping the event its trace depends on can still
+            // rewrite it.
+            queue.add(event);
+            if (policy != OverflowPolicy.BLOCK && queue.size() > limit) {
+                drain();
+                if (queue.size() > limit) {
+                    dropOldest();
+                }
+            }
+        }
+
+        synchronized void enqueueDowngraded(CoverageEvent event) {
+            downgraded++;
+            enqueue(event);
+        }
+
+        /** Queues a {@code trace_cached} event, keeping its trace in case it has to be dropped. */
+        synchronized void enqueueCached(CoverageEvent event, OmittedTrace trace) {
+            if (!closed) {
+                cachedTraces.put(event.getRequestId(), trace);
+            }
+            enqueue(event);
+        }
+
+        /** Sends queued events for as long as the stream is ready for them. */
+        synchronized void drain() {
+            try {
+                while (!queue.isEmpty()
+                        && !closed
+                        && (flowControl == null || flowControl.isReady())) {
+                    if (batchObserver != null) {
+                        CoverageEventBatch.Builder batch = CoverageEventBatch.newBuilder();
+                        for (int i = 0; i < MAX_BATCH_EVENTS && !queue.isEmpty(); i++) {
+                            batch.addEvents(poll());
+                        }
+                        batchObserver.onNext(batch.build());
+                    } else {
+                        observer.onNext(poll());
+                    }
+                }
+            } catch (RuntimeException e) {
+                // The stream went away; its cancel handler removes the subscriber.
+            } finally {
+                notifyAll();
+            }
+        }
+
+        private CoverageEvent poll() {
+            CoverageEvent event = queue.poll();
+            if (event.getTraceCached()) {
+                cachedTraces.remove(event.getRequestId());
+            }
+            return event;
+        }
+
+        /**
+         * Drops the oldest event without new coverage. Novel events are kept even past the limit,
+         * as the subscriber's virgin map already counts them as seen; there is at most one per
+         * hit-count bucket of the map, and only the first {@code capacity} queued carry a trace.
+         */
+        private void dropOldest() {
+            for (Iterator<CoverageEvent> events = queue.iterator(); events.hasNext(); ) {
+                CoverageEvent event = events.next();
+                if (event.getHasNewCoverage()) {
+                    continue;
+                }
+                events.remove();
+                dropped++;
+                releaseSlot(event);
+                if (event.getTraceCached()) {
+                    cachedTraces.remove(event.getRequestId());
+                }
+                // Downgraded events never touched the cache.
+                if (fingerprints != null
+                        && event.hasTraceFingerprint()
+                        && !event.getTraceDropped()) {
+                    // The subscriber never sees this touch of its cache, so it may not hold the
+                    // fingerprint for the queued events that rely on it. Starting over keeps every
+                    // fingerprint the agent considers cached among the subscriber's recent ones.
+                    uncache(event.getTraceFingerprint());
+                    fingerprints.clear();
+                }
+                return;
+            }
+        }
+
+        /**
+         * Turns the queued {@code trace_cached} events for {@code fingerprint} into
+         * {@code trace_dropped} ones, whose trace FetchTrace returns. Missing one touch of its
+         * cache, the subscriber can only lack that fingerprint, not others the agent has cached.
+         */
+        private void uncache(long fingerprint) {
+            List<CoverageEvent> events = new ArrayList<>(queue);
+            queue.clear();
+            for (CoverageEvent event : events) {
+                if (event.getTraceCached() && event.getTraceFingerprint() == fingerprint) {
+                    OmittedTrace trace = cachedTraces.remove(event.getRequestId());
+                    if (trace != null) {
+                        synchronized (omittedTraces) {
+                            omittedTraces.put(event.getRequestId(), trace);
+                        }
+                    }
+                    event = event.toBuilder().setTraceCached(false).setTraceDropped(true).build();
+                    downgraded++;
+                }
+                queue.add(event);
+            }
+        }
+
+        private void releaseSlot(CoverageEvent event) {
+            if (shm != null && event.hasShmSlot()) {
+                shm.release(event.getShmSlot());
+            }
+        }
+
+        void close() {
+            synchronized (this) {
+                closed = true;
+                queue.clear();
+                cachedTraces.clear();
+                notifyAll();
+            }
+            if (shm != null) {
+                shm.close();
+            }
         }
     }
 }
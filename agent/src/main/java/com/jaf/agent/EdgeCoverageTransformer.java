@@ -1,28 +1,93 @@
 package com.jaf.agent;
 
-import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.WeakHashMap;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
 import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Handle;
 import org.objectweb.asm.Label;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.commons.AdviceAdapter;
-
-class EdgeCoverageTransformer implements ClassFileTransformer {
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.JumpInsnNode;
+import org.objectweb.asm.tree.LabelNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
+import org.objectweb.asm.tree.TryCatchBlockNode;
+
+class EdgeCoverageTransformer implements ScopedTransformer {
+    /**
+     * Probe placement. {@code labels} (default) probes every label ASM reports; {@code branches}
+     * only probes method entries, jump, switch and exception handler targets, and the fall-through
+     * of conditional jumps, which is enough to tell every edge apart.
+     */
+    static final String PLACEMENT_PROPERTY = "jaf.coverage.placement";
+    private static final boolean BRANCH_PLACEMENT_DEFAULT =
+            "branches".equals(System.getProperty(PLACEMENT_PROPERTY));
     private static final String COVERAGE_RUNTIME_INTERNAL = "com/jaf/agent/CoverageRuntime";
+    private static final String INLINE_COUNTERS_INTERNAL = "com/jaf/agent/InlineCounters";
+    private static final Handle PROBE_BOOTSTRAP =
+            new Handle(
+                    Opcodes.H_INVOKESTATIC,
+                    "com/jaf/agent/ProbeSwitch",
+                    ProbeSwitch.BOOTSTRAP_NAME,
+                    ProbeSwitch.BOOTSTRAP_DESCRIPTOR,
+                    false);
+    private volatile ClassScope scope;
     private final Set<String> allowedClasses;
+    private final ProbeIdAllocator probeIds;
+    private final boolean inlineProbes;
+    private final ProbeSymbolTable symbols;
+    private final boolean branchPlacement;
+    // Null when instrumented classes are not cached.
+    private final InstrumentedClassCache cache;
+    /**
+     * Probe IDs of every instrumented class by loader, class and method, in block order. A
+     * retransformed class gets the same IDs again, so re-scoping keeps its coverage map slots and
+     * does not use up new ones. Guarded by itself.
+     */
+    private final Map<ClassLoader, Map<String, Map<String, int[]>>> probeIdsByClass =
+            new WeakHashMap<>();
+
+    private EdgeCoverageTransformer(Builder builder) {
+        this.scope = builder.scope;
+        this.allowedClasses =
+                builder.allowedClasses == null ? null : new HashSet<>(builder.allowedClasses);
+        this.probeIds = builder.probeIds;
+        this.inlineProbes = builder.inlineProbes;
+        this.symbols = builder.symbols;
+        this.branchPlacement = builder.branchPlacement;
+        this.cache = builder.cache;
+    }
 
-    EdgeCoverageTransformer() {
-        this(null);
+    /**
+     * The agent's own transformer. It alone uses the on-disk cache, since cached probe IDs are tied
+     * to the global allocator.
+     */
+    static EdgeCoverageTransformer forAgent(ClassScope scope, Set<String> allowedClasses) {
+        return new Builder()
+                .scope(scope)
+                .allowedClasses(allowedClasses)
+                .cache(
+                        InstrumentedClassCache.global(
+                                CoverageRuntime.INLINE_PROBES, BRANCH_PLACEMENT_DEFAULT))
+                .build();
     }
 
-    EdgeCoverageTransformer(Set<String> allowedClasses) {
-        this.allowedClasses = allowedClasses == null ? null : new HashSet<>(allowedClasses);
+    @Override
+    public void setScope(ClassScope scope) {
+        this.scope = scope;
     }
 
     @Override
@@ -38,11 +103,35 @@ class EdgeCoverageTransformer implements ClassFileTransformer {
             return null;
         }
 
+        if (cache != null) {
+            byte[] cached = cache.lookup(className, classfileBuffer, symbols);
+            if (cached != null) {
+                return cached;
+            }
+        }
+        List<InstrumentedClassCache.ProbeRecord> emitted = cache != null ? new ArrayList<>() : null;
+        Map<String, int[]> previousIds =
+                classBeingRedefined != null ? recordedProbeIds(loader, className) : null;
+        Map<String, int[]> methodIds = new HashMap<>();
         try {
             ClassReader reader = new ClassReader(classfileBuffer);
             ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
             ClassVisitor visitor =
                     new ClassVisitor(Opcodes.ASM9, writer) {
+                        private boolean switchedProbes;
+
+                        @Override
+                        public void visit(
+                                int version,
+                                int access,
+                                String name,
+                                String signature,
+                                String superName,
+                                String[] interfaces) {
+                            switchedProbes = !inlineProbes && supportsSwitchedProbes(version, name);
+                            super.visit(version, access, name, signature, superName, interfaces);
+                        }
+
                         @Override
                         public MethodVisitor visitMethod(
                                 int access,
@@ -56,19 +145,80 @@ class EdgeCoverageTransformer implements ClassFileTransformer {
                                     || (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) {
                                 return baseVisitor;
                             }
+                            if (!branchPlacement) {
+                                return newAdapter(baseVisitor, access, name, descriptor, null);
+                            }
+                            // Buffer the method so its branch targets are known before the first
+                            // probe is placed.
+                            return new MethodNode(
+                                    Opcodes.ASM9, access, name, descriptor, signature, exceptions) {
+                                @Override
+                                public void visitEnd() {
+                                    super.visitEnd();
+                                    accept(
+                                            newAdapter(
+                                                    baseVisitor,
+                                                    access,
+                                                    name,
+                                                    descriptor,
+                                                    branchTargets(this)));
+                                }
+                            };
+                        }
+
+                        private MethodVisitor newAdapter(
+                                MethodVisitor baseVisitor,
+                                int access,
+                                String name,
+                                String descriptor,
+                                Set<Label> branchTargets) {
                             return new EdgeCoverageAdviceAdapter(
-                                    baseVisitor, access, name, descriptor, className);
+                                    baseVisitor,
+                                    access,
+                                    className,
+                                    name,
+                                    descriptor,
+                                    probeIds,
+                                    previousIds != null ? previousIds.get(name + descriptor) : null,
+                                    methodIds,
+                                    symbols,
+                                    inlineProbes,
+                                    switchedProbes,
+                                    branchTargets,
+                                    emitted);
                         }
                     };
 
             reader.accept(visitor, ClassReader.EXPAND_FRAMES);
-            return writer.toByteArray();
+            byte[] instrumented = writer.toByteArray();
+            recordProbeIds(loader, className, methodIds);
+            symbols.flush();
+            if (inlineProbes) {
+                InlineCounters.noteProbeLimit(probeIds.allocatedCount());
+            }
+            if (cache != null) {
+                cache.store(classfileBuffer, instrumented, emitted);
+            }
+            return instrumented;
         } catch (Exception e) {
             throw new IllegalClassFormatException(
                     "Failed to add coverage instrumentation to " + className + ": " + e.getMessage());
         }
     }
 
+    private Map<String, int[]> recordedProbeIds(ClassLoader loader, String className) {
+        synchronized (probeIdsByClass) {
+            Map<String, Map<String, int[]>> classes = probeIdsByClass.get(loader);
+            return classes != null ? classes.get(className) : null;
+        }
+    }
+
+    private void recordProbeIds(ClassLoader loader, String className, Map<String, int[]> ids) {
+        synchronized (probeIdsByClass) {
+            probeIdsByClass.computeIfAbsent(loader, key -> new HashMap<>()).put(className, ids);
+        }
+    }
+
     private boolean shouldInstrument(String className) {
         if (className == null) {
             return false;
@@ -82,30 +232,99 @@ class EdgeCoverageTransformer implements ClassFileTransformer {
         if (allowedClasses != null && !allowedClasses.contains(className)) {
             return false;
         }
-        return true;
+        return scope.includes(className);
+    }
+
+    /**
+     * Switched probes are {@code invokedynamic} sites linked through {@link ProbeSwitch}. They need
+     * a Java 7+ class file, and JDK classes keep plain calls because the {@code java.lang.invoke}
+     * machinery that links the sites may itself be instrumented.
+     */
+    private static boolean supportsSwitchedProbes(int version, String className) {
+        if ((version & 0xFFFF) < Opcodes.V1_7 || className == null) {
+            return false;
+        }
+        return !(className.startsWith("java/")
+                || className.startsWith("javax/")
+                || className.startsWith("jdk/")
+                || className.startsWith("sun/")
+                || className.startsWith("com/sun/"));
+    }
+
+    /** Collects every label control can transfer to other than by falling through. */
+    private static Set<Label> branchTargets(MethodNode method) {
+        Set<Label> targets = new HashSet<>();
+        for (AbstractInsnNode insn : method.instructions) {
+            if (insn instanceof JumpInsnNode jump) {
+                targets.add(jump.label.getLabel());
+            } else if (insn instanceof TableSwitchInsnNode tableSwitch) {
+                addTargets(targets, tableSwitch.dflt, tableSwitch.labels);
+            } else if (insn instanceof LookupSwitchInsnNode lookupSwitch) {
+                addTargets(targets, lookupSwitch.dflt, lookupSwitch.labels);
+            }
+        }
+        for (TryCatchBlockNode tryCatch : method.tryCatchBlocks) {
+            targets.add(tryCatch.handler.getLabel());
+        }
+        return targets;
+    }
+
+    private static void addTargets(Set<Label> targets, LabelNode dflt, Iterable<LabelNode> labels) {
+        targets.add(dflt.getLabel());
+        for (LabelNode label : labels) {
+            targets.add(label.getLabel());
+        }
     }
 
     private static final class EdgeCoverageAdviceAdapter extends AdviceAdapter {
+        private final ProbeIdAllocator probeIds;
+        // IDs of the method's probes when its class was last transformed; null for fresh ones.
+        private final int[] previousIds;
+        // Receives the IDs this method ends up with, keyed by name and descriptor.
+        private final Map<String, int[]> methodIds;
+        private int[] ids = new int[8];
+        private final ProbeSymbolTable symbols;
         private final String className;
         private final String methodName;
-        private final String methodDesc;
+        private final String methodDescriptor;
+        private final boolean inlineProbes;
+        private final boolean switchedProbes;
+        // Labels worth a probe; null probes every label.
+        private final Set<Label> branchTargets;
+        // Probes emitted into the class, collected for the class cache; null when not caching.
+        private final List<InstrumentedClassCache.ProbeRecord> emitted;
+        private int blockIndex;
+        private int currentLine;
         private final Set<Label> seenLabels = new HashSet<>();
-        private int blockIndex = 0;
-        private Label pendingLabel;
-        private int pendingEdgeId;
-        private boolean pendingInjected;
+        private boolean probePending;
         private boolean injecting;
 
         EdgeCoverageAdviceAdapter(
                 MethodVisitor methodVisitor,
                 int access,
+                String className,
                 String name,
                 String descriptor,
-                String owner) {
+                ProbeIdAllocator probeIds,
+                int[] previousIds,
+                Map<String, int[]> methodIds,
+                ProbeSymbolTable symbols,
+                boolean inlineProbes,
+                boolean switchedProbes,
+                Set<Label> branchTargets,
+                List<InstrumentedClassCache.ProbeRecord> emitted) {
             super(Opcodes.ASM9, methodVisitor, access, name, descriptor);
-            this.className = owner;
+            this.probeIds = probeIds;
+            this.previousIds = previousIds;
+            this.methodIds = methodIds;
+            this.symbols = symbols;
+            this.className = className;
             this.methodName = name;
-            this.methodDesc = descriptor;
+            this.methodDescriptor = descriptor;
+            this.inlineProbes = inlineProbes;
+            this.switchedProbes = switchedProbes;
+            this.branchTargets = branchTargets;
+            this.emitted = emitted;
         }
 
         @Override
@@ -113,13 +332,23 @@ class EdgeCoverageTransformer implements ClassFileTransformer {
             injectEdgeInstrumentation();
         }
 
+        @Override
+        public void visitEnd() {
+            methodIds.put(methodName + methodDescriptor, Arrays.copyOf(ids, blockIndex));
+            super.visitEnd();
+        }
+
+        @Override
+        public void visitLineNumber(int line, Label start) {
+            currentLine = line;
+            super.visitLineNumber(line, start);
+        }
+
         @Override
         public void visitLabel(Label label) {
             super.visitLabel(label);
-            if (seenLabels.add(label)) {
-                pendingLabel = label;
-                pendingEdgeId = nextEdgeId();
-                pendingInjected = false;
+            if (seenLabels.add(label) && (branchTargets == null || branchTargets.contains(label))) {
+                probePending = true;
             }
         }
 
@@ -132,28 +361,64 @@ class EdgeCoverageTransformer implements ClassFileTransformer {
                 return;
             }
             injecting = true;
-            visitLdcInsn(edgeId);
-            visitMethodInsn(
-                    Opcodes.INVOKESTATIC,
-                    COVERAGE_RUNTIME_INTERNAL,
-                    "enterEdge",
-                    "(I)V",
-                    false);
+            if (inlineProbes) {
+                // n = (counters[edgeId] & 0xFF) + 1; counters[edgeId] = n - (n >>> 8): saturates
+                // at 255 without a branch, as the runtime does, so a count never wraps to 0.
+                visitFieldInsn(Opcodes.GETSTATIC, INLINE_COUNTERS_INTERNAL, "counters", "[B");
+                visitLdcInsn(edgeId);
+                visitInsn(Opcodes.DUP2);
+                visitInsn(Opcodes.BALOAD);
+                visitIntInsn(Opcodes.SIPUSH, 0xFF);
+                visitInsn(Opcodes.IAND);
+                visitInsn(Opcodes.ICONST_1);
+                visitInsn(Opcodes.IADD);
+                visitInsn(Opcodes.DUP);
+                visitIntInsn(Opcodes.BIPUSH, 8);
+                visitInsn(Opcodes.IUSHR);
+                visitInsn(Opcodes.ISUB);
+                visitInsn(Opcodes.BASTORE);
+            } else if (switchedProbes) {
+                visitLdcInsn(edgeId);
+                visitInvokeDynamicInsn("enterEdge", "(I)V", PROBE_BOOTSTRAP);
+            } else {
+                visitLdcInsn(edgeId);
+                visitMethodInsn(
+                        Opcodes.INVOKESTATIC,
+                        COVERAGE_RUNTIME_INTERNAL,
+                        "enterEdge",
+                        "(I)V",
+                        false);
+            }
             injecting = false;
         }
 
+        // IDs are drawn only when a probe is actually emitted, keeping the ID space gap-free.
         private int nextEdgeId() {
-            return computeEdgeId(className, methodName, methodDesc, blockIndex++);
+            int id =
+                    previousIds != null && blockIndex < previousIds.length
+                            ? previousIds[blockIndex]
+                            : probeIds.allocate();
+            if (blockIndex == ids.length) {
+                ids = Arrays.copyOf(ids, ids.length * 2);
+            }
+            ids[blockIndex] = id;
+            symbols.record(id, className, methodName, methodDescriptor, blockIndex, currentLine);
+            if (emitted != null) {
+                emitted.add(
+                        new InstrumentedClassCache.ProbeRecord(
+                                id, methodName, methodDescriptor, blockIndex, currentLine));
+            }
+            blockIndex++;
+            return id;
         }
 
         private void injectPendingIfAny() {
             if (injecting) {
                 return;
             }
-            if (pendingLabel != null && !pendingInjected) {
-                emitEdge(pendingEdgeId);
-                pendingInjected = true;
-                pendingLabel = null;
+            if (probePending) {
+                emitEdge(nextEdgeId());
+                probePending = false;
             }
         }
 
@@ -196,7 +461,7 @@ class EdgeCoverageTransformer implements ClassFileTransformer {
 
         @Override
         public void visitInvokeDynamicInsn(
-                String name, String descriptor, org.objectweb.asm.Handle bootstrapMethodHandle,
+                String name, String descriptor, Handle bootstrapMethodHandle,
                 Object... bootstrapMethodArguments) {
             injectPendingIfAny();
             super.visitInvokeDynamicInsn(name, descriptor, bootstrapMethodHandle,
@@ -231,6 +496,10 @@ class EdgeCoverageTransformer implements ClassFileTransformer {
         public void visitJumpInsn(int opcode, Label label) {
             injectPendingIfAny();
             super.visitJumpInsn(opcode, label);
+            if (branchTargets != null && opcode != Opcodes.GOTO && opcode != Opcodes.JSR) {
+                // The fall-through of a conditional jump is an edge without a label of its own.
+                probePending = true;
+            }
         }
 
         @Override
@@ -248,29 +517,61 @@ class EdgeCoverageTransformer implements ClassFileTransformer {
         }
     }
 
-    private static int computeEdgeId(
-            String internalClassName, String methodName, String methodDesc, int blockIndex) {
-        int hash = 0x811C9DC5;
-        hash = mix(hash, internalClassName);
-        hash = mix(hash, methodName);
-        hash = mix(hash, methodDesc);
-        hash = mix(hash, blockIndex);
-        return hash & (CoverageRuntime.MAP_SIZE - 1);
-    }
+    /**
+     * Configures a transformer. Defaults: every class in scope, the global allocator and symbol
+     * table, probe mode and placement from the system properties, and no cache.
+     */
+    static final class Builder {
+        private ClassScope scope = ClassScope.ALL;
+        private Set<String> allowedClasses;
+        private ProbeIdAllocator probeIds = ProbeIdAllocator.global();
+        private boolean inlineProbes = CoverageRuntime.INLINE_PROBES;
+        private ProbeSymbolTable symbols;
+        private boolean branchPlacement = BRANCH_PLACEMENT_DEFAULT;
+        private InstrumentedClassCache cache;
+
+        Builder scope(ClassScope scope) {
+            this.scope = scope;
+            return this;
+        }
 
-    private static int mix(int seed, String value) {
-        int h = seed;
-        for (int i = 0; i < value.length(); i++) {
-            h ^= value.charAt(i);
-            h *= 0x01000193;
+        /** Limits instrumentation to these internal class names; {@code null} lifts the limit. */
+        Builder allowedClasses(Set<String> allowedClasses) {
+            this.allowedClasses = allowedClasses;
+            return this;
+        }
+
+        Builder probeIds(ProbeIdAllocator probeIds) {
+            this.probeIds = probeIds;
+            return this;
+        }
+
+        Builder inlineProbes(boolean inlineProbes) {
+            this.inlineProbes = inlineProbes;
+            return this;
         }
-        return h;
-    }
 
-    private static int mix(int seed, int value) {
-        int h = seed;
-        h ^= value;
-        h *= 0x01000193;
-        return h;
+        Builder symbols(ProbeSymbolTable symbols) {
+            this.symbols = symbols;
+            return this;
+        }
+
+        Builder branchPlacement(boolean branchPlacement) {
+            this.branchPlacement = branchPlacement;
+            return this;
+        }
+
+        Builder cache(InstrumentedClassCache cache) {
+            this.cache = cache;
+            return this;
+        }
+
+        EdgeCoverageTransformer build() {
+            if (symbols == null) {
+                // Looked up only now, so a builder given its own table never opens the file.
+                symbols = ProbeSymbolTable.global();
+            }
+            return new EdgeCoverageTransformer(this);
+        }
     }
 }
@@ -0,0 +1,312 @@
+package com.jaf.agent;
+
+import com.google.protobuf.UnsafeByteOperations;
+import com.jaf.proto.CoverageProto.ExecuteRequest;
+import com.jaf.proto.CoverageProto.ExecuteResult;
+import com.jaf.proto.CoverageProto.ExecuteTarget;
+import com.jaf.proto.CoverageProto.TraceEncoding;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * One stream of the Execute RPC. Every input is sent to the target over loopback HTTP under a short
+ * request ID of the agent's choosing, and its result goes back once both the response and the
+ * finished request's trace are in, whichever arrives last. The fuzzer correlates results by the
+ * sequence number it chose instead of by request ID.
+ *
+ * <p>Targets with {@code in_process} set skip the connection: inputs go straight to a servlet's
+ * service method through a {@link ServletHarness}.</p>
+ */
+final class ExecuteSession implements StreamObserver<ExecuteRequest> {
+    private static final String HEADER_NAME = "X-Fuzzing-Request-Id";
+    private static final Duration DEFAULT_REQUEST_TIMEOUT = Duration.ofSeconds(30);
+    /** How long a trace may lag behind the response before the result is sent without it. */
+    static final long COVERAGE_TIMEOUT_MILLIS = 5000;
+
+    private final CoverageServer server;
+    private final StreamObserver<ExecuteResult> results;
+    private final HttpClient client;
+    private final Executor executor;
+    private final AtomicInteger inFlight = new AtomicInteger();
+    // Set from the stream's messages, which gRPC delivers one at a time.
+    private Target target;
+    /** Made by the first in-process input; guarded by this, like {@link #harnessServlet}. */
+    private ServletHarness harness;
+    private String harnessServlet;
+    /** Guarded by {@link #results}, like {@link #halfClosed}. */
+    private boolean closed;
+    private boolean halfClosed;
+
+    ExecuteSession(
+            CoverageServer server,
+            StreamObserver<ExecuteResult> results,
+            HttpClient client,
+            Executor executor) {
+        this.server = server;
+        this.results = results;
+        this.client = client;
+        this.executor = executor;
+    }
+
+    @Override
+    public void onNext(ExecuteRequest request) {
+        synchronized (results) {
+            if (closed) {
+                return;
+            }
+        }
+        if (request.hasTarget()) {
+            try {
+                target = Target.of(request.getTarget());
+            } catch (IllegalArgumentException e) {
+                fail("Invalid target: " + e.getMessage());
+                return;
+            }
+        }
+        if (target == null) {
+            fail("The first input of a stream needs a target");
+            return;
+        }
+        Target current = target;
+        long sequence = request.getSequence();
+        byte[] body = request.getBody().toByteArray();
+        CompletableFuture<CoverageServer.FinishedRequest> finished = new CompletableFuture<>();
+        String requestId = server.registerExecution(finished);
+        inFlight.incrementAndGet();
+        (current.inProcess()
+                        ? dispatch(current, requestId, sequence, body, finished)
+                        : send(current, requestId, sequence, body, finished))
+                .thenCombineAsync(
+                        finished,
+                        (result, trace) -> {
+                            server.forgetExecution(requestId);
+                            return result.setCoverage(
+                                            server.executionCoverage(
+                                                    requestId, trace, current.encodings()))
+                                    .build();
+                        },
+                        executor)
+                .whenComplete(
+                        (result, error) -> {
+                            if (error != null) {
+                                System.err.println(
+                                        "[JAF] Failed to execute input " + sequence + ": " + error);
+                            } else {
+                                send(result);
+                            }
+                            if (inFlight.decrementAndGet() == 0) {
+                                finishIfHalfClosed();
+                            }
+                        });
+    }
+
+    @Override
+    public void onError(Throwable t) {
+        close();
+    }
+
+    @Override
+    public void onCompleted() {
+        synchronized (results) {
+            halfClosed = true;
+        }
+        if (inFlight.get() == 0) {
+            finishIfHalfClosed();
+        }
+    }
+
+    /** Stops sending results; inputs still in flight are answered to nobody. */
+    void close() {
+        synchronized (results) {
+            closed = true;
+        }
+        server.removeExecuteSession(this);
+    }
+
+    /** Sends an input to the target over loopback HTTP. */
+    private CompletableFuture<ExecuteResult.Builder> send(
+            Target target,
+            String requestId,
+            long sequence,
+            byte[] body,
+            CompletableFuture<CoverageServer.FinishedRequest> finished) {
+        HttpRequest.Builder http =
+                HttpRequest.newBuilder(target.uri())
+                        .timeout(target.timeout())
+                        .header(HEADER_NAME, requestId)
+                        .method(target.method(), HttpRequest.BodyPublishers.ofByteArray(body));
+        if (target.contentType() != null) {
+            http.header("Content-Type", target.contentType());
+        }
+        long start = System.nanoTime();
+        return client.sendAsync(http.build(), HttpResponse.BodyHandlers.ofByteArray())
+                .handle(
+                        (response, error) -> {
+                            ExecuteResult.Builder result =
+                                    ExecuteResult.newBuilder()
+                                            .setSequence(sequence)
+                                            .setElapsedMicros(elapsedMicros(start));
+                            if (error != null) {
+                                // The request may never have reached a servlet.
+                                finished.complete(null);
+                                return result.setError(describe(error));
+                            }
+                            finished.completeOnTimeout(
+                                    null, COVERAGE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                            return result.setStatus(response.statusCode())
+                                    .setResponseBody(
+                                            UnsafeByteOperations.unsafeWrap(response.body()));
+                        });
+    }
+
+    /**
+     * Calls the target's servlet with the input on one of the executor's threads. The trace is
+     * normally complete by the time the servlet returns, but an asynchronous request finishes
+     * later, so the result still waits for it as for {@link #send}.
+     */
+    private CompletableFuture<ExecuteResult.Builder> dispatch(
+            Target target,
+            String requestId,
+            long sequence,
+            byte[] body,
+            CompletableFuture<CoverageServer.FinishedRequest> finished) {
+        return CompletableFuture.supplyAsync(
+                () -> {
+                    ExecuteResult.Builder result = ExecuteResult.newBuilder().setSequence(sequence);
+                    long start = System.nanoTime();
+                    try {
+                        ServletHarness.Response response =
+                                harness(target)
+                                        .dispatch(
+                                                target.method(),
+                                                target.path(),
+                                                target.contentType(),
+                                                requestId,
+                                                body,
+                                                target.port());
+                        finished.completeOnTimeout(
+                                null, COVERAGE_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                        result.setStatus(response.status())
+                                .setResponseBody(UnsafeByteOperations.unsafeWrap(response.body()));
+                    } catch (Exception e) {
+                        finished.complete(null);
+                        result.setError(describe(e));
+                    }
+                    return result.setElapsedMicros(elapsedMicros(start));
+                },
+                executor);
+    }
+
+    /**
+     * The harness for the target's servlet. Servlets are only known once they have served a
+     * request, so if none has yet, one request is sent over the port first.
+     */
+    private ServletHarness harness(Target target) throws Exception {
+        synchronized (this) {
+            if (harness != null && harnessServlet.equals(target.servletClass())) {
+                return harness;
+            }
+        }
+        ServletHarness created;
+        try {
+            created = ServletHarness.forServlet(target.servletClass());
+        } catch (IllegalStateException e) {
+            client.send(
+                    HttpRequest.newBuilder(target.uri()).timeout(target.timeout()).GET().build(),
+                    HttpResponse.BodyHandlers.discarding());
+            created = ServletHarness.forServlet(target.servletClass());
+        }
+        synchronized (this) {
+            harness = created;
+            harnessServlet = target.servletClass();
+        }
+        return created;
+    }
+
+    private void send(ExecuteResult result) {
+        synchronized (results) {
+            if (closed) {
+                return;
+            }
+            try {
+                results.onNext(result);
+            } catch (RuntimeException e) {
+                // The stream went away; its onError closes the session.
+            }
+        }
+    }
+
+    private void finishIfHalfClosed() {
+        synchronized (results) {
+            if (!halfClosed || closed) {
+                return;
+            }
+            closed = true;
+            results.onCompleted();
+        }
+        server.removeExecuteSession(this);
+    }
+
+    private void fail(String message) {
+        synchronized (results) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            results.onError(Status.INVALID_ARGUMENT.withDescription(message).asException());
+        }
+        server.removeExecuteSession(this);
+    }
+
+    private static long elapsedMicros(long start) {
+        return TimeUnit.NANOSECONDS.toMicros(System.nanoTime() - start);
+    }
+
+    private static String describe(Throwable error) {
+        Throwable cause =
+                error instanceof CompletionException && error.getCause() != null
+                        ? error.getCause()
+                        : error;
+        return cause.toString();
+    }
+
+    /** Where and how a stream's inputs are executed, as set by its latest target. */
+    private record Target(
+            URI uri,
+            int port,
+            String path,
+            String method,
+            String contentType,
+            Duration timeout,
+            Set<TraceEncoding> encodings,
+            boolean inProcess,
+            String servletClass) {
+        static Target of(ExecuteTarget target) {
+            String path =
+                    target.getPath().startsWith("/") ? target.getPath() : "/" + target.getPath();
+            return new Target(
+                    URI.create("http://127.0.0.1:" + target.getPort() + path),
+                    target.getPort(),
+                    path,
+                    target.getMethod().isEmpty() ? "POST" : target.getMethod(),
+                    target.getContentType().isEmpty() ? null : target.getContentType(),
+                    target.getTimeoutMillis() > 0
+                            ? Duration.ofMillis(target.getTimeoutMillis())
+                            : DEFAULT_REQUEST_TIMEOUT,
+                    CoverageServer.acceptedEncodings(target.getTraceEncodingsList()),
+                    target.getInProcess(),
+                    target.getServletClass());
+        }
+    }
+}
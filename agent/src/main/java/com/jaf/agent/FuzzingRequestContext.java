@@ -9,6 +9,8 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 public final class FuzzingRequestContext {
     private static final String HEADER_NAME = "X-Fuzzing-Request-Id";
+    // Set by the fuzzer on inputs it triages, the only ones that may update a virgin map.
+    private static final String TRIAGE_HEADER_NAME = "X-Fuzzing-Triage";
     private static final String REQUEST_STATE_KEY =
             FuzzingRequestContext.class.getName() + ".state";
     private static final String ASYNC_LISTENER_KEY =
@@ -16,22 +18,26 @@ public final class FuzzingRequestContext {
 
     private static final ThreadLocal<RequestState> CURRENT_STATE = new ThreadLocal<>();
     private static volatile RequestFinishedListener requestFinishedListener;
+    // Off until a fuzzer subscribes; requests served before that are not traced at all.
+    private static volatile boolean tracingEnabled = false;
 
     private FuzzingRequestContext() {}
 
     public static void updateFromServletRequest(Object request) {
         RequestState state = stateFromRequest(request);
         if (state == null) {
-            String requestId = extractHeaderValue(request);
+            String requestId = extractHeaderValue(request, HEADER_NAME);
             if (requestId == null || requestId.isEmpty()) {
                 requestId = newRandomRequestId();
             }
-            state = new RequestState(requestId);
+            boolean triage = "1".equals(extractHeaderValue(request, TRIAGE_HEADER_NAME));
+            state = new RequestState(requestId, triage);
             storeStateOnRequest(request, state);
         }
         CURRENT_STATE.set(state);
-        if (state.beginTracing()) {
+        if (tracingEnabled && state.beginTracing()) {
             CoverageRuntime.startTracing();
+            Hints.startRecording();
         }
     }
 
@@ -57,7 +63,7 @@ public final class FuzzingRequestContext {
             return state.requestId;
         }
         String requestId = newRandomRequestId();
-        CURRENT_STATE.set(new RequestState(requestId));
+        CURRENT_STATE.set(new RequestState(requestId, false));
         return requestId;
     }
 
@@ -65,6 +71,14 @@ public final class FuzzingRequestContext {
         requestFinishedListener = listener;
     }
 
+    /**
+     * Turns tracing of new requests on or off. While off, requests only get an identifier; no
+     * coverage or comparisons are collected for them.
+     */
+    public static void setTracingEnabled(boolean enabled) {
+        tracingEnabled = enabled;
+    }
+
     private static void completeRequest(Object request, RequestState state) {
         finalizeCoverage(state);
         if (!state.markCompleted()) {
@@ -75,7 +89,8 @@ public final class FuzzingRequestContext {
         RequestFinishedListener listener = requestFinishedListener;
         if (listener != null) {
             try {
-                listener.onRequestFinished(state.requestId, state.traceBitmap());
+                listener.onRequestFinished(
+                        state.requestId, state.triage, state.trace(), state.comparisons());
             } catch (RuntimeException e) {
                 System.err.println("Request completion listener failed: " + e.getMessage());
             }
@@ -86,12 +101,15 @@ public final class FuzzingRequestContext {
         if (!state.beginCoverageFinalization()) {
             return;
         }
-        byte[] traceBitmap = null;
+        SparseTrace trace = null;
+        String[] comparisons = null;
         if (state.isTracingStarted()) {
-            traceBitmap = CoverageRuntime.stopTracing();
+            trace = CoverageRuntime.stopTracing();
+            comparisons = Hints.stopRecording();
         }
         state.clearTracing();
-        state.setTraceBitmap(traceBitmap);
+        state.setTrace(trace);
+        state.setComparisons(comparisons);
     }
 
     private static boolean handleAsyncIfNeeded(Object request, RequestState state) {
@@ -182,13 +200,13 @@ public final class FuzzingRequestContext {
         removeRequestAttribute(request, ASYNC_LISTENER_KEY);
     }
 
-    private static String extractHeaderValue(Object request) {
+    private static String extractHeaderValue(Object request, String name) {
         if (request == null) {
             return null;
         }
         try {
             Method getHeaderMethod = request.getClass().getMethod("getHeader", String.class);
-            Object value = getHeaderMethod.invoke(request, HEADER_NAME);
+            Object value = getHeaderMethod.invoke(request, name);
             if (value instanceof String) {
                 String headerValue = ((String) value).trim();
                 return headerValue.isEmpty() ? null : headerValue;
@@ -286,13 +304,16 @@ public final class FuzzingRequestContext {
 
     static final class RequestState {
         private final String requestId;
+        private final boolean triage;
         private final AtomicBoolean completed = new AtomicBoolean(false);
         private final AtomicBoolean tracingStarted = new AtomicBoolean(false);
         private final AtomicBoolean coverageFinalized = new AtomicBoolean(false);
-        private volatile byte[] traceBitmap;
+        private volatile SparseTrace trace;
+        private volatile String[] comparisons;
 
-        RequestState(String requestId) {
+        RequestState(String requestId, boolean triage) {
             this.requestId = requestId;
+            this.triage = triage;
         }
 
         boolean beginTracing() {
@@ -303,8 +324,8 @@ public final class FuzzingRequestContext {
             return tracingStarted.get();
         }
 
-        void setTraceBitmap(byte[] traceBitmap) {
-            this.traceBitmap = traceBitmap;
+        void setTrace(SparseTrace trace) {
+            this.trace = trace;
         }
 
         boolean beginCoverageFinalization() {
@@ -315,8 +336,17 @@ public final class FuzzingRequestContext {
             tracingStarted.set(false);
         }
 
-        byte[] traceBitmap() {
-            return traceBitmap;
+        SparseTrace trace() {
+            return trace;
+        }
+
+        void setComparisons(String[] comparisons) {
+            this.comparisons = comparisons;
+        }
+
+        /** Comparison operand pairs recorded by {@link Hints}, flattened; may be null. */
+        String[] comparisons() {
+            return comparisons;
         }
 
         boolean markCompleted() {
@@ -326,6 +356,8 @@ public final class FuzzingRequestContext {
 
     @FunctionalInterface
     public interface RequestFinishedListener {
-        void onRequestFinished(String requestId, byte[] traceBitmap);
+        /** {@code triage} tells whether the request carried the fuzzer's triage header. */
+        void onRequestFinished(
+                String requestId, boolean triage, SparseTrace trace, String[] comparisons);
     }
 }
@@ -1,38 +1,253 @@
 package com.jaf.agent;
 
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
 /**
- * Simple helper that logs when certain interesting string hashes are observed.
+ * Comparison log ("CmpLog") for traced requests.
+ *
+ * <p>{@link HintsTransformer} hooks the JDK methods applications use to compare input against
+ * magic values (string equality and prefix checks, boxed and primitive integer compares, map
+ * lookups, {@code Enum.valueOf}) as well as string {@code switch} statements. While a request is
+ * being traced, every hook appends the pair of operands it observed to a small per-thread log that
+ * is shipped to the fuzzer together with the coverage trace. The fuzzer splices the values back into
+ * its inputs, so a magic value only has to be seen once instead of being guessed.</p>
+ *
+ * <p>The log is bounded to {@link #MAX_ENTRIES} pairs and operands are truncated to
+ * {@link #MAX_OPERAND_LENGTH} characters. When no request is being recorded the hooks return after
+ * a single volatile read.</p>
  */
 public final class Hints {
-    private static final String MESSAGE_PREFIX =
-            "[JAF Hints] Observed String.equals value with target hash: ";
-    private static final int[] TARGET_HASHES = {
-        "demo-secret".hashCode()
-    };
+    static final int MAX_ENTRIES = 256;
+    static final int MAX_OPERAND_LENGTH = 256;
+    /** Separator between the candidate literals passed to {@link #onStringSwitch}. */
+    static final char SWITCH_SEPARATOR = '\0';
+    private static final int MAX_MAP_KEYS = 64;
+    private static final int DEDUP_WINDOW = 16;
+    private static final String[] NO_COMPARISONS = new String[0];
+
+    // Initialized first: hooks running during class initialization only read this field.
+    private static final AtomicInteger ACTIVE_LOGS = new AtomicInteger();
+    private static final ThreadLocal<Log> CURRENT = new ThreadLocal<>();
 
     private Hints() {}
 
-    public static void onEquals(String left, Object right) {
-        if (right instanceof String) {
-            check(left);
-            check((String) right);
+    /** Starts recording comparisons on the current thread; nested calls are counted. */
+    public static void startRecording() {
+        Log log = CURRENT.get();
+        if (log == null) {
+            log = new Log();
+            CURRENT.set(log);
+            ACTIVE_LOGS.incrementAndGet();
+        }
+        log.depth++;
+    }
+
+    /**
+     * Stops recording on the current thread. When this closes the outermost scope the recorded
+     * pairs are returned flattened as {@code [left0, right0, left1, right1, ...]}; inner scopes
+     * return {@code null}.
+     */
+    public static String[] stopRecording() {
+        Log log = CURRENT.get();
+        if (log == null) {
+            return null;
+        }
+        if (--log.depth > 0) {
+            return null;
+        }
+        CURRENT.remove();
+        ACTIVE_LOGS.decrementAndGet();
+        return log.drain();
+    }
+
+    /** Hook for {@code String.equals}, {@code equalsIgnoreCase}, {@code startsWith}, etc. */
+    public static void onStringCompare(String left, Object right) {
+        if (ACTIVE_LOGS.get() == 0 || !(right instanceof CharSequence)) {
+            return;
+        }
+        Log log = enter();
+        if (log == null) {
+            return;
+        }
+        try {
+            String other = right.toString();
+            if (left != null && !left.equals(other)) {
+                log.add(left, other);
+            }
+        } finally {
+            log.busy = false;
+        }
+    }
+
+    /** Hook for {@code Integer.compare}. */
+    public static void onIntCompare(int left, int right) {
+        onLongCompare(left, right);
+    }
+
+    /** Hook for {@code Long.compare}. */
+    public static void onLongCompare(long left, long right) {
+        if (ACTIVE_LOGS.get() == 0 || left == right) {
+            return;
+        }
+        Log log = enter();
+        if (log == null) {
+            return;
+        }
+        try {
+            log.add(Long.toString(left), Long.toString(right));
+        } finally {
+            log.busy = false;
+        }
+    }
+
+    /** Hook for {@code Integer.equals} and {@code Long.equals}. */
+    public static void onNumberEquals(Object left, Object right) {
+        if (ACTIVE_LOGS.get() == 0
+                || !(left instanceof Number leftNumber)
+                || !(right instanceof Number rightNumber)) {
+            return;
+        }
+        onLongCompare(leftNumber.longValue(), rightNumber.longValue());
+    }
+
+    /**
+     * Hook for {@code Map.get} implementations. A missed string lookup on a small map records the
+     * map's string keys as candidates for the looked-up value.
+     */
+    public static void onMapGet(Map<?, ?> map, Object key) {
+        if (ACTIVE_LOGS.get() == 0 || !(key instanceof String wanted) || map == null) {
+            return;
+        }
+        Log log = enter();
+        if (log == null) {
+            return;
+        }
+        try {
+            if (map.isEmpty() || map.size() > MAX_MAP_KEYS || map.containsKey(key)) {
+                return;
+            }
+            for (Object candidate : map.keySet()) {
+                if (candidate instanceof String value) {
+                    log.add(wanted, value);
+                }
+            }
+        } catch (RuntimeException ignored) {
+            // Maps are hooked while in use by application code; give up on concurrent changes.
+        } finally {
+            log.busy = false;
         }
     }
 
-    private static void check(String value) {
-        if (value == null) {
+    /** Hook for {@code Enum.valueOf}; a name that matches no constant records every constant. */
+    public static void onEnumValueOf(Class<?> enumType, String name) {
+        if (ACTIVE_LOGS.get() == 0 || enumType == null || name == null) {
+            return;
+        }
+        Log log = enter();
+        if (log == null) {
             return;
         }
-        int hash = value.hashCode();
-        for (int target : TARGET_HASHES) {
-            if (hash == target) {
-                logMatch(value, hash);
+        try {
+            Object[] constants = enumType.getEnumConstants();
+            if (constants == null) {
                 return;
             }
+            for (Object constant : constants) {
+                if (name.equals(((Enum<?>) constant).name())) {
+                    return;
+                }
+            }
+            for (int i = 0; i < constants.length && i < MAX_MAP_KEYS; i++) {
+                log.add(name, ((Enum<?>) constants[i]).name());
+            }
+        } catch (RuntimeException ignored) {
+            // best effort
+        } finally {
+            log.busy = false;
         }
     }
 
-    private static void logMatch(String value, int hash) {
-        System.out.println(MESSAGE_PREFIX + value + " (hash=" + hash + ")");
+    /**
+     * Hook injected before the {@code hashCode()} call of a string {@code switch}. A value whose
+     * hash selects no case never reaches the {@code equals} calls, so the case labels are passed
+     * in, joined by {@link #SWITCH_SEPARATOR}.
+     */
+    public static void onStringSwitch(String value, String candidates) {
+        if (ACTIVE_LOGS.get() == 0 || value == null || candidates == null) {
+            return;
+        }
+        Log log = enter();
+        if (log == null) {
+            return;
+        }
+        try {
+            int start = 0;
+            while (start <= candidates.length()) {
+                int end = candidates.indexOf(SWITCH_SEPARATOR, start);
+                if (end < 0) {
+                    end = candidates.length();
+                }
+                String candidate = candidates.substring(start, end);
+                if (!candidate.equals(value)) {
+                    log.add(value, candidate);
+                }
+                start = end + 1;
+            }
+        } finally {
+            log.busy = false;
+        }
+    }
+
+    /**
+     * Returns the current thread's log with its reentrancy flag set, or {@code null} if nothing is
+     * being recorded or a hook is already running (hooks themselves call hooked JDK methods).
+     */
+    private static Log enter() {
+        Log log = CURRENT.get();
+        if (log == null || log.busy || log.size == MAX_ENTRIES) {
+            return null;
+        }
+        log.busy = true;
+        return log;
+    }
+
+    private static final class Log {
+        private final String[] operands = new String[MAX_ENTRIES * 2];
+        private int size;
+        private int depth;
+        private boolean busy;
+
+        void add(String left, String right) {
+            if (size == MAX_ENTRIES) {
+                return;
+            }
+            String a = truncate(left);
+            String b = truncate(right);
+            // Hot loops repeat the same comparison; skip pairs seen very recently.
+            for (int i = Math.max(0, size - DEDUP_WINDOW); i < size; i++) {
+                if (a.equals(operands[2 * i]) && b.equals(operands[2 * i + 1])) {
+                    return;
+                }
+            }
+            operands[2 * size] = a;
+            operands[2 * size + 1] = b;
+            size++;
+        }
+
+        String[] drain() {
+            if (size == 0) {
+                return NO_COMPARISONS;
+            }
+            String[] result = new String[size * 2];
+            System.arraycopy(operands, 0, result, 0, result.length);
+            return result;
+        }
+
+        private static String truncate(String value) {
+            return value.length() <= MAX_OPERAND_LENGTH
+                    ? value
+                    : value.substring(0, MAX_OPERAND_LENGTH);
+        }
     }
 }
@@ -1,9 +1,13 @@
 package com.jaf.agent;
 
-import java.lang.instrument.ClassFileTransformer;
 import java.lang.instrument.IllegalClassFormatException;
 import java.security.ProtectionDomain;
-import java.util.Collections;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import org.objectweb.asm.ClassReader;
 import org.objectweb.asm.ClassVisitor;
@@ -11,17 +15,78 @@ import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
 import org.objectweb.asm.commons.AdviceAdapter;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.InsnList;
+import org.objectweb.asm.tree.InsnNode;
+import org.objectweb.asm.tree.LdcInsnNode;
+import org.objectweb.asm.tree.LookupSwitchInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TableSwitchInsnNode;
 
-class HintsTransformer implements ClassFileTransformer {
-    private static final String TARGET_CLASS = "java/lang/String";
+/**
+ * Installs the comparison hooks recorded by {@link Hints}.
+ *
+ * <p>JDK comparison methods get a call to the matching {@link Hints} hook on entry. Application
+ * classes are scanned for string {@code switch} statements ({@code String.hashCode()} feeding a
+ * switch); the case labels are resolved at transform time from the string constants whose hash
+ * matches a case key and handed to {@link Hints#onStringSwitch} before the hash is taken. Classes
+ * without such a switch are left untouched.</p>
+ */
+class HintsTransformer implements ScopedTransformer {
     private static final String HINTS_INTERNAL = "com/jaf/agent/Hints";
-    private static final String ON_EQUALS_NAME = "onEquals";
-    private static final String ON_EQUALS_DESC = "(Ljava/lang/String;Ljava/lang/Object;)V";
-    private static final String EQUALS_NAME = "equals";
-    private static final String EQUALS_DESC = "(Ljava/lang/Object;)Z";
+    private static final String STRING_COMPARE = "(Ljava/lang/String;Ljava/lang/Object;)V";
+    private static final String NUMBER_EQUALS = "(Ljava/lang/Object;Ljava/lang/Object;)V";
+    private static final String MAP_GET = "(Ljava/util/Map;Ljava/lang/Object;)V";
+    private static final String ON_STRING_SWITCH_DESC = "(Ljava/lang/String;Ljava/lang/String;)V";
+    private static final int MAX_SWITCH_CONSTANT = 0xFFFF / 3;
+
+    // Hooked JDK methods: owner, name, descriptor, hook name, hook descriptor. Instance methods
+    // pass (this, arg0) to the hook, static methods their first two arguments.
+    private static final String[][] HOOKS = {
+        {"java/lang/String", "equals", "(Ljava/lang/Object;)Z", "onStringCompare", STRING_COMPARE},
+        {"java/lang/String", "equalsIgnoreCase", "(Ljava/lang/String;)Z", "onStringCompare",
+            STRING_COMPARE},
+        {"java/lang/String", "startsWith", "(Ljava/lang/String;)Z", "onStringCompare",
+            STRING_COMPARE},
+        {"java/lang/String", "endsWith", "(Ljava/lang/String;)Z", "onStringCompare",
+            STRING_COMPARE},
+        {"java/lang/String", "contains", "(Ljava/lang/CharSequence;)Z", "onStringCompare",
+            STRING_COMPARE},
+        {"java/lang/Integer", "compare", "(II)I", "onIntCompare", "(II)V"},
+        {"java/lang/Integer", "equals", "(Ljava/lang/Object;)Z", "onNumberEquals", NUMBER_EQUALS},
+        {"java/lang/Long", "compare", "(JJ)I", "onLongCompare", "(JJ)V"},
+        {"java/lang/Long", "equals", "(Ljava/lang/Object;)Z", "onNumberEquals", NUMBER_EQUALS},
+        {"java/util/HashMap", "get", "(Ljava/lang/Object;)Ljava/lang/Object;", "onMapGet", MAP_GET},
+        {"java/util/LinkedHashMap", "get", "(Ljava/lang/Object;)Ljava/lang/Object;", "onMapGet",
+            MAP_GET},
+        {"java/util/TreeMap", "get", "(Ljava/lang/Object;)Ljava/lang/Object;", "onMapGet", MAP_GET},
+        {"java/lang/Enum", "valueOf", "(Ljava/lang/Class;Ljava/lang/String;)Ljava/lang/Enum;",
+            "onEnumValueOf", "(Ljava/lang/Class;Ljava/lang/String;)V"},
+    };
+
+    private final Map<String, List<String[]>> hooksByClass = new HashMap<>();
+    private volatile ClassScope scope;
+
+    HintsTransformer() {
+        this(ClassScope.ALL);
+    }
+
+    HintsTransformer(ClassScope scope) {
+        this.scope = scope;
+        for (String[] hook : HOOKS) {
+            hooksByClass.computeIfAbsent(hook[0], owner -> new ArrayList<>()).add(hook);
+        }
+    }
+
+    @Override
+    public void setScope(ClassScope scope) {
+        this.scope = scope;
+    }
 
     Set<String> targetClasses() {
-        return Collections.singleton(TARGET_CLASS);
+        return new HashSet<>(hooksByClass.keySet());
     }
 
     @Override
@@ -33,59 +98,191 @@ class HintsTransformer implements ClassFileTransformer {
             ProtectionDomain protectionDomain,
             byte[] classfileBuffer)
             throws IllegalClassFormatException {
-        if (!shouldInstrument(className)) {
+        if (className == null) {
             return null;
         }
+        List<String[]> hooks = hooksByClass.get(className);
         try {
-            ClassReader reader = new ClassReader(classfileBuffer);
-            ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_FRAMES);
-            ClassVisitor visitor =
-                    new ClassVisitor(Opcodes.ASM9, writer) {
-                        @Override
-                        public MethodVisitor visitMethod(
-                                int access,
-                                String name,
-                                String descriptor,
-                                String signature,
-                                String[] exceptions) {
-                            MethodVisitor baseVisitor =
-                                    super.visitMethod(access, name, descriptor, signature, exceptions);
-                            if (baseVisitor == null
-                                    || (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0
-                                    || !EQUALS_NAME.equals(name)
-                                    || !EQUALS_DESC.equals(descriptor)) {
-                                return baseVisitor;
-                            }
-                            return new HintsAdviceAdapter(baseVisitor, access, name, descriptor);
-                        }
-                    };
-            reader.accept(visitor, ClassReader.EXPAND_FRAMES);
-            return writer.toByteArray();
+            if (hooks != null) {
+                return instrumentHooks(classfileBuffer, hooks);
+            }
+            if (shouldScanForSwitches(className)) {
+                return instrumentStringSwitches(classfileBuffer);
+            }
+            return null;
         } catch (Exception e) {
             throw new IllegalClassFormatException(
-                    "Failed to add hints instrumentation to java/lang/String: " + e.getMessage());
+                    "Failed to add hints instrumentation to " + className + ": " + e.getMessage());
         }
     }
 
-    private boolean shouldInstrument(String className) {
-        return TARGET_CLASS.equals(className);
+    private boolean shouldScanForSwitches(String className) {
+        if (!scope.includes(className)) {
+            return false;
+        }
+        return !(className.startsWith("java/")
+                || className.startsWith("javax/")
+                || className.startsWith("jdk/")
+                || className.startsWith("sun/")
+                || className.startsWith("com/sun/")
+                || className.startsWith("com/jaf/agent")
+                || className.startsWith("org/objectweb/asm"));
+    }
+
+    private byte[] instrumentHooks(byte[] classfileBuffer, List<String[]> hooks) {
+        ClassReader reader = new ClassReader(classfileBuffer);
+        ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        ClassVisitor visitor =
+                new ClassVisitor(Opcodes.ASM9, writer) {
+                    @Override
+                    public MethodVisitor visitMethod(
+                            int access,
+                            String name,
+                            String descriptor,
+                            String signature,
+                            String[] exceptions) {
+                        MethodVisitor baseVisitor =
+                                super.visitMethod(access, name, descriptor, signature, exceptions);
+                        if (baseVisitor == null
+                                || (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) {
+                            return baseVisitor;
+                        }
+                        for (String[] hook : hooks) {
+                            if (hook[1].equals(name) && hook[2].equals(descriptor)) {
+                                return new HintsAdviceAdapter(
+                                        baseVisitor, access, name, descriptor, hook[3], hook[4]);
+                            }
+                        }
+                        return baseVisitor;
+                    }
+                };
+        reader.accept(visitor, ClassReader.EXPAND_FRAMES);
+        return writer.toByteArray();
+    }
+
+    private static byte[] instrumentStringSwitches(byte[] classfileBuffer) {
+        ClassReader reader = new ClassReader(classfileBuffer);
+        ClassNode classNode = new ClassNode(Opcodes.ASM9);
+        reader.accept(classNode, 0);
+        boolean changed = false;
+        for (MethodNode method : classNode.methods) {
+            changed |= hookStringSwitches(method);
+        }
+        if (!changed) {
+            return null;
+        }
+        ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        classNode.accept(writer);
+        return writer.toByteArray();
+    }
+
+    private static boolean hookStringSwitches(MethodNode method) {
+        if (method.instructions.size() == 0) {
+            return false;
+        }
+        List<MethodInsnNode> hashCalls = new ArrayList<>();
+        for (AbstractInsnNode insn : method.instructions) {
+            if (insn instanceof MethodInsnNode call
+                    && call.getOpcode() == Opcodes.INVOKEVIRTUAL
+                    && "java/lang/String".equals(call.owner)
+                    && "hashCode".equals(call.name)
+                    && "()I".equals(call.desc)
+                    && isSwitch(nextInstruction(call))) {
+                hashCalls.add(call);
+            }
+        }
+        boolean changed = false;
+        for (MethodInsnNode hashCall : hashCalls) {
+            String candidates = caseLabels(method, switchKeys(nextInstruction(hashCall)));
+            if (candidates == null) {
+                continue;
+            }
+            InsnList hook = new InsnList();
+            hook.add(new InsnNode(Opcodes.DUP));
+            hook.add(new LdcInsnNode(candidates));
+            hook.add(
+                    new MethodInsnNode(
+                            Opcodes.INVOKESTATIC,
+                            HINTS_INTERNAL,
+                            "onStringSwitch",
+                            ON_STRING_SWITCH_DESC,
+                            false));
+            method.instructions.insertBefore(hashCall, hook);
+            changed = true;
+        }
+        return changed;
+    }
+
+    private static AbstractInsnNode nextInstruction(AbstractInsnNode insn) {
+        AbstractInsnNode next = insn.getNext();
+        while (next != null && next.getOpcode() < 0) {
+            next = next.getNext();
+        }
+        return next;
+    }
+
+    private static boolean isSwitch(AbstractInsnNode insn) {
+        return insn instanceof LookupSwitchInsnNode || insn instanceof TableSwitchInsnNode;
+    }
+
+    private static Set<Integer> switchKeys(AbstractInsnNode insn) {
+        Set<Integer> keys = new HashSet<>();
+        if (insn instanceof LookupSwitchInsnNode lookupSwitch) {
+            keys.addAll(lookupSwitch.keys);
+        } else if (insn instanceof TableSwitchInsnNode tableSwitch) {
+            for (int key = tableSwitch.min; key <= tableSwitch.max; key++) {
+                keys.add(key);
+            }
+        }
+        return keys;
+    }
+
+    /** Joins the method's string constants whose hash is a case key, or null if there are none. */
+    private static String caseLabels(MethodNode method, Set<Integer> keys) {
+        Set<String> labels = new LinkedHashSet<>();
+        for (AbstractInsnNode insn : method.instructions) {
+            if (insn instanceof LdcInsnNode ldc
+                    && ldc.cst instanceof String value
+                    && value.indexOf(Hints.SWITCH_SEPARATOR) < 0
+                    && keys.contains(value.hashCode())) {
+                labels.add(value);
+            }
+        }
+        if (labels.isEmpty()) {
+            return null;
+        }
+        String joined = String.join(String.valueOf(Hints.SWITCH_SEPARATOR), labels);
+        // Constant pool strings are limited to 65535 bytes of modified UTF-8.
+        return joined.length() <= MAX_SWITCH_CONSTANT ? joined : null;
     }
 
     private static final class HintsAdviceAdapter extends AdviceAdapter {
-        HintsAdviceAdapter(MethodVisitor methodVisitor, int access, String name, String descriptor) {
+        private final String hookName;
+        private final String hookDescriptor;
+
+        HintsAdviceAdapter(
+                MethodVisitor methodVisitor,
+                int access,
+                String name,
+                String descriptor,
+                String hookName,
+                String hookDescriptor) {
             super(Opcodes.ASM9, methodVisitor, access, name, descriptor);
+            this.hookName = hookName;
+            this.hookDescriptor = hookDescriptor;
         }
 
         @Override
         protected void onMethodEnter() {
-            loadThis();
-            loadArg(0);
+            if ((methodAccess & Opcodes.ACC_STATIC) != 0) {
+                loadArg(0);
+                loadArg(1);
+            } else {
+                loadThis();
+                loadArg(0);
+            }
             visitMethodInsn(
-                    Opcodes.INVOKESTATIC,
-                    HINTS_INTERNAL,
-                    ON_EQUALS_NAME,
-                    ON_EQUALS_DESC,
-                    false);
+                    Opcodes.INVOKESTATIC, HINTS_INTERNAL, hookName, hookDescriptor, false);
         }
     }
 }
@@ -0,0 +1,160 @@
+package com.jaf.agent;
+
+import java.io.IOException;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.URL;
+import java.nio.file.Path;
+import java.util.List;
+
+/**
+ * A fuzzing harness run inside the calling JVM, in the manner of libFuzzer's persistent mode: no
+ * agent, socket, protobuf or HTTP between an input and its coverage.
+ *
+ * <p>The harness and the application it drives are loaded from their own class path through an
+ * {@link InstrumentingClassLoader} that applies the agent's edge coverage and string switch
+ * hooks. The harness class follows the Jazzer convention: a static
+ * {@code fuzzerTestOneInput(byte[])} is called for every input, and an optional static
+ * {@code fuzzerInitialize()} or {@code fuzzerInitialize(String[])} once beforehand, which is where
+ * a Spring application would start its context. Every input is traced on the calling thread, so
+ * several threads may execute inputs at once; work the harness hands to other threads is not
+ * traced, and neither are the JDK comparison hooks, which need a real agent.</p>
+ */
+public final class InProcessTarget implements AutoCloseable {
+    private static final MethodType TEST_ONE_INPUT =
+            MethodType.methodType(void.class, byte[].class);
+
+    /**
+     * What one input did: its trace, the comparisons it made as flattened operand pairs, and the
+     * exception it threw, if any.
+     */
+    public record Outcome(SparseTrace trace, String[] comparisons, Throwable failure) {
+        public boolean crashed() {
+            return failure != null;
+        }
+    }
+
+    private final InstrumentingClassLoader loader;
+    private final MethodHandle testOneInput;
+    private final boolean wasArmed;
+
+    private InProcessTarget(
+            InstrumentingClassLoader loader, MethodHandle testOneInput, boolean wasArmed) {
+        this.loader = loader;
+        this.testOneInput = testOneInput;
+        this.wasArmed = wasArmed;
+    }
+
+    /**
+     * Loads {@code harnessClass} from {@code classPath} and initializes it. {@code includes} are
+     * {@link ClassScope} patterns of the classes to instrument; all classes are when empty.
+     *
+     * @throws ReflectiveOperationException if the harness cannot be found or its initializer
+     *     throws
+     */
+    public static InProcessTarget load(
+            List<Path> classPath, String harnessClass, List<String> includes, String[] args)
+            throws IOException, ReflectiveOperationException {
+        ClassScope.Builder scope = new ClassScope.Builder();
+        for (String include : includes) {
+            scope.include(include);
+        }
+        ClassScope built = scope.build();
+        // Probe symbols stay in memory and the agent's class cache is left alone: neither belongs
+        // to the fuzzer's JVM.
+        EdgeCoverageTransformer coverage =
+                new EdgeCoverageTransformer.Builder()
+                        .scope(built)
+                        .symbols(new ProbeSymbolTable(null))
+                        .build();
+        List<ClassFileTransformer> transformers = List.of(coverage, new HintsTransformer(built));
+        URL[] urls = new URL[classPath.size()];
+        for (int i = 0; i < urls.length; i++) {
+            urls[i] = classPath.get(i).toUri().toURL();
+        }
+        InstrumentingClassLoader loader =
+                new InstrumentingClassLoader(
+                        urls, InProcessTarget.class.getClassLoader(), transformers);
+        boolean wasArmed = ProbeSwitch.isArmed();
+        ProbeSwitch.setArmed(true);
+        Thread thread = Thread.currentThread();
+        ClassLoader previous = thread.getContextClassLoader();
+        thread.setContextClassLoader(loader);
+        try {
+            Class<?> harness = Class.forName(harnessClass, true, loader);
+            initialize(harness, args);
+            MethodHandle testOneInput =
+                    MethodHandles.publicLookup()
+                            .findStatic(harness, "fuzzerTestOneInput", TEST_ONE_INPUT);
+            return new InProcessTarget(loader, testOneInput, wasArmed);
+        } catch (ReflectiveOperationException | RuntimeException | Error e) {
+            ProbeSwitch.setArmed(wasArmed);
+            loader.close();
+            throw e;
+        } finally {
+            thread.setContextClassLoader(previous);
+        }
+    }
+
+    /** Runs the harness on one input, traced on the calling thread. */
+    public Outcome execute(byte[] input) {
+        Thread thread = Thread.currentThread();
+        ClassLoader previous = thread.getContextClassLoader();
+        thread.setContextClassLoader(loader);
+        Throwable failure = null;
+        SparseTrace trace;
+        String[] comparisons;
+        CoverageRuntime.startTracing();
+        Hints.startRecording();
+        try {
+            testOneInput.invokeExact(input);
+        } catch (Throwable t) {
+            failure = t;
+        } finally {
+            trace = CoverageRuntime.stopTracing();
+            comparisons = Hints.stopRecording();
+            thread.setContextClassLoader(previous);
+        }
+        return new Outcome(
+                trace != null ? trace : SparseTrace.empty(),
+                comparisons != null ? comparisons : new String[0],
+                failure);
+    }
+
+    /** The number of probes emitted so far, which bounds the indices of every trace. */
+    public int mapSize() {
+        return ProbeIdAllocator.global().allocatedCount();
+    }
+
+    /** Closes the harness's class path; probes go back to how they were before loading. */
+    @Override
+    public void close() throws IOException {
+        ProbeSwitch.setArmed(wasArmed);
+        loader.close();
+    }
+
+    private static void initialize(Class<?> harness, String[] args)
+            throws ReflectiveOperationException {
+        Method initializer;
+        Object[] arguments;
+        try {
+            initializer = harness.getMethod("fuzzerInitialize", String[].class);
+            arguments = new Object[] {args};
+        } catch (NoSuchMethodException e) {
+            try {
+                initializer = harness.getMethod("fuzzerInitialize");
+                arguments = new Object[0];
+            } catch (NoSuchMethodException none) {
+                return;
+            }
+        }
+        if (!Modifier.isStatic(initializer.getModifiers())) {
+            throw new NoSuchMethodException(harness.getName() + ".fuzzerInitialize is not static");
+        }
+        initializer.invoke(null, arguments);
+    }
+}
@@ -0,0 +1,131 @@
+package com.jaf.agent;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Counter region written directly by inline probes.
+ *
+ * <p>In inline mode every probe compiles to an increment of {@code counters[id]} on the static
+ * {@link #counters} field that saturates at 255, without a method call or thread-local lookup. While a traced request owns the region,
+ * {@link #counters} points at a dedicated array; otherwise it points at a sink that is never read,
+ * so untraced traffic costs the same few instructions and records nothing.</p>
+ *
+ * <p>Only one traced request can own the region at a time. Probes cannot tell threads apart, so
+ * anything the JVM executes while the region is bound is attributed to the owning request. This
+ * suits the fuzzer's one-request-at-a-time loop; flaky edges from background work are filtered by
+ * the fuzzer's determinism check.</p>
+ */
+public final class InlineCounters {
+    /** Target of inline probes. Swapped on bind/unbind; read by instrumented code only. */
+    public static byte[] counters;
+
+    private static final VarHandle LONG_VIEW =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.nativeOrder());
+    private static final byte[] IDLE_SINK = new byte[CoverageRuntime.MAP_SIZE];
+    private static final byte[] REGION = new byte[CoverageRuntime.MAP_SIZE];
+    private static final AtomicReference<Object> OWNER = new AtomicReference<>();
+    private static volatile int probeLimit = 0;
+    private static volatile boolean contentionReported = false;
+
+    static {
+        counters = IDLE_SINK;
+    }
+
+    private InlineCounters() {}
+
+    /**
+     * Binds the region to {@code owner}. Returns {@code false} if another request already owns it,
+     * in which case the caller's trace stays empty.
+     */
+    static boolean bind(Object owner) {
+        if (!OWNER.compareAndSet(null, owner)) {
+            if (!contentionReported) {
+                contentionReported = true;
+                System.err.println(
+                        "[JAF] Inline probes record one traced request at a time; concurrent"
+                                + " requests get empty traces.");
+            }
+            return false;
+        }
+        counters = REGION;
+        return true;
+    }
+
+    /** Releases the region and collects every non-zero counter recorded while it was bound. */
+    static SparseTrace unbind(Object owner) {
+        if (OWNER.get() != owner) {
+            return SparseTrace.empty();
+        }
+        counters = IDLE_SINK;
+        SparseTrace trace = harvest(Math.min(probeLimit, REGION.length));
+        OWNER.set(null);
+        return trace;
+    }
+
+    /**
+     * Counts a hit of {@code probeId} the way inline probes do, for probes that reach the runtime
+     * through a call instead.
+     */
+    static void hit(int probeId) {
+        byte[] target = counters;
+        int n = (target[probeId] & 0xFF) + 1;
+        target[probeId] = (byte) (n - (n >>> 8));
+    }
+
+    /** Returns the bound region if {@code owner} holds it, otherwise {@code null}. */
+    static byte[] boundRegion(Object owner) {
+        return OWNER.get() == owner ? REGION : null;
+    }
+
+    /**
+     * Records that probe identifiers below {@code limit} may have been emitted, bounding the range
+     * scanned on unbind.
+     */
+    public static synchronized void noteProbeLimit(int limit) {
+        if (limit > probeLimit) {
+            probeLimit = limit;
+        }
+    }
+
+    private static SparseTrace harvest(int limit) {
+        int[] touched = new int[64];
+        int count = 0;
+        int word = 0;
+        int wordLimit = limit & ~7;
+        // Scan eight counters at a time; the region is sparse, so most words are zero.
+        for (; word < wordLimit; word += 8) {
+            if ((long) LONG_VIEW.get(REGION, word) == 0L) {
+                continue;
+            }
+            for (int i = word; i < word + 8; i++) {
+                if (REGION[i] != 0) {
+                    touched = ensureCapacity(touched, count);
+                    touched[count++] = i;
+                }
+            }
+        }
+        for (int i = word; i < limit; i++) {
+            if (REGION[i] != 0) {
+                touched = ensureCapacity(touched, count);
+                touched[count++] = i;
+            }
+        }
+        SparseTrace trace = SparseTrace.capture(touched, count, REGION);
+        for (int i = 0; i < count; i++) {
+            REGION[touched[i]] = 0;
+        }
+        return trace;
+    }
+
+    private static int[] ensureCapacity(int[] touched, int count) {
+        if (count < touched.length) {
+            return touched;
+        }
+        int[] grown = new int[touched.length << 1];
+        System.arraycopy(touched, 0, grown, 0, count);
+        return grown;
+    }
+}
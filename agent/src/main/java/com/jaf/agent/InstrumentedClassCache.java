@@ -0,0 +1,400 @@
+package com.jaf.agent;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+import java.security.CodeSource;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Content-addressed on-disk cache of instrumented class files.
+ *
+ * <p>Entries are keyed by the SHA-256 of the original class bytes together with a fingerprint of
+ * the instrumentation configuration (cache format, probe mode, probe placement and the agent jar
+ * itself), so a class whose bytes and settings are unchanged skips ASM entirely on the next JVM
+ * start. Each entry stores the instrumented bytes plus the probes they contain, which are replayed
+ * into the {@link ProbeSymbolTable} on a hit. Entries are memory-mapped when read.</p>
+ *
+ * <p>Cached classes keep the probe identifiers they were given when first instrumented. To keep
+ * those identifiers unique, the cache persists the allocator's high-water mark and the JVM that
+ * owns the cache starts allocating above it; entries holding identifiers at or above the mark a
+ * JVM started with are ignored. Only the JVM holding the directory lock writes, so concurrent SUTs
+ * sharing a directory read it but never hand out overlapping identifiers. Once the mark passes half
+ * of the coverage map the cache is wiped and identifiers start over.</p>
+ *
+ * <p>The cache is off unless the {@value #DIR_PROPERTY} system property names its directory.
+ * Entries are defined in the target as they are, so the directory must be owned by the user running
+ * the target and writable by nobody else. It is created that way if it does not exist, and the
+ * cache stays off for a directory that fails the check.</p>
+ */
+final class InstrumentedClassCache {
+    static final String DIR_PROPERTY = "jaf.coverage.classCache";
+    private static final int MAGIC = 0x4A414643; // "JAFC"
+    private static final int FORMAT_VERSION = 2;
+    private static final String ENTRY_SUFFIX = ".cls";
+    private static final String MARK_FILE = "probe-mark";
+    private static final String LOCK_FILE = "lock";
+
+    private static volatile InstrumentedClassCache global;
+
+    private final Path directory;
+    private final ProbeIdAllocator probeIds;
+    private final byte[] configFingerprint;
+    private final int startMark;
+    private final boolean writable;
+    private final FileChannel lockChannel;
+    private final FileChannel markChannel;
+    private int persistedMark;
+
+    private InstrumentedClassCache(
+            Path directory,
+            ProbeIdAllocator probeIds,
+            String configuration,
+            int startMark,
+            FileChannel lockChannel,
+            FileChannel markChannel) {
+        this.directory = directory;
+        this.probeIds = probeIds;
+        this.configFingerprint = configuration.getBytes(StandardCharsets.UTF_8);
+        this.startMark = startMark;
+        this.lockChannel = lockChannel;
+        this.markChannel = markChannel;
+        this.writable = markChannel != null;
+        this.persistedMark = -1;
+    }
+
+    /**
+     * Returns the cache backing the agent's global allocator, or {@code null} if it is disabled or
+     * could not be opened.
+     */
+    static synchronized InstrumentedClassCache global(boolean inlineProbes, boolean branchPlacement) {
+        if (global == null) {
+            String configured = System.getProperty(DIR_PROPERTY, "").trim();
+            if (configured.isEmpty() || "none".equalsIgnoreCase(configured)) {
+                return null;
+            }
+            try {
+                global =
+                        open(
+                                Path.of(configured),
+                                ProbeIdAllocator.global(),
+                                configuration(inlineProbes, branchPlacement));
+            } catch (IOException | RuntimeException e) {
+                System.err.println(
+                        "[JAF] Instrumented class cache disabled, failed to open " + configured
+                                + ": " + e);
+                return null;
+            }
+        }
+        return global;
+    }
+
+    /**
+     * Opens the cache in {@code directory} and moves {@code probeIds} past every identifier the
+     * cache may hand out. Must be called before {@code probeIds} allocates anything.
+     */
+    static InstrumentedClassCache open(
+            Path directory, ProbeIdAllocator probeIds, String configuration) throws IOException {
+        ensurePrivate(directory);
+        FileChannel lockChannel =
+                FileChannel.open(
+                        directory.resolve(LOCK_FILE),
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE);
+        // Held until close(), normally for the lifetime of the JVM.
+        FileLock lock = lockChannel.tryLock();
+        int mark = readMark(directory);
+        if (lock == null) {
+            lockChannel.close();
+            System.err.println(
+                    "[JAF] Instrumented class cache " + directory + " is in use by another JVM,"
+                            + " using it read-only.");
+            probeIds.reserveBelow(mark);
+            return new InstrumentedClassCache(directory, probeIds, configuration, mark, null, null);
+        }
+        if (mark > probeIds.capacity() / 2) {
+            System.err.println(
+                    "[JAF] Instrumented class cache " + directory + " holds " + mark
+                            + " probe IDs, clearing it to free the coverage map.");
+            clearEntries(directory);
+            mark = 0;
+        }
+        FileChannel markChannel =
+                FileChannel.open(
+                        directory.resolve(MARK_FILE),
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.WRITE);
+        probeIds.reserveBelow(mark);
+        InstrumentedClassCache cache =
+                new InstrumentedClassCache(
+                        directory, probeIds, configuration, mark, lockChannel, markChannel);
+        cache.writeMark(mark);
+        return cache;
+    }
+
+    /**
+     * Returns the cached instrumentation of {@code original}, or {@code null} on a miss.
+     * {@code symbols} receives the probes of a hit.
+     */
+    byte[] lookup(String className, byte[] original, ProbeSymbolTable symbols) {
+        Path entry = entryPath(original);
+        MappedByteBuffer mapped;
+        try (FileChannel channel = FileChannel.open(entry, StandardOpenOption.READ)) {
+            mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            // Usually NoSuchFileException: not cached yet.
+            return null;
+        }
+        try {
+            if (mapped.getInt() != MAGIC || mapped.getInt() != FORMAT_VERSION) {
+                return null;
+            }
+            int probeCount = mapped.getInt();
+            if (probeCount < 0 || probeCount > mapped.remaining() / 20) {
+                return null;
+            }
+            List<ProbeRecord> probes = new ArrayList<>(probeCount);
+            int limit = 0;
+            for (int i = 0; i < probeCount; i++) {
+                ProbeRecord probe =
+                        new ProbeRecord(
+                                mapped.getInt(),
+                                readString(mapped),
+                                readString(mapped),
+                                mapped.getInt(),
+                                mapped.getInt());
+                if (probe.probeId < 0 || probe.probeId >= startMark) {
+                    // Written by a JVM that allocated above our starting point; unsafe to reuse.
+                    return null;
+                }
+                limit = Math.max(limit, probe.probeId + 1);
+                probes.add(probe);
+            }
+            byte[] instrumented = new byte[mapped.getInt()];
+            mapped.get(instrumented);
+            for (ProbeRecord probe : probes) {
+                symbols.record(
+                        probe.probeId,
+                        className,
+                        probe.methodName,
+                        probe.descriptor,
+                        probe.blockIndex,
+                        probe.line);
+            }
+            symbols.flush();
+            if (CoverageRuntime.INLINE_PROBES) {
+                InlineCounters.noteProbeLimit(limit);
+            }
+            return instrumented;
+        } catch (RuntimeException e) {
+            // Truncated or corrupt entry; it is rewritten after instrumenting the class again.
+            return null;
+        }
+    }
+
+    /** Stores the instrumentation of {@code original}; failures only cost the cache entry. */
+    void store(byte[] original, byte[] instrumented, List<ProbeRecord> probes) {
+        if (!writable) {
+            return;
+        }
+        int size = 16 + instrumented.length;
+        List<byte[][]> encoded = new ArrayList<>(probes.size());
+        for (ProbeRecord probe : probes) {
+            byte[][] strings = {
+                probe.methodName.getBytes(StandardCharsets.UTF_8),
+                probe.descriptor.getBytes(StandardCharsets.UTF_8)
+            };
+            encoded.add(strings);
+            size += 20 + strings[0].length + strings[1].length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(size);
+        buffer.putInt(MAGIC).putInt(FORMAT_VERSION).putInt(probes.size());
+        for (int i = 0; i < probes.size(); i++) {
+            ProbeRecord probe = probes.get(i);
+            byte[][] strings = encoded.get(i);
+            buffer.putInt(probe.probeId);
+            buffer.putInt(strings[0].length).put(strings[0]);
+            buffer.putInt(strings[1].length).put(strings[1]);
+            buffer.putInt(probe.blockIndex).putInt(probe.line);
+        }
+        buffer.putInt(instrumented.length).put(instrumented);
+        buffer.flip();
+        Path entry = entryPath(original);
+        try {
+            // The mark must cover the entry's IDs before the entry becomes visible.
+            writeMark(probeIds.allocatedCount());
+            Path temp = Files.createTempFile(directory, "entry-", ".tmp");
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                while (buffer.hasRemaining()) {
+                    channel.write(buffer);
+                }
+            }
+            try {
+                Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, entry, StandardCopyOption.REPLACE_EXISTING);
+            }
+        } catch (IOException e) {
+            System.err.println("[JAF] Failed to write instrumented class cache entry: " + e);
+        }
+    }
+
+    /** Releases the directory lock; the cache must not be used afterwards. */
+    synchronized void close() throws IOException {
+        if (markChannel != null) {
+            markChannel.close();
+        }
+        if (lockChannel != null) {
+            lockChannel.close();
+        }
+    }
+
+    private synchronized void writeMark(int mark) throws IOException {
+        if (mark <= persistedMark) {
+            return;
+        }
+        markChannel.write(ByteBuffer.allocate(4).putInt(0, mark), 0);
+        persistedMark = mark;
+    }
+
+    private Path entryPath(byte[] original) {
+        MessageDigest digest = sha256();
+        digest.update(configFingerprint);
+        digest.update(original);
+        byte[] hash = digest.digest();
+        StringBuilder name = new StringBuilder(hash.length * 2 + ENTRY_SUFFIX.length());
+        for (byte b : hash) {
+            name.append(Character.forDigit((b >> 4) & 0xF, 16));
+            name.append(Character.forDigit(b & 0xF, 16));
+        }
+        return directory.resolve(name.append(ENTRY_SUFFIX).toString());
+    }
+
+    /** Describes everything besides the class bytes that shapes the instrumented output. */
+    static String configuration(boolean inlineProbes, boolean branchPlacement) {
+        return "format=" + FORMAT_VERSION
+                + ";probes=" + (inlineProbes ? "inline" : "call")
+                + ";placement=" + (branchPlacement ? "branches" : "labels")
+                + ";agent=" + agentIdentity();
+    }
+
+    private static String agentIdentity() {
+        try {
+            CodeSource source = InstrumentedClassCache.class.getProtectionDomain().getCodeSource();
+            if (source != null && source.getLocation() != null) {
+                File location = new File(source.getLocation().toURI());
+                if (location.isFile()) {
+                    return location.length() + "@" + location.lastModified();
+                }
+            }
+        } catch (URISyntaxException | SecurityException | IllegalArgumentException ignored) {
+            // Fall through; the remaining configuration still keys the cache.
+        }
+        return "unknown";
+    }
+
+    /**
+     * Creates {@code directory} accessible to the current user only, or checks that an existing one
+     * belongs to that user and that no one else can write to it.
+     */
+    private static void ensurePrivate(Path directory) throws IOException {
+        boolean posix = directory.getFileSystem().supportedFileAttributeViews().contains("posix");
+        if (!Files.isDirectory(directory)) {
+            if (posix) {
+                Files.createDirectories(
+                        directory,
+                        PosixFilePermissions.asFileAttribute(
+                                PosixFilePermissions.fromString("rwx------")));
+            } else {
+                Files.createDirectories(directory);
+            }
+        }
+        // Whoever we are, a file we just created is ours.
+        Path probe = Files.createTempFile(directory, "owner-", ".tmp");
+        UserPrincipal self;
+        try {
+            self = Files.getOwner(probe);
+        } finally {
+            Files.deleteIfExists(probe);
+        }
+        UserPrincipal owner = Files.getOwner(directory);
+        if (!owner.equals(self)) {
+            throw new IOException(
+                    directory + " is owned by " + owner.getName() + ", not by " + self.getName());
+        }
+        if (posix) {
+            Set<PosixFilePermission> permissions = Files.getPosixFilePermissions(directory);
+            if (permissions.contains(PosixFilePermission.GROUP_WRITE)
+                    || permissions.contains(PosixFilePermission.OTHERS_WRITE)) {
+                throw new IOException(directory + " is writable by other users");
+            }
+        }
+    }
+
+    private static int readMark(Path directory) throws IOException {
+        Path markFile = directory.resolve(MARK_FILE);
+        if (!Files.exists(markFile)) {
+            return 0;
+        }
+        byte[] bytes = Files.readAllBytes(markFile);
+        return bytes.length >= 4 ? Math.max(0, ByteBuffer.wrap(bytes).getInt()) : 0;
+    }
+
+    private static void clearEntries(Path directory) throws IOException {
+        try (DirectoryStream<Path> entries =
+                Files.newDirectoryStream(directory, "*" + ENTRY_SUFFIX)) {
+            for (Path entry : entries) {
+                Files.deleteIfExists(entry);
+            }
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static MessageDigest sha256() {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("SHA-256 unavailable", e);
+        }
+    }
+
+    /** A probe emitted into a cached class. */
+    static final class ProbeRecord {
+        final int probeId;
+        final String methodName;
+        final String descriptor;
+        final int blockIndex;
+        final int line;
+
+        ProbeRecord(int probeId, String methodName, String descriptor, int blockIndex, int line) {
+            this.probeId = probeId;
+            this.methodName = methodName;
+            this.descriptor = descriptor;
+            this.blockIndex = blockIndex;
+            this.line = line;
+        }
+    }
+}
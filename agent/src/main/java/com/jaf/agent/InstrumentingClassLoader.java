@@ -0,0 +1,130 @@
+package com.jaf.agent;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.net.MalformedURLException;
+import java.net.URI;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.security.CodeSigner;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Loads a target's classes from its own class path and runs them through the agent's transformers
+ * as they are defined, for {@link InProcessTarget}. There is no {@code Instrumentation} in that
+ * setting, so this loader takes the place of the transformer chain {@link JafAgent} installs.
+ *
+ * <p>Classes found on the target's class path are loaded here before asking the parent, so the
+ * target gets its own copies of libraries the fuzzer also uses. The JDK and the agent's runtime
+ * always come from the parent: probes must reach the {@link CoverageRuntime} the caller reads.</p>
+ */
+final class InstrumentingClassLoader extends URLClassLoader {
+    static {
+        registerAsParallelCapable();
+    }
+
+    private final List<ClassFileTransformer> transformers;
+    // Keyed by the location's string form: URL.equals may resolve host names.
+    private final Map<String, ProtectionDomain> domains = new ConcurrentHashMap<>();
+
+    InstrumentingClassLoader(
+            URL[] classPath, ClassLoader parent, List<ClassFileTransformer> transformers) {
+        super(classPath, parent);
+        this.transformers = List.copyOf(transformers);
+    }
+
+    @Override
+    protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+        synchronized (getClassLoadingLock(name)) {
+            Class<?> loaded = findLoadedClass(name);
+            if (loaded == null && !isShared(name)) {
+                try {
+                    loaded = findClass(name);
+                } catch (ClassNotFoundException e) {
+                    // Not on the target's class path; the parent may still have it.
+                }
+            }
+            if (loaded == null) {
+                loaded = getParent().loadClass(name);
+            }
+            if (resolve) {
+                resolveClass(loaded);
+            }
+            return loaded;
+        }
+    }
+
+    @Override
+    protected Class<?> findClass(String name) throws ClassNotFoundException {
+        String internalName = name.replace('.', '/');
+        URL resource = findResource(internalName + ".class");
+        if (resource == null) {
+            throw new ClassNotFoundException(name);
+        }
+        byte[] bytes;
+        try (InputStream in = resource.openStream()) {
+            bytes = in.readAllBytes();
+        } catch (IOException e) {
+            throw new ClassNotFoundException(name, e);
+        }
+        ProtectionDomain domain = domainOf(resource, internalName);
+        for (ClassFileTransformer transformer : transformers) {
+            try {
+                byte[] transformed =
+                        transformer.transform(
+                                getUnnamedModule(), this, internalName, null, domain, bytes);
+                if (transformed != null) {
+                    bytes = transformed;
+                }
+            } catch (IllegalClassFormatException | RuntimeException e) {
+                System.err.println("[JAF] Failed to instrument " + name + ": " + e);
+            }
+        }
+        int lastDot = name.lastIndexOf('.');
+        if (lastDot > 0 && getDefinedPackage(name.substring(0, lastDot)) == null) {
+            try {
+                definePackage(name.substring(0, lastDot), null, null, null, null, null, null, null);
+            } catch (IllegalArgumentException e) {
+                // Defined concurrently by another class of the package.
+            }
+        }
+        return defineClass(name, bytes, 0, bytes.length, domain);
+    }
+
+    /** Classes that must be the parent's: the JDK's, and the runtime probes and hooks call. */
+    private static boolean isShared(String name) {
+        return name.startsWith("java.") || name.startsWith("com.jaf.agent.");
+    }
+
+    /**
+     * One protection domain per class path entry, whose code source is the jar or directory the
+     * class came from, as a {@link URLClassLoader} would report it.
+     */
+    private ProtectionDomain domainOf(URL resource, String internalName) {
+        URL location = resource;
+        try {
+            String url = resource.toString();
+            String classFile = internalName + ".class";
+            int separator = url.indexOf("!/");
+            if (url.startsWith("jar:") && separator > 0) {
+                location = URI.create(url.substring("jar:".length(), separator)).toURL();
+            } else if (url.endsWith(classFile)) {
+                location = URI.create(url.substring(0, url.length() - classFile.length())).toURL();
+            }
+        } catch (IllegalArgumentException | MalformedURLException e) {
+            // Keep the class's own URL.
+        }
+        URL codeSource = location;
+        return domains.computeIfAbsent(
+                codeSource.toString(),
+                key ->
+                        new ProtectionDomain(
+                                new CodeSource(codeSource, (CodeSigner[]) null), null, this, null));
+    }
+}
@@ -5,7 +5,8 @@ import java.io.InputStream;
 import java.lang.instrument.Instrumentation;
 import java.nio.file.Files;
 import java.nio.file.Path;
-import java.util.ArrayList;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
@@ -22,14 +23,39 @@ public class JafAgent {
         appendAgentJarToBootstrap(inst);
         //ensureJavaBaseReadsHints(inst);
         startCoverageServer();
-        waitForFuzzerConnection();
-        installTransformer(inst);
+        installTransformer(inst, parseOptions(agentArgs), false);
+        if (WAIT_FOR_FUZZER) {
+            waitForFuzzerConnection();
+        }
+    }
+
+    /**
+     * Entry point when the agent is loaded into a running JVM through the Attach API (see
+     * {@link AttachLauncher}). Already loaded application classes in scope are retransformed;
+     * attaching with the {@code detach} argument removes the instrumentation again.
+     */
+    public static synchronized void agentmain(String agentArgs, Instrumentation inst) {
+        logStartup(agentArgs);
+        AgentOptions options = parseOptions(agentArgs);
+        if (options.detach()) {
+            detach();
+            return;
+        }
+        if (agentInstallation != null) {
+            System.out.println("JAF agent is already attached; detach it first.");
+            return;
+        }
+        appendAgentJarToBootstrap(inst);
+        startCoverageServer();
+        installTransformer(inst, options, true);
     }
 
     public static void premain(String agentArgs) {
         logStartup(agentArgs);
         startCoverageServer();
-        waitForFuzzerConnection();
+        if (WAIT_FOR_FUZZER) {
+            waitForFuzzerConnection();
+        }
     }
 
     private static void logStartup(String agentArgs) {
@@ -37,7 +63,15 @@ public class JafAgent {
                 "JAF agent initialized. args=" + agentArgs + ", ASM API=" + Opcodes.ASM9);
     }
 
+    /**
+     * The SUT starts right away and requests are traced once a fuzzer subscribes. Setting this
+     * property restores the old behavior of holding premain until the first fuzzer connects.
+     */
+    private static final boolean WAIT_FOR_FUZZER = Boolean.getBoolean("jaf.agent.waitForFuzzer");
     private static CoverageServer coverageServer;
+    private static volatile AgentInstallation agentInstallation;
+    private static List<ScopedTransformer> scopedTransformers = List.of();
+    private static ClassScope currentScope = ClassScope.ALL;
     private static volatile boolean bootstrapHelpersInstalled = false;
     private static volatile JarFile bootstrapHelperJar;
     private static Path bootstrapHelperJarPath;
@@ -50,7 +84,18 @@ public class JafAgent {
     private static final Path DEBUG_ASM_OUTPUT_DIR =
             Path.of(System.getProperty("jaf.debug.asm.dir", "/tmp/jaf-asm"));
 
-    private static void installTransformer(Instrumentation inst) {
+    private static AgentOptions parseOptions(String agentArgs) {
+        try {
+            return AgentOptions.parse(agentArgs);
+        } catch (IllegalArgumentException e) {
+            System.err.println(
+                    "[JAF] Ignoring agent arguments, instrumenting every class: " + e.getMessage());
+            return AgentOptions.defaults();
+        }
+    }
+
+    private static void installTransformer(
+            Instrumentation inst, AgentOptions options, boolean attached) {
         appendAgentJarToBootstrap(inst);
         String[] targets = {
             "java/lang/Runtime#exec([Ljava/lang/String;[Ljava/lang/String;Ljava/io/File;)Ljava/lang/Process;|command,env,dir",
@@ -115,31 +160,44 @@ public class JafAgent {
         };
         MethodLoggingTransformer loggingTransformer = new MethodLoggingTransformer(targets);
         ServletRequestIdTransformer requestIdTransformer = new ServletRequestIdTransformer();
-        EdgeCoverageTransformer coverageTransformer = new EdgeCoverageTransformer();
-        HintsTransformer hintsTransformer = new HintsTransformer();
+        ScopedTransformer coverageTransformer = coverageTransformer(options);
+        HintsTransformer hintsTransformer = new HintsTransformer(options.scope());
+        TracePropagationTransformer propagationTransformer = new TracePropagationTransformer();
+        AgentInstallation installation = new AgentInstallation(inst);
         try {
-            inst.addTransformer(coverageTransformer, true);
-            inst.addTransformer(requestIdTransformer, true);
-            inst.addTransformer(loggingTransformer, true);
-            inst.addTransformer(hintsTransformer, true);
+            installation.add(coverageTransformer);
+            installation.add(requestIdTransformer);
+            installation.add(loggingTransformer);
+            installation.add(hintsTransformer);
+            installation.add(propagationTransformer);
             if (DEBUG_ASM_ENABLED) {
-                inst.addTransformer(
-                        new DebugDumpingTransformer(DEBUG_ASM_OUTPUT_DIR, DEBUG_ASM_TARGET_CLASS),
-                        true);
+                installation.add(
+                        new DebugDumpingTransformer(DEBUG_ASM_OUTPUT_DIR, DEBUG_ASM_TARGET_CLASS));
+            }
+            synchronized (JafAgent.class) {
+                scopedTransformers = List.of(coverageTransformer, hintsTransformer);
+                currentScope = options.scope();
+                agentInstallation = installation;
             }
             if (inst.isRetransformClassesSupported()) {
                 Set<String> targetNames = new HashSet<>(loggingTransformer.targetClasses());
                 targetNames.addAll(requestIdTransformer.targetClasses());
                 targetNames.addAll(hintsTransformer.targetClasses());
-                List<Class<?>> toRetransform = new ArrayList<>();
-                for (Class<?> loaded : inst.getAllLoadedClasses()) {
-                    String internalName = loaded.getName().replace('.', '/');
-                    if (targetNames.contains(internalName) && inst.isModifiableClass(loaded)) {
-                        toRetransform.add(loaded);
-                    }
-                }
-                if (!toRetransform.isEmpty()) {
-                    inst.retransformClasses(toRetransform.toArray(new Class<?>[0]));
+                targetNames.addAll(propagationTransformer.targetClasses());
+                long started = System.nanoTime();
+                int retransformed =
+                        installation.retransform(
+                                loaded -> {
+                                    String name = AgentInstallation.internalName(loaded);
+                                    return targetNames.contains(name)
+                                            || (attached
+                                                    && isLoadedApplicationClass(loaded)
+                                                    && options.scope().includes(name));
+                                });
+                if (attached) {
+                    System.out.println(
+                            "JAF agent instrumented " + retransformed + " loaded classes in "
+                                    + (System.nanoTime() - started) / 1_000_000 + " ms.");
                 }
             } else {
                 System.out.println("Instrumentation does not support retransformation.");
@@ -149,6 +207,109 @@ public class JafAgent {
         }
     }
 
+    /**
+     * Whether an already loaded class is subject to scoped instrumentation: application classes,
+     * not JDK classes (loaded by the bootstrap or platform loader) and not the agent itself.
+     */
+    private static boolean isLoadedApplicationClass(Class<?> loaded) {
+        ClassLoader loader = loaded.getClassLoader();
+        if (loader == null
+                || loader == ClassLoader.getPlatformClassLoader()
+                || loaded.isArray()
+                || loaded.isHidden()) {
+            return false;
+        }
+        ProtectionDomain domain = loaded.getProtectionDomain();
+        CodeSource source = domain != null ? domain.getCodeSource() : null;
+        CodeSource agentSource = JafAgent.class.getProtectionDomain().getCodeSource();
+        return source == null
+                || agentSource == null
+                || agentSource.getLocation() == null
+                || !agentSource.getLocation().equals(source.getLocation());
+    }
+
+    /**
+     * Replaces the scope of the scoped transformers and retransforms the loaded application classes
+     * that moved in or out of it. Classes that leave the scope are rebuilt from their original bytes
+     * and lose their probes; classes that enter it get new ones.
+     */
+    static synchronized int rescope(ClassScope scope) {
+        AgentInstallation installation = agentInstallation;
+        if (installation == null) {
+            throw new IllegalStateException("JAF agent instrumentation is not installed");
+        }
+        if (!installation.canRetransform()) {
+            throw new IllegalStateException("Instrumentation does not support retransformation");
+        }
+        ClassScope previous = currentScope;
+        for (ScopedTransformer transformer : scopedTransformers) {
+            transformer.setScope(scope);
+        }
+        currentScope = scope;
+        long started = System.nanoTime();
+        int retransformed =
+                installation.retransform(
+                        loaded -> {
+                            if (!isLoadedApplicationClass(loaded)) {
+                                return false;
+                            }
+                            String name = AgentInstallation.internalName(loaded);
+                            return previous.includes(name) != scope.includes(name);
+                        });
+        System.out.println(
+                "JAF agent rescoped, retransformed " + retransformed + " classes in "
+                        + (System.nanoTime() - started) / 1_000_000 + " ms.");
+        return retransformed;
+    }
+
+    private static synchronized void detach() {
+        AgentInstallation installation = agentInstallation;
+        if (installation == null) {
+            System.out.println("JAF agent is not attached.");
+            return;
+        }
+        agentInstallation = null;
+        scopedTransformers = List.of();
+        if (coverageServer != null) {
+            coverageServer.stop();
+            coverageServer = null;
+        }
+        FuzzingRequestContext.setTracingEnabled(false);
+        ProbeSwitch.setArmed(false);
+        try {
+            ClassUsageRecorder.stop();
+        } catch (IOException e) {
+            System.err.println("[JAF] Failed to close class usage recording: " + e);
+        }
+        long started = System.nanoTime();
+        int restored = installation.uninstall();
+        System.out.println(
+                "JAF agent detached, restored " + restored + " classes in "
+                        + (System.nanoTime() - started) / 1_000_000 + " ms.");
+    }
+
+    private static ScopedTransformer coverageTransformer(AgentOptions options) {
+        if (options.recordFile() != null) {
+            try {
+                ClassUsageRecorder.start(options.recordFile());
+                System.out.println(
+                        "JAF agent recording classes used by traced requests to "
+                                + options.recordFile());
+                return new ClassUsageTransformer(options.scope());
+            } catch (IOException e) {
+                System.err.println(
+                        "[JAF] Cannot record class usage to " + options.recordFile()
+                                + ", falling back to edge coverage: " + e);
+            }
+        }
+        if (options.allowlist() != null) {
+            System.out.println(
+                    "JAF agent instrumenting " + options.allowlist().size()
+                            + " allowlisted classes.");
+        }
+        return EdgeCoverageTransformer.forAgent(options.scope(), options.allowlist());
+    }
+
     private static String normalizeInternalName(String maybeDotName) {
         if (maybeDotName == null) {
             return null;
@@ -166,7 +327,7 @@ public class JafAgent {
         }
         try {
             Path socketPath = Path.of("/tmp/jaf-coverage.sock");
-            CoverageServer server = new CoverageServer(socketPath);
+            CoverageServer server = new CoverageServer(socketPath, new Control());
             server.start();
             coverageServer = server;
             Runtime.getRuntime()
@@ -180,6 +341,19 @@ public class JafAgent {
         }
     }
 
+    /** Lets fuzzers inspect and re-scope the instrumentation through the coverage server. */
+    private static final class Control implements AgentControl {
+        @Override
+        public boolean isInstrumented() {
+            return agentInstallation != null;
+        }
+
+        @Override
+        public int rescope(ClassScope scope) {
+            return JafAgent.rescope(scope);
+        }
+    }
+
     private static void waitForFuzzerConnection() {
         CoverageServer server = coverageServer;
         if (server == null || server.hasClientConnected()) {
@@ -204,14 +378,6 @@ public class JafAgent {
                 return;
             }
             try {
-                String[] helperClasses = {
-                    "com/jaf/agent/FuzzingRequestContext.class",
-                    "com/jaf/agent/FuzzingRequestContext$RequestState.class",
-                    "com/jaf/agent/FuzzingRequestContext$RequestFinishedListener.class",
-                    "com/jaf/agent/CoverageRuntime.class",
-                    "com/jaf/agent/CoverageRuntime$TraceState.class",
-                    "com/jaf/agent/Hints.class"
-                };
                 Path tempJar =
                         Files.createTempFile("jaf-agent-bootstrap-", ".jar").toAbsolutePath();
                 try (JarOutputStream jos =
@@ -221,7 +387,7 @@ public class JafAgent {
                                         StandardOpenOption.CREATE,
                                         StandardOpenOption.TRUNCATE_EXISTING,
                                         StandardOpenOption.WRITE))) {
-                    for (String helperClass : helperClasses) {
+                    for (String helperClass : BootstrapHelpers.CLASS_FILES) {
                         byte[] classBytes = readClassBytes(helperClass);
                         if (classBytes == null) {
                             System.err.println("Failed to load bootstrap helper: " + helperClass);
@@ -255,11 +421,20 @@ public class JafAgent {
                                             } catch (IOException ignored) {
                                             }
                                         }));
-                try {
-                    Class.forName("com.jaf.agent.FuzzingRequestContext", false, null);
-                } catch (ClassNotFoundException e) {
-                    System.err.println(
-                            "Failed to preload FuzzingRequestContext in bootstrap loader: " + e);
+                // Load the helpers now: once JDK methods are hooked, loading a helper on first use
+                // can call back into the helper being loaded (ClassCircularityError), which is
+                // likely when attaching to a running JVM.
+                for (String helperClass : BootstrapHelpers.CLASS_FILES) {
+                    String className =
+                            helperClass
+                                    .substring(0, helperClass.length() - ".class".length())
+                                    .replace('/', '.');
+                    try {
+                        Class.forName(className, false, null);
+                    } catch (ClassNotFoundException e) {
+                        System.err.println(
+                                "Failed to preload " + className + " in bootstrap loader: " + e);
+                    }
                 }
             } catch (Exception e) {
                 System.err.println("Failed to append agent classes to bootstrap search: " + e);
@@ -0,0 +1,88 @@
+package com.jaf.agent;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+/**
+ * Finds the TCP ports this JVM is listening on, so a fuzzer can tell when the SUT accepts
+ * requests without polling it over HTTP.
+ *
+ * <p>Linux lists every listening socket of the network namespace in {@code /proc/net/tcp} and
+ * {@code /proc/net/tcp6}; a socket belongs to this process if one of its file descriptors links to
+ * the socket's inode. Elsewhere the list is empty.</p>
+ */
+final class ListeningPorts {
+    private static final String LISTEN_STATE = "0A";
+
+    private ListeningPorts() {}
+
+    static List<Integer> current() {
+        return current(Path.of("/proc/self"));
+    }
+
+    static List<Integer> current(Path procSelf) {
+        Map<String, Integer> portsByInode = new HashMap<>();
+        readListening(procSelf.resolve("net/tcp"), portsByInode);
+        readListening(procSelf.resolve("net/tcp6"), portsByInode);
+        TreeSet<Integer> ports = new TreeSet<>();
+        if (!portsByInode.isEmpty()) {
+            try (DirectoryStream<Path> fds = Files.newDirectoryStream(procSelf.resolve("fd"))) {
+                for (Path fd : fds) {
+                    Integer port = portsByInode.get(socketInode(fd));
+                    if (port != null) {
+                        ports.add(port);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                return List.of();
+            }
+        }
+        return new ArrayList<>(ports);
+    }
+
+    /**
+     * Adds the listening sockets of one {@code /proc/net/tcp*} table. Columns are whitespace
+     * separated: slot, local address as {@code HEXIP:HEXPORT}, remote address, state, queues,
+     * timer, retransmits, uid, timeout and inode.
+     */
+    private static void readListening(Path table, Map<String, Integer> portsByInode) {
+        List<String> lines;
+        try {
+            lines = Files.readAllLines(table, StandardCharsets.US_ASCII);
+        } catch (IOException e) {
+            return;
+        }
+        for (int i = 1; i < lines.size(); i++) {
+            String[] columns = lines.get(i).trim().split("\\s+");
+            if (columns.length < 10 || !LISTEN_STATE.equals(columns[3])) {
+                continue;
+            }
+            int colon = columns[1].lastIndexOf(':');
+            try {
+                portsByInode.put(columns[9], Integer.parseInt(columns[1].substring(colon + 1), 16));
+            } catch (NumberFormatException e) {
+                // Malformed line; skip it.
+            }
+        }
+    }
+
+    private static String socketInode(Path fd) {
+        try {
+            String target = Files.readSymbolicLink(fd).toString();
+            if (target.startsWith("socket:[") && target.endsWith("]")) {
+                return target.substring("socket:[".length(), target.length() - 1);
+            }
+        } catch (IOException | UnsupportedOperationException e) {
+            // The descriptor was closed while listing or is not a link.
+        }
+        return null;
+    }
+}
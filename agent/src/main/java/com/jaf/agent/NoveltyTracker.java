@@ -0,0 +1,73 @@
+package com.jaf.agent;
+
+import java.util.Arrays;
+
+/**
+ * Campaign-wide "virgin" map deciding whether a finished trace reached anything new.
+ *
+ * <p>Hit counts are classified into AFL's buckets (1, 2, 3, 4-7, 8-15, 16-31, 32-127, 128+), one
+ * bit each. Every map entry keeps the bits of the buckets no trace has reached yet, so a trace is
+ * new if it hits an entry in a still-virgin bucket. Checking and updating walk only the touched
+ * entries of the sparse trace. The map grows with the highest probe seen, up to
+ * {@link CoverageRuntime#MAP_SIZE}.</p>
+ */
+final class NoveltyTracker {
+    private static final int UNSEEN = 0xFF;
+    private static final byte[] COUNT_CLASS = buildCountClasses();
+
+    private byte[] virgin = new byte[0];
+
+    /**
+     * Marks the buckets reached by {@code trace} as seen.
+     *
+     * @return whether any of them had not been seen before
+     */
+    synchronized boolean update(SparseTrace trace) {
+        if (trace == null || trace.isEmpty()) {
+            return false;
+        }
+        int needed = Math.min(trace.maxIndex() + 1, CoverageRuntime.MAP_SIZE);
+        if (needed > virgin.length) {
+            int previous = virgin.length;
+            int grown = Math.max(needed, Math.min(previous * 2, CoverageRuntime.MAP_SIZE));
+            virgin = Arrays.copyOf(virgin, grown);
+            Arrays.fill(virgin, previous, virgin.length, (byte) UNSEEN);
+        }
+        boolean changed = false;
+        for (int i = 0; i < trace.size(); i++) {
+            int index = trace.indexAt(i);
+            if (index >= virgin.length) {
+                continue;
+            }
+            int bucket = COUNT_CLASS[trace.countAt(i)] & 0xFF;
+            int unseen = virgin[index] & 0xFF;
+            if ((unseen & bucket) != 0) {
+                virgin[index] = (byte) (unseen & ~bucket);
+                changed = true;
+            }
+        }
+        return changed;
+    }
+
+    private static byte[] buildCountClasses() {
+        byte[] classes = new byte[256];
+        for (int hits = 1; hits < 256; hits++) {
+            int bucket;
+            if (hits <= 3) {
+                bucket = hits == 3 ? 4 : hits;
+            } else if (hits <= 7) {
+                bucket = 8;
+            } else if (hits <= 15) {
+                bucket = 16;
+            } else if (hits <= 31) {
+                bucket = 32;
+            } else if (hits <= 127) {
+                bucket = 64;
+            } else {
+                bucket = 128;
+            }
+            classes[hits] = (byte) bucket;
+        }
+        return classes;
+    }
+}
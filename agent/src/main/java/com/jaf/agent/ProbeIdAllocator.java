@@ -0,0 +1,65 @@
+package com.jaf.agent;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hands out dense, sequential probe identifiers at transform time.
+ *
+ * <p>Identifiers index the coverage map directly, so two probes never share a slot as long as the
+ * configured map size ({@link CoverageRuntime#MAP_SIZE}) is not exhausted. Allocation is a single
+ * atomic increment and therefore stays collision-free when classes are transformed concurrently.
+ * Once the map is full, identifiers wrap around and a warning is printed once.</p>
+ */
+final class ProbeIdAllocator {
+    private static final ProbeIdAllocator GLOBAL = new ProbeIdAllocator(CoverageRuntime.MAP_SIZE);
+
+    private final int capacity;
+    private final AtomicInteger next = new AtomicInteger();
+    private final AtomicBoolean overflowReported = new AtomicBoolean(false);
+
+    ProbeIdAllocator(int capacity) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        }
+        this.capacity = capacity;
+    }
+
+    /** Returns the allocator shared by all coverage transformers in this JVM. */
+    static ProbeIdAllocator global() {
+        return GLOBAL;
+    }
+
+    int allocate() {
+        int id = next.getAndIncrement();
+        if (id < capacity) {
+            return id;
+        }
+        if (overflowReported.compareAndSet(false, true)) {
+            System.err.println(
+                    "[JAF] Coverage map exhausted after "
+                            + capacity
+                            + " probes, probe IDs will collide. Raise -D"
+                            + CoverageRuntime.MAP_SIZE_PROPERTY
+                            + " to avoid this.");
+        }
+        return Integer.remainderUnsigned(id, capacity);
+    }
+
+    /**
+     * Ensures identifiers below {@code mark} are never handed out, e.g. because cached classes
+     * loaded without instrumentation already use them.
+     */
+    void reserveBelow(int mark) {
+        next.accumulateAndGet(Math.min(mark, capacity), Math::max);
+    }
+
+    /** Returns how many map slots are in use, which is the effective coverage map size. */
+    int allocatedCount() {
+        return Math.min(next.get(), capacity);
+    }
+
+    int capacity() {
+        return capacity;
+    }
+}
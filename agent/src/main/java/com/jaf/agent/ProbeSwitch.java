@@ -0,0 +1,65 @@
+package com.jaf.agent;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+
+/**
+ * Global on/off switch for call-style coverage probes.
+ *
+ * <p>Probes in application classes are emitted as {@code invokedynamic} instructions bound through
+ * {@link #bootstrap}. Every probe shares one {@link MutableCallSite}, whose target is either
+ * {@link CoverageRuntime#enterEdge(int)} or a no-op. The JIT inlines the current target, so while
+ * the switch is disarmed a probe compiles down to nothing; flipping the switch deoptimizes the
+ * affected code once and it is recompiled against the new target.</p>
+ *
+ * <p>The switch starts disarmed. The coverage server arms it while at least one fuzzer is
+ * subscribed, so an attached agent without a fuzzing session costs next to nothing.</p>
+ */
+public final class ProbeSwitch {
+    static final String BOOTSTRAP_NAME = "bootstrap";
+    static final String BOOTSTRAP_DESCRIPTOR =
+            "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;"
+                    + "Ljava/lang/invoke/MethodType;)Ljava/lang/invoke/CallSite;";
+
+    private static final MethodType PROBE_TYPE = MethodType.methodType(void.class, int.class);
+    private static final MethodHandle IGNORE = MethodHandles.empty(PROBE_TYPE);
+    private static final MethodHandle RECORD = findEnterEdge();
+    private static final MutableCallSite PROBE_SITE = new MutableCallSite(IGNORE);
+    private static boolean armed = false;
+
+    private ProbeSwitch() {}
+
+    /** Bootstrap method for probe call sites; every site links to the same shared target. */
+    public static CallSite bootstrap(MethodHandles.Lookup lookup, String name, MethodType type) {
+        if (!PROBE_TYPE.equals(type)) {
+            throw new IllegalArgumentException("Unexpected probe type: " + type);
+        }
+        return PROBE_SITE;
+    }
+
+    /** Routes probes to the coverage runtime ({@code true}) or discards them ({@code false}). */
+    public static synchronized void setArmed(boolean enabled) {
+        if (armed == enabled) {
+            return;
+        }
+        armed = enabled;
+        PROBE_SITE.setTarget(enabled ? RECORD : IGNORE);
+        MutableCallSite.syncAll(new MutableCallSite[] {PROBE_SITE});
+    }
+
+    public static synchronized boolean isArmed() {
+        return armed;
+    }
+
+    private static MethodHandle findEnterEdge() {
+        try {
+            return MethodHandles.lookup()
+                    .findStatic(CoverageRuntime.class, "enterEdge", PROBE_TYPE);
+        } catch (NoSuchMethodException | IllegalAccessException e) {
+            throw new ExceptionInInitializerError(e);
+        }
+    }
+}
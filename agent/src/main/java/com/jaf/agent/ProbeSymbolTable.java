@@ -0,0 +1,333 @@
+package com.jaf.agent;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Maps probe identifiers back to the code they were emitted into.
+ *
+ * <p>The coverage transformer records every probe it emits: class, method, descriptor, the probe's
+ * index within the method and the closest preceding source line ({@code 0} if unknown). Entries are
+ * kept in memory for lookups over the coverage protocol and, if the {@value #PATH_PROPERTY} system
+ * property names a file, appended to it so triage tooling can resolve edges offline.</p>
+ *
+ * <p>The file outlives the JVM: a restarted target loads the existing records and appends its own,
+ * and a later record for a probe identifier supersedes an earlier one. One JVM at a time holds a
+ * lock on the file; others keep their symbols in memory only. Symbolic links are not followed, and
+ * a file that is not a probe table is left alone.</p>
+ *
+ * <p>File layout (big-endian, as written by {@link DataOutputStream}): {@code int magic, int
+ * version}, followed by records. A string record ({@code byte 1, int stringId, UTF value}) always
+ * precedes the first probe record that refers to it. A probe record is {@code byte 2, int probeId,
+ * int classId, int methodId, int descriptorId, int blockIndex, int line}.</p>
+ */
+final class ProbeSymbolTable {
+    static final String PATH_PROPERTY = "jaf.coverage.probeTable";
+    static final int MAGIC = 0x4A414650; // "JAFP"
+    static final int VERSION = 1;
+    private static final byte TAG_STRING = 1;
+    private static final byte TAG_PROBE = 2;
+    private static final int FIELDS = 5;
+
+    private static final ProbeSymbolTable GLOBAL = openConfigured();
+
+    private final Map<String, Integer> stringIds = new HashMap<>();
+    private final List<String> strings = new ArrayList<>();
+    // FIELDS ints per probe ID: class, method and descriptor string IDs (+1, so 0 marks an unknown
+    // probe), block index and line.
+    private int[] rows = new int[FIELDS * 1024];
+    private DataOutputStream out;
+
+    ProbeSymbolTable(DataOutputStream out) {
+        this.out = out;
+    }
+
+    /** Returns the table fed by the agent's coverage transformer. */
+    static ProbeSymbolTable global() {
+        return GLOBAL;
+    }
+
+    /**
+     * Opens the table in {@code path} for appending, creating the file if it does not exist and
+     * loading the records of one that does.
+     */
+    static ProbeSymbolTable open(Path path) throws IOException {
+        FileChannel channel =
+                FileChannel.open(
+                        path,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.READ,
+                        StandardOpenOption.WRITE,
+                        LinkOption.NOFOLLOW_LINKS);
+        try {
+            // Held until the channel is closed, normally for the lifetime of the JVM.
+            FileLock lock = channel.tryLock();
+            if (lock == null) {
+                throw new IOException(path + " is in use by another JVM");
+            }
+            ProbeSymbolTable table = new ProbeSymbolTable(null);
+            long end;
+            if (channel.size() == 0) {
+                channel.write(ByteBuffer.allocate(8).putInt(MAGIC).putInt(VERSION).flip());
+                end = 8;
+            } else {
+                if (channel.size() > Integer.MAX_VALUE - 8) {
+                    throw new IOException(path + " is too large for a probe symbol file");
+                }
+                ByteBuffer existing = ByteBuffer.allocate((int) channel.size());
+                while (existing.hasRemaining() && channel.read(existing) >= 0) {
+                    // Reads until the buffer is full or the file ends.
+                }
+                end = table.readRecords(existing.array(), existing.position(), path);
+                // Drops a record cut short by a JVM that died while writing it.
+                channel.truncate(end);
+            }
+            channel.position(end);
+            table.out =
+                    new DataOutputStream(
+                            new BufferedOutputStream(Channels.newOutputStream(channel)));
+            return table;
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    /** Reads a file previously written by {@link #open(Path)} into an in-memory table. */
+    static ProbeSymbolTable load(Path path) throws IOException {
+        byte[] bytes = Files.readAllBytes(path);
+        ProbeSymbolTable table = new ProbeSymbolTable(null);
+        table.readRecords(bytes, bytes.length, path);
+        return table;
+    }
+
+    /**
+     * Loads the records in the first {@code length} bytes of a table file and returns the offset
+     * just past the last complete one.
+     */
+    private synchronized long readRecords(byte[] bytes, int length, Path path)
+            throws IOException {
+        ByteArrayInputStream stream = new ByteArrayInputStream(bytes, 0, length);
+        DataInputStream in = new DataInputStream(stream);
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("Not a probe symbol file: " + path);
+            }
+        } catch (EOFException e) {
+            throw new IOException("Not a probe symbol file: " + path, e);
+        }
+        long complete = length - stream.available();
+        try {
+            while (stream.available() > 0) {
+                int tag = in.readByte();
+                if (tag == TAG_STRING) {
+                    int id = in.readInt();
+                    if (intern(in.readUTF()) != id) {
+                        throw new IOException("Out of order string record " + id + " in " + path);
+                    }
+                } else if (tag == TAG_PROBE) {
+                    int probeId = in.readInt();
+                    int classId = stringId(in.readInt(), path);
+                    int methodId = stringId(in.readInt(), path);
+                    int descriptorId = stringId(in.readInt(), path);
+                    setRow(probeId, classId, methodId, descriptorId, in.readInt(), in.readInt());
+                } else {
+                    throw new IOException("Unknown record tag " + tag + " in " + path);
+                }
+                complete = length - stream.available();
+            }
+        } catch (EOFException e) {
+            // A truncated last record; everything before it is intact.
+        }
+        return complete;
+    }
+
+    private int stringId(int id, Path path) throws IOException {
+        if (id < 0 || id >= strings.size()) {
+            throw new IOException("Unknown string " + id + " in " + path);
+        }
+        return id;
+    }
+
+    synchronized void record(
+            int probeId,
+            String className,
+            String methodName,
+            String descriptor,
+            int blockIndex,
+            int line) {
+        if (probeId < 0) {
+            return;
+        }
+        int classId = intern(className);
+        int methodId = intern(methodName);
+        int descriptorId = intern(descriptor);
+        setRow(probeId, classId, methodId, descriptorId, blockIndex, line);
+        if (out != null) {
+            try {
+                out.writeByte(TAG_PROBE);
+                out.writeInt(probeId);
+                out.writeInt(classId);
+                out.writeInt(methodId);
+                out.writeInt(descriptorId);
+                out.writeInt(blockIndex);
+                out.writeInt(line);
+            } catch (IOException e) {
+                disableFile(e);
+            }
+        }
+    }
+
+    /** Pushes buffered records to the file; called once per transformed class. */
+    synchronized void flush() {
+        if (out == null) {
+            return;
+        }
+        try {
+            out.flush();
+        } catch (IOException e) {
+            disableFile(e);
+        }
+    }
+
+    /** Flushes and closes the file, releasing it to other JVMs; lookups keep working. */
+    synchronized void close() throws IOException {
+        if (out != null) {
+            out.close();
+            out = null;
+        }
+    }
+
+    /** Returns the symbol recorded for {@code probeId}, or {@code null} if none was. */
+    synchronized Symbol lookup(int probeId) {
+        if (probeId < 0 || (long) probeId * FIELDS >= rows.length) {
+            return null;
+        }
+        int base = probeId * FIELDS;
+        if (rows[base] == 0) {
+            return null;
+        }
+        return new Symbol(
+                probeId,
+                strings.get(rows[base] - 1),
+                strings.get(rows[base + 1] - 1),
+                strings.get(rows[base + 2] - 1),
+                rows[base + 3],
+                rows[base + 4]);
+    }
+
+    private int intern(String value) {
+        String key = value != null ? value : "";
+        Integer existing = stringIds.get(key);
+        if (existing != null) {
+            return existing;
+        }
+        int id = strings.size();
+        strings.add(key);
+        stringIds.put(key, id);
+        if (out != null) {
+            try {
+                out.writeByte(TAG_STRING);
+                out.writeInt(id);
+                out.writeUTF(key);
+            } catch (IOException e) {
+                disableFile(e);
+            }
+        }
+        return id;
+    }
+
+    private void setRow(
+            int probeId, int classId, int methodId, int descriptorId, int blockIndex, int line) {
+        if (probeId < 0) {
+            return;
+        }
+        ensureCapacity(probeId);
+        int base = probeId * FIELDS;
+        rows[base] = classId + 1;
+        rows[base + 1] = methodId + 1;
+        rows[base + 2] = descriptorId + 1;
+        rows[base + 3] = blockIndex;
+        rows[base + 4] = line;
+    }
+
+    private void ensureCapacity(int probeId) {
+        long required = ((long) probeId + 1) * FIELDS;
+        if (required <= rows.length) {
+            return;
+        }
+        long length = rows.length;
+        while (length < required) {
+            length <<= 1;
+        }
+        int[] grown = new int[(int) Math.min(length, Integer.MAX_VALUE - 8)];
+        System.arraycopy(rows, 0, grown, 0, rows.length);
+        rows = grown;
+    }
+
+    private void disableFile(IOException e) {
+        System.err.println("[JAF] Probe symbol file disabled after write failure: " + e);
+        try {
+            out.close();
+        } catch (IOException ignored) {
+            // best effort cleanup
+        }
+        out = null;
+    }
+
+    private static ProbeSymbolTable openConfigured() {
+        String configured = System.getProperty(PATH_PROPERTY, "").trim();
+        if (configured.isEmpty() || "none".equalsIgnoreCase(configured)) {
+            return new ProbeSymbolTable(null);
+        }
+        try {
+            return open(Path.of(configured));
+        } catch (IOException | RuntimeException e) {
+            System.err.println(
+                    "[JAF] Failed to open probe symbol file " + configured + ", keeping symbols in"
+                            + " memory only: " + e);
+            return new ProbeSymbolTable(null);
+        }
+    }
+
+    /** Source location of a single probe. */
+    static final class Symbol {
+        final int probeId;
+        final String className;
+        final String methodName;
+        final String descriptor;
+        final int blockIndex;
+        final int line;
+
+        Symbol(
+                int probeId,
+                String className,
+                String methodName,
+                String descriptor,
+                int blockIndex,
+                int line) {
+            this.probeId = probeId;
+            this.className = className;
+            this.methodName = methodName;
+            this.descriptor = descriptor;
+            this.blockIndex = blockIndex;
+            this.line = line;
+        }
+    }
+}
@@ -0,0 +1,13 @@
+package com.jaf.agent;
+
+import java.lang.instrument.ClassFileTransformer;
+
+/**
+ * A transformer whose work is limited to a {@link ClassScope} that can be replaced at runtime.
+ *
+ * <p>Replacing the scope only affects classes transformed afterwards; the caller retransforms the
+ * loaded classes whose membership changed (see {@link JafAgent#rescope(ClassScope)}).</p>
+ */
+interface ScopedTransformer extends ClassFileTransformer {
+    void setScope(ClassScope scope);
+}
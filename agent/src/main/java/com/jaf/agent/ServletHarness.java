@@ -0,0 +1,805 @@
+package com.jaf.agent;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+
+/**
+ * Calls a servlet of the target directly with request and response objects of the agent's own, for
+ * Execute streams with {@code in_process} set. The loopback connection, the connector's parsing and
+ * the filter chain are skipped; from {@code Servlet.service} on the request runs as a real one
+ * would, including the request ID header the coverage hooks read.
+ *
+ * <p>The agent has no servlet API of its own, so it works against whichever of {@code jakarta} or
+ * {@code javax} the servlet implements: request and response are {@link Proxy proxies} of the HTTP
+ * interfaces, and the two abstract stream classes are subclassed with ASM in a class loader below
+ * the API's. Asynchronous processing, sessions and multipart parts are not supported.</p>
+ */
+final class ServletHarness {
+    private static final String HEADER_NAME = "X-Fuzzing-Request-Id";
+    private static final String INPUT_STREAM_CLASS = "com/jaf/agent/harness/HarnessInputStream";
+    private static final String OUTPUT_STREAM_CLASS = "com/jaf/agent/harness/HarnessOutputStream";
+
+    record Response(int status, byte[] body) {}
+
+    private final Object servlet;
+    private final Method service;
+    private final ClassLoader apiLoader;
+    private final Class<?> requestType;
+    private final Class<?> responseType;
+    private final Constructor<?> inputStream;
+    private final Constructor<?> outputStream;
+    private final Object servletContext;
+    private final String servletName;
+    private final AtomicLong nextRequestNumber = new AtomicLong();
+
+    private ServletHarness(Object servlet) throws ReflectiveOperationException {
+        ClassLoader loader = servlet.getClass().getClassLoader();
+        String api = implementsServlet(servlet, "jakarta") ? "jakarta.servlet." : "javax.servlet.";
+        Class<?> servletType = Class.forName(api + "Servlet", false, loader);
+        this.servlet = servlet;
+        this.service =
+                servletType.getMethod(
+                        "service",
+                        Class.forName(api + "ServletRequest", false, loader),
+                        Class.forName(api + "ServletResponse", false, loader));
+        this.requestType = Class.forName(api + "http.HttpServletRequest", false, loader);
+        this.responseType = Class.forName(api + "http.HttpServletResponse", false, loader);
+        this.apiLoader = requestType.getClassLoader();
+        StreamClassLoader streams = new StreamClassLoader(apiLoader);
+        String apiPath = api.replace('.', '/');
+        this.inputStream =
+                streams.define(
+                                INPUT_STREAM_CLASS,
+                                inputStreamClass(apiPath, hasClass(api + "ReadListener", loader)))
+                        .getConstructor(InputStream.class);
+        this.outputStream =
+                streams.define(
+                                OUTPUT_STREAM_CLASS,
+                                outputStreamClass(apiPath, hasClass(api + "WriteListener", loader)))
+                        .getConstructor(OutputStream.class);
+        this.servletContext = invokeNoArg(servlet, "getServletContext");
+        Object name = invokeNoArg(servlet, "getServletName");
+        this.servletName = name instanceof String ? (String) name : "";
+    }
+
+    /**
+     * Picks the servlet to call among those that have served a request: the one of class
+     * {@code className} (fully qualified or simple) if given, else a DispatcherServlet, else the
+     * one noted last.
+     *
+     * @throws IllegalStateException if there is no such servlet or its API cannot be used
+     */
+    static ServletHarness forServlet(String className) {
+        List<Object> servlets = ServletRegistry.servlets();
+        Object chosen = null;
+        for (Object servlet : servlets) {
+            Class<?> type = servlet.getClass();
+            if (className != null && !className.isEmpty()) {
+                if (type.getName().equals(className) || type.getSimpleName().equals(className)) {
+                    chosen = servlet;
+                }
+            } else if (isDispatcherServlet(type)) {
+                chosen = servlet;
+            }
+        }
+        if (chosen == null && (className == null || className.isEmpty()) && !servlets.isEmpty()) {
+            chosen = servlets.get(servlets.size() - 1);
+        }
+        if (chosen == null) {
+            throw new IllegalStateException(
+                    className == null || className.isEmpty()
+                            ? "No servlet has served a request yet"
+                            : "No servlet " + className + " has served a request yet");
+        }
+        try {
+            return new ServletHarness(chosen);
+        } catch (ReflectiveOperationException | LinkageError e) {
+            throw new IllegalStateException(
+                    "Cannot call " + chosen.getClass().getName() + " in-process: " + e, e);
+        }
+    }
+
+    /**
+     * Runs one request through the servlet on the calling thread. {@code target} is the path with
+     * an optional query; {@code port} is only reported as the server port.
+     */
+    Response dispatch(
+            String method,
+            String target,
+            String contentType,
+            String requestId,
+            byte[] body,
+            int port)
+            throws Exception {
+        MockRequest request = new MockRequest(method, target, contentType, requestId, body, port);
+        MockResponse response = new MockResponse();
+        try {
+            service.invoke(
+                    servlet,
+                    Proxy.newProxyInstance(apiLoader, new Class<?>[] {requestType}, request),
+                    Proxy.newProxyInstance(apiLoader, new Class<?>[] {responseType}, response));
+        } catch (InvocationTargetException e) {
+            // The container would answer an exception escaping the servlet with a 500.
+            response.status = 500;
+            response.body.reset();
+            response.body.write(e.getCause().toString().getBytes(StandardCharsets.UTF_8));
+        }
+        return response.finish();
+    }
+
+    private static boolean implementsServlet(Object servlet, String namespace) {
+        try {
+            return Class.forName(
+                            namespace + ".servlet.Servlet",
+                            false,
+                            servlet.getClass().getClassLoader())
+                    .isInstance(servlet);
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    private static boolean isDispatcherServlet(Class<?> type) {
+        for (Class<?> current = type; current != null; current = current.getSuperclass()) {
+            if (current.getSimpleName().equals("DispatcherServlet")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean hasClass(String name, ClassLoader loader) {
+        try {
+            Class.forName(name, false, loader);
+            return true;
+        } catch (ClassNotFoundException e) {
+            return false;
+        }
+    }
+
+    private static Object invokeNoArg(Object target, String methodName) {
+        try {
+            return target.getClass().getMethod(methodName).invoke(target);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    /** The value a proxy returns for a method it does not implement. */
+    private static Object defaultValue(Class<?> type) {
+        if (type == boolean.class) {
+            return Boolean.FALSE;
+        } else if (type == int.class) {
+            return 0;
+        } else if (type == long.class) {
+            return 0L;
+        } else if (type == Enumeration.class) {
+            return Collections.emptyEnumeration();
+        } else if (type == Map.class) {
+            return Map.of();
+        } else if (type == Set.class) {
+            return Set.of();
+        } else if (type == List.class || type == Collection.class) {
+            return List.of();
+        }
+        return null;
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static Object enumConstant(Class<?> type, String name) {
+        return type.isEnum() ? Enum.valueOf((Class<? extends Enum>) type, name) : null;
+    }
+
+    private static Object objectMethod(Object proxy, Method method, Object[] args, String label) {
+        return switch (method.getName()) {
+            case "equals" -> proxy == args[0];
+            case "hashCode" -> System.identityHashCode(proxy);
+            default -> label;
+        };
+    }
+
+    private static boolean isObjectMethod(Method method) {
+        return method.getDeclaringClass() == Object.class;
+    }
+
+    private static void addValue(Map<String, List<String>> values, String name, String value) {
+        values.computeIfAbsent(name, ignored -> new ArrayList<>()).add(value);
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, StandardCharsets.UTF_8);
+        } catch (IllegalArgumentException e) {
+            // Fuzzed queries are often not valid percent-encoding; keep them as they are.
+            return value;
+        }
+    }
+
+    private static void parseForm(String form, Map<String, List<String>> values) {
+        if (form == null || form.isEmpty()) {
+            return;
+        }
+        for (String pair : form.split("&")) {
+            if (pair.isEmpty()) {
+                continue;
+            }
+            int equals = pair.indexOf('=');
+            String name = equals < 0 ? pair : pair.substring(0, equals);
+            String value = equals < 0 ? "" : pair.substring(equals + 1);
+            addValue(values, decode(name), decode(value));
+        }
+    }
+
+    private static Charset charset(String name, Charset fallback) {
+        try {
+            return name != null ? Charset.forName(name) : fallback;
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+
+    private static String charsetOf(String contentType) {
+        if (contentType == null) {
+            return null;
+        }
+        int index = contentType.toLowerCase(Locale.ROOT).indexOf("charset=");
+        if (index < 0) {
+            return null;
+        }
+        String charset = contentType.substring(index + "charset=".length());
+        int end = charset.indexOf(';');
+        return (end < 0 ? charset : charset.substring(0, end)).trim().replace("\"", "");
+    }
+
+    private final class MockRequest implements InvocationHandler {
+        private final String method;
+        private final String uri;
+        private final String query;
+        private final String contentType;
+        private final byte[] body;
+        private final int port;
+        private final Map<String, List<String>> headers =
+                new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        private final Map<String, Object> attributes = new LinkedHashMap<>();
+        private Map<String, String[]> parameters;
+        private String characterEncoding;
+        private Object inputStream;
+        private BufferedReader reader;
+
+        MockRequest(
+                String method,
+                String target,
+                String contentType,
+                String requestId,
+                byte[] body,
+                int port) {
+            int queryStart = target.indexOf('?');
+            this.method = method;
+            this.uri = queryStart < 0 ? target : target.substring(0, queryStart);
+            this.query = queryStart < 0 ? null : target.substring(queryStart + 1);
+            this.contentType = contentType;
+            this.body = body;
+            this.port = port;
+            this.characterEncoding = charsetOf(contentType);
+            addValue(headers, "Host", "localhost:" + port);
+            addValue(headers, HEADER_NAME, requestId);
+            addValue(headers, "Content-Length", Integer.toString(body.length));
+            if (contentType != null) {
+                addValue(headers, "Content-Type", contentType);
+            }
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+            if (isObjectMethod(m)) {
+                return objectMethod(proxy, m, args, "JAF in-process request " + method + " " + uri);
+            }
+            switch (m.getName()) {
+                case "getMethod":
+                    return method;
+                case "getRequestURI":
+                case "getServletPath":
+                    return uri;
+                case "getRequestURL":
+                    return new StringBuffer("http://localhost:" + port + uri);
+                case "getQueryString":
+                    return query;
+                case "getContextPath":
+                    return "";
+                case "getHttpServletMapping":
+                    return mapping(m.getReturnType());
+                case "getHeader":
+                    List<String> values = headers.get((String) args[0]);
+                    return values == null ? null : values.get(0);
+                case "getHeaders":
+                    return Collections.enumeration(
+                            headers.getOrDefault((String) args[0], List.of()));
+                case "getHeaderNames":
+                    return Collections.enumeration(new ArrayList<>(headers.keySet()));
+                case "getIntHeader":
+                    List<String> number = headers.get((String) args[0]);
+                    return number == null ? -1 : Integer.parseInt(number.get(0));
+                case "getDateHeader":
+                    return -1L;
+                case "getContentType":
+                    return contentType;
+                case "getContentLength":
+                    return body.length;
+                case "getContentLengthLong":
+                    return (long) body.length;
+                case "getCharacterEncoding":
+                    return characterEncoding;
+                case "setCharacterEncoding":
+                    characterEncoding = (String) args[0];
+                    return null;
+                case "getInputStream":
+                    if (reader != null) {
+                        throw new IllegalStateException("getReader() has already been called");
+                    }
+                    if (inputStream == null) {
+                        inputStream = ServletHarness.this.inputStream.newInstance(
+                                new ByteArrayInputStream(body));
+                    }
+                    return inputStream;
+                case "getReader":
+                    if (inputStream != null) {
+                        throw new IllegalStateException("getInputStream() has already been called");
+                    }
+                    if (reader == null) {
+                        reader =
+                                new BufferedReader(
+                                        new InputStreamReader(
+                                                new ByteArrayInputStream(body),
+                                                charset(
+                                                        characterEncoding,
+                                                        StandardCharsets.ISO_8859_1)));
+                    }
+                    return reader;
+                case "getAttribute":
+                    return attributes.get((String) args[0]);
+                case "setAttribute":
+                    if (args[1] == null) {
+                        attributes.remove((String) args[0]);
+                    } else {
+                        attributes.put((String) args[0], args[1]);
+                    }
+                    return null;
+                case "removeAttribute":
+                    attributes.remove((String) args[0]);
+                    return null;
+                case "getAttributeNames":
+                    return Collections.enumeration(new ArrayList<>(attributes.keySet()));
+                case "getParameter":
+                    String[] parameter = parameters().get((String) args[0]);
+                    return parameter == null ? null : parameter[0];
+                case "getParameterValues":
+                    String[] parameterValues = parameters().get((String) args[0]);
+                    return parameterValues == null ? null : parameterValues.clone();
+                case "getParameterMap":
+                    return Collections.unmodifiableMap(parameters());
+                case "getParameterNames":
+                    return Collections.enumeration(new ArrayList<>(parameters().keySet()));
+                case "getScheme":
+                    return "http";
+                case "getProtocol":
+                    return "HTTP/1.1";
+                case "getServerName":
+                case "getRemoteHost":
+                case "getLocalName":
+                    return "localhost";
+                case "getRemoteAddr":
+                case "getLocalAddr":
+                    return "127.0.0.1";
+                case "getServerPort":
+                case "getLocalPort":
+                    return port;
+                case "getLocale":
+                    return Locale.getDefault();
+                case "getLocales":
+                    return Collections.enumeration(List.of(Locale.getDefault()));
+                case "getDispatcherType":
+                    return enumConstant(m.getReturnType(), "REQUEST");
+                case "getServletContext":
+                    return servletContext;
+                case "getRequestId":
+                    return Long.toString(nextRequestNumber.incrementAndGet());
+                case "getProtocolRequestId":
+                    return "";
+                case "startAsync":
+                case "getAsyncContext":
+                case "changeSessionId":
+                    throw new IllegalStateException(m.getName() + " is not supported in-process");
+                default:
+                    return defaultValue(m.getReturnType());
+            }
+        }
+
+        private Map<String, String[]> parameters() {
+            if (parameters == null) {
+                Map<String, List<String>> values = new LinkedHashMap<>();
+                parseForm(query, values);
+                if (contentType != null
+                        && contentType.startsWith("application/x-www-form-urlencoded")) {
+                    parseForm(new String(body, StandardCharsets.ISO_8859_1), values);
+                }
+                parameters = new LinkedHashMap<>();
+                for (Map.Entry<String, List<String>> entry : values.entrySet()) {
+                    parameters.put(entry.getKey(), entry.getValue().toArray(new String[0]));
+                }
+            }
+            return parameters;
+        }
+
+        /** A mapping as for a servlet mapped to "/", which is how DispatcherServlet is mapped. */
+        private Object mapping(Class<?> mappingType) {
+            if (!mappingType.isInterface()) {
+                return null;
+            }
+            return Proxy.newProxyInstance(
+                    mappingType.getClassLoader(),
+                    new Class<?>[] {mappingType},
+                    (proxy, m, args) -> {
+                        if (isObjectMethod(m)) {
+                            return objectMethod(proxy, m, args, "JAF in-process mapping");
+                        }
+                        return switch (m.getName()) {
+                            case "getMappingMatch" -> enumConstant(m.getReturnType(), "DEFAULT");
+                            case "getMatchValue" -> "";
+                            case "getPattern" -> "/";
+                            case "getServletName" -> servletName;
+                            default -> defaultValue(m.getReturnType());
+                        };
+                    });
+        }
+    }
+
+    private final class MockResponse implements InvocationHandler {
+        private final Map<String, List<String>> headers =
+                new TreeMap<>(String.CASE_INSENSITIVE_ORDER);
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        private int status = 200;
+        private String contentType;
+        private String characterEncoding;
+        private Locale locale = Locale.getDefault();
+        private boolean committed;
+        private Object outputStream;
+        private PrintWriter writer;
+
+        @Override
+        public Object invoke(Object proxy, Method m, Object[] args) throws Throwable {
+            if (isObjectMethod(m)) {
+                return objectMethod(proxy, m, args, "JAF in-process response " + status);
+            }
+            switch (m.getName()) {
+                case "setStatus":
+                    if (!committed) {
+                        status = (Integer) args[0];
+                    }
+                    return null;
+                case "getStatus":
+                    return status;
+                case "sendError":
+                    status = (Integer) args[0];
+                    committed = true;
+                    return null;
+                case "sendRedirect":
+                    status = 302;
+                    setHeader("Location", (String) args[0]);
+                    committed = true;
+                    return null;
+                case "setHeader":
+                    setHeader((String) args[0], (String) args[1]);
+                    return null;
+                case "addHeader":
+                    addValue(headers, (String) args[0], (String) args[1]);
+                    return null;
+                case "setIntHeader":
+                    setHeader((String) args[0], args[1].toString());
+                    return null;
+                case "addIntHeader":
+                    addValue(headers, (String) args[0], args[1].toString());
+                    return null;
+                case "setDateHeader":
+                    setHeader((String) args[0], formatDate((Long) args[1]));
+                    return null;
+                case "addDateHeader":
+                    addValue(headers, (String) args[0], formatDate((Long) args[1]));
+                    return null;
+                case "containsHeader":
+                    return headers.containsKey((String) args[0]);
+                case "getHeader":
+                    List<String> values = headers.get((String) args[0]);
+                    return values == null ? null : values.get(0);
+                case "getHeaders":
+                    return new ArrayList<>(headers.getOrDefault((String) args[0], List.of()));
+                case "getHeaderNames":
+                    return new ArrayList<>(headers.keySet());
+                case "setContentType":
+                    setContentType((String) args[0]);
+                    return null;
+                case "getContentType":
+                    return contentType;
+                case "setCharacterEncoding":
+                    characterEncoding = (String) args[0];
+                    return null;
+                case "getCharacterEncoding":
+                    return characterEncoding != null ? characterEncoding : "ISO-8859-1";
+                case "setContentLength":
+                case "setContentLengthLong":
+                    setHeader("Content-Length", args[0].toString());
+                    return null;
+                case "getOutputStream":
+                    if (writer != null) {
+                        throw new IllegalStateException("getWriter() has already been called");
+                    }
+                    if (outputStream == null) {
+                        outputStream = ServletHarness.this.outputStream.newInstance(body);
+                    }
+                    return outputStream;
+                case "getWriter":
+                    if (outputStream != null) {
+                        throw new IllegalStateException(
+                                "getOutputStream() has already been called");
+                    }
+                    if (writer == null) {
+                        writer =
+                                new PrintWriter(
+                                        new OutputStreamWriter(
+                                                body,
+                                                charset(
+                                                        characterEncoding,
+                                                        StandardCharsets.ISO_8859_1)));
+                    }
+                    return writer;
+                case "flushBuffer":
+                    if (writer != null) {
+                        writer.flush();
+                    }
+                    committed = true;
+                    return null;
+                case "isCommitted":
+                    return committed;
+                case "reset":
+                    if (committed) {
+                        throw new IllegalStateException("Response already committed");
+                    }
+                    status = 200;
+                    headers.clear();
+                    contentType = null;
+                    body.reset();
+                    return null;
+                case "resetBuffer":
+                    if (committed) {
+                        throw new IllegalStateException("Response already committed");
+                    }
+                    body.reset();
+                    return null;
+                case "getBufferSize":
+                    return 8192;
+                case "setLocale":
+                    locale = (Locale) args[0];
+                    return null;
+                case "getLocale":
+                    return locale;
+                case "encodeURL":
+                case "encodeRedirectURL":
+                case "encodeUrl":
+                case "encodeRedirectUrl":
+                    return args[0];
+                default:
+                    return defaultValue(m.getReturnType());
+            }
+        }
+
+        Response finish() {
+            if (writer != null) {
+                writer.flush();
+            }
+            return new Response(status, body.toByteArray());
+        }
+
+        private void setHeader(String name, String value) {
+            if (name.equalsIgnoreCase("Content-Type")) {
+                setContentType(value);
+                return;
+            }
+            headers.remove(name);
+            addValue(headers, name, value);
+        }
+
+        private void setContentType(String value) {
+            contentType = value;
+            String charset = charsetOf(value);
+            if (charset != null) {
+                characterEncoding = charset;
+            }
+            headers.remove("Content-Type");
+            if (value != null) {
+                addValue(headers, "Content-Type", value);
+            }
+        }
+
+        private String formatDate(long millis) {
+            return DateTimeFormatter.RFC_1123_DATE_TIME.format(
+                    Instant.ofEpochMilli(millis).atZone(ZoneOffset.UTC));
+        }
+    }
+
+    /**
+     * {@code ServletInputStream} reading from an {@link InputStream} passed to its constructor,
+     * always ready and finished once nothing is left.
+     */
+    private static byte[] inputStreamClass(String api, boolean hasReadListener) {
+        String superName = api + "ServletInputStream";
+        ClassWriter writer = newClassWriter(INPUT_STREAM_CLASS, superName);
+        String delegate = "java/io/InputStream";
+        writeConstructor(writer, INPUT_STREAM_CLASS, superName, delegate);
+        writeDelegate(writer, INPUT_STREAM_CLASS, delegate, "read", "()I");
+        writeDelegate(writer, INPUT_STREAM_CLASS, delegate, "read", "([BII)I");
+        writeDelegate(writer, INPUT_STREAM_CLASS, delegate, "available", "()I");
+        MethodVisitor finished =
+                writer.visitMethod(Opcodes.ACC_PUBLIC, "isFinished", "()Z", null, null);
+        finished.visitCode();
+        finished.visitVarInsn(Opcodes.ALOAD, 0);
+        finished.visitFieldInsn(
+                Opcodes.GETFIELD, INPUT_STREAM_CLASS, "delegate", "L" + delegate + ";");
+        finished.visitMethodInsn(Opcodes.INVOKEVIRTUAL, delegate, "available", "()I", false);
+        Label remaining = new Label();
+        finished.visitJumpInsn(Opcodes.IFNE, remaining);
+        finished.visitInsn(Opcodes.ICONST_1);
+        finished.visitInsn(Opcodes.IRETURN);
+        finished.visitLabel(remaining);
+        finished.visitInsn(Opcodes.ICONST_0);
+        finished.visitInsn(Opcodes.IRETURN);
+        finished.visitMaxs(0, 0);
+        finished.visitEnd();
+        writeReady(writer);
+        if (hasReadListener) {
+            writeIgnoredListener(writer, "setReadListener", api + "ReadListener");
+        }
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    /** {@code ServletOutputStream} writing to an {@link OutputStream} passed to its constructor. */
+    private static byte[] outputStreamClass(String api, boolean hasWriteListener) {
+        String superName = api + "ServletOutputStream";
+        ClassWriter writer = newClassWriter(OUTPUT_STREAM_CLASS, superName);
+        String delegate = "java/io/OutputStream";
+        writeConstructor(writer, OUTPUT_STREAM_CLASS, superName, delegate);
+        writeDelegate(writer, OUTPUT_STREAM_CLASS, delegate, "write", "(I)V");
+        writeDelegate(writer, OUTPUT_STREAM_CLASS, delegate, "write", "([BII)V");
+        writeDelegate(writer, OUTPUT_STREAM_CLASS, delegate, "flush", "()V");
+        writeReady(writer);
+        if (hasWriteListener) {
+            writeIgnoredListener(writer, "setWriteListener", api + "WriteListener");
+        }
+        writer.visitEnd();
+        return writer.toByteArray();
+    }
+
+    private static ClassWriter newClassWriter(String name, String superName) {
+        ClassWriter writer =
+                new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+                    // Frames only ever merge ints here; avoid loading classes to compute them.
+                    @Override
+                    protected String getCommonSuperClass(String type1, String type2) {
+                        return "java/lang/Object";
+                    }
+                };
+        writer.visit(
+                Opcodes.V1_8,
+                Opcodes.ACC_PUBLIC | Opcodes.ACC_FINAL | Opcodes.ACC_SUPER,
+                name,
+                null,
+                superName,
+                null);
+        return writer;
+    }
+
+    private static void writeConstructor(
+            ClassWriter writer, String owner, String superName, String delegate) {
+        String descriptor = "L" + delegate + ";";
+        int access = Opcodes.ACC_PRIVATE | Opcodes.ACC_FINAL;
+        writer.visitField(access, "delegate", descriptor, null, null).visitEnd();
+        MethodVisitor init =
+                writer.visitMethod(
+                        Opcodes.ACC_PUBLIC, "<init>", "(" + descriptor + ")V", null, null);
+        init.visitCode();
+        init.visitVarInsn(Opcodes.ALOAD, 0);
+        init.visitMethodInsn(Opcodes.INVOKESPECIAL, superName, "<init>", "()V", false);
+        init.visitVarInsn(Opcodes.ALOAD, 0);
+        init.visitVarInsn(Opcodes.ALOAD, 1);
+        init.visitFieldInsn(Opcodes.PUTFIELD, owner, "delegate", descriptor);
+        init.visitInsn(Opcodes.RETURN);
+        init.visitMaxs(0, 0);
+        init.visitEnd();
+    }
+
+    /** Writes a method passing its arguments on to the same method of the delegate. */
+    private static void writeDelegate(
+            ClassWriter writer, String owner, String delegate, String name, String descriptor) {
+        MethodVisitor method =
+                writer.visitMethod(
+                        Opcodes.ACC_PUBLIC,
+                        name,
+                        descriptor,
+                        null,
+                        new String[] {"java/io/IOException"});
+        method.visitCode();
+        method.visitVarInsn(Opcodes.ALOAD, 0);
+        method.visitFieldInsn(Opcodes.GETFIELD, owner, "delegate", "L" + delegate + ";");
+        Type[] arguments = Type.getArgumentTypes(descriptor);
+        int slot = 1;
+        for (Type argument : arguments) {
+            method.visitVarInsn(argument.getOpcode(Opcodes.ILOAD), slot);
+            slot += argument.getSize();
+        }
+        method.visitMethodInsn(Opcodes.INVOKEVIRTUAL, delegate, name, descriptor, false);
+        method.visitInsn(
+                Type.getReturnType(descriptor).getOpcode(Opcodes.IRETURN));
+        method.visitMaxs(0, 0);
+        method.visitEnd();
+    }
+
+    private static void writeReady(ClassWriter writer) {
+        MethodVisitor ready = writer.visitMethod(Opcodes.ACC_PUBLIC, "isReady", "()Z", null, null);
+        ready.visitCode();
+        ready.visitInsn(Opcodes.ICONST_1);
+        ready.visitInsn(Opcodes.IRETURN);
+        ready.visitMaxs(0, 0);
+        ready.visitEnd();
+    }
+
+    private static void writeIgnoredListener(ClassWriter writer, String name, String listener) {
+        MethodVisitor method =
+                writer.visitMethod(Opcodes.ACC_PUBLIC, name, "(L" + listener + ";)V", null, null);
+        method.visitCode();
+        method.visitInsn(Opcodes.RETURN);
+        method.visitMaxs(0, 0);
+        method.visitEnd();
+    }
+
+    private static final class StreamClassLoader extends ClassLoader {
+        StreamClassLoader(ClassLoader parent) {
+            super(parent);
+        }
+
+        Class<?> define(String internalName, byte[] bytes) {
+            return defineClass(internalName.replace('/', '.'), bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package com.jaf.agent;
+
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Servlets that have served a request, noted by the advice on {@code HttpServlet.service}. Lives in
+ * the bootstrap loader next to {@link FuzzingRequestContext}; the servlets are held weakly so an
+ * undeployed application can still be unloaded.
+ */
+public final class ServletRegistry {
+    // Copied on write; a container has a handful of servlets and notes them on every request.
+    private static volatile WeakReference<?>[] servlets = new WeakReference<?>[0];
+
+    private ServletRegistry() {}
+
+    public static void noteServlet(Object servlet) {
+        if (servlet == null) {
+            return;
+        }
+        for (WeakReference<?> known : servlets) {
+            if (known.get() == servlet) {
+                return;
+            }
+        }
+        register(servlet);
+    }
+
+    /** The live servlets, most recently noted last. */
+    public static List<Object> servlets() {
+        List<Object> live = new ArrayList<>();
+        for (WeakReference<?> known : servlets) {
+            Object servlet = known.get();
+            if (servlet != null) {
+                live.add(servlet);
+            }
+        }
+        return live;
+    }
+
+    private static synchronized void register(Object servlet) {
+        List<WeakReference<?>> kept = new ArrayList<>();
+        for (WeakReference<?> known : servlets) {
+            Object live = known.get();
+            if (live == servlet) {
+                return;
+            }
+            if (live != null) {
+                kept.add(known);
+            }
+        }
+        kept.add(new WeakReference<>(servlet));
+        servlets = kept.toArray(new WeakReference<?>[0]);
+    }
+}
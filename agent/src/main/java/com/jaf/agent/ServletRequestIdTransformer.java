@@ -28,22 +28,26 @@ class ServletRequestIdTransformer implements ClassFileTransformer {
                 targets,
                 "javax/servlet/FilterChain",
                 "doFilter",
-                "(Ljavax/servlet/ServletRequest;Ljavax/servlet/ServletResponse;)V");
+                "(Ljavax/servlet/ServletRequest;Ljavax/servlet/ServletResponse;)V",
+                false);
         addTarget(
                 targets,
                 "jakarta/servlet/FilterChain",
                 "doFilter",
-                "(Ljakarta/servlet/ServletRequest;Ljakarta/servlet/ServletResponse;)V");
+                "(Ljakarta/servlet/ServletRequest;Ljakarta/servlet/ServletResponse;)V",
+                false);
         addTarget(
                 targets,
                 "javax/servlet/http/HttpServlet",
                 "service",
-                "(Ljavax/servlet/http/HttpServletRequest;Ljavax/servlet/http/HttpServletResponse;)V");
+                "(Ljavax/servlet/http/HttpServletRequest;Ljavax/servlet/http/HttpServletResponse;)V",
+                true);
         addTarget(
                 targets,
                 "jakarta/servlet/http/HttpServlet",
                 "service",
-                "(Ljakarta/servlet/http/HttpServletRequest;Ljakarta/servlet/http/HttpServletResponse;)V");
+                "(Ljakarta/servlet/http/HttpServletRequest;Ljakarta/servlet/http/HttpServletResponse;)V",
+                true);
         this.targetsByClass = Collections.unmodifiableMap(targets);
         this.targetClassNames = targetsByClass.keySet();
     }
@@ -96,6 +100,14 @@ class ServletRequestIdTransformer implements ClassFileTransformer {
                                             "void requestFinished (java.lang.Object)");
                             @Override
                             protected void onMethodEnter() {
+                                if (target.notesServlet) {
+                                    // Lets the in-process harness find the servlet later.
+                                    loadThis();
+                                    invokeStatic(
+                                            Type.getType("Lcom/jaf/agent/ServletRegistry;"),
+                                            org.objectweb.asm.commons.Method.getMethod(
+                                                    "void noteServlet (java.lang.Object)"));
+                                }
                                 loadArg(0);
                                 invokeStatic(contextType, onEnterMethod);
                             }
@@ -129,10 +141,11 @@ class ServletRequestIdTransformer implements ClassFileTransformer {
             Map<String, List<MethodTarget>> targets,
             String className,
             String methodName,
-            String descriptor) {
+            String descriptor,
+            boolean notesServlet) {
         targets
                 .computeIfAbsent(className, ignored -> new ArrayList<>())
-                .add(new MethodTarget(methodName, descriptor));
+                .add(new MethodTarget(methodName, descriptor, notesServlet));
     }
 
     private static MethodTarget findTarget(
@@ -148,10 +161,13 @@ class ServletRequestIdTransformer implements ClassFileTransformer {
     private static final class MethodTarget {
         private final String methodName;
         private final String descriptor;
+        /** Whether the method belongs to a servlet to record in {@link ServletRegistry}. */
+        private final boolean notesServlet;
 
-        private MethodTarget(String methodName, String descriptor) {
+        private MethodTarget(String methodName, String descriptor, boolean notesServlet) {
             this.methodName = methodName;
             this.descriptor = descriptor;
+            this.notesServlet = notesServlet;
         }
 
         private boolean matches(String otherName, String otherDescriptor) {
@@ -0,0 +1,171 @@
+package com.jaf.agent;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Agent half of the shared-memory coverage transport.
+ *
+ * <p>The fuzzer creates a file (typically under {@code /dev/shm}) and names it in its subscription.
+ * The agent maps the same file and writes each finished trace into a free slot; the coverage event
+ * sent over gRPC then only carries the slot number. The layout is shared with the fuzzer's
+ * {@code SharedCoverageRegion} and must stay in sync with it. All values are little-endian:</p>
+ *
+ * <pre>
+ * header (64 bytes): int magic, int version, int slotCount, int slotCapacity, reserved
+ * slot i at 64 + i * slotStride:
+ *   int state (FREE, WRITING, READY), int entryCount, int mapSize, int reserved,
+ *   int[slotCapacity] indices, byte[slotCapacity] counts
+ * </pre>
+ *
+ * <p>The agent claims a slot with a FREE → WRITING compare-and-set and publishes it with a release
+ * store of READY; the fuzzer hands it back by storing FREE once the trace has been consumed.</p>
+ */
+final class SharedCoverageWriter implements AutoCloseable {
+    static final int MAGIC = 0x4A414653; // "JAFS"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int SLOT_HEADER_SIZE = 16;
+    static final int STATE_FREE = 0;
+    static final int STATE_WRITING = 1;
+    static final int STATE_READY = 2;
+
+    private static final VarHandle INT_HANDLE =
+            MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int slotCount;
+    private final int slotCapacity;
+    private final long slotStride;
+    private final AtomicInteger cursor = new AtomicInteger();
+
+    private SharedCoverageWriter(
+            Path path, FileChannel channel, MappedByteBuffer buffer, int slotCount, int slotCapacity) {
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.slotCount = slotCount;
+        this.slotCapacity = slotCapacity;
+        this.slotStride = slotStride(slotCapacity);
+    }
+
+    /** Maps a region previously created by the fuzzer and validates its header. */
+    static SharedCoverageWriter open(Path path) throws IOException {
+        FileChannel channel =
+                FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        try {
+            long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                throw new IOException("Unsupported shared coverage region size: " + size);
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            int magic = buffer.getInt(0);
+            int version = buffer.getInt(4);
+            int slotCount = buffer.getInt(8);
+            int slotCapacity = buffer.getInt(12);
+            if (magic != MAGIC || version != VERSION) {
+                throw new IOException(
+                        "Unsupported shared coverage region (magic="
+                                + Integer.toHexString(magic)
+                                + ", version="
+                                + version
+                                + ")");
+            }
+            if (slotCount <= 0
+                    || slotCapacity <= 0
+                    || slotStride(slotCapacity) > (size - HEADER_SIZE) / slotCount) {
+                throw new IOException(
+                        "Corrupt shared coverage region header: slots="
+                                + slotCount
+                                + ", capacity="
+                                + slotCapacity
+                                + ", size="
+                                + size);
+            }
+            return new SharedCoverageWriter(path, channel, buffer, slotCount, slotCapacity);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    static long slotStride(int slotCapacity) {
+        long raw = SLOT_HEADER_SIZE + (long) slotCapacity * 5;
+        return (raw + 7) & ~7L;
+    }
+
+    Path path() {
+        return path;
+    }
+
+    /**
+     * Copies the trace into a free slot.
+     *
+     * @return the slot number, or {@code -1} when every slot is busy or the trace does not fit, in
+     *     which case the caller has to ship the trace inline
+     */
+    int publish(SparseTrace trace, int mapSize) {
+        int entries = trace == null ? 0 : trace.size();
+        if (entries > slotCapacity) {
+            return -1;
+        }
+        int slot = claimSlot();
+        if (slot < 0) {
+            return -1;
+        }
+        int base = slotOffset(slot);
+        int indexBase = base + SLOT_HEADER_SIZE;
+        int countBase = indexBase + slotCapacity * 4;
+        for (int i = 0; i < entries; i++) {
+            buffer.putInt(indexBase + i * 4, trace.indexAt(i));
+            buffer.put(countBase + i, (byte) trace.countAt(i));
+        }
+        buffer.putInt(base + 4, entries);
+        buffer.putInt(base + 8, mapSize);
+        INT_HANDLE.setRelease(buffer, base, STATE_READY);
+        return slot;
+    }
+
+    /** Frees a published slot whose event was never sent, so the fuzzer will not release it. */
+    void release(int slot) {
+        if (slot >= 0 && slot < slotCount) {
+            INT_HANDLE.setRelease(buffer, slotOffset(slot), STATE_FREE);
+        }
+    }
+
+    private int claimSlot() {
+        int start = Math.floorMod(cursor.getAndIncrement(), slotCount);
+        for (int i = 0; i < slotCount; i++) {
+            int slot = (start + i) % slotCount;
+            int offset = slotOffset(slot);
+            if (INT_HANDLE.compareAndSet(buffer, offset, STATE_FREE, STATE_WRITING)) {
+                return slot;
+            }
+        }
+        return -1;
+    }
+
+    /** Slot offsets fit in an int: open() checked that every slot lies inside the mapping. */
+    private int slotOffset(int slot) {
+        return (int) (HEADER_SIZE + slot * slotStride);
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // best effort cleanup
+        }
+    }
+}
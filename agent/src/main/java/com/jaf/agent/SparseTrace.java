@@ -0,0 +1,123 @@
+package com.jaf.agent;
+
+import java.util.Arrays;
+
+/**
+ * Immutable list of the coverage map entries touched while a request was traced.
+ *
+ * <p>Entries are kept in first-hit order; indices are unique within a trace. Only touched slots are
+ * stored, so the cost of building, copying and publishing a trace scales with the number of edges
+ * hit rather than with the size of the coverage map.</p>
+ */
+public final class SparseTrace {
+    private static final SparseTrace EMPTY = new SparseTrace(new int[0], new byte[0]);
+
+    private final int[] indices;
+    private final byte[] counts;
+
+    private SparseTrace(int[] indices, byte[] counts) {
+        this.indices = indices;
+        this.counts = counts;
+    }
+
+    public static SparseTrace empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Captures the first {@code size} touched indices together with their counters.
+     *
+     * @param touched indices recorded by the runtime, in first-hit order
+     * @param size number of valid entries in {@code touched}
+     * @param counters counter array the indices refer to
+     */
+    static SparseTrace capture(int[] touched, int size, byte[] counters) {
+        if (size == 0) {
+            return EMPTY;
+        }
+        int[] indices = new int[size];
+        byte[] counts = new byte[size];
+        System.arraycopy(touched, 0, indices, 0, size);
+        for (int i = 0; i < size; i++) {
+            counts[i] = counters[indices[i]];
+        }
+        return new SparseTrace(indices, counts);
+    }
+
+    /** Returns the number of touched map entries. */
+    public int size() {
+        return indices.length;
+    }
+
+    public boolean isEmpty() {
+        return indices.length == 0;
+    }
+
+    public int indexAt(int position) {
+        return indices[position];
+    }
+
+    /** Returns the saturating hit counter (0-255) recorded for the entry at {@code position}. */
+    public int countAt(int position) {
+        return counts[position] & 0xFF;
+    }
+
+    /** Returns the largest touched index, or {@code -1} for an empty trace. */
+    public int maxIndex() {
+        int max = -1;
+        for (int index : indices) {
+            if (index > max) {
+                max = index;
+            }
+        }
+        return max;
+    }
+
+    /**
+     * Returns a 64-bit hash of the touched indices and their counts. The entries are mixed
+     * independently and summed, so traces with the same entries in a different first-hit order
+     * (e.g. from work merged back from other threads) share a fingerprint.
+     */
+    public long fingerprint() {
+        long hash = indices.length;
+        for (int i = 0; i < indices.length; i++) {
+            hash += mix(((long) indices[i] << 8) | (counts[i] & 0xFF));
+        }
+        return mix(hash);
+    }
+
+    /** The 64-bit finalizer of MurmurHash3. */
+    private static long mix(long value) {
+        value ^= value >>> 33;
+        value *= 0xff51afd7ed558ccdL;
+        value ^= value >>> 33;
+        value *= 0xc4ceb9fe1a85ec53L;
+        value ^= value >>> 33;
+        return value;
+    }
+
+    /** Returns a trace with the same entries, each with a count of 1. */
+    public SparseTrace withUnitCounts() {
+        if (indices.length == 0) {
+            return this;
+        }
+        byte[] ones = new byte[counts.length];
+        Arrays.fill(ones, (byte) 1);
+        return new SparseTrace(indices, ones);
+    }
+
+    /**
+     * Expands the trace into a dense AFL-style bitmap of the given length. Entries outside the
+     * requested length are dropped.
+     */
+    public byte[] toDense(int length) {
+        byte[] dense = new byte[length];
+        for (int i = 0; i < indices.length; i++) {
+            int index = indices[i];
+            if (index < length) {
+                dense[index] = counts[i];
+            }
+        }
+        return dense;
+    }
+}
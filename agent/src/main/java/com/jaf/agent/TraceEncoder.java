@@ -0,0 +1,156 @@
+package com.jaf.agent;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import com.jaf.proto.CoverageProto.TraceEncoding;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * Encodes a trace for an inline coverage event in the smallest {@link TraceEncoding} the subscriber
+ * accepts.
+ *
+ * <p>A request usually touches a few hundred entries of a map of tens of thousands, so the sparse
+ * form is typically two or three bytes per entry instead of one byte per map entry. Run-length wins
+ * when touched entries sit next to each other, e.g. the probes of one large method; dense wins only
+ * for traces covering most of the map. Sizes are computed exactly before anything is written, and
+ * the result is wrapped without a copy.</p>
+ */
+final class TraceEncoder {
+    private TraceEncoder() {}
+
+    record Encoded(TraceEncoding encoding, ByteString bytes) {}
+
+    static Encoded encode(SparseTrace trace, int mapSize, Set<TraceEncoding> accepted) {
+        if (trace == null) {
+            return new Encoded(TraceEncoding.DENSE, ByteString.EMPTY);
+        }
+        long[] entries = sortedEntries(trace, mapSize);
+        TraceEncoding best = TraceEncoding.DENSE;
+        long bestSize = mapSize;
+        if (accepted.contains(TraceEncoding.SPARSE)) {
+            long size = sparseSize(entries);
+            if (size < bestSize) {
+                best = TraceEncoding.SPARSE;
+                bestSize = size;
+            }
+        }
+        if (accepted.contains(TraceEncoding.RUN_LENGTH)) {
+            long size = runLengthSize(entries);
+            if (size < bestSize) {
+                best = TraceEncoding.RUN_LENGTH;
+                bestSize = size;
+            }
+        }
+        byte[] bytes =
+                switch (best) {
+                    case SPARSE -> writeSparse(entries, (int) bestSize);
+                    case RUN_LENGTH -> writeRunLength(entries, (int) bestSize);
+                    default -> trace.toDense(mapSize);
+                };
+        // The array is freshly allocated and never touched again, so it can be wrapped without the
+        // extra copy ByteString.copyFrom would make.
+        return new Encoded(best, UnsafeByteOperations.unsafeWrap(bytes));
+    }
+
+    /** Entries inside the map with a non-zero count as {@code index << 8 | count}, by index. */
+    private static long[] sortedEntries(SparseTrace trace, int mapSize) {
+        long[] entries = new long[trace.size()];
+        int count = 0;
+        for (int i = 0; i < trace.size(); i++) {
+            int index = trace.indexAt(i);
+            int hits = trace.countAt(i);
+            if (index < mapSize && hits != 0) {
+                entries[count++] = ((long) index << 8) | hits;
+            }
+        }
+        entries = count == entries.length ? entries : Arrays.copyOf(entries, count);
+        Arrays.sort(entries);
+        return entries;
+    }
+
+    private static long sparseSize(long[] entries) {
+        long size = 0;
+        int previous = -1;
+        for (long entry : entries) {
+            int index = (int) (entry >>> 8);
+            size += varintSize(index - previous - 1) + 1;
+            previous = index;
+        }
+        return size;
+    }
+
+    private static byte[] writeSparse(long[] entries, int size) {
+        byte[] out = new byte[size];
+        int position = 0;
+        int previous = -1;
+        for (long entry : entries) {
+            int index = (int) (entry >>> 8);
+            position = writeVarint(out, position, index - previous - 1);
+            out[position++] = (byte) entry;
+            previous = index;
+        }
+        return out;
+    }
+
+    private static long runLengthSize(long[] entries) {
+        long size = 0;
+        int next = 0;
+        int i = 0;
+        while (i < entries.length) {
+            int start = (int) (entries[i] >>> 8);
+            int end = runEnd(entries, i);
+            int length = end - i;
+            size += varintSize(start - next) + varintSize(length) + length;
+            next = start + length;
+            i = end;
+        }
+        return size;
+    }
+
+    private static byte[] writeRunLength(long[] entries, int size) {
+        byte[] out = new byte[size];
+        int position = 0;
+        int next = 0;
+        int i = 0;
+        while (i < entries.length) {
+            int start = (int) (entries[i] >>> 8);
+            int end = runEnd(entries, i);
+            position = writeVarint(out, position, start - next);
+            position = writeVarint(out, position, end - i);
+            for (int j = i; j < end; j++) {
+                out[position++] = (byte) entries[j];
+            }
+            next = start + (end - i);
+            i = end;
+        }
+        return out;
+    }
+
+    /** Returns the position after the run of consecutive indices starting at {@code from}. */
+    private static int runEnd(long[] entries, int from) {
+        int end = from + 1;
+        while (end < entries.length && (entries[end] >>> 8) == (entries[end - 1] >>> 8) + 1) {
+            end++;
+        }
+        return end;
+    }
+
+    private static int varintSize(int value) {
+        int size = 1;
+        while ((value & ~0x7F) != 0) {
+            value >>>= 7;
+            size++;
+        }
+        return size;
+    }
+
+    private static int writeVarint(byte[] out, int position, int value) {
+        while ((value & ~0x7F) != 0) {
+            out[position++] = (byte) ((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out[position++] = (byte) value;
+        return position;
+    }
+}
@@ -0,0 +1,170 @@
+package com.jaf.agent;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hooks that carry a request's trace across thread hops.
+ *
+ * <p>{@link TracePropagationTransformer} calls into this class where the JDK hands work to another
+ * thread. Plain {@link Runnable}s and {@link Callable}s submitted to an executor are wrapped so the
+ * trace captured at submission is attached around the task. Work whose identity callers rely on
+ * ({@link FutureTask}s, fork/join tasks, threads, virtual threads) is instead remembered in a weak
+ * side table at submission and looked up when it starts executing. A wrapped {@code Runnable} is
+ * what {@code ThreadPoolExecutor.afterExecute} and {@code shutdownNow} see for tasks passed to
+ * {@code execute} by a traced request.</p>
+ *
+ * <p>Every hook is a single thread-local read when the submitting thread is not tracing, and
+ * lookups on the executing side are skipped entirely while the side table is empty.</p>
+ */
+public final class TracePropagation {
+    private static final int MAX_PENDING = 1 << 16;
+
+    // Initialized first: hooks can run while this class is still being initialized.
+    private static final AtomicInteger PENDING_COUNT = new AtomicInteger();
+    private static final Map<Object, Object> PENDING =
+            Collections.synchronizedMap(new WeakHashMap<>());
+
+    private TracePropagation() {}
+
+    /**
+     * Wraps {@code task} so it runs in the caller's trace. Future tasks are returned unchanged and
+     * remembered instead, since executors hand them back to callers (submit, afterExecute).
+     */
+    public static Runnable wrapRunnable(Runnable task) {
+        return wrap(task, false);
+    }
+
+    /**
+     * Variant of {@link #wrapRunnable} for fork/join pools, which run a {@link ForkJoinTask} passed
+     * as a {@code Runnable} as-is; such tasks are remembered rather than wrapped in an adapter.
+     */
+    public static Runnable wrapForkJoinRunnable(Runnable task) {
+        return wrap(task, true);
+    }
+
+    /** Wraps {@code task} so it runs in the caller's trace. */
+    public static Callable<?> wrapCallable(Callable<?> task) {
+        if (task == null || task instanceof TracedCallable) {
+            return task;
+        }
+        Object context = CoverageRuntime.currentContext();
+        return context == null ? task : new TracedCallable<>(task, context);
+    }
+
+    /** Remembers the caller's trace for a fork/join task or thread that is about to be scheduled. */
+    public static void register(Object work) {
+        if (work == null) {
+            return;
+        }
+        Object context = CoverageRuntime.currentContext();
+        if (context != null) {
+            remember(work, context);
+        }
+    }
+
+    /**
+     * Attaches the trace remembered for {@code work}, if any, to the executing thread.
+     *
+     * @return a token for {@link #afterExecute(Object)}
+     */
+    public static Object beforeExecute(Object work) {
+        if (PENDING_COUNT.get() == 0 || work == null) {
+            return null;
+        }
+        Object context;
+        synchronized (PENDING) {
+            context = PENDING.remove(work);
+            // Entries of work that never ran disappear with the work itself; resynchronize the
+            // counter so the fast path above becomes effective again.
+            PENDING_COUNT.set(PENDING.size());
+        }
+        return context == null ? null : CoverageRuntime.attachContext(context);
+    }
+
+    public static void afterExecute(Object token) {
+        if (token != null) {
+            CoverageRuntime.detachContext(token);
+        }
+    }
+
+    private static Runnable wrap(Runnable task, boolean forkJoinPool) {
+        if (task == null || task instanceof TracedRunnable) {
+            return task;
+        }
+        Object context = CoverageRuntime.currentContext();
+        if (context == null) {
+            return task;
+        }
+        if (task instanceof FutureTask || (forkJoinPool && task instanceof ForkJoinTask)) {
+            remember(task, context);
+            return task;
+        }
+        return new TracedRunnable(task, context);
+    }
+
+    private static void remember(Object work, Object context) {
+        synchronized (PENDING) {
+            if (PENDING.size() >= MAX_PENDING) {
+                return;
+            }
+            PENDING.put(work, context);
+            PENDING_COUNT.set(PENDING.size());
+        }
+    }
+
+    static final class TracedRunnable implements Runnable {
+        private final Runnable delegate;
+        private final Object context;
+
+        TracedRunnable(Runnable delegate, Object context) {
+            this.delegate = delegate;
+            this.context = context;
+        }
+
+        @Override
+        public void run() {
+            Object token = CoverageRuntime.attachContext(context);
+            try {
+                delegate.run();
+            } finally {
+                afterExecute(token);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return delegate.toString();
+        }
+    }
+
+    static final class TracedCallable<V> implements Callable<V> {
+        private final Callable<V> delegate;
+        private final Object context;
+
+        TracedCallable(Callable<V> delegate, Object context) {
+            this.delegate = delegate;
+            this.context = context;
+        }
+
+        @Override
+        public V call() throws Exception {
+            Object token = CoverageRuntime.attachContext(context);
+            try {
+                return delegate.call();
+            } finally {
+                afterExecute(token);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return delegate.toString();
+        }
+    }
+}
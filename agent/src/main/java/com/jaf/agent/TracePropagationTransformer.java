@@ -0,0 +1,256 @@
+package com.jaf.agent;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.security.ProtectionDomain;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.ClassVisitor;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.AdviceAdapter;
+
+/**
+ * Installs the {@link TracePropagation} hooks at the JDK's task submission and execution points.
+ *
+ * <p>Submission points either replace their task argument with a traced wrapper or register the
+ * task (or thread) being scheduled. Execution points of work that keeps its identity attach the
+ * registered trace on entry and detach it on exit. Methods missing from the running JDK, such as
+ * the virtual-thread entry points before JDK 21, are simply never matched.</p>
+ */
+class TracePropagationTransformer implements ClassFileTransformer {
+    private static final String PROPAGATION_INTERNAL = "com/jaf/agent/TracePropagation";
+    private static final String RUNNABLE = "Ljava/lang/Runnable;";
+    private static final String CALLABLE = "Ljava/util/concurrent/Callable;";
+    private static final String FORK_JOIN_TASK = "Ljava/util/concurrent/ForkJoinTask;";
+    private static final String THREAD_CONTAINER = "Ljdk/internal/vm/ThreadContainer;";
+
+    enum Kind {
+        /** Replace argument 0 with {@code TracePropagation.wrapRunnable(arg0)}. */
+        WRAP_RUNNABLE,
+        /** Replace argument 0 with {@code TracePropagation.wrapForkJoinRunnable(arg0)}. */
+        WRAP_FORK_JOIN_RUNNABLE,
+        /** Replace argument 0 with {@code TracePropagation.wrapCallable(arg0)}. */
+        WRAP_CALLABLE,
+        /** Register argument 0 with the caller's trace. */
+        REGISTER_ARG,
+        /** Register {@code this} with the caller's trace. */
+        REGISTER_THIS,
+        /**
+         * Attach the trace registered for {@code this} for the duration of the method, including
+         * when it completes abruptly.
+         */
+        EXECUTE_THIS
+    }
+
+    private final Map<String, List<Hook>> hooksByClass = new HashMap<>();
+
+    TracePropagationTransformer() {
+        // Executors.
+        add("java/util/concurrent/ThreadPoolExecutor", "execute", "(" + RUNNABLE + ")V",
+                Kind.WRAP_RUNNABLE);
+        add("java/util/concurrent/ScheduledThreadPoolExecutor", "schedule",
+                "(" + RUNNABLE + "JLjava/util/concurrent/TimeUnit;)"
+                        + "Ljava/util/concurrent/ScheduledFuture;",
+                Kind.WRAP_RUNNABLE);
+        add("java/util/concurrent/ScheduledThreadPoolExecutor", "schedule",
+                "(" + CALLABLE + "JLjava/util/concurrent/TimeUnit;)"
+                        + "Ljava/util/concurrent/ScheduledFuture;",
+                Kind.WRAP_CALLABLE);
+        add("java/util/concurrent/FutureTask", "run", "()V", Kind.EXECUTE_THIS);
+        // Fork/join pools, CompletableFuture async stages and parallel streams.
+        add("java/util/concurrent/ForkJoinPool", "execute", "(" + RUNNABLE + ")V",
+                Kind.WRAP_FORK_JOIN_RUNNABLE);
+        add("java/util/concurrent/ForkJoinPool", "submit",
+                "(" + RUNNABLE + ")" + FORK_JOIN_TASK, Kind.WRAP_FORK_JOIN_RUNNABLE);
+        add("java/util/concurrent/ForkJoinPool", "submit",
+                "(" + RUNNABLE + "Ljava/lang/Object;)" + FORK_JOIN_TASK,
+                Kind.WRAP_FORK_JOIN_RUNNABLE);
+        add("java/util/concurrent/ForkJoinPool", "submit",
+                "(" + CALLABLE + ")" + FORK_JOIN_TASK, Kind.WRAP_CALLABLE);
+        add("java/util/concurrent/ForkJoinPool", "execute", "(" + FORK_JOIN_TASK + ")V",
+                Kind.REGISTER_ARG);
+        add("java/util/concurrent/ForkJoinPool", "submit",
+                "(" + FORK_JOIN_TASK + ")" + FORK_JOIN_TASK, Kind.REGISTER_ARG);
+        add("java/util/concurrent/ForkJoinPool", "invoke",
+                "(" + FORK_JOIN_TASK + ")Ljava/lang/Object;", Kind.REGISTER_ARG);
+        add("java/util/concurrent/ForkJoinTask", "fork", "()" + FORK_JOIN_TASK,
+                Kind.REGISTER_THIS);
+        add("java/util/concurrent/ForkJoinTask", "doExec", "()I", Kind.EXECUTE_THIS);
+        // Platform threads run their target from Thread.run(); virtual threads (JDK 21+) from
+        // VirtualThread.run(Runnable). Starting through a thread container (executors returned by
+        // Executors.newThreadPerTaskExecutor) bypasses start().
+        add("java/lang/Thread", "start", "()V", Kind.REGISTER_THIS);
+        add("java/lang/Thread", "start", "(" + THREAD_CONTAINER + ")V", Kind.REGISTER_THIS);
+        add("java/lang/Thread", "run", "()V", Kind.EXECUTE_THIS);
+        add("java/lang/VirtualThread", "start", "()V", Kind.REGISTER_THIS);
+        add("java/lang/VirtualThread", "start", "(" + THREAD_CONTAINER + ")V",
+                Kind.REGISTER_THIS);
+        add("java/lang/VirtualThread", "run", "(" + RUNNABLE + ")V", Kind.EXECUTE_THIS);
+    }
+
+    Set<String> targetClasses() {
+        return new HashSet<>(hooksByClass.keySet());
+    }
+
+    @Override
+    public byte[] transform(
+            Module module,
+            ClassLoader loader,
+            String className,
+            Class<?> classBeingRedefined,
+            ProtectionDomain protectionDomain,
+            byte[] classfileBuffer)
+            throws IllegalClassFormatException {
+        List<Hook> hooks = className != null ? hooksByClass.get(className) : null;
+        if (hooks == null) {
+            return null;
+        }
+        try {
+            return instrument(classfileBuffer, hooks);
+        } catch (Exception e) {
+            throw new IllegalClassFormatException(
+                    "Failed to add trace propagation to " + className + ": " + e.getMessage());
+        }
+    }
+
+    /** Visible for testing. */
+    void add(String owner, String name, String descriptor, Kind kind) {
+        hooksByClass
+                .computeIfAbsent(owner, ignored -> new ArrayList<>())
+                .add(new Hook(name, descriptor, kind));
+    }
+
+    private static byte[] instrument(byte[] classfileBuffer, List<Hook> hooks) {
+        ClassReader reader = new ClassReader(classfileBuffer);
+        ClassWriter writer = new ClassWriter(reader, ClassWriter.COMPUTE_MAXS);
+        ClassVisitor visitor =
+                new ClassVisitor(Opcodes.ASM9, writer) {
+                    @Override
+                    public MethodVisitor visitMethod(
+                            int access,
+                            String name,
+                            String descriptor,
+                            String signature,
+                            String[] exceptions) {
+                        MethodVisitor baseVisitor =
+                                super.visitMethod(access, name, descriptor, signature, exceptions);
+                        if (baseVisitor == null
+                                || (access & (Opcodes.ACC_ABSTRACT | Opcodes.ACC_NATIVE)) != 0) {
+                            return baseVisitor;
+                        }
+                        for (Hook hook : hooks) {
+                            if (hook.name.equals(name) && hook.descriptor.equals(descriptor)) {
+                                return new PropagationAdviceAdapter(
+                                        baseVisitor, access, name, descriptor, hook.kind);
+                            }
+                        }
+                        return baseVisitor;
+                    }
+                };
+        reader.accept(visitor, ClassReader.EXPAND_FRAMES);
+        return writer.toByteArray();
+    }
+
+    private static final class Hook {
+        private final String name;
+        private final String descriptor;
+        private final Kind kind;
+
+        private Hook(String name, String descriptor, Kind kind) {
+            this.name = name;
+            this.descriptor = descriptor;
+            this.kind = kind;
+        }
+    }
+
+    private static final class PropagationAdviceAdapter extends AdviceAdapter {
+        private final Kind kind;
+        private final Label bodyStart = new Label();
+        private final Label handler = new Label();
+        private int tokenLocal = -1;
+
+        PropagationAdviceAdapter(
+                MethodVisitor methodVisitor, int access, String name, String descriptor, Kind kind) {
+            super(Opcodes.ASM9, methodVisitor, access, name, descriptor);
+            this.kind = kind;
+        }
+
+        @Override
+        protected void onMethodEnter() {
+            switch (kind) {
+                case WRAP_RUNNABLE:
+                    wrapArgument("wrapRunnable", RUNNABLE);
+                    break;
+                case WRAP_FORK_JOIN_RUNNABLE:
+                    wrapArgument("wrapForkJoinRunnable", RUNNABLE);
+                    break;
+                case WRAP_CALLABLE:
+                    wrapArgument("wrapCallable", CALLABLE);
+                    break;
+                case REGISTER_ARG:
+                    loadArg(0);
+                    callPropagation("register", "(Ljava/lang/Object;)V");
+                    break;
+                case REGISTER_THIS:
+                    loadThis();
+                    callPropagation("register", "(Ljava/lang/Object;)V");
+                    break;
+                case EXECUTE_THIS:
+                    loadThis();
+                    callPropagation("beforeExecute", "(Ljava/lang/Object;)Ljava/lang/Object;");
+                    tokenLocal = newLocal(Type.getType(Object.class));
+                    storeLocal(tokenLocal);
+                    visitLabel(bodyStart);
+                    break;
+                default:
+                    throw new IllegalStateException("Unknown hook kind " + kind);
+            }
+        }
+
+        @Override
+        protected void onMethodExit(int opcode) {
+            // Throws, explicit or not, reach the catch-all handler added in visitMaxs.
+            if (tokenLocal < 0 || opcode == Opcodes.ATHROW) {
+                return;
+            }
+            loadLocal(tokenLocal);
+            callPropagation("afterExecute", "(Ljava/lang/Object;)V");
+        }
+
+        @Override
+        public void visitMaxs(int maxStack, int maxLocals) {
+            if (tokenLocal >= 0) {
+                // Added last, so the method's own handlers still take precedence within the body.
+                visitTryCatchBlock(bodyStart, handler, handler, null);
+                visitLabel(handler);
+                // Only the token is live here; the sorter adds it to the frame's locals.
+                visitFrame(
+                        Opcodes.F_NEW, 0, new Object[0], 1, new Object[] {"java/lang/Throwable"});
+                loadLocal(tokenLocal);
+                callPropagation("afterExecute", "(Ljava/lang/Object;)V");
+                visitInsn(Opcodes.ATHROW);
+            }
+            super.visitMaxs(maxStack, maxLocals);
+        }
+
+        private void wrapArgument(String hookName, String argumentDescriptor) {
+            loadArg(0);
+            callPropagation(hookName, "(" + argumentDescriptor + ")" + argumentDescriptor);
+            storeArg(0);
+        }
+
+        private void callPropagation(String hookName, String hookDescriptor) {
+            visitMethodInsn(
+                    Opcodes.INVOKESTATIC, PROPAGATION_INTERNAL, hookName, hookDescriptor, false);
+        }
+    }
+}
@@ -0,0 +1,170 @@
+package com.jaf.agent;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.lang.instrument.ClassDefinition;
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.IllegalClassFormatException;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.jar.JarFile;
+import org.junit.jupiter.api.Test;
+
+class AgentInstallationTest {
+
+    @Test
+    void uninstallRestoresTheOriginalBytes() throws Exception {
+        byte[] original = EdgeCoverageTransformerTest.SampleClassFactory.createSampleClass();
+        Class<?> sample =
+                new EdgeCoverageTransformerTest.SampleClassLoader()
+                        .define("sample.Sample", original);
+        RetransformingInstrumentation inst =
+                new RetransformingInstrumentation(Map.of(sample, original));
+        AgentInstallation installation = new AgentInstallation(inst);
+        installation.add(
+                new EdgeCoverageTransformer.Builder()
+                        .allowedClasses(Set.of("sample/Sample"))
+                        .probeIds(new ProbeIdAllocator(1024))
+                        .inlineProbes(false)
+                        .symbols(new ProbeSymbolTable(null))
+                        .build());
+
+        assertEquals(1, installation.retransform(loaded -> true));
+        assertFalse(Arrays.equals(original, inst.bytesOf(sample)));
+
+        assertEquals(1, installation.uninstall());
+        assertArrayEquals(original, inst.bytesOf(sample));
+        assertEquals(0, inst.transformers.size());
+    }
+
+    /**
+     * Retransforms like the JVM does: the original bytes of each class go through every registered
+     * transformer in order, and the result becomes the class's current bytes.
+     */
+    private static final class RetransformingInstrumentation implements Instrumentation {
+        private final Map<Class<?>, byte[]> originals;
+        private final Map<Class<?>, byte[]> current = new HashMap<>();
+        private final List<ClassFileTransformer> transformers = new ArrayList<>();
+
+        RetransformingInstrumentation(Map<Class<?>, byte[]> originals) {
+            this.originals = originals;
+            current.putAll(originals);
+        }
+
+        byte[] bytesOf(Class<?> type) {
+            return current.get(type);
+        }
+
+        @Override
+        public void addTransformer(ClassFileTransformer transformer, boolean canRetransform) {
+            transformers.add(transformer);
+        }
+
+        @Override
+        public void addTransformer(ClassFileTransformer transformer) {
+            transformers.add(transformer);
+        }
+
+        @Override
+        public boolean removeTransformer(ClassFileTransformer transformer) {
+            return transformers.remove(transformer);
+        }
+
+        @Override
+        public boolean isRetransformClassesSupported() {
+            return true;
+        }
+
+        @Override
+        public void retransformClasses(Class<?>... classes) throws UnmodifiableClassException {
+            for (Class<?> type : classes) {
+                byte[] bytes = originals.get(type);
+                for (ClassFileTransformer transformer : transformers) {
+                    byte[] transformed;
+                    try {
+                        transformed =
+                                transformer.transform(
+                                        type.getModule(),
+                                        type.getClassLoader(),
+                                        AgentInstallation.internalName(type),
+                                        type,
+                                        type.getProtectionDomain(),
+                                        bytes);
+                    } catch (IllegalClassFormatException e) {
+                        throw new UnmodifiableClassException(e.getMessage());
+                    }
+                    if (transformed != null) {
+                        bytes = transformed;
+                    }
+                }
+                current.put(type, bytes);
+            }
+        }
+
+        @Override
+        public boolean isRedefineClassesSupported() {
+            return false;
+        }
+
+        @Override
+        public void redefineClasses(ClassDefinition... definitions) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean isModifiableClass(Class<?> type) {
+            return originals.containsKey(type);
+        }
+
+        @Override
+        public Class<?>[] getAllLoadedClasses() {
+            return originals.keySet().toArray(new Class<?>[0]);
+        }
+
+        @Override
+        public Class<?>[] getInitiatedClasses(ClassLoader loader) {
+            return new Class<?>[0];
+        }
+
+        @Override
+        public long getObjectSize(Object object) {
+            return 0;
+        }
+
+        @Override
+        public void appendToBootstrapClassLoaderSearch(JarFile jar) {}
+
+        @Override
+        public void appendToSystemClassLoaderSearch(JarFile jar) {}
+
+        @Override
+        public boolean isNativeMethodPrefixSupported() {
+            return false;
+        }
+
+        @Override
+        public void setNativeMethodPrefix(ClassFileTransformer transformer, String prefix) {}
+
+        @Override
+        public void redefineModule(
+                Module module,
+                Set<Module> extraReads,
+                Map<String, Set<Module>> extraExports,
+                Map<String, Set<Module>> extraOpens,
+                Set<Class<?>> extraUses,
+                Map<Class<?>, List<Class<?>>> extraProvides) {}
+
+        @Override
+        public boolean isModifiableModule(Module module) {
+            return false;
+        }
+    }
+}
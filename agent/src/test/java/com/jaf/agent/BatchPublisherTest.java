@@ -0,0 +1,52 @@
+package com.jaf.agent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+class BatchPublisherTest {
+
+    @Test
+    void deliversEveryItemInOrderInBoundedBatches() throws Exception {
+        List<Integer> received = new ArrayList<>();
+        AtomicInteger largestBatch = new AtomicInteger();
+        BatchPublisher<Integer> publisher =
+                new BatchPublisher<>(
+                        "test-publisher",
+                        16,
+                        8,
+                        batch -> {
+                            largestBatch.accumulateAndGet(batch.size(), Math::max);
+                            received.addAll(batch);
+                        });
+        publisher.start();
+        Thread[] producers = new Thread[4];
+        for (int p = 0; p < producers.length; p++) {
+            int producer = p;
+            producers[p] =
+                    new Thread(
+                            () -> {
+                                for (int i = 0; i < 1000; i++) {
+                                    publisher.offer(producer * 1000 + i);
+                                }
+                            });
+            producers[p].start();
+        }
+        for (Thread producer : producers) {
+            producer.join();
+        }
+        publisher.stop();
+
+        assertEquals(4000, received.size());
+        assertTrue(largestBatch.get() <= 8);
+        int[] last = {-1, 999, 1999, 2999};
+        for (int item : received) {
+            assertTrue(item > last[item / 1000], "items of one producer stay in order");
+            last[item / 1000] = item;
+        }
+    }
+}
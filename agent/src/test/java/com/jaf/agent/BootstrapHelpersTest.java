@@ -0,0 +1,239 @@
+package com.jaf.agent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.CodeSource;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.objectweb.asm.ClassReader;
+import org.objectweb.asm.Handle;
+import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AbstractInsnNode;
+import org.objectweb.asm.tree.ClassNode;
+import org.objectweb.asm.tree.FieldInsnNode;
+import org.objectweb.asm.tree.InvokeDynamicInsnNode;
+import org.objectweb.asm.tree.MethodInsnNode;
+import org.objectweb.asm.tree.MethodNode;
+import org.objectweb.asm.tree.TypeInsnNode;
+
+class BootstrapHelpersTest {
+    private static final Set<String> HELPERS =
+            BootstrapHelpers.CLASS_FILES.stream()
+                    .map(file -> file.substring(0, file.length() - ".class".length()))
+                    .map(name -> name.replace('/', '.'))
+                    .collect(Collectors.toSet());
+
+    /** The instruction each method handle kind stands for, indexed by {@link Handle#getTag}. */
+    private static final int[] HANDLE_OPCODES = {
+        -1,
+        Opcodes.GETFIELD,
+        Opcodes.GETSTATIC,
+        Opcodes.PUTFIELD,
+        Opcodes.PUTSTATIC,
+        Opcodes.INVOKEVIRTUAL,
+        Opcodes.INVOKESTATIC,
+        Opcodes.INVOKESPECIAL,
+        Opcodes.INVOKESPECIAL,
+        Opcodes.INVOKEINTERFACE
+    };
+
+    /**
+     * Loads the helpers through a loader of their own and the rest of the agent through another,
+     * as under {@code -javaagent}, then checks every helper member the agent refers to with the
+     * access rights of the class referring to it.
+     */
+    @Test
+    void agentReachesHelpersFromAnotherRuntimePackage() throws Exception {
+        SplitLoader helpers = new SplitLoader(HELPERS::contains, getClass().getClassLoader());
+        SplitLoader agent =
+                new SplitLoader(
+                        name -> name.startsWith("com.jaf.agent.") && !HELPERS.contains(name),
+                        helpers);
+
+        Class<?> allocator = Class.forName(ProbeIdAllocator.class.getName(), false, agent);
+        Class<?> runtime = Class.forName(CoverageRuntime.class.getName(), false, agent);
+        assertNotSame(ProbeIdAllocator.class, allocator);
+        assertEquals(helpers, runtime.getClassLoader());
+
+        Set<String> inaccessible = new TreeSet<>();
+        for (String name : agentClasses()) {
+            if (HELPERS.contains(name)) {
+                continue;
+            }
+            Class<?> caller = Class.forName(name, false, agent);
+            MethodHandles.Lookup lookup =
+                    MethodHandles.privateLookupIn(caller, MethodHandles.lookup());
+            for (Reference reference : referencesToHelpers(caller)) {
+                try {
+                    reference.resolve(lookup, helpers);
+                } catch (IllegalAccessException e) {
+                    inaccessible.add(name + " -> " + reference);
+                }
+            }
+        }
+        assertTrue(inaccessible.isEmpty(), "Not public: " + inaccessible);
+    }
+
+    /** Names of the agent's classes, from the class path entry they were compiled to. */
+    private static List<String> agentClasses() throws Exception {
+        CodeSource source = ProbeIdAllocator.class.getProtectionDomain().getCodeSource();
+        Path root = Path.of(source.getLocation().toURI());
+        if (Files.isDirectory(root)) {
+            return classNames(root);
+        }
+        try (FileSystem jar = FileSystems.newFileSystem(root, Map.of())) {
+            return classNames(jar.getPath("/"));
+        }
+    }
+
+    private static List<String> classNames(Path root) throws IOException {
+        Path dir = root.resolve("com/jaf/agent");
+        try (Stream<Path> files = Files.walk(dir)) {
+            return files.map(path -> root.relativize(path).toString())
+                    .filter(path -> path.endsWith(".class"))
+                    .map(path -> path.substring(0, path.length() - ".class".length()))
+                    .map(path -> path.replace('/', '.').replace('\\', '.'))
+                    .collect(Collectors.toList());
+        }
+    }
+
+    private static List<Reference> referencesToHelpers(Class<?> caller) throws IOException {
+        ClassNode node = new ClassNode();
+        new ClassReader(bytesOf(caller.getName(), caller.getClassLoader()))
+                .accept(node, ClassReader.SKIP_DEBUG);
+        List<Reference> references = new ArrayList<>();
+        for (MethodNode method : node.methods) {
+            for (AbstractInsnNode insn : method.instructions) {
+                if (insn instanceof FieldInsnNode field) {
+                    references.add(
+                            new Reference(field.getOpcode(), field.owner, field.name, field.desc));
+                } else if (insn instanceof MethodInsnNode call) {
+                    references.add(
+                            new Reference(call.getOpcode(), call.owner, call.name, call.desc));
+                } else if (insn instanceof TypeInsnNode type) {
+                    references.add(new Reference(type.getOpcode(), type.desc, null, null));
+                } else if (insn instanceof InvokeDynamicInsnNode indy) {
+                    for (Object argument : indy.bsmArgs) {
+                        if (argument instanceof Handle handle) {
+                            references.add(
+                                    new Reference(
+                                            HANDLE_OPCODES[handle.getTag()],
+                                            handle.getOwner(),
+                                            handle.getName(),
+                                            handle.getDesc()));
+                        }
+                    }
+                }
+            }
+        }
+        references.removeIf(reference -> !HELPERS.contains(reference.owner()));
+        return references;
+    }
+
+    private static byte[] bytesOf(String className, ClassLoader loader) throws IOException {
+        try (InputStream in = loader.getResourceAsStream(className.replace('.', '/') + ".class")) {
+            if (in == null) {
+                throw new IOException("No class file for " + className);
+            }
+            return in.readAllBytes();
+        }
+    }
+
+    private record Reference(int opcode, String owner, String name, String descriptor) {
+        Reference {
+            owner = owner.replace('/', '.');
+        }
+
+        void resolve(MethodHandles.Lookup lookup, ClassLoader helpers)
+                throws ReflectiveOperationException {
+            Class<?> ownerClass = lookup.accessClass(Class.forName(owner, false, helpers));
+            if (name == null) {
+                return;
+            }
+            ClassLoader loader = lookup.lookupClass().getClassLoader();
+            switch (opcode) {
+                case Opcodes.GETSTATIC, Opcodes.PUTSTATIC -> lookup.findStaticVarHandle(
+                        ownerClass, name, fieldType(loader));
+                case Opcodes.GETFIELD, Opcodes.PUTFIELD -> lookup.findVarHandle(
+                        ownerClass, name, fieldType(loader));
+                case Opcodes.INVOKESTATIC -> lookup.findStatic(
+                        ownerClass, name, methodType(loader));
+                case Opcodes.INVOKESPECIAL -> {
+                    if (name.equals("<init>")) {
+                        lookup.findConstructor(ownerClass, methodType(loader));
+                    } else {
+                        lookup.findSpecial(
+                                ownerClass, name, methodType(loader), lookup.lookupClass());
+                    }
+                }
+                default -> lookup.findVirtual(ownerClass, name, methodType(loader));
+            }
+        }
+
+        private MethodType methodType(ClassLoader loader) {
+            return MethodType.fromMethodDescriptorString(descriptor, loader);
+        }
+
+        private Class<?> fieldType(ClassLoader loader) {
+            return MethodType.fromMethodDescriptorString("()" + descriptor, loader).returnType();
+        }
+
+        @Override
+        public String toString() {
+            return name == null ? owner : owner + "." + name + ":" + descriptor;
+        }
+    }
+
+    /**
+     * Defines the classes {@code owns} accepts from the test's class path itself, so they get a
+     * runtime package of their own, and delegates everything else to {@code parent}.
+     */
+    private static final class SplitLoader extends ClassLoader {
+        private final Predicate<String> owns;
+
+        SplitLoader(Predicate<String> owns, ClassLoader parent) {
+            super(parent);
+            this.owns = owns;
+        }
+
+        @Override
+        protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            synchronized (getClassLoadingLock(name)) {
+                if (!owns.test(name)) {
+                    return super.loadClass(name, resolve);
+                }
+                Class<?> loaded = findLoadedClass(name);
+                if (loaded == null) {
+                    byte[] bytes;
+                    try {
+                        bytes = bytesOf(name, BootstrapHelpersTest.class.getClassLoader());
+                    } catch (IOException e) {
+                        throw new ClassNotFoundException(name, e);
+                    }
+                    loaded = defineClass(name, bytes, 0, bytes.length);
+                }
+                if (resolve) {
+                    resolveClass(loaded);
+                }
+                return loaded;
+            }
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.jaf.agent;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class ClassScopeTest {
+
+    @Test
+    void emptyArgumentsIncludeEverything() {
+        ClassScope scope = AgentOptions.parse(null).scope();
+
+        assertTrue(scope.includes("com/ourco/Api"));
+        assertTrue(scope.includes("org/springframework/web/DispatcherServlet"));
+    }
+
+    @Test
+    void longestMatchingPatternDecides() {
+        ClassScope scope =
+                AgentOptions.parse(
+                                "include=com.ourco.*,exclude=com.ourco.generated.*,"
+                                        + "include=com.ourco.generated.Parser,include=org.json.*")
+                        .scope();
+
+        assertTrue(scope.includes("com/ourco/Api"));
+        assertTrue(scope.includes("com/ourco/web/Controller"));
+        assertFalse(scope.includes("com/ourco/generated/Dto"));
+        assertTrue(scope.includes("com/ourco/generated/Parser"));
+        assertTrue(scope.includes("com/ourco/generated/Parser$Lexer"));
+        assertFalse(scope.includes("com/ourco/generated/ParserFactory"));
+        assertTrue(scope.includes("org/json/JSONObject"));
+        assertFalse(scope.includes("org/springframework/web/DispatcherServlet"));
+        assertFalse(scope.includes("com/ourcompany/Other"));
+    }
+
+    @Test
+    void excludesOnlyKeepEverythingElse() {
+        ClassScope scope = AgentOptions.parse("exclude=org.springframework.*").scope();
+
+        assertFalse(scope.includes("org/springframework/web/DispatcherServlet"));
+        assertTrue(scope.includes("com/ourco/Api"));
+    }
+
+    @Test
+    void readsPatternsFromScopeFile() throws Exception {
+        Path file = Files.createTempFile("jaf-scope-", ".txt");
+        try {
+            Files.write(
+                    file,
+                    List.of("# ours", "com.ourco.*", "-com.ourco.legacy.*", "", "+org.json.*"));
+            ClassScope scope = AgentOptions.parse("scopeFile=" + file).scope();
+
+            assertTrue(scope.includes("com/ourco/Api"));
+            assertFalse(scope.includes("com/ourco/legacy/Old"));
+            assertTrue(scope.includes("org/json/JSONObject"));
+            assertFalse(scope.includes("com/fasterxml/jackson/core/JsonParser"));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void rejectsUnknownArguments() {
+        assertThrows(IllegalArgumentException.class, () -> AgentOptions.parse("verbose"));
+    }
+}
@@ -0,0 +1,58 @@
+package com.jaf.agent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+class ClassUsageTransformerTest {
+
+    @Test
+    void recordsClassesRunDuringTracedRequestsAsAllowlist() throws Exception {
+        Path file = Files.createTempFile("jaf-recorded-", ".txt");
+        try {
+            ClassUsageRecorder.start(file);
+            byte[] instrumented =
+                    new ClassUsageTransformer(ClassScope.ALL)
+                            .transform(
+                                    null, null, "sample/Sample", null, null,
+                                    EdgeCoverageTransformerTest.SampleClassFactory
+                                            .createSampleClass());
+            Class<?> sampleClass =
+                    new EdgeCoverageTransformerTest.SampleClassLoader()
+                            .define("sample.Sample", instrumented);
+            Object instance = sampleClass.getDeclaredConstructor().newInstance();
+            Method method = sampleClass.getDeclaredMethod("branch", int.class);
+
+            method.invoke(instance, 5);
+            assertEquals(List.of(), Files.readAllLines(file));
+
+            CoverageRuntime.startTracing();
+            method.invoke(instance, 5);
+            method.invoke(instance, -3);
+            CoverageRuntime.stopTracing();
+            assertEquals(List.of("sample.Sample"), Files.readAllLines(file));
+
+            Set<String> allowlist = AgentOptions.parse("allowlist=" + file).allowlist();
+            assertEquals(Set.of("sample/Sample"), allowlist);
+        } finally {
+            ClassUsageRecorder.stop();
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void skipsJdkAndOutOfScopeClasses() throws Exception {
+        ClassUsageTransformer transformer =
+                new ClassUsageTransformer(AgentOptions.parse("include=com.ourco.*").scope());
+        byte[] sample = EdgeCoverageTransformerTest.SampleClassFactory.createSampleClass();
+
+        assertNull(transformer.transform(null, null, "sample/Sample", null, null, sample));
+        assertNull(transformer.transform(null, null, "java/util/Foo", null, null, sample));
+    }
+}
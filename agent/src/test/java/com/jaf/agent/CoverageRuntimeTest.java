@@ -1,7 +1,10 @@
 package com.jaf.agent;
 
+import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -18,8 +21,64 @@ class CoverageRuntimeTest {
         CoverageRuntime.startTracing();
         CoverageRuntime.enterEdge(42);
         CoverageRuntime.enterEdge(7);
-        byte[] trace = CoverageRuntime.stopTracing();
-        assertNotEquals(0, countNonZero(trace));
+        SparseTrace trace = CoverageRuntime.stopTracing();
+        assertNotEquals(0, trace.size());
+        assertEquals(trace.size(), countNonZero(trace.toDense(CoverageRuntime.MAP_SIZE)));
+    }
+
+    @Test
+    void repeatedHitsAreCountedOnce() {
+        CoverageRuntime.startTracing();
+        for (int i = 0; i < 3; i++) {
+            CoverageRuntime.enterEdge(0);
+        }
+        SparseTrace trace = CoverageRuntime.stopTracing();
+
+        assertEquals(1, trace.size());
+        assertEquals(3, trace.countAt(0));
+    }
+
+    @Test
+    void inlineHitsSaturateInsteadOfWrapping() {
+        Object owner = new Object();
+        InlineCounters.noteProbeLimit(8);
+        assertTrue(InlineCounters.bind(owner));
+        for (int i = 0; i < 300; i++) {
+            InlineCounters.hit(3);
+        }
+        SparseTrace trace = InlineCounters.unbind(owner);
+
+        assertEquals(1, trace.size());
+        assertEquals(255, trace.countAt(0));
+    }
+
+    @Test
+    void innerScopesDoNotFinishTrace() {
+        CoverageRuntime.startTracing();
+        CoverageRuntime.startTracing();
+        CoverageRuntime.enterEdge(3);
+
+        assertNull(CoverageRuntime.stopTracing());
+        SparseTrace trace = CoverageRuntime.stopTracing();
+        assertNotNull(trace);
+        assertEquals(1, trace.size());
+    }
+
+    @Test
+    void reusedBufferOnlyReportsNewEntries() {
+        CoverageRuntime.startTracing();
+        CoverageRuntime.enterEdge(11);
+        CoverageRuntime.enterEdge(12);
+        SparseTrace first = CoverageRuntime.stopTracing();
+
+        CoverageRuntime.startTracing();
+        assertEquals(0, countNonZero(CoverageRuntime.currentTraceBitmap()));
+        CoverageRuntime.enterEdge(99);
+        SparseTrace second = CoverageRuntime.stopTracing();
+
+        assertEquals(2, first.size());
+        assertEquals(1, second.size());
+        assertEquals(99, second.indexAt(0));
     }
 
     @Test
@@ -46,6 +105,64 @@ class CoverageRuntimeTest {
         assertNotEquals(0x7F, secondSnapshot[0] & 0xFF);
     }
 
+    @Test
+    void propagatedWorkMergesIntoRequestTrace() throws Exception {
+        CoverageRuntime.startTracing();
+        CoverageRuntime.enterEdge(1);
+        Object context = CoverageRuntime.currentContext();
+        Thread worker =
+                new Thread(
+                        () -> {
+                            Object token = CoverageRuntime.attachContext(context);
+                            CoverageRuntime.enterEdge(1);
+                            CoverageRuntime.enterEdge(2);
+                            CoverageRuntime.detachContext(token);
+                        });
+        worker.start();
+        worker.join();
+        SparseTrace trace = CoverageRuntime.stopTracing();
+
+        byte[] dense = trace.toDense(3);
+        assertEquals(2, trace.size());
+        assertEquals(2, dense[1]);
+        assertEquals(1, dense[2]);
+    }
+
+    @Test
+    void propagatedWorkStopsRecordingWhenRequestFinishes() throws Exception {
+        CoverageRuntime.startTracing();
+        Object context = CoverageRuntime.currentContext();
+        CoverageRuntime.stopTracing();
+
+        assertNull(CoverageRuntime.attachContext(context));
+        assertNull(CoverageRuntime.currentContext());
+    }
+
+    @Test
+    void requestOnThreadCarryingPropagatedWorkKeepsItsOwnTrace() throws Exception {
+        CoverageRuntime.startTracing();
+        Object context = CoverageRuntime.currentContext();
+        SparseTrace[] nested = new SparseTrace[1];
+        Thread worker =
+                new Thread(
+                        () -> {
+                            Object token = CoverageRuntime.attachContext(context);
+                            CoverageRuntime.startTracing();
+                            CoverageRuntime.enterEdge(8);
+                            nested[0] = CoverageRuntime.stopTracing();
+                            CoverageRuntime.enterEdge(9);
+                            CoverageRuntime.detachContext(token);
+                        });
+        worker.start();
+        worker.join();
+        SparseTrace trace = CoverageRuntime.stopTracing();
+
+        assertEquals(1, nested[0].size());
+        assertEquals(8, nested[0].indexAt(0));
+        assertEquals(1, trace.size());
+        assertEquals(9, trace.indexAt(0));
+    }
+
     private static int countNonZero(byte[] bitmap) {
         if (bitmap == null) {
             return 0;
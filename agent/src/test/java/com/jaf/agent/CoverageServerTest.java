@@ -1,25 +1,53 @@
 package com.jaf.agent;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.junit.jupiter.api.Assumptions.assumeTrue;
 
+import com.google.protobuf.ByteString;
+import com.jaf.proto.CoverageProto.ConfigureRequest;
+import com.jaf.proto.CoverageProto.ConfigureResponse;
 import com.jaf.proto.CoverageProto.CoverageEvent;
+import com.jaf.proto.CoverageProto.CoverageEventBatch;
+import com.jaf.proto.CoverageProto.CoverageMode;
+import com.jaf.proto.CoverageProto.ExecuteRequest;
+import com.jaf.proto.CoverageProto.ExecuteResult;
+import com.jaf.proto.CoverageProto.ExecuteTarget;
+import com.jaf.proto.CoverageProto.FetchTraceRequest;
+import com.jaf.proto.CoverageProto.HealthRequest;
+import com.jaf.proto.CoverageProto.HealthResponse;
+import com.jaf.proto.CoverageProto.OverflowPolicy;
+import com.jaf.proto.CoverageProto.ResetCoverageRequest;
+import com.jaf.proto.CoverageProto.ResetCoverageResponse;
+import com.jaf.proto.CoverageProto.ScopeUpdate;
 import com.jaf.proto.CoverageProto.SubscribeRequest;
+import com.jaf.proto.CoverageProto.TraceEncoding;
 import com.jaf.proto.CoverageServiceGrpc;
 import io.grpc.ManagedChannel;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
 import io.grpc.netty.shaded.io.grpc.netty.NettyChannelBuilder;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
 import io.grpc.stub.StreamObserver;
 import io.grpc.netty.shaded.io.netty.channel.epoll.Epoll;
 import io.grpc.netty.shaded.io.netty.channel.epoll.EpollDomainSocketChannel;
 import io.grpc.netty.shaded.io.netty.channel.epoll.EpollEventLoopGroup;
 import io.grpc.netty.shaded.io.netty.channel.unix.DomainSocketAddress;
+import com.sun.net.httpserver.HttpServer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.atomic.AtomicReference;
 import java.util.concurrent.TimeUnit;
 import org.junit.jupiter.api.AfterEach;
@@ -45,6 +73,7 @@ class CoverageServerTest {
     void tearDown() {
         if (server != null) {
             server.stop();
+            assertFalse(ProbeSwitch.isArmed());
         }
         if (socketPath != null) {
             try {
@@ -90,6 +119,7 @@ class CoverageServerTest {
 
         Thread.sleep(100); // allow subscription to propagate
         assertTrue(server.awaitFirstClient(5, TimeUnit.SECONDS));
+        assertTrue(ProbeSwitch.isArmed(), "Probes should record while a fuzzer is subscribed");
         FakeServletRequest request = new FakeServletRequest("req-123");
         FuzzingRequestContext.updateFromServletRequest(request);
         CoverageRuntime.enterEdge(1234);
@@ -99,7 +129,8 @@ class CoverageServerTest {
         CoverageEvent event = observed.get();
         assertNotNull(event, "Expected coverage event payload");
         assertEquals("req-123", event.getRequestId());
-        assertEquals(CoverageRuntime.MAP_SIZE, event.getTraceBitmap().size());
+        assertTrue(event.getMapSize() > 1234, "Map size must cover the recorded probe");
+        assertEquals(event.getMapSize(), event.getTraceBitmap().size());
         assertTrue(hasNonZeroByte(event.getTraceBitmap().toByteArray()));
 
         channel.shutdownNow();
@@ -107,12 +138,561 @@ class CoverageServerTest {
         group.shutdownGracefully().syncUninterruptibly();
     }
 
+    @Test
+    void requestsBeforeFirstSubscriberAreNotTraced() {
+        assertFalse(server.hasClientConnected());
+        FakeServletRequest request = new FakeServletRequest("req-early");
+        FuzzingRequestContext.updateFromServletRequest(request);
+
+        assertFalse(
+                CoverageRuntime.isTracingActive(), "Requests must not be traced without a fuzzer");
+        FuzzingRequestContext.requestFinished(request);
+    }
+
+    @Test
+    void controlRpcsReportHealthAndReconfigureCoverage() throws Exception {
+        EpollEventLoopGroup group = new EpollEventLoopGroup();
+        ManagedChannel channel =
+                NettyChannelBuilder.forAddress(new DomainSocketAddress(socketPath.toString()))
+                        .channelType(EpollDomainSocketChannel.class)
+                        .eventLoopGroup(group)
+                        .usePlaintext()
+                        .build();
+        CoverageServiceGrpc.CoverageServiceBlockingStub stub =
+                CoverageServiceGrpc.newBlockingStub(channel);
+
+        HealthResponse health = stub.health(HealthRequest.getDefaultInstance());
+        assertFalse(health.getInstrumented());
+        assertEquals(CoverageMode.HIT_COUNTS, health.getMode());
+        assertEquals(CoverageRuntime.INLINE_PROBES, health.getInlineProbes());
+
+        ConfigureResponse configured =
+                stub.configure(
+                        ConfigureRequest.newBuilder().setMode(CoverageMode.EDGES_ONLY).build());
+        assertEquals(CoverageMode.EDGES_ONLY, configured.getMode());
+
+        StatusRuntimeException rescope =
+                assertThrows(
+                        StatusRuntimeException.class,
+                        () ->
+                                stub.configure(
+                                        ConfigureRequest.newBuilder()
+                                                .setScope(
+                                                        ScopeUpdate.newBuilder()
+                                                                .addInclude("com.example.*"))
+                                                .build()));
+        assertEquals(Status.Code.FAILED_PRECONDITION, rescope.getStatus().getCode());
+
+        CoverageRuntime.startTracing();
+        CoverageRuntime.enterEdge(77);
+        CoverageRuntime.stopTracing();
+        ResetCoverageResponse reset = stub.resetCoverage(ResetCoverageRequest.getDefaultInstance());
+        assertTrue(reset.getCoveredProbes() >= 1);
+        assertEquals(0, stub.health(HealthRequest.getDefaultInstance()).getCoveredProbes());
+
+        channel.shutdownNow();
+        channel.awaitTermination(3, TimeUnit.SECONDS);
+        group.shutdownGracefully().syncUninterruptibly();
+    }
+
+    @Test
+    void noveltyOnlySubscribersGetTracesOnlyForNewCoverage() throws Exception {
+        EpollEventLoopGroup group = new EpollEventLoopGroup();
+        ManagedChannel channel =
+                NettyChannelBuilder.forAddress(new DomainSocketAddress(socketPath.toString()))
+                        .channelType(EpollDomainSocketChannel.class)
+                        .eventLoopGroup(group)
+                        .usePlaintext()
+                        .build();
+        LinkedBlockingQueue<CoverageEvent> events = new LinkedBlockingQueue<>();
+        CoverageServiceGrpc.newStub(channel)
+                .subscribe(
+                        SubscribeRequest.newBuilder().setNoveltyOnly(true).build(),
+                        new StreamObserver<CoverageEvent>() {
+                            @Override
+                            public void onNext(CoverageEvent value) {
+                                events.add(value);
+                            }
+
+                            @Override
+                            public void onError(Throwable t) {}
+
+                            @Override
+                            public void onCompleted() {}
+                        });
+        assertTrue(server.awaitFirstClient(5, TimeUnit.SECONDS));
+        Thread.sleep(100); // allow subscription to propagate
+
+        // A rerun without the triage header leaves the virgin map alone.
+        FakeServletRequest rerun = new FakeServletRequest("req-rerun", false);
+        FuzzingRequestContext.updateFromServletRequest(rerun);
+        CoverageRuntime.enterEdge(321);
+        FuzzingRequestContext.requestFinished(rerun);
+        for (String requestId : new String[] {"req-first", "req-repeat"}) {
+            FakeServletRequest request = new FakeServletRequest(requestId, true);
+            FuzzingRequestContext.updateFromServletRequest(request);
+            CoverageRuntime.enterEdge(321);
+            FuzzingRequestContext.requestFinished(request);
+        }
+
+        CoverageEvent rerunEvent = events.poll(5, TimeUnit.SECONDS);
+        CoverageEvent first = events.poll(5, TimeUnit.SECONDS);
+        CoverageEvent repeat = events.poll(5, TimeUnit.SECONDS);
+        assertNotNull(repeat);
+        assertFalse(rerunEvent.getHasNewCoverage());
+        assertTrue(rerunEvent.getTraceBitmap().isEmpty());
+        assertTrue(first.getHasNewCoverage());
+        assertTrue(hasNonZeroByte(first.getTraceBitmap().toByteArray()));
+        assertFalse(repeat.getHasNewCoverage());
+        assertTrue(repeat.getTraceBitmap().isEmpty());
+
+        CoverageEvent fetched =
+                CoverageServiceGrpc.newBlockingStub(channel)
+                        .fetchTrace(
+                                FetchTraceRequest.newBuilder().setRequestId("req-repeat").build());
+        assertEquals(first.getTraceBitmap(), fetched.getTraceBitmap());
+
+        channel.shutdownNow();
+        channel.awaitTermination(3, TimeUnit.SECONDS);
+        group.shutdownGracefully().syncUninterruptibly();
+    }
+
+    @Test
+    void batchSubscribersGetEveryEventInOrder() throws Exception {
+        EpollEventLoopGroup group = new EpollEventLoopGroup();
+        ManagedChannel channel =
+                NettyChannelBuilder.forAddress(new DomainSocketAddress(socketPath.toString()))
+                        .channelType(EpollDomainSocketChannel.class)
+                        .eventLoopGroup(group)
+                        .usePlaintext()
+                        .build();
+        LinkedBlockingQueue<CoverageEvent> events = new LinkedBlockingQueue<>();
+        CoverageServiceGrpc.newStub(channel)
+                .subscribeBatches(
+                        SubscribeRequest.getDefaultInstance(),
+                        new StreamObserver<CoverageEventBatch>() {
+                            @Override
+                            public void onNext(CoverageEventBatch value) {
+                                events.addAll(value.getEventsList());
+                            }
+
+                            @Override
+                            public void onError(Throwable t) {}
+
+                            @Override
+                            public void onCompleted() {}
+                        });
+        assertTrue(server.awaitFirstClient(5, TimeUnit.SECONDS));
+        Thread.sleep(100); // allow subscription to propagate
+
+        int requests = CoverageServer.MAX_BATCH_EVENTS * 3;
+        for (int i = 0; i < requests; i++) {
+            FakeServletRequest request = new FakeServletRequest("req-" + i);
+            FuzzingRequestContext.updateFromServletRequest(request);
+            CoverageRuntime.enterEdge(100 + i);
+            FuzzingRequestContext.requestFinished(request);
+        }
+
+        for (int i = 0; i < requests; i++) {
+            CoverageEvent event = events.poll(5, TimeUnit.SECONDS);
+            assertNotNull(event, "missing event " + i);
+            assertEquals("req-" + i, event.getRequestId());
+            assertTrue(hasNonZeroByte(event.getTraceBitmap().toByteArray()));
+        }
+
+        channel.shutdownNow();
+        channel.awaitTermination(3, TimeUnit.SECONDS);
+        group.shutdownGracefully().syncUninterruptibly();
+    }
+
+    @Test
+    void fingerprintCacheSubscribersGetRepeatedTracesAsFingerprints() throws Exception {
+        EpollEventLoopGroup group = new EpollEventLoopGroup();
+        ManagedChannel channel =
+                NettyChannelBuilder.forAddress(new DomainSocketAddress(socketPath.toString()))
+                        .channelType(EpollDomainSocketChannel.class)
+                        .eventLoopGroup(group)
+                        .usePlaintext()
+                        .build();
+        LinkedBlockingQueue<CoverageEvent> events = new LinkedBlockingQueue<>();
+        CoverageServiceGrpc.newStub(channel)
+                .subscribe(
+                        SubscribeRequest.newBuilder().setFingerprintCacheSize(4).build(),
+                        new StreamObserver<CoverageEvent>() {
+                            @Override
+                            public void onNext(CoverageEvent value) {
+                                events.add(value);
+                            }
+
+                            @Override
+                            public void onError(Throwable t) {}
+
+                            @Override
+                            public void onCompleted() {}
+                        });
+        assertTrue(server.awaitFirstClient(5, TimeUnit.SECONDS));
+        Thread.sleep(100); // allow subscription to propagate
+
+        int[] probes = {321, 321, 322};
+        for (int i = 0; i < probes.length; i++) {
+            FakeServletRequest request = new FakeServletRequest("req-" + i);
+            FuzzingRequestContext.updateFromServletRequest(request);
+            CoverageRuntime.enterEdge(probes[i]);
+            FuzzingRequestContext.requestFinished(request);
+        }
+
+        CoverageEvent first = events.poll(5, TimeUnit.SECONDS);
+        CoverageEvent repeat = events.poll(5, TimeUnit.SECONDS);
+        CoverageEvent other = events.poll(5, TimeUnit.SECONDS);
+        assertNotNull(other);
+        assertFalse(first.getTraceCached());
+        assertTrue(hasNonZeroByte(first.getTraceBitmap().toByteArray()));
+        assertTrue(repeat.getTraceCached());
+        assertTrue(repeat.getTraceBitmap().isEmpty());
+        assertEquals(first.getTraceFingerprint(), repeat.getTraceFingerprint());
+        assertFalse(other.getTraceCached());
+        assertNotEquals(first.getTraceFingerprint(), other.getTraceFingerprint());
+
+        channel.shutdownNow();
+        channel.awaitTermination(3, TimeUnit.SECONDS);
+        group.shutdownGracefully().syncUninterruptibly();
+    }
+
+    @Test
+    void dropOldestBoundsTheQueueOfAStalledSubscriber() throws Exception {
+        EpollEventLoopGroup group = new EpollEventLoopGroup();
+        ManagedChannel channel =
+                NettyChannelBuilder.forAddress(new DomainSocketAddress(socketPath.toString()))
+                        .channelType(EpollDomainSocketChannel.class)
+                        .eventLoopGroup(group)
+                        .usePlaintext()
+                        .build();
+        // Never asks for a message, so the stream stops being ready once the transport is full.
+        CoverageServiceGrpc.newStub(channel)
+                .subscribeBatches(
+                        SubscribeRequest.newBuilder()
+                                .setOverflowPolicy(OverflowPolicy.DROP_OLDEST)
+                                .setMaxQueuedEvents(2)
+                                .build(),
+                        new ClientResponseObserver<SubscribeRequest, CoverageEventBatch>() {
+                            @Override
+                            public void beforeStart(
+                                    ClientCallStreamObserver<SubscribeRequest> requestStream) {
+                                requestStream.disableAutoRequestWithInitial(0);
+                            }
+
+                            @Override
+                            public void onNext(CoverageEventBatch value) {}
+
+                            @Override
+                            public void onError(Throwable t) {}
+
+                            @Override
+                            public void onCompleted() {}
+                        });
+        assertTrue(server.awaitFirstClient(5, TimeUnit.SECONDS));
+        Thread.sleep(100); // allow subscription to propagate
+
+        CoverageServiceGrpc.CoverageServiceBlockingStub control =
+                CoverageServiceGrpc.newBlockingStub(channel);
+        HealthResponse health = control.health(HealthRequest.getDefaultInstance());
+        for (int i = 0; i < 200 && health.getDroppedEvents() == 0; i++) {
+            // Each event carries a dense trace of about 50 KB.
+            FakeServletRequest request = new FakeServletRequest("req-" + i);
+            FuzzingRequestContext.updateFromServletRequest(request);
+            CoverageRuntime.enterEdge(50_000);
+            FuzzingRequestContext.requestFinished(request);
+            Thread.sleep(10);
+            health = control.health(HealthRequest.getDefaultInstance());
+        }
+
+        assertTrue(health.getDroppedEvents() > 0, "a stalled subscriber must lose events");
+        assertTrue(health.getQueuedEvents() <= 2);
+
+        channel.shutdownNow();
+        channel.awaitTermination(3, TimeUnit.SECONDS);
+        group.shutdownGracefully().syncUninterruptibly();
+    }
+
+    @Test
+    void droppingATraceAlsoDowngradesQueuedCacheHitsOnIt() throws Exception {
+        EpollEventLoopGroup group = new EpollEventLoopGroup();
+        ManagedChannel channel =
+                NettyChannelBuilder.forAddress(new DomainSocketAddress(socketPath.toString()))
+                        .channelType(EpollDomainSocketChannel.class)
+                        .eventLoopGroup(group)
+                        .usePlaintext()
+                        .build();
+        AtomicReference<ClientCallStreamObserver<SubscribeRequest>> stream =
+                new AtomicReference<>();
+        LinkedBlockingQueue<CoverageEvent> events = new LinkedBlockingQueue<>();
+        CoverageServiceGrpc.newStub(channel)
+                .subscribeBatches(
+                        SubscribeRequest.newBuilder()
+                                .setOverflowPolicy(OverflowPolicy.DROP_OLDEST)
+                                .setMaxQueuedEvents(2)
+                                .setFingerprintCacheSize(16)
+                                .build(),
+                        new ClientResponseObserver<SubscribeRequest, CoverageEventBatch>() {
+                            @Override
+                            public void beforeStart(
+                                    ClientCallStreamObserver<SubscribeRequest> requestStream) {
+                                requestStream.disableAutoRequestWithInitial(0);
+                                stream.set(requestStream);
+                            }
+
+                            @Override
+                            public void onNext(CoverageEventBatch value) {
+                                events.addAll(value.getEventsList());
+                            }
+
+                            @Override
+                            public void onError(Throwable t) {}
+
+                            @Override
+                            public void onCompleted() {}
+                        });
+        assertTrue(server.awaitFirstClient(5, TimeUnit.SECONDS));
+        Thread.sleep(100); // allow subscription to propagate
+
+        // Each trace is sent once with a dense bitmap of about 50 KB and once as a cache hit, until
+        // the stalled stream makes the agent drop some of them.
+        CoverageServiceGrpc.CoverageServiceBlockingStub control =
+                CoverageServiceGrpc.newBlockingStub(channel);
+        HealthResponse health = control.health(HealthRequest.getDefaultInstance());
+        String last = null;
+        for (int i = 0; i < 100 && health.getDowngradedEvents() < 2; i++) {
+            for (String kind : new String[] {"sent-", "cached-"}) {
+                last = "req-" + kind + i;
+                FakeServletRequest request = new FakeServletRequest(last);
+                FuzzingRequestContext.updateFromServletRequest(request);
+                CoverageRuntime.enterEdge(50_000 + i);
+                FuzzingRequestContext.requestFinished(request);
+            }
+            Thread.sleep(10);
+            health = control.health(HealthRequest.getDefaultInstance());
+        }
+        assertTrue(health.getDowngradedEvents() > 0, "a dropped trace must downgrade its hits");
+
+        stream.get().request(Integer.MAX_VALUE);
+        // Replays the subscriber's fingerprint cache; a cache hit must find its trace there.
+        Map<Long, Boolean> cached = new LinkedHashMap<>(16, 0.75f, true);
+        boolean fetched = false;
+        for (CoverageEvent event = null;
+                event == null || !event.getRequestId().equals(last); ) {
+            event = events.poll(5, TimeUnit.SECONDS);
+            assertNotNull(event);
+            if (event.getTraceCached()) {
+                assertNotNull(
+                        cached.get(event.getTraceFingerprint()),
+                        event.getRequestId() + " hits a trace the subscriber never got");
+            } else if (event.getTraceDropped()) {
+                CoverageEvent trace =
+                        control.fetchTrace(
+                                FetchTraceRequest.newBuilder()
+                                        .setRequestId(event.getRequestId())
+                                        .build());
+                assertTrue(hasNonZeroByte(trace.getTraceBitmap().toByteArray()));
+                fetched = true;
+            } else {
+                cached.put(event.getTraceFingerprint(), Boolean.TRUE);
+                if (cached.size() > 16) {
+                    cached.remove(cached.keySet().iterator().next());
+                }
+            }
+        }
+        assertTrue(fetched);
+
+        channel.shutdownNow();
+        channel.awaitTermination(3, TimeUnit.SECONDS);
+        group.shutdownGracefully().syncUninterruptibly();
+    }
+
+    @Test
+    void novelEventsPastTheQueueCapacityGoWithoutTheirTrace() throws Exception {
+        EpollEventLoopGroup group = new EpollEventLoopGroup();
+        ManagedChannel channel =
+                NettyChannelBuilder.forAddress(new DomainSocketAddress(socketPath.toString()))
+                        .channelType(EpollDomainSocketChannel.class)
+                        .eventLoopGroup(group)
+                        .usePlaintext()
+                        .build();
+        AtomicReference<ClientCallStreamObserver<SubscribeRequest>> stream =
+                new AtomicReference<>();
+        LinkedBlockingQueue<CoverageEvent> events = new LinkedBlockingQueue<>();
+        CoverageServiceGrpc.newStub(channel)
+                .subscribeBatches(
+                        SubscribeRequest.newBuilder()
+                                .setOverflowPolicy(OverflowPolicy.DROP_OLDEST)
+                                .setMaxQueuedEvents(2)
+                                .setNoveltyOnly(true)
+                                .build(),
+                        new ClientResponseObserver<SubscribeRequest, CoverageEventBatch>() {
+                            @Override
+                            public void beforeStart(
+                                    ClientCallStreamObserver<SubscribeRequest> requestStream) {
+                                requestStream.disableAutoRequestWithInitial(0);
+                                stream.set(requestStream);
+                            }
+
+                            @Override
+                            public void onNext(CoverageEventBatch value) {
+                                events.addAll(value.getEventsList());
+                            }
+
+                            @Override
+                            public void onError(Throwable t) {}
+
+                            @Override
+                            public void onCompleted() {}
+                        });
+        assertTrue(server.awaitFirstClient(5, TimeUnit.SECONDS));
+        Thread.sleep(100); // allow subscription to propagate
+
+        CoverageServiceGrpc.CoverageServiceBlockingStub control =
+                CoverageServiceGrpc.newBlockingStub(channel);
+        HealthResponse health = control.health(HealthRequest.getDefaultInstance());
+        String last = null;
+        for (int i = 0; i < 200 && health.getDowngradedEvents() == 0; i++) {
+            // Every request reaches a new edge, with a dense trace of about 50 KB.
+            last = "req-" + i;
+            FakeServletRequest request = new FakeServletRequest(last, true);
+            FuzzingRequestContext.updateFromServletRequest(request);
+            CoverageRuntime.enterEdge(50_000 + i);
+            FuzzingRequestContext.requestFinished(request);
+            Thread.sleep(10);
+            health = control.health(HealthRequest.getDefaultInstance());
+        }
+        assertTrue(health.getDowngradedEvents() > 0, "novel events must not queue their traces");
+        assertEquals(0, health.getDroppedEvents());
+
+        stream.get().request(Integer.MAX_VALUE);
+        boolean fetched = false;
+        for (CoverageEvent event = null;
+                event == null || !event.getRequestId().equals(last); ) {
+            event = events.poll(5, TimeUnit.SECONDS);
+            assertNotNull(event);
+            assertTrue(event.getHasNewCoverage());
+            if (event.getTraceDropped()) {
+                assertTrue(event.getTraceBitmap().isEmpty());
+                CoverageEvent trace =
+                        control.fetchTrace(
+                                FetchTraceRequest.newBuilder()
+                                        .setRequestId(event.getRequestId())
+                                        .build());
+                assertTrue(hasNonZeroByte(trace.getTraceBitmap().toByteArray()));
+                fetched = true;
+            }
+        }
+        assertTrue(fetched);
+
+        channel.shutdownNow();
+        channel.awaitTermination(3, TimeUnit.SECONDS);
+        group.shutdownGracefully().syncUninterruptibly();
+    }
+
+    @Test
+    void executeDeliversInputsAndAnswersWithResponseAndCoverage() throws Exception {
+        // Stands in for an instrumented servlet container.
+        HttpServer target =
+                HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        target.createContext(
+                "/echo",
+                exchange -> {
+                    FakeServletRequest request =
+                            new FakeServletRequest(
+                                    exchange.getRequestHeaders().getFirst("X-Fuzzing-Request-Id"));
+                    FuzzingRequestContext.updateFromServletRequest(request);
+                    CoverageRuntime.enterEdge(4321);
+                    FuzzingRequestContext.requestFinished(request);
+                    byte[] body = exchange.getRequestBody().readAllBytes();
+                    exchange.sendResponseHeaders(201, body.length);
+                    exchange.getResponseBody().write(body);
+                    exchange.close();
+                });
+        target.start();
+        EpollEventLoopGroup group = new EpollEventLoopGroup();
+        ManagedChannel channel =
+                NettyChannelBuilder.forAddress(new DomainSocketAddress(socketPath.toString()))
+                        .channelType(EpollDomainSocketChannel.class)
+                        .eventLoopGroup(group)
+                        .usePlaintext()
+                        .build();
+        LinkedBlockingQueue<ExecuteResult> results = new LinkedBlockingQueue<>();
+        CountDownLatch completed = new CountDownLatch(1);
+        StreamObserver<ExecuteRequest> inputs =
+                CoverageServiceGrpc.newStub(channel)
+                        .execute(
+                                new StreamObserver<ExecuteResult>() {
+                                    @Override
+                                    public void onNext(ExecuteResult value) {
+                                        results.add(value);
+                                    }
+
+                                    @Override
+                                    public void onError(Throwable t) {}
+
+                                    @Override
+                                    public void onCompleted() {
+                                        completed.countDown();
+                                    }
+                                });
+
+        inputs.onNext(
+                ExecuteRequest.newBuilder()
+                        .setSequence(7)
+                        .setBody(ByteString.copyFromUtf8("first"))
+                        .setTarget(
+                                ExecuteTarget.newBuilder()
+                                        .setPort(target.getAddress().getPort())
+                                        .setPath("/echo")
+                                        .addTraceEncodings(TraceEncoding.SPARSE))
+                        .build());
+        inputs.onNext(
+                ExecuteRequest.newBuilder()
+                        .setSequence(8)
+                        .setBody(ByteString.copyFromUtf8("second"))
+                        .build());
+
+        Map<Long, ExecuteResult> bySequence = new HashMap<>();
+        for (int i = 0; i < 2; i++) {
+            ExecuteResult result = results.poll(10, TimeUnit.SECONDS);
+            assertNotNull(result, "Missing execute result");
+            bySequence.put(result.getSequence(), result);
+        }
+        assertTrue(ProbeSwitch.isArmed(), "Probes should record while an Execute stream is open");
+        assertEquals("first", bySequence.get(7L).getResponseBody().toStringUtf8());
+        assertEquals("second", bySequence.get(8L).getResponseBody().toStringUtf8());
+        for (ExecuteResult result : bySequence.values()) {
+            assertEquals(201, result.getStatus());
+            assertEquals("", result.getError());
+            CoverageEvent coverage = result.getCoverage();
+            assertEquals(TraceEncoding.SPARSE, coverage.getTraceEncoding());
+            assertTrue(coverage.getMapSize() > 4321);
+            assertFalse(coverage.getTraceBitmap().isEmpty());
+        }
+
+        inputs.onCompleted();
+        assertTrue(completed.await(5, TimeUnit.SECONDS), "Agent should end the stream in turn");
+
+        target.stop(0);
+        channel.shutdownNow();
+        channel.awaitTermination(3, TimeUnit.SECONDS);
+        group.shutdownGracefully().syncUninterruptibly();
+    }
+
     private static final class FakeServletRequest {
         private final String headerValue;
+        private final boolean triage;
         private final Map<String, Object> attributes = new HashMap<>();
 
         FakeServletRequest(String headerValue) {
+            this(headerValue, false);
+        }
+
+        FakeServletRequest(String headerValue, boolean triage) {
             this.headerValue = headerValue;
+            this.triage = triage;
         }
 
         public Object getAttribute(String name) {
@@ -131,6 +711,9 @@ class CoverageServerTest {
             if ("X-Fuzzing-Request-Id".equals(name)) {
                 return headerValue;
             }
+            if ("X-Fuzzing-Triage".equals(name) && triage) {
+                return "1";
+            }
             return null;
         }
 
@@ -1,9 +1,15 @@
 package com.jaf.agent;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.lang.reflect.Method;
 import java.util.Set;
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.objectweb.asm.ClassWriter;
@@ -15,6 +21,12 @@ class EdgeCoverageTransformerTest {
     @BeforeEach
     void resetCoverage() {
         CoverageRuntime.reset();
+        ProbeSwitch.setArmed(true);
+    }
+
+    @AfterEach
+    void disarmProbes() {
+        ProbeSwitch.setArmed(false);
     }
 
     @Test
@@ -22,7 +34,142 @@ class EdgeCoverageTransformerTest {
         byte[] originalBytes = SampleClassFactory.createSampleClass();
 
         EdgeCoverageTransformer transformer =
-                new EdgeCoverageTransformer(Set.of("sample/Sample"));
+                new EdgeCoverageTransformer.Builder()
+                        .allowedClasses(Set.of("sample/Sample"))
+                        .build();
+        byte[] instrumented =
+                transformer.transform(
+                        null, null, "sample/Sample", null, null, originalBytes);
+
+        Class<?> sampleClass = new SampleClassLoader().define("sample.Sample", instrumented);
+        Object instance = sampleClass.getDeclaredConstructor().newInstance();
+        Method method = sampleClass.getDeclaredMethod("branch", int.class);
+
+        CoverageRuntime.startTracing();
+        method.invoke(instance, 5);
+        method.invoke(instance, -3);
+        SparseTrace trace = CoverageRuntime.stopTracing();
+
+        assertTrue(
+                trace.size() >= 2,
+                "Expected at least two coverage edges to be recorded");
+    }
+
+    @Test
+    void emittedProbesAreRecordedInSymbolTable() throws Exception {
+        ProbeIdAllocator probeIds = new ProbeIdAllocator(1024);
+        ProbeSymbolTable symbols = new ProbeSymbolTable(null);
+        EdgeCoverageTransformer transformer =
+                new EdgeCoverageTransformer.Builder()
+                        .allowedClasses(Set.of("sample/Sample"))
+                        .probeIds(probeIds)
+                        .inlineProbes(false)
+                        .symbols(symbols)
+                        .build();
+        transformer.transform(
+                null, null, "sample/Sample", null, null, SampleClassFactory.createSampleClass());
+
+        assertTrue(probeIds.allocatedCount() > 0);
+        for (int id = 0; id < probeIds.allocatedCount(); id++) {
+            ProbeSymbolTable.Symbol symbol = symbols.lookup(id);
+            assertNotNull(symbol, "Missing symbol for probe " + id);
+            assertEquals("sample/Sample", symbol.className);
+        }
+        ProbeSymbolTable.Symbol last = symbols.lookup(probeIds.allocatedCount() - 1);
+        assertEquals("straight", last.methodName);
+        assertEquals("(I)I", last.descriptor);
+        assertEquals(12, last.line);
+        assertTrue(last.blockIndex > 0, "Later probes in a method get higher block indices");
+    }
+
+    @Test
+    void retransformedClassKeepsItsProbeIds() throws Exception {
+        ProbeIdAllocator probeIds = new ProbeIdAllocator(1024);
+        EdgeCoverageTransformer transformer =
+                new EdgeCoverageTransformer.Builder()
+                        .allowedClasses(Set.of("sample/Sample"))
+                        .probeIds(probeIds)
+                        .inlineProbes(false)
+                        .symbols(new ProbeSymbolTable(null))
+                        .build();
+        byte[] original = SampleClassFactory.createSampleClass();
+        byte[] loaded = transformer.transform(null, null, "sample/Sample", null, null, original);
+        int probeCount = probeIds.allocatedCount();
+
+        // As after a re-scope: the JVM hands the original bytes back with the class object.
+        byte[] retransformed =
+                transformer.transform(null, null, "sample/Sample", Object.class, null, original);
+
+        assertArrayEquals(loaded, retransformed);
+        assertEquals(probeCount, probeIds.allocatedCount());
+    }
+
+    @Test
+    void branchPlacementSkipsStraightLineLabels() throws Exception {
+        ProbeSymbolTable labelSymbols = new ProbeSymbolTable(null);
+        ProbeIdAllocator labelIds = new ProbeIdAllocator(1024);
+        new EdgeCoverageTransformer.Builder()
+                .allowedClasses(Set.of("sample/Sample"))
+                .probeIds(labelIds)
+                .inlineProbes(false)
+                .symbols(labelSymbols)
+                .branchPlacement(false)
+                .build()
+                .transform(
+                        null, null, "sample/Sample", null, null,
+                        SampleClassFactory.createSampleClass());
+        ProbeSymbolTable branchSymbols = new ProbeSymbolTable(null);
+        ProbeIdAllocator branchIds = new ProbeIdAllocator(1024);
+        byte[] instrumented =
+                new EdgeCoverageTransformer.Builder()
+                        .allowedClasses(Set.of("sample/Sample"))
+                        .probeIds(branchIds)
+                        .inlineProbes(false)
+                        .symbols(branchSymbols)
+                        .branchPlacement(true)
+                        .build()
+                        .transform(
+                                null, null, "sample/Sample", null, null,
+                                SampleClassFactory.createSampleClass());
+
+        assertEquals(1, probesIn(branchSymbols, branchIds, "straight"));
+        assertTrue(probesIn(labelSymbols, labelIds, "straight") > 1);
+        assertTrue(branchIds.allocatedCount() < labelIds.allocatedCount());
+
+        Class<?> sampleClass = new SampleClassLoader().define("sample.Sample", instrumented);
+        Object instance = sampleClass.getDeclaredConstructor().newInstance();
+        Method method = sampleClass.getDeclaredMethod("branch", int.class);
+        CoverageRuntime.startTracing();
+        method.invoke(instance, 5);
+        SparseTrace positive = CoverageRuntime.stopTracing();
+        CoverageRuntime.startTracing();
+        method.invoke(instance, -3);
+        SparseTrace negative = CoverageRuntime.stopTracing();
+
+        assertTrue(positive.size() >= 2, "Expected entry and fall-through probes");
+        assertTrue(negative.size() >= 2, "Expected entry and branch target probes");
+        assertNotEquals(
+                positive.indexAt(1), negative.indexAt(1), "Both branch edges need distinct probes");
+    }
+
+    private static int probesIn(ProbeSymbolTable symbols, ProbeIdAllocator ids, String method) {
+        int count = 0;
+        for (int id = 0; id < ids.allocatedCount(); id++) {
+            if (method.equals(symbols.lookup(id).methodName)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Test
+    void disarmedProbesRecordNothing() throws Exception {
+        byte[] originalBytes = SampleClassFactory.createSampleClass();
+
+        EdgeCoverageTransformer transformer =
+                new EdgeCoverageTransformer.Builder()
+                        .allowedClasses(Set.of("sample/Sample"))
+                        .build();
         byte[] instrumented =
                 transformer.transform(
                         null, null, "sample/Sample", null, null, originalBytes);
@@ -31,23 +178,88 @@ class EdgeCoverageTransformerTest {
         Object instance = sampleClass.getDeclaredConstructor().newInstance();
         Method method = sampleClass.getDeclaredMethod("branch", int.class);
 
+        ProbeSwitch.setArmed(false);
         CoverageRuntime.startTracing();
         method.invoke(instance, 5);
+        SparseTrace disarmed = CoverageRuntime.stopTracing();
+
+        ProbeSwitch.setArmed(true);
+        CoverageRuntime.startTracing();
+        method.invoke(instance, 5);
+        SparseTrace armed = CoverageRuntime.stopTracing();
+
+        assertTrue(disarmed.isEmpty(), "Disarmed probes must not record edges");
+        assertFalse(armed.isEmpty(), "Re-armed probes must record edges again");
+    }
+
+    @Test
+    void inlineProbesRecordIntoBoundRegion() throws Exception {
+        byte[] originalBytes = SampleClassFactory.createSampleClass();
+
+        EdgeCoverageTransformer transformer =
+                new EdgeCoverageTransformer.Builder()
+                        .allowedClasses(Set.of("sample/Sample"))
+                        .inlineProbes(true)
+                        .build();
+        byte[] instrumented =
+                transformer.transform(
+                        null, null, "sample/Sample", null, null, originalBytes);
+
+        Class<?> sampleClass = new SampleClassLoader().define("sample.Sample", instrumented);
+        Object instance = sampleClass.getDeclaredConstructor().newInstance();
+        Method method = sampleClass.getDeclaredMethod("branch", int.class);
+
+        method.invoke(instance, 1);
+        Object owner = new Object();
+        assertTrue(InlineCounters.bind(owner));
+        method.invoke(instance, 5);
         method.invoke(instance, -3);
-        byte[] trace = CoverageRuntime.stopTracing();
+        SparseTrace trace = InlineCounters.unbind(owner);
 
         assertTrue(
-                countNonZero(trace) >= 2,
+                trace.size() >= 2,
                 "Expected at least two coverage edges to be recorded");
+        assertTrue(
+                InlineCounters.unbind(owner).isEmpty(), "Region should be released after unbind");
     }
 
-    private static final class SampleClassLoader extends ClassLoader {
+    @Test
+    void inlineCountersSaturateInsteadOfWrapping() throws Exception {
+        byte[] originalBytes = SampleClassFactory.createSampleClass();
+
+        EdgeCoverageTransformer transformer =
+                new EdgeCoverageTransformer.Builder()
+                        .allowedClasses(Set.of("sample/Sample"))
+                        .inlineProbes(true)
+                        .build();
+        byte[] instrumented =
+                transformer.transform(
+                        null, null, "sample/Sample", null, null, originalBytes);
+
+        Class<?> sampleClass = new SampleClassLoader().define("sample.Sample", instrumented);
+        Object instance = sampleClass.getDeclaredConstructor().newInstance();
+        Method method = sampleClass.getDeclaredMethod("branch", int.class);
+
+        Object owner = new Object();
+        assertTrue(InlineCounters.bind(owner));
+        for (int i = 0; i < 256; i++) {
+            method.invoke(instance, 5);
+        }
+        SparseTrace trace = InlineCounters.unbind(owner);
+
+        assertFalse(trace.isEmpty(), "Edges hit 256 times must not wrap to zero");
+        for (int i = 0; i < trace.size(); i++) {
+            assertEquals(255, trace.countAt(i));
+        }
+    }
+
+    static final class SampleClassLoader extends ClassLoader {
         Class<?> define(String name, byte[] bytecode) {
             return defineClass(name, bytecode, 0, bytecode.length);
         }
     }
 
-    private static final class SampleClassFactory {
+    static final class SampleClassFactory {
         private SampleClassFactory() {}
 
         static byte[] createSampleClass() {
@@ -62,6 +274,7 @@ class EdgeCoverageTransformerTest {
 
             generateConstructor(cw);
             generateBranchMethod(cw);
+            generateStraightLineMethod(cw);
 
             cw.visitEnd();
             return cw.toByteArray();
@@ -80,6 +293,26 @@ class EdgeCoverageTransformerTest {
             mv.visitEnd();
         }
 
+        private static void generateStraightLineMethod(ClassWriter cw) {
+            org.objectweb.asm.MethodVisitor mv =
+                    cw.visitMethod(
+                            Opcodes.ACC_PUBLIC, "straight", "(I)I", null, null);
+            mv.visitCode();
+            for (int line = 10; line < 13; line++) {
+                Label lineLabel = new Label();
+                mv.visitLabel(lineLabel);
+                mv.visitLineNumber(line, lineLabel);
+                mv.visitVarInsn(Opcodes.ILOAD, 1);
+                mv.visitInsn(Opcodes.ICONST_1);
+                mv.visitInsn(Opcodes.IADD);
+                mv.visitVarInsn(Opcodes.ISTORE, 1);
+            }
+            mv.visitVarInsn(Opcodes.ILOAD, 1);
+            mv.visitInsn(Opcodes.IRETURN);
+            mv.visitMaxs(2, 2);
+            mv.visitEnd();
+        }
+
         private static void generateBranchMethod(ClassWriter cw) {
             org.objectweb.asm.MethodVisitor mv =
                     cw.visitMethod(
@@ -109,17 +342,4 @@ class EdgeCoverageTransformerTest {
             mv.visitEnd();
         }
     }
-
-    private static int countNonZero(byte[] bitmap) {
-        if (bitmap == null) {
-            return 0;
-        }
-        int count = 0;
-        for (byte value : bitmap) {
-            if (value != 0) {
-                count++;
-            }
-        }
-        return count;
-    }
 }
@@ -0,0 +1,112 @@
+package com.jaf.agent;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.InputStream;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+class HintsTransformerTest {
+
+    @Test
+    void recordsOperandsOnlyWhileRecording() {
+        Hints.onStringCompare("input", "magic");
+        Hints.startRecording();
+        Hints.onStringCompare("input", "magic");
+        Hints.onStringCompare("same", "same");
+        Hints.onLongCompare(7, 1337);
+        Map<String, Integer> routes = new HashMap<>();
+        routes.put("admin", 1);
+        Hints.onMapGet(routes, "guest");
+        String[] comparisons = Hints.stopRecording();
+
+        assertArrayEquals(
+                new String[] {"input", "magic", "7", "1337", "guest", "admin"}, comparisons);
+        assertNull(Hints.stopRecording());
+    }
+
+    @Test
+    void stringSwitchReportsCaseLabels() throws Exception {
+        String name = Switcher.class.getName();
+        byte[] original;
+        try (InputStream in =
+                Switcher.class.getResourceAsStream(
+                        name.substring(name.lastIndexOf('.') + 1) + ".class")) {
+            original = in.readAllBytes();
+        }
+        byte[] instrumented =
+                new HintsTransformer()
+                        // Agent classes are never scanned, so present it under a neutral name.
+                        .transform(null, null, "sample/Switcher", null, null, original);
+        assertNotNull(instrumented, "Expected the string switch to be instrumented");
+
+        Class<?> switcher = new IsolatingClassLoader(name, instrumented).loadClass(name);
+        Method route = switcher.getDeclaredMethod("route", String.class);
+        route.setAccessible(true);
+        Hints.startRecording();
+        assertEquals(0, route.invoke(null, "zzz"));
+        String[] comparisons = Hints.stopRecording();
+
+        List<String> flattened = Arrays.asList(comparisons);
+        assertTrue(flattened.contains("alpha"), "Missing case label: " + flattened);
+        assertTrue(flattened.contains("bravo"), "Missing case label: " + flattened);
+    }
+
+    @Test
+    void classesWithoutStringSwitchAreLeftAlone() throws Exception {
+        try (InputStream in =
+                HintsTransformerTest.class.getResourceAsStream("HintsTransformerTest.class")) {
+            assertNull(
+                    new HintsTransformer()
+                            .transform(
+                                    null, null, "sample/Plain", null, null,
+                                    in.readAllBytes()));
+        }
+    }
+
+    static final class Switcher {
+        static int route(String command) {
+            switch (command) {
+                case "alpha":
+                    return 1;
+                case "bravo":
+                    return 2;
+                default:
+                    return 0;
+            }
+        }
+    }
+
+    private static final class IsolatingClassLoader extends ClassLoader {
+        private final String name;
+        private final byte[] bytecode;
+
+        IsolatingClassLoader(String name, byte[] bytecode) {
+            super(HintsTransformerTest.class.getClassLoader());
+            this.name = name;
+            this.bytecode = bytecode;
+        }
+
+        @Override
+        protected Class<?> loadClass(String className, boolean resolve)
+                throws ClassNotFoundException {
+            if (name.equals(className)) {
+                synchronized (getClassLoadingLock(className)) {
+                    Class<?> loaded = findLoadedClass(className);
+                    return loaded != null
+                            ? loaded
+                            : defineClass(className, bytecode, 0, bytecode.length);
+                }
+            }
+            return super.loadClass(className, resolve);
+        }
+    }
+}
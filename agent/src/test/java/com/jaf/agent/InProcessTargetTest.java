@@ -0,0 +1,118 @@
+package com.jaf.agent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.stream.Stream;
+import javax.tools.ToolProvider;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class InProcessTargetTest {
+    private static final String HARNESS =
+            "package sample; public class Harness {"
+                    + " static boolean initialized;"
+                    + " public static void fuzzerInitialize() { initialized = true; }"
+                    + " public static void fuzzerTestOneInput(byte[] input) {"
+                    + " if (!initialized) { throw new IllegalStateException(); }"
+                    + " String text = new String(input);"
+                    + " switch (text) {"
+                    + " case \"magic\": throw new IllegalArgumentException(\"found\");"
+                    + " default: }"
+                    + " if (text.length() > 3) { text = text.trim(); }"
+                    + " else { text = text.strip(); } } }";
+
+    private Path classesDir;
+
+    @BeforeEach
+    void compileHarness() throws IOException {
+        classesDir = Files.createTempDirectory("jaf-in-process");
+        Path source = classesDir.resolve("src/sample/Harness.java");
+        Files.createDirectories(source.getParent());
+        Files.writeString(source, HARNESS);
+        int status =
+                ToolProvider.getSystemJavaCompiler()
+                        .run(null, null, null, "-d", classesDir.toString(), source.toString());
+        assertEquals(0, status);
+    }
+
+    @AfterEach
+    void deleteClasses() throws IOException {
+        try (Stream<Path> paths = Files.walk(classesDir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Test
+    void executeTracesEachInputOnItsOwn() throws Exception {
+        try (InProcessTarget target =
+                InProcessTarget.load(List.of(classesDir), "sample.Harness", List.of(), null)) {
+            InProcessTarget.Outcome shortInput = target.execute(bytes("ab"));
+            InProcessTarget.Outcome longInput = target.execute(bytes("abcdef"));
+            InProcessTarget.Outcome shortAgain = target.execute(bytes("ab"));
+
+            assertFalse(shortInput.crashed());
+            assertFalse(shortInput.trace().isEmpty());
+            assertNotEquals(shortInput.trace().fingerprint(), longInput.trace().fingerprint());
+            assertEquals(shortInput.trace().fingerprint(), shortAgain.trace().fingerprint());
+            assertTrue(target.mapSize() > shortInput.trace().maxIndex());
+        }
+    }
+
+    @Test
+    void exceptionFromTheHarnessIsACrashWithItsComparisons() throws Exception {
+        try (InProcessTarget target =
+                InProcessTarget.load(List.of(classesDir), "sample.Harness", List.of(), null)) {
+            InProcessTarget.Outcome miss = target.execute(bytes("magix"));
+            InProcessTarget.Outcome hit = target.execute(bytes("magic"));
+
+            assertFalse(miss.crashed());
+            assertTrue(Arrays.asList(miss.comparisons()).contains("magic"));
+            assertTrue(hit.crashed());
+            assertTrue(hit.failure() instanceof IllegalArgumentException);
+        }
+    }
+
+    @Test
+    void agentClassCacheIsLeftAlone() throws Exception {
+        Path cacheDir = classesDir.resolve("class-cache");
+        String previous =
+                System.setProperty(InstrumentedClassCache.DIR_PROPERTY, cacheDir.toString());
+        try (InProcessTarget target =
+                InProcessTarget.load(List.of(classesDir), "sample.Harness", List.of(), null)) {
+            assertFalse(target.execute(bytes("abcd")).trace().isEmpty());
+        } finally {
+            if (previous == null) {
+                System.clearProperty(InstrumentedClassCache.DIR_PROPERTY);
+            } else {
+                System.setProperty(InstrumentedClassCache.DIR_PROPERTY, previous);
+            }
+        }
+        assertFalse(Files.exists(cacheDir));
+    }
+
+    @Test
+    void missingHarnessIsRejected() {
+        assertThrows(
+                ClassNotFoundException.class,
+                () -> InProcessTarget.load(List.of(classesDir), "sample.Missing", List.of(), null));
+        assertFalse(ProbeSwitch.isArmed());
+    }
+
+    private static byte[] bytes(String text) {
+        return text.getBytes(StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,112 @@
+package com.jaf.agent;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Comparator;
+import java.util.Set;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class InstrumentedClassCacheTest {
+    private Path cacheDir;
+
+    @BeforeEach
+    void createCacheDir() throws IOException {
+        cacheDir = Files.createTempDirectory("jaf-class-cache");
+    }
+
+    @AfterEach
+    void deleteCacheDir() throws IOException {
+        try (Stream<Path> paths = Files.walk(cacheDir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Test
+    void cachedClassKeepsItsProbeIdsAcrossRestarts() throws Exception {
+        ProbeIdAllocator firstIds = new ProbeIdAllocator(1024);
+        InstrumentedClassCache firstCache =
+                InstrumentedClassCache.open(cacheDir, firstIds, "config");
+        byte[] first = instrument(firstCache, firstIds, new ProbeSymbolTable(null));
+        int probeCount = firstIds.allocatedCount();
+        firstCache.close();
+
+        ProbeIdAllocator secondIds = new ProbeIdAllocator(1024);
+        InstrumentedClassCache secondCache =
+                InstrumentedClassCache.open(cacheDir, secondIds, "config");
+        ProbeSymbolTable secondSymbols = new ProbeSymbolTable(null);
+        byte[] second = instrument(secondCache, secondIds, secondSymbols);
+        secondCache.close();
+
+        assertArrayEquals(first, second);
+        // Fresh allocations continue above the cached IDs; the hit itself allocated nothing.
+        assertEquals(probeCount, secondIds.allocatedCount());
+        ProbeSymbolTable.Symbol symbol = secondSymbols.lookup(probeCount - 1);
+        assertNotNull(symbol);
+        assertEquals("sample/Sample", symbol.className);
+    }
+
+    @Test
+    void configurationChangeMissesTheCache() throws Exception {
+        ProbeIdAllocator firstIds = new ProbeIdAllocator(1024);
+        InstrumentedClassCache firstCache =
+                InstrumentedClassCache.open(cacheDir, firstIds, "config");
+        instrument(firstCache, firstIds, new ProbeSymbolTable(null));
+        int probeCount = firstIds.allocatedCount();
+        firstCache.close();
+
+        ProbeIdAllocator secondIds = new ProbeIdAllocator(1024);
+        InstrumentedClassCache secondCache =
+                InstrumentedClassCache.open(cacheDir, secondIds, "other config");
+        instrument(secondCache, secondIds, new ProbeSymbolTable(null));
+        secondCache.close();
+
+        assertTrue(secondIds.allocatedCount() >= 2 * probeCount);
+    }
+
+    @Test
+    void missingDirectoryIsCreatedPrivate() throws Exception {
+        Path dir = cacheDir.resolve("nested");
+        InstrumentedClassCache.open(dir, new ProbeIdAllocator(1024), "config").close();
+
+        assertEquals(
+                "rwx------", PosixFilePermissions.toString(Files.getPosixFilePermissions(dir)));
+    }
+
+    @Test
+    void directoryWritableByOthersIsRejected() throws Exception {
+        Files.setPosixFilePermissions(cacheDir, PosixFilePermissions.fromString("rwxrwxrwx"));
+
+        assertThrows(
+                IOException.class,
+                () -> InstrumentedClassCache.open(cacheDir, new ProbeIdAllocator(1024), "config"));
+    }
+
+    private static byte[] instrument(
+            InstrumentedClassCache cache, ProbeIdAllocator probeIds, ProbeSymbolTable symbols)
+            throws Exception {
+        return new EdgeCoverageTransformer.Builder()
+                .allowedClasses(Set.of("sample/Sample"))
+                .probeIds(probeIds)
+                .inlineProbes(false)
+                .symbols(symbols)
+                .branchPlacement(false)
+                .cache(cache)
+                .build()
+                .transform(
+                        null, null, "sample/Sample", null, null,
+                        EdgeCoverageTransformerTest.SampleClassFactory.createSampleClass());
+    }
+}
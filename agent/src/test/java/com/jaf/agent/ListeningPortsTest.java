@@ -0,0 +1,48 @@
+package com.jaf.agent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assumptions.assumeTrue;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import org.junit.jupiter.api.Test;
+
+class ListeningPortsTest {
+
+    @Test
+    void matchesListeningSocketsToOwnDescriptors() throws Exception {
+        Path proc = Files.createTempDirectory("jaf-proc");
+        Files.createDirectories(proc.resolve("net"));
+        Files.createDirectories(proc.resolve("fd"));
+        Files.writeString(
+                proc.resolve("net/tcp"),
+                String.join(
+                        "\n",
+                        "  sl  local_address rem_address   st tx_queue rx_queue ... uid timeout inode",
+                        "   0: 0100007F:1F90 00000000:0000 0A 00000000:00000000 00:00000000 00000000"
+                                + "  1000 0 111 1",
+                        "   1: 0100007F:1F91 00000000:0000 0A 00000000:00000000 00:00000000 00000000"
+                                + "  1000 0 222 1",
+                        "   2: 0100007F:1F92 0100007F:C350 01 00000000:00000000 00:00000000 00000000"
+                                + "  1000 0 333 1"),
+                StandardCharsets.US_ASCII);
+        Files.createSymbolicLink(proc.resolve("fd/3"), Path.of("socket:[111]"));
+        Files.createSymbolicLink(proc.resolve("fd/4"), Path.of("socket:[333]"));
+        Files.createSymbolicLink(proc.resolve("fd/5"), Path.of("/dev/null"));
+
+        assertEquals(List.of(8080), ListeningPorts.current(proc));
+    }
+
+    @Test
+    void findsOwnServerSocket() throws Exception {
+        assumeTrue(Files.isReadable(Path.of("/proc/self/net/tcp")), "Linux /proc required");
+        try (ServerSocket socket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+            assertTrue(ListeningPorts.current().contains(socket.getLocalPort()));
+        }
+    }
+}
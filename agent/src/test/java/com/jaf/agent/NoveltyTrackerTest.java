@@ -0,0 +1,27 @@
+package com.jaf.agent;
+
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+class NoveltyTrackerTest {
+
+    @Test
+    void reportsNewEdgesAndNewHitCountBuckets() {
+        NoveltyTracker tracker = new NoveltyTracker();
+
+        assertTrue(tracker.update(trace(100, 1)));
+        assertFalse(tracker.update(trace(100, 1)));
+        assertTrue(tracker.update(trace(100, 4)), "4 hits is a new bucket");
+        assertFalse(tracker.update(trace(100, 7)), "7 hits shares the 4-7 bucket");
+        assertTrue(tracker.update(trace(5000, 1)), "a higher probe grows the map");
+        assertFalse(tracker.update(SparseTrace.empty()));
+    }
+
+    private static SparseTrace trace(int index, int hits) {
+        byte[] counters = new byte[index + 1];
+        counters[index] = (byte) hits;
+        return SparseTrace.capture(new int[] {index}, 1, counters);
+    }
+}
@@ -0,0 +1,58 @@
+package com.jaf.agent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.Test;
+
+class ProbeIdAllocatorTest {
+
+    @Test
+    void concurrentAllocationsAreDenseAndUnique() throws Exception {
+        ProbeIdAllocator allocator = new ProbeIdAllocator(1 << 16);
+        Set<Integer> seen = ConcurrentHashMap.newKeySet();
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for (int t = 0; t < 8; t++) {
+            Thread thread =
+                    new Thread(
+                            () -> {
+                                try {
+                                    start.await();
+                                } catch (InterruptedException e) {
+                                    return;
+                                }
+                                for (int i = 0; i < 1000; i++) {
+                                    seen.add(allocator.allocate());
+                                }
+                            });
+            threads.add(thread);
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals(8000, seen.size());
+        assertEquals(8000, allocator.allocatedCount());
+        for (int id = 0; id < 8000; id++) {
+            assertTrue(seen.contains(id), "Missing probe ID " + id);
+        }
+    }
+
+    @Test
+    void wrapsAroundOnceCapacityIsExhausted() {
+        ProbeIdAllocator allocator = new ProbeIdAllocator(2);
+
+        assertEquals(0, allocator.allocate());
+        assertEquals(1, allocator.allocate());
+        assertEquals(0, allocator.allocate());
+        assertEquals(2, allocator.allocatedCount());
+    }
+}
@@ -0,0 +1,116 @@
+package com.jaf.agent;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import org.junit.jupiter.api.Test;
+
+class ProbeSymbolTableTest {
+
+    @Test
+    void symbolsRoundTripThroughFile() throws Exception {
+        Path file = Files.createTempFile("jaf-probes", ".bin");
+        Files.delete(file);
+        try {
+            ProbeSymbolTable table = ProbeSymbolTable.open(file);
+            table.record(0, "a/Handler", "handle", "(I)V", 0, 12);
+            table.record(1, "a/Handler", "handle", "(I)V", 1, 14);
+            table.record(5000, "b/Parser", "parse", "()V", 0, 0);
+            table.flush();
+
+            ProbeSymbolTable loaded = ProbeSymbolTable.load(file);
+            ProbeSymbolTable.Symbol symbol = loaded.lookup(1);
+            assertEquals("a/Handler", symbol.className);
+            assertEquals("handle", symbol.methodName);
+            assertEquals("(I)V", symbol.descriptor);
+            assertEquals(1, symbol.blockIndex);
+            assertEquals(14, symbol.line);
+            assertEquals("b/Parser", loaded.lookup(5000).className);
+            assertNull(loaded.lookup(2));
+            assertNull(loaded.lookup(1 << 24));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void reopeningAppendsToTheExistingTable() throws Exception {
+        Path file = Files.createTempFile("jaf-probes", ".bin");
+        Files.delete(file);
+        try {
+            ProbeSymbolTable first = ProbeSymbolTable.open(file);
+            first.record(0, "a/Handler", "handle", "(I)V", 0, 12);
+            first.record(1, "a/Handler", "handle", "(I)V", 1, 14);
+            first.flush();
+            ProbeSymbolTable.Symbol kept = first.lookup(0);
+            first.close();
+
+            // A restarted target sees the earlier probes and overrides the IDs it hands out again.
+            ProbeSymbolTable second = ProbeSymbolTable.open(file);
+            assertEquals("handle", second.lookup(0).methodName);
+            second.record(1, "b/Parser", "parse", "()V", 0, 3);
+            second.record(2, "a/Handler", "other", "(I)V", 0, 20);
+            second.flush();
+            second.close();
+
+            ProbeSymbolTable loaded = ProbeSymbolTable.load(file);
+            assertEquals(kept.line, loaded.lookup(0).line);
+            assertEquals("b/Parser", loaded.lookup(1).className);
+            assertEquals("other", loaded.lookup(2).methodName);
+            assertEquals("a/Handler", loaded.lookup(2).className);
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void truncatedLastRecordIsDroppedOnReopen() throws Exception {
+        Path file = Files.createTempFile("jaf-probes", ".bin");
+        Files.delete(file);
+        try {
+            ProbeSymbolTable table = ProbeSymbolTable.open(file);
+            table.record(0, "a/Handler", "handle", "(I)V", 0, 12);
+            table.flush();
+            table.close();
+            byte[] intact = Files.readAllBytes(file);
+            // A probe record cut off after its tag and part of its probe ID.
+            byte[] torn = Arrays.copyOf(intact, intact.length + 3);
+            torn[intact.length] = 2;
+            Files.write(file, torn);
+
+            ProbeSymbolTable reopened = ProbeSymbolTable.open(file);
+            reopened.close();
+            assertArrayEquals(intact, Files.readAllBytes(file));
+        } finally {
+            Files.deleteIfExists(file);
+        }
+    }
+
+    @Test
+    void foreignFilesAndLinksAreLeftAlone() throws Exception {
+        Path dir = Files.createTempDirectory("jaf-probes");
+        Path foreign = dir.resolve("notes.txt");
+        Path link = dir.resolve("probes.bin");
+        try {
+            byte[] text = "not a probe table".getBytes(StandardCharsets.UTF_8);
+            Files.write(foreign, text);
+            assertThrows(IOException.class, () -> ProbeSymbolTable.open(foreign));
+            assertArrayEquals(text, Files.readAllBytes(foreign));
+
+            Files.createSymbolicLink(link, foreign);
+            assertThrows(IOException.class, () -> ProbeSymbolTable.open(link));
+            assertArrayEquals(text, Files.readAllBytes(foreign));
+        } finally {
+            Files.deleteIfExists(link);
+            Files.deleteIfExists(foreign);
+            Files.deleteIfExists(dir);
+        }
+    }
+}
@@ -0,0 +1,147 @@
+package com.jaf.agent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Stream;
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class ServletHarnessTest {
+    /** Just enough of the jakarta servlet API for the servlets below, stream methods included. */
+    private static final Map<String, String> SOURCES =
+            Map.of(
+                    "jakarta/servlet/Servlet.java",
+                    "package jakarta.servlet; public interface Servlet {"
+                            + " void service(ServletRequest req, ServletResponse res)"
+                            + " throws java.io.IOException; }",
+                    "jakarta/servlet/ServletRequest.java",
+                    "package jakarta.servlet; public interface ServletRequest {"
+                            + " ServletInputStream getInputStream(); String getParameter(String n);"
+                            + " int getContentLength(); }",
+                    "jakarta/servlet/ServletResponse.java",
+                    "package jakarta.servlet; public interface ServletResponse {"
+                            + " ServletOutputStream getOutputStream();"
+                            + " void setContentType(String t); }",
+                    "jakarta/servlet/ReadListener.java",
+                    "package jakarta.servlet; public interface ReadListener {}",
+                    "jakarta/servlet/ServletInputStream.java",
+                    "package jakarta.servlet; public abstract class ServletInputStream"
+                            + " extends java.io.InputStream { public abstract boolean isFinished();"
+                            + " public abstract boolean isReady();"
+                            + " public abstract void setReadListener(ReadListener l); }",
+                    "jakarta/servlet/ServletOutputStream.java",
+                    "package jakarta.servlet; public abstract class ServletOutputStream"
+                            + " extends java.io.OutputStream {"
+                            + " public abstract boolean isReady(); }",
+                    "jakarta/servlet/http/HttpServletRequest.java",
+                    "package jakarta.servlet.http; public interface HttpServletRequest"
+                            + " extends jakarta.servlet.ServletRequest { String getMethod();"
+                            + " String getRequestURI(); String getHeader(String n); }",
+                    "jakarta/servlet/http/HttpServletResponse.java",
+                    "package jakarta.servlet.http; public interface HttpServletResponse"
+                            + " extends jakarta.servlet.ServletResponse { void setStatus(int s); }",
+                    "sample/EchoServlet.java",
+                    "package sample; import jakarta.servlet.*; import jakarta.servlet.http.*;"
+                            + " public class EchoServlet implements Servlet {"
+                            + " public void service(ServletRequest req, ServletResponse res)"
+                            + " throws java.io.IOException {"
+                            + " HttpServletRequest http = (HttpServletRequest) req;"
+                            + " ServletInputStream in = req.getInputStream();"
+                            + " String body = new String(in.readAllBytes());"
+                            + " ((HttpServletResponse) res).setStatus(201);"
+                            + " res.getOutputStream().write((http.getMethod() + ' '"
+                            + " + http.getRequestURI() + ' ' + req.getParameter(\"q\") + ' '"
+                            + " + http.getHeader(\"x-fuzzing-request-id\") + ' ' + body + ' '"
+                            + " + req.getContentLength() + ' ' + in.isFinished()).getBytes()); } }",
+                    "sample/FailingServlet.java",
+                    "package sample; public class FailingServlet"
+                            + " implements jakarta.servlet.Servlet {"
+                            + " public void service(jakarta.servlet.ServletRequest req,"
+                            + " jakarta.servlet.ServletResponse res) {"
+                            + " throw new IllegalArgumentException(\"bad input\"); } }");
+
+    private Path classesDir;
+    private URLClassLoader loader;
+
+    @BeforeEach
+    void compileServlets() throws IOException {
+        classesDir = Files.createTempDirectory("jaf-servlet-harness");
+        List<String> arguments = new ArrayList<>(List.of("-d", classesDir.toString()));
+        for (Map.Entry<String, String> source : SOURCES.entrySet()) {
+            Path file = classesDir.resolve("src").resolve(source.getKey());
+            Files.createDirectories(file.getParent());
+            Files.writeString(file, source.getValue());
+            arguments.add(file.toString());
+        }
+        JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+        assertEquals(0, compiler.run(null, null, null, arguments.toArray(new String[0])));
+        loader = new URLClassLoader(new URL[] {classesDir.toUri().toURL()});
+    }
+
+    @AfterEach
+    void deleteClasses() throws IOException {
+        loader.close();
+        try (Stream<Path> paths = Files.walk(classesDir)) {
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator) {
+                Files.deleteIfExists(path);
+            }
+        }
+    }
+
+    @Test
+    void dispatchRunsTheServletWithTheInputAndRequestId() throws Exception {
+        ServletRegistry.noteServlet(newServlet("sample.EchoServlet"));
+
+        ServletHarness.Response response =
+                ServletHarness.forServlet("EchoServlet")
+                        .dispatch(
+                                "POST",
+                                "/api/check?q=a%20b",
+                                "application/json",
+                                "x1",
+                                "{}".getBytes(StandardCharsets.UTF_8),
+                                8080);
+
+        assertEquals(201, response.status());
+        assertEquals(
+                "POST /api/check a b x1 {} 2 true",
+                new String(response.body(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    void exceptionFromTheServletIsAnInternalServerError() throws Exception {
+        ServletRegistry.noteServlet(newServlet("sample.FailingServlet"));
+
+        ServletHarness.Response response =
+                ServletHarness.forServlet("sample.FailingServlet")
+                        .dispatch("POST", "/", null, "x2", new byte[0], 8080);
+
+        assertEquals(500, response.status());
+        assertTrue(new String(response.body(), StandardCharsets.UTF_8).contains("bad input"));
+    }
+
+    @Test
+    void unknownServletClassIsRejected() {
+        assertThrows(
+                IllegalStateException.class, () -> ServletHarness.forServlet("sample.Missing"));
+    }
+
+    private Object newServlet(String className) throws ReflectiveOperationException {
+        return loader.loadClass(className).getConstructor().newInstance();
+    }
+}
@@ -0,0 +1,78 @@
+package com.jaf.agent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import org.junit.jupiter.api.Test;
+
+class SharedCoverageWriterTest {
+
+    @Test
+    void publishesTraceIntoFreeSlot() throws Exception {
+        Path path = createRegion(1, 4);
+        try (SharedCoverageWriter writer = SharedCoverageWriter.open(path)) {
+            CoverageRuntime.startTracing();
+            CoverageRuntime.enterEdge(9);
+            CoverageRuntime.enterEdge(9);
+            SparseTrace trace = CoverageRuntime.stopTracing();
+
+            assertEquals(0, writer.publish(trace, 16));
+            assertEquals(-1, writer.publish(trace, 16), "the only slot is still READY");
+
+            ByteBuffer raw = ByteBuffer.wrap(Files.readAllBytes(path)).order(ByteOrder.LITTLE_ENDIAN);
+            int base = SharedCoverageWriter.HEADER_SIZE;
+            assertEquals(SharedCoverageWriter.STATE_READY, raw.getInt(base));
+            assertEquals(1, raw.getInt(base + 4));
+            assertEquals(16, raw.getInt(base + 8));
+            int indexBase = base + SharedCoverageWriter.SLOT_HEADER_SIZE;
+            assertEquals(9, raw.getInt(indexBase));
+            assertEquals(2, raw.get(indexBase + 4 * 4));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test
+    void rejectsRegionWithoutHeader() throws Exception {
+        Path path = Files.createTempFile("jaf-shm", ".map");
+        try {
+            Files.write(path, new byte[SharedCoverageWriter.HEADER_SIZE]);
+            assertThrows(IOException.class, () -> SharedCoverageWriter.open(path));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    @Test
+    void rejectsCapacityWhoseSlotsDoNotFit() throws Exception {
+        // 858993460 * 5 wraps to 4 in int arithmetic, which made one slot look 24 bytes long.
+        Path path = writeRegion(SharedCoverageWriter.HEADER_SIZE + 24, 1, 858993460);
+        try {
+            assertThrows(IOException.class, () -> SharedCoverageWriter.open(path));
+        } finally {
+            Files.deleteIfExists(path);
+        }
+    }
+
+    private static Path createRegion(int slots, int capacity) throws IOException {
+        long size =
+                SharedCoverageWriter.HEADER_SIZE + slots * SharedCoverageWriter.slotStride(capacity);
+        return writeRegion((int) size, slots, capacity);
+    }
+
+    private static Path writeRegion(int size, int slots, int capacity) throws IOException {
+        Path path = Files.createTempFile("jaf-shm", ".map");
+        ByteBuffer header = ByteBuffer.allocate(size).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0, SharedCoverageWriter.MAGIC);
+        header.putInt(4, SharedCoverageWriter.VERSION);
+        header.putInt(8, slots);
+        header.putInt(12, capacity);
+        Files.write(path, header.array());
+        return path;
+    }
+}
@@ -0,0 +1,25 @@
+package com.jaf.agent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import org.junit.jupiter.api.Test;
+
+class SparseTraceTest {
+
+    @Test
+    void fingerprintDependsOnEntriesButNotOnHitOrder() {
+        byte[] counters = new byte[64];
+        counters[3] = 1;
+        counters[40] = 2;
+        SparseTrace trace = SparseTrace.capture(new int[] {3, 40}, 2, counters);
+        SparseTrace reordered = SparseTrace.capture(new int[] {40, 3}, 2, counters);
+        SparseTrace prefix = SparseTrace.capture(new int[] {3, 40}, 1, counters);
+
+        assertEquals(trace.fingerprint(), reordered.fingerprint());
+        assertNotEquals(trace.fingerprint(), prefix.fingerprint());
+        counters[40] = 3;
+        SparseTrace moreHits = SparseTrace.capture(new int[] {3, 40}, 2, counters);
+        assertNotEquals(trace.fingerprint(), moreHits.fingerprint());
+    }
+}
@@ -0,0 +1,58 @@
+package com.jaf.agent;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import com.jaf.proto.CoverageProto.TraceEncoding;
+import java.util.EnumSet;
+import java.util.Set;
+import org.junit.jupiter.api.Test;
+
+class TraceEncoderTest {
+    private static final Set<TraceEncoding> ALL = EnumSet.allOf(TraceEncoding.class);
+
+    @Test
+    void scatteredTracesAreSentAsSortedIndexGaps() {
+        // First-hit order differs from index order; 300 needs a two-byte varint gap.
+        SparseTrace trace = trace(new int[] {300, 2}, new int[] {7, 1});
+
+        TraceEncoder.Encoded encoded = TraceEncoder.encode(trace, 65_536, ALL);
+
+        assertEquals(TraceEncoding.SPARSE, encoded.encoding());
+        assertArrayEquals(
+                new byte[] {2, 1, (byte) 0xA9, 0x02, 7}, encoded.bytes().toByteArray());
+    }
+
+    @Test
+    void adjacentEntriesAreSentAsRuns() {
+        SparseTrace trace = trace(new int[] {10, 11, 12, 13, 14}, new int[] {1, 2, 3, 4, 5});
+
+        TraceEncoder.Encoded encoded = TraceEncoder.encode(trace, 65_536, ALL);
+
+        assertEquals(TraceEncoding.RUN_LENGTH, encoded.encoding());
+        assertArrayEquals(new byte[] {10, 5, 1, 2, 3, 4, 5}, encoded.bytes().toByteArray());
+    }
+
+    @Test
+    void fallsBackToDenseForSubscribersWithoutOtherEncodings() {
+        SparseTrace trace = trace(new int[] {3}, new int[] {9});
+
+        TraceEncoder.Encoded encoded =
+                TraceEncoder.encode(trace, 8, EnumSet.of(TraceEncoding.DENSE));
+
+        assertEquals(TraceEncoding.DENSE, encoded.encoding());
+        assertArrayEquals(new byte[] {0, 0, 0, 9, 0, 0, 0, 0}, encoded.bytes().toByteArray());
+    }
+
+    private static SparseTrace trace(int[] indices, int[] hits) {
+        int max = 0;
+        for (int index : indices) {
+            max = Math.max(max, index);
+        }
+        byte[] counters = new byte[max + 1];
+        for (int i = 0; i < indices.length; i++) {
+            counters[indices[i]] = (byte) hits[i];
+        }
+        return SparseTrace.capture(indices, indices.length, counters);
+    }
+}
@@ -0,0 +1,85 @@
+package com.jaf.agent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.FutureTask;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TracePropagationTest {
+    private ExecutorService executor;
+
+    @BeforeEach
+    void setUp() {
+        CoverageRuntime.reset();
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void untracedSubmissionsAreLeftUnwrapped() {
+        Runnable task = () -> {};
+        Callable<String> callable = () -> "done";
+
+        assertSame(task, TracePropagation.wrapRunnable(task));
+        assertSame(callable, TracePropagation.wrapCallable(callable));
+    }
+
+    @Test
+    void wrappedRunnableRecordsIntoSubmittingRequest() throws Exception {
+        CoverageRuntime.startTracing();
+        Runnable task = TracePropagation.wrapRunnable(() -> CoverageRuntime.enterEdge(21));
+        executor.submit(task).get();
+        SparseTrace trace = CoverageRuntime.stopTracing();
+
+        assertEquals(1, trace.size());
+        assertEquals(21, trace.indexAt(0));
+    }
+
+    @Test
+    void wrappedCallableRecordsIntoSubmittingRequest() throws Exception {
+        CoverageRuntime.startTracing();
+        Callable<?> task =
+                TracePropagation.wrapCallable(
+                        () -> {
+                            CoverageRuntime.enterEdge(22);
+                            return null;
+                        });
+        executor.submit(task).get();
+        SparseTrace trace = CoverageRuntime.stopTracing();
+
+        assertEquals(1, trace.size());
+        assertEquals(22, trace.indexAt(0));
+    }
+
+    @Test
+    void registeredWorkIsAttachedWhenItExecutes() throws Exception {
+        CoverageRuntime.startTracing();
+        FutureTask<Void> task = new FutureTask<>(() -> CoverageRuntime.enterEdge(23), null);
+        // Identity-sensitive tasks are remembered rather than wrapped.
+        assertSame(task, TracePropagation.wrapRunnable(task));
+        executor.submit(
+                        () -> {
+                            Object token = TracePropagation.beforeExecute(task);
+                            try {
+                                task.run();
+                            } finally {
+                                TracePropagation.afterExecute(token);
+                            }
+                        })
+                .get();
+        SparseTrace trace = CoverageRuntime.stopTracing();
+
+        assertEquals(1, trace.size());
+        assertEquals(23, trace.indexAt(0));
+    }
+}
@@ -0,0 +1,81 @@
+package com.jaf.agent;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.io.InputStream;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+class TracePropagationTransformerTest {
+    private ExecutorService executor;
+
+    @BeforeEach
+    void setUp() {
+        CoverageRuntime.reset();
+        executor = Executors.newSingleThreadExecutor();
+    }
+
+    @AfterEach
+    void tearDown() {
+        executor.shutdownNow();
+    }
+
+    @Test
+    void executionThatThrowsStillHandsItsEntriesBack() throws Exception {
+        Runnable task = instrumentedTask();
+
+        CoverageRuntime.startTracing();
+        TracePropagation.register(task);
+        Object leftBehind =
+                executor.submit(
+                                () -> {
+                                    assertThrows(IllegalStateException.class, task::run);
+                                    return CoverageRuntime.currentContext();
+                                })
+                        .get();
+        SparseTrace trace = CoverageRuntime.stopTracing();
+
+        assertNull(leftBehind);
+        assertEquals(1, trace.size());
+        assertEquals(24, trace.indexAt(0));
+    }
+
+    /** Loads {@link ThrowingTask} with its {@code run} method hooked as an execution point. */
+    private static Runnable instrumentedTask() throws Exception {
+        String name = ThrowingTask.class.getName();
+        String internalName = name.replace('.', '/');
+        byte[] original;
+        try (InputStream in =
+                TracePropagationTransformerTest.class.getResourceAsStream(
+                        "/" + internalName + ".class")) {
+            original = in.readAllBytes();
+        }
+        TracePropagationTransformer transformer = new TracePropagationTransformer();
+        transformer.add(internalName, "run", "()V", TracePropagationTransformer.Kind.EXECUTE_THIS);
+        byte[] instrumented =
+                transformer.transform(null, null, internalName, null, null, original);
+        return (Runnable)
+                new EdgeCoverageTransformerTest.SampleClassLoader()
+                        .define(name, instrumented)
+                        .getDeclaredConstructor()
+                        .newInstance();
+    }
+
+    /** Work whose failure comes out of a callee rather than an athrow in the hooked method. */
+    public static final class ThrowingTask implements Runnable {
+        @Override
+        public void run() {
+            CoverageRuntime.enterEdge(24);
+            fail();
+        }
+
+        private static void fail() {
+            throw new IllegalStateException("task failed");
+        }
+    }
+}
@@ -3,6 +3,7 @@ plugins {
 }
 
 dependencies {
+    implementation(project(":agent"))
     implementation(project(":protocol"))
     implementation("io.grpc:grpc-netty-shaded:1.76.0")
     testImplementation("org.junit.jupiter:junit-jupiter-api:5.10.2")
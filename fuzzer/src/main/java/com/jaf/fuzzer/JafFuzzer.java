@@ -1,6 +1,8 @@
 package com.jaf.fuzzer;
 
 import com.jaf.fuzzer.instrumentation.GrpcInstrumentedExecutor;
+import com.jaf.fuzzer.instrumentation.InProcessExecutor;
+import com.jaf.fuzzer.instrumentation.SharedCoverageRegion;
 import com.jaf.fuzzer.nautilus.core.DeterminismChecker;
 import com.jaf.fuzzer.nautilus.core.NautilusFuzzer;
 import com.jaf.fuzzer.nautilus.gen.TreeGenerators;
@@ -10,13 +12,19 @@ import com.jaf.fuzzer.nautilus.grammar.Grammar.NonTerminal;
 import com.jaf.fuzzer.nautilus.grammar.Grammar.Rule;
 import com.jaf.fuzzer.nautilus.min.Minimizer;
 import com.jaf.fuzzer.nautilus.mut.Mutators;
+import com.jaf.proto.CoverageProto.HealthResponse;
+import io.grpc.Status;
+import io.grpc.StatusRuntimeException;
+import java.io.File;
 import java.io.IOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.http.HttpClient;
 import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Random;
 
@@ -26,6 +34,7 @@ public final class JafFuzzer {
     private static final String DEFAULT_SOCKET = "/tmp/jaf-coverage.sock";
     private static final URI DEFAULT_TARGET = URI.create("http://127.0.0.1:8080/api/check-body");
     private static final int DEFAULT_DURATION_SECONDS = 30;
+    private static final int DEFAULT_FINGERPRINT_CACHE = 256;
     private static final Duration REQUEST_TIMEOUT = Duration.ofSeconds(5);
     private static final Duration COVERAGE_TIMEOUT = Duration.ofSeconds(5);
 
@@ -41,6 +50,7 @@ public final class JafFuzzer {
         config.randomStageBudgetPerItem = Duration.ofSeconds(1);
         config.random = new Random();
         config.enableUniformGeneration = cli.enableUniformGeneration();
+        config.maxInFlight = cli.maxInFlight();
         TreeGenerators.setDebug(cli.debugGeneration());
         Mutators.setExpansionDebug(cli.debugExpansion());
         Minimizer.setDebug(cli.debugMinimizer());
@@ -52,20 +62,117 @@ public final class JafFuzzer {
                         : Duration.ofSeconds(cli.durationSeconds());
         System.out.println("[JAF] Target=" + cli.targetUri() + ", budget=" + budget);
 
+        if (cli.harnessClass() != null) {
+            try (InProcessExecutor executor =
+                    InProcessExecutor.load(
+                            cli.harnessClassPath(), cli.harnessClass(), cli.instrumentPatterns())) {
+                System.out.println("[JAF] Fuzzing " + cli.harnessClass() + " in this JVM");
+                NautilusFuzzer fuzzer =
+                        new NautilusFuzzer(grammar, grammar.start(), executor, config);
+                fuzzer.fuzz(budget);
+                printSummary(fuzzer, executor.mapSize());
+            }
+            return;
+        }
+        if (cli.executeRpc() && (cli.shmPath() != null || cli.noveltyOnly())) {
+            System.err.println(
+                    "[JAF] --execute-rpc sends traces inline; ignoring --shm and --novelty-only");
+        }
+        SharedCoverageRegion sharedRegion = null;
+        if (cli.shmPath() != null && !cli.executeRpc()) {
+            sharedRegion =
+                    SharedCoverageRegion.create(
+                            Path.of(cli.shmPath()),
+                            SharedCoverageRegion.DEFAULT_SLOTS,
+                            SharedCoverageRegion.DEFAULT_SLOT_CAPACITY);
+            System.out.println("[JAF] Receiving coverage through shared memory at " + cli.shmPath());
+        }
+
         try (GrpcInstrumentedExecutor executor =
-                GrpcInstrumentedExecutor.forUnixDomainSocket(
-                        cli.socketPath(), cli.targetUri(), REQUEST_TIMEOUT, COVERAGE_TIMEOUT)) {
-            waitForTarget(cli.targetUri());
+                cli.executeRpc()
+                        ? GrpcInstrumentedExecutor.forExecuteRpc(
+                                cli.socketPath(),
+                                cli.targetUri(),
+                                REQUEST_TIMEOUT,
+                                COVERAGE_TIMEOUT,
+                                cli.inProcessServlet())
+                        : GrpcInstrumentedExecutor.forUnixDomainSocket(
+                                cli.socketPath(),
+                                cli.targetUri(),
+                                REQUEST_TIMEOUT,
+                                COVERAGE_TIMEOUT,
+                                sharedRegion,
+                                cli.noveltyOnly(),
+                                cli.fingerprintCacheSize())) {
+            waitForTarget(executor, cli.targetUri());
+            if (config.maxInFlight > 1 && countsProbesInline(executor)) {
+                System.err.println(
+                        "[JAF] The agent counts probes inline, which mixes the traces of concurrent"
+                                + " requests; ignoring --in-flight and sending one input at a time");
+                config.maxInFlight = 1;
+            }
             NautilusFuzzer fuzzer =
                     new NautilusFuzzer(grammar, grammar.start(), executor, config);
             Runtime.getRuntime().addShutdownHook(new Thread(executor::close));
             fuzzer.fuzz(budget);
-            System.out.println(
-                    "[JAF] Finished fuzzing. corpus="
-                            + fuzzer.corpus().size()
-                            + ", edges="
-                            + fuzzer.coverageCount());
+            printSummary(fuzzer, executor.mapSize());
+        }
+    }
+
+    private static void printSummary(NautilusFuzzer fuzzer, int mapSize) {
+        System.out.println(
+                "[JAF] Finished fuzzing. corpus="
+                        + fuzzer.corpus().size()
+                        + ", edges="
+                        + fuzzer.coverageCount()
+                        + "/"
+                        + mapSize);
+    }
+
+    /**
+     * Waits until the agent reports installed instrumentation and a listener on the target's port.
+     * Agents without the health RPC fall back to polling the target over HTTP.
+     */
+    static void waitForTarget(GrpcInstrumentedExecutor executor, URI target)
+            throws InterruptedException {
+        int port = targetPort(target);
+        System.out.println("[JAF] Waiting for the agent to report a listener on port " + port);
+        int attempts = 60;
+        for (int i = 0; i < attempts; i++) {
+            try {
+                HealthResponse health = executor.health();
+                if (health.getInstrumented() && health.getListeningPortsList().contains(port)) {
+                    System.out.println("[JAF] Target ready on port " + port);
+                    return;
+                }
+            } catch (StatusRuntimeException e) {
+                if (e.getStatus().getCode() == Status.Code.UNIMPLEMENTED) {
+                    System.out.println("[JAF] Agent has no health RPC, polling the target instead");
+                    waitForTarget(target);
+                    return;
+                }
+                System.out.println("[JAF] Agent not ready (" + e.getStatus() + "), retrying...");
+            }
+            Thread.sleep(1000);
         }
+        throw new RuntimeException("SUT did not start listening on port " + port);
+    }
+
+    /** Whether the agent's probes count into one array shared by all requests. */
+    static boolean countsProbesInline(GrpcInstrumentedExecutor executor) {
+        try {
+            return executor.health().getInlineProbes();
+        } catch (StatusRuntimeException e) {
+            // Agents without the health RPC predate inline probes.
+            return false;
+        }
+    }
+
+    static int targetPort(URI target) {
+        if (target.getPort() != -1) {
+            return target.getPort();
+        }
+        return "https".equalsIgnoreCase(target.getScheme()) ? 443 : 80;
     }
 
     static void waitForTarget(URI target) throws InterruptedException {
@@ -120,12 +227,21 @@ public final class JafFuzzer {
     static CliConfig parseArgs(String[] args) throws URISyntaxException {
         int duration = DEFAULT_DURATION_SECONDS;
         String socketPath = DEFAULT_SOCKET;
+        String shmPath = null;
         URI target = DEFAULT_TARGET;
         boolean debugGeneration = false;
         boolean debugExpansion = false;
         boolean enableUniformGeneration = true;
         boolean debugMinimizer = false;
         boolean debugDeterminism = false;
+        boolean noveltyOnly = false;
+        int fingerprintCacheSize = DEFAULT_FINGERPRINT_CACHE;
+        int maxInFlight = 1;
+        boolean executeRpc = false;
+        String inProcessServlet = null;
+        String harnessClass = null;
+        List<Path> harnessClassPath = new ArrayList<>();
+        List<String> instrumentPatterns = new ArrayList<>();
         if (args != null) {
             for (String arg : args) {
                 if (arg == null) {
@@ -151,6 +267,19 @@ public final class JafFuzzer {
                     enableUniformGeneration = false;
                     continue;
                 }
+                if (arg.equals("--novelty-only")) {
+                    noveltyOnly = true;
+                    continue;
+                }
+                if (arg.equals("--execute-rpc")) {
+                    executeRpc = true;
+                    continue;
+                }
+                if (arg.equals("--in-process")) {
+                    executeRpc = true;
+                    inProcessServlet = "";
+                    continue;
+                }
                 if (arg.startsWith("--duration=")) {
                     String value = arg.substring("--duration=".length());
                     try {
@@ -160,6 +289,36 @@ public final class JafFuzzer {
                     }
                 } else if (arg.startsWith("--socket=")) {
                     socketPath = arg.substring("--socket=".length());
+                } else if (arg.startsWith("--shm=")) {
+                    shmPath = arg.substring("--shm=".length());
+                } else if (arg.startsWith("--fingerprint-cache=")) {
+                    String value = arg.substring("--fingerprint-cache=".length());
+                    try {
+                        fingerprintCacheSize = Math.max(0, Integer.parseInt(value));
+                    } catch (NumberFormatException e) {
+                        System.err.println("Invalid fingerprint cache size: " + value);
+                    }
+                } else if (arg.startsWith("--in-flight=")) {
+                    String value = arg.substring("--in-flight=".length());
+                    try {
+                        maxInFlight = Math.max(1, Integer.parseInt(value));
+                    } catch (NumberFormatException e) {
+                        System.err.println("Invalid in-flight depth: " + value);
+                    }
+                } else if (arg.startsWith("--in-process=")) {
+                    executeRpc = true;
+                    inProcessServlet = arg.substring("--in-process=".length());
+                } else if (arg.startsWith("--harness=")) {
+                    harnessClass = arg.substring("--harness=".length());
+                } else if (arg.startsWith("--harness-classpath=")) {
+                    String value = arg.substring("--harness-classpath=".length());
+                    for (String entry : value.split(File.pathSeparator)) {
+                        if (!entry.isEmpty()) {
+                            harnessClassPath.add(Path.of(entry));
+                        }
+                    }
+                } else if (arg.startsWith("--instrument=")) {
+                    instrumentPatterns.add(arg.substring("--instrument=".length()));
                 } else if (arg.startsWith("--sut=")) {
                     target = new URI(arg.substring("--sut=".length()));
                 }
@@ -168,12 +327,21 @@ public final class JafFuzzer {
         return new CliConfig(
                 duration,
                 socketPath,
+                shmPath,
                 target,
                 debugGeneration,
                 debugExpansion,
                 debugMinimizer,
                 debugDeterminism,
-                enableUniformGeneration);
+                enableUniformGeneration,
+                noveltyOnly,
+                fingerprintCacheSize,
+                maxInFlight,
+                executeRpc,
+                inProcessServlet,
+                harnessClass,
+                List.copyOf(harnessClassPath),
+                List.copyOf(instrumentPatterns));
     }
 
     static Grammar buildDefaultGrammar() {
@@ -227,10 +395,19 @@ public final class JafFuzzer {
     static record CliConfig(
             int durationSeconds,
             String socketPath,
+            String shmPath,
             URI targetUri,
             boolean debugGeneration,
             boolean debugExpansion,
             boolean debugMinimizer,
             boolean debugDeterminism,
-            boolean enableUniformGeneration) {}
+            boolean enableUniformGeneration,
+            boolean noveltyOnly,
+            int fingerprintCacheSize,
+            int maxInFlight,
+            boolean executeRpc,
+            String inProcessServlet,
+            String harnessClass,
+            List<Path> harnessClassPath,
+            List<String> instrumentPatterns) {}
 }
@@ -6,10 +6,13 @@ import java.util.function.IntConsumer;
 
 /**
  * Immutable wrapper around an AFL-style coverage bitmap.
- * Non-zero bytes represent executed edge indices.
+ * Non-zero bytes represent executed edge indices; their values are saturating hit counts, which
+ * {@link #bucketOf(int)} classifies into AFL's hit-count buckets.
  */
 public final class CoverageBitmap {
     private static final CoverageBitmap EMPTY = new CoverageBitmap(new byte[0], false);
+    /** Bucket bit per hit count: 1, 2, 3, 4-7, 8-15, 16-31, 32-127, 128-255. */
+    private static final byte[] COUNT_CLASS = buildCountClasses();
     private final byte[] data;
 
     private CoverageBitmap(byte[] data, boolean copy) {
@@ -49,6 +52,42 @@ public final class CoverageBitmap {
         return new CoverageBitmap(bytes, false);
     }
 
+    /**
+     * Builds a bitmap of the given length from sparse (index, counter) entries. Indices outside the
+     * bitmap are ignored.
+     */
+    public static CoverageBitmap fromSparse(int length, int[] indices, byte[] counts, int count) {
+        if (length <= 0 || count == 0) {
+            return EMPTY;
+        }
+        byte[] bytes = new byte[length];
+        for (int i = 0; i < count; i++) {
+            int index = indices[i];
+            if (index >= 0 && index < length) {
+                bytes[index] = counts[i];
+            }
+        }
+        return new CoverageBitmap(bytes, false);
+    }
+
+    /** Wraps {@code bytes} without copying; the caller must not modify the array afterwards. */
+    static CoverageBitmap wrap(byte[] bytes) {
+        return bytes.length == 0 ? EMPTY : new CoverageBitmap(bytes, false);
+    }
+
+    /**
+     * Returns the bucket of a hit count as a single bit, or 0 for no hits. Counts in the same bucket
+     * are treated as the same behavior.
+     */
+    public static int bucketOf(int hits) {
+        return COUNT_CLASS[hits & 0xFF] & 0xFF;
+    }
+
+    /** The backing array, for read-only use within the package. */
+    byte[] data() {
+        return data;
+    }
+
     public int length() {
         return data.length;
     }
@@ -92,6 +131,25 @@ public final class CoverageBitmap {
         return other.isSubsetOf(this);
     }
 
+    /**
+     * Returns whether this trace reaches, for every entry of {@code buckets}, one of the hit-count
+     * bucket bits that entry holds, as {@link VirginMap#newCoverage} reports them. Unlike
+     * {@link #covers}, hitting an entry in a different bucket does not count.
+     */
+    public boolean reachesBuckets(CoverageBitmap buckets) {
+        Objects.requireNonNull(buckets, "buckets");
+        for (int i = 0; i < buckets.data.length; i++) {
+            if (buckets.data[i] == 0) {
+                continue;
+            }
+            int hits = i < data.length ? data[i] : 0;
+            if ((bucketOf(hits) & buckets.data[i]) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     public CoverageBitmap union(CoverageBitmap other) {
         Objects.requireNonNull(other, "other");
         int length = Math.max(data.length, other.data.length);
@@ -140,6 +198,27 @@ public final class CoverageBitmap {
         return new CoverageBitmap(diff, false);
     }
 
+    /**
+     * Returns the entries whose hit-count bucket differs between this bitmap and {@code other},
+     * including entries only one of them hits, each with a value of 1.
+     */
+    public CoverageBitmap bucketDifference(CoverageBitmap other) {
+        Objects.requireNonNull(other, "other");
+        int length = Math.max(data.length, other.data.length);
+        byte[] diff = null;
+        for (int i = 0; i < length; i++) {
+            int mine = i < data.length ? bucketOf(data[i]) : 0;
+            int theirs = i < other.data.length ? bucketOf(other.data[i]) : 0;
+            if (mine != theirs) {
+                if (diff == null) {
+                    diff = new byte[length];
+                }
+                diff[i] = 1;
+            }
+        }
+        return diff == null ? EMPTY : new CoverageBitmap(diff, false);
+    }
+
     public CoverageBitmap without(BitSet indices) {
         Objects.requireNonNull(indices, "indices");
         if (indices.isEmpty() || data.length == 0) {
@@ -170,6 +249,28 @@ public final class CoverageBitmap {
         }
     }
 
+    private static byte[] buildCountClasses() {
+        byte[] classes = new byte[256];
+        for (int hits = 1; hits < 256; hits++) {
+            int bucket;
+            if (hits <= 3) {
+                bucket = hits == 3 ? 4 : hits;
+            } else if (hits <= 7) {
+                bucket = 8;
+            } else if (hits <= 15) {
+                bucket = 16;
+            } else if (hits <= 31) {
+                bucket = 32;
+            } else if (hits <= 127) {
+                bucket = 64;
+            } else {
+                bucket = 128;
+            }
+            classes[hits] = (byte) bucket;
+        }
+        return classes;
+    }
+
     @Override
     public boolean equals(Object other) {
         if (this == other) {
@@ -0,0 +1,111 @@
+package com.jaf.fuzzer.coverage;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+/**
+ * Campaign-wide record of the hit-count buckets already seen per coverage map entry, after AFL's
+ * "virgin bits".
+ *
+ * <p>Each entry keeps one bit per bucket of {@link CoverageBitmap#bucketOf(int)} that no trace has
+ * reached yet. A trace is interesting if it hits an entry in a bucket that is still virgin, so an
+ * input that only makes a loop run 4 instead of 2 times counts as new coverage. Traces are scanned
+ * eight entries at a time and all-zero words are skipped, which is most of a sparse trace; the
+ * check allocates only when it finds something new, and {@link #update} works in place.</p>
+ */
+public final class VirginMap {
+    private static final VarHandle WORDS =
+            MethodHandles.byteArrayViewVarHandle(long[].class, ByteOrder.LITTLE_ENDIAN);
+    private static final int UNSEEN = 0xFF;
+
+    private byte[] virgin = new byte[0];
+
+    /**
+     * Returns the entries of {@code trace} that reach a bucket not seen before, each set to its
+     * bucket bit, or an empty bitmap if the trace adds nothing. The map is not modified.
+     */
+    public CoverageBitmap newCoverage(CoverageBitmap trace) {
+        byte[] data = trace.data();
+        byte[] novel = null;
+        int wordEnd = data.length & ~7;
+        for (int offset = 0; offset < wordEnd; offset += 8) {
+            if ((long) WORDS.get(data, offset) == 0L) {
+                continue;
+            }
+            for (int i = offset; i < offset + 8; i++) {
+                novel = noteIfNew(data, i, novel);
+            }
+        }
+        for (int i = wordEnd; i < data.length; i++) {
+            novel = noteIfNew(data, i, novel);
+        }
+        return novel == null ? CoverageBitmap.empty() : CoverageBitmap.wrap(novel);
+    }
+
+    /**
+     * Marks the buckets reached by {@code trace} as seen.
+     *
+     * @return whether any bucket was new
+     */
+    public boolean update(CoverageBitmap trace) {
+        byte[] data = trace.data();
+        if (data.length > virgin.length) {
+            int previous = virgin.length;
+            virgin = Arrays.copyOf(virgin, data.length);
+            Arrays.fill(virgin, previous, data.length, (byte) UNSEEN);
+        }
+        boolean changed = false;
+        int wordEnd = data.length & ~7;
+        for (int offset = 0; offset < wordEnd; offset += 8) {
+            if ((long) WORDS.get(data, offset) == 0L) {
+                continue;
+            }
+            for (int i = offset; i < offset + 8; i++) {
+                changed |= markSeen(data, i);
+            }
+        }
+        for (int i = wordEnd; i < data.length; i++) {
+            changed |= markSeen(data, i);
+        }
+        return changed;
+    }
+
+    /** Returns every entry hit at least once, each with a value of 1. */
+    public CoverageBitmap coverage() {
+        byte[] covered = new byte[virgin.length];
+        for (int i = 0; i < virgin.length; i++) {
+            if ((virgin[i] & 0xFF) != UNSEEN) {
+                covered[i] = 1;
+            }
+        }
+        return CoverageBitmap.wrap(covered);
+    }
+
+    private byte[] noteIfNew(byte[] data, int index, byte[] novel) {
+        int bucket = CoverageBitmap.bucketOf(data[index]);
+        if (bucket == 0) {
+            return novel;
+        }
+        int unseen = index < virgin.length ? virgin[index] & 0xFF : UNSEEN;
+        if ((unseen & bucket) == 0) {
+            return novel;
+        }
+        if (novel == null) {
+            novel = new byte[data.length];
+        }
+        novel[index] = (byte) bucket;
+        return novel;
+    }
+
+    private boolean markSeen(byte[] data, int index) {
+        int bucket = CoverageBitmap.bucketOf(data[index]);
+        int unseen = virgin[index] & 0xFF;
+        if ((unseen & bucket) == 0) {
+            return false;
+        }
+        virgin[index] = (byte) (unseen & ~bucket);
+        return true;
+    }
+}
@@ -1,9 +1,24 @@
 package com.jaf.fuzzer.instrumentation;
 
+import com.google.protobuf.ByteString;
 import com.jaf.fuzzer.coverage.CoverageBitmap;
+import com.jaf.fuzzer.nautilus.exec.ComparisonOperands;
 import com.jaf.fuzzer.nautilus.exec.ExecutionResult;
 import com.jaf.fuzzer.nautilus.exec.InstrumentedExecutor;
+import com.jaf.proto.CoverageProto.Comparison;
+import com.jaf.proto.CoverageProto.ConfigureRequest;
+import com.jaf.proto.CoverageProto.ConfigureResponse;
 import com.jaf.proto.CoverageProto.CoverageEvent;
+import com.jaf.proto.CoverageProto.CoverageEventBatch;
+import com.jaf.proto.CoverageProto.ExecuteRequest;
+import com.jaf.proto.CoverageProto.ExecuteResult;
+import com.jaf.proto.CoverageProto.ExecuteTarget;
+import com.jaf.proto.CoverageProto.FetchTraceRequest;
+import com.jaf.proto.CoverageProto.HealthRequest;
+import com.jaf.proto.CoverageProto.HealthResponse;
+import com.jaf.proto.CoverageProto.ProbeLookupRequest;
+import com.jaf.proto.CoverageProto.ProbeSymbol;
+import com.jaf.proto.CoverageProto.ResetCoverageRequest;
 import com.jaf.proto.CoverageProto.SubscribeRequest;
 import com.jaf.proto.CoverageServiceGrpc;
 import io.grpc.ManagedChannel;
@@ -22,24 +37,58 @@ import java.net.http.HttpRequest;
 import java.net.http.HttpResponse;
 import java.time.Duration;
 import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
-import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadLocalRandom;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.function.Supplier;
 
 /**
  * Instrumented executor that proxies fuzz inputs to the HTTP SUT while listening to coverage events
- * from the agent over gRPC. Each request is tagged with a unique {@code X-Fuzzing-Request-Id}
- * header so the agent can attribute coverage.
+ * from the agent over gRPC. Each request is tagged with a short {@code X-Fuzzing-Request-Id}
+ * header, a counter from a random per-executor start, so the agent can attribute coverage. When a
+ * {@link SharedCoverageRegion} is supplied, the agent writes traces into shared memory and the
+ * gRPC stream only signals completion.
+ *
+ * <p>In novelty-only mode the agent decides which traces reach new hit-count buckets and sends the
+ * others without their trace. {@link #runForNovelty} returns empty edges for those, while
+ * {@link #run} fetches the omitted trace from the agent. The same goes for traces the agent leaves
+ * out when the executor falls behind under the {@code FINGERPRINT_ONLY} overflow policy. Only the
+ * inputs of {@link #runForNovelty} carry the triage header that lets them update the agent's
+ * virgin map, so minimizer and determinism reruns do not use up new coverage.</p>
+ *
+ * <p>With a fingerprint cache the agent sends a trace it has recently sent only as its 64-bit
+ * fingerprint. The executor keeps the decoded bitmaps of the same fingerprints in an LRU of the
+ * same capacity, touched in event order, so a repeated path costs neither transfer nor
+ * decoding.</p>
+ *
+ * <p>Created with {@link #forExecuteRpc}, the executor instead hands inputs to the agent over the
+ * Execute RPC. The agent sends the HTTP request itself and answers with the response and the trace
+ * in one message, so there is no subscription and no race between the two. Inputs are correlated
+ * by a sequence number whose low bits name one of a fixed set of slots, which bounds the inputs in
+ * flight and replaces the map of request IDs. With a servlet to call in-process the agent skips
+ * the connection too and passes each input straight to that servlet's service method.</p>
  */
 public final class GrpcInstrumentedExecutor implements InstrumentedExecutor, AutoCloseable {
 
     private static final String HEADER_NAME = "X-Fuzzing-Request-Id";
+    /** Marks the inputs whose coverage may update the agent's virgin map. */
+    private static final String TRIAGE_HEADER_NAME = "X-Fuzzing-Triage";
+    private static final int EXECUTE_SLOT_BITS = 6;
+    private static final int EXECUTE_SLOTS = 1 << EXECUTE_SLOT_BITS;
 
     private final ManagedChannel channel;
     private final CoverageServiceGrpc.CoverageServiceStub stub;
@@ -49,11 +98,24 @@ public final class GrpcInstrumentedExecutor implements InstrumentedExecutor, Aut
     private final Duration coverageTimeout;
     private final Supplier<String> requestIdSupplier;
     private final EventLoopGroup eventLoopGroup;
+    private final SharedCoverageRegion sharedRegion;
+    private final boolean noveltyOnly;
+    private final int fingerprintCacheSize;
+    /** Traces by fingerprint, mirroring the agent's LRU; only touched by the event thread. */
+    private final Map<Long, CoverageBitmap> tracesByFingerprint;
+    /** Servlet class the agent calls in-process, empty for its default; null to go over HTTP. */
+    private final String inProcessServlet;
 
-    private final Map<String, CompletableFuture<byte[]>> pending =
-            new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<Feedback>> pending = new ConcurrentHashMap<>();
+    /** Inputs in flight on the Execute stream by slot; {@code null} when inputs go over HTTP. */
+    private final AtomicReferenceArray<PendingExecution> executions;
+    private final BlockingQueue<Integer> freeSlots;
+    private final AtomicLong nextSequence = new AtomicLong();
+    /** The open Execute stream, if any; guarded by this. */
+    private ExecuteResults executeResults;
 
     private volatile boolean shutdown;
+    private volatile int mapSize;
 
     private GrpcInstrumentedExecutor(
             ManagedChannel channel,
@@ -63,7 +125,12 @@ public final class GrpcInstrumentedExecutor implements InstrumentedExecutor, Aut
             Duration requestTimeout,
             Duration coverageTimeout,
             Supplier<String> requestIdSupplier,
-            EventLoopGroup eventLoopGroup) {
+            EventLoopGroup eventLoopGroup,
+            SharedCoverageRegion sharedRegion,
+            boolean noveltyOnly,
+            int fingerprintCacheSize,
+            boolean executeRpc,
+            String inProcessServlet) {
         this.channel = channel;
         this.stub = stub != null ? stub : CoverageServiceGrpc.newStub(channel);
         this.httpClient = httpClient;
@@ -72,12 +139,123 @@ public final class GrpcInstrumentedExecutor implements InstrumentedExecutor, Aut
         this.coverageTimeout = coverageTimeout;
         this.requestIdSupplier = requestIdSupplier;
         this.eventLoopGroup = eventLoopGroup;
-        startSubscription();
+        this.sharedRegion = sharedRegion;
+        this.noveltyOnly = noveltyOnly;
+        this.fingerprintCacheSize = fingerprintCacheSize;
+        this.inProcessServlet = inProcessServlet;
+        this.tracesByFingerprint =
+                new LinkedHashMap<>(16, 0.75f, true) {
+                    @Override
+                    protected boolean removeEldestEntry(Map.Entry<Long, CoverageBitmap> eldest) {
+                        return size() > fingerprintCacheSize;
+                    }
+                };
+        if (executeRpc) {
+            this.executions = new AtomicReferenceArray<>(EXECUTE_SLOTS);
+            this.freeSlots = new ArrayBlockingQueue<>(EXECUTE_SLOTS);
+            for (int slot = 0; slot < EXECUTE_SLOTS; slot++) {
+                freeSlots.add(slot);
+            }
+        } else {
+            this.executions = null;
+            this.freeSlots = null;
+            startSubscription();
+        }
+    }
+
+    public static GrpcInstrumentedExecutor forUnixDomainSocket(
+            String socketPath, URI targetUri, Duration requestTimeout, Duration coverageTimeout)
+            throws IOException {
+        return forUnixDomainSocket(socketPath, targetUri, requestTimeout, coverageTimeout, null);
     }
 
     public static GrpcInstrumentedExecutor forUnixDomainSocket(
+            String socketPath,
+            URI targetUri,
+            Duration requestTimeout,
+            Duration coverageTimeout,
+            SharedCoverageRegion sharedRegion)
+            throws IOException {
+        return forUnixDomainSocket(
+                socketPath, targetUri, requestTimeout, coverageTimeout, sharedRegion, false, 0);
+    }
+
+    /**
+     * Connects to the agent over a Unix domain socket.
+     *
+     * @param sharedRegion optional shared-memory region the agent should write traces into; the
+     *     executor takes ownership and closes it
+     * @param noveltyOnly whether the agent should omit traces that reach no new coverage
+     * @param fingerprintCacheSize how many recent traces the agent may refer to by fingerprint
+     *     instead of sending them again; 0 disables the cache, which novelty-only mode also does
+     */
+    public static GrpcInstrumentedExecutor forUnixDomainSocket(
+            String socketPath,
+            URI targetUri,
+            Duration requestTimeout,
+            Duration coverageTimeout,
+            SharedCoverageRegion sharedRegion,
+            boolean noveltyOnly,
+            int fingerprintCacheSize)
+            throws IOException {
+        return connect(
+                socketPath,
+                targetUri,
+                requestTimeout,
+                coverageTimeout,
+                sharedRegion,
+                noveltyOnly,
+                fingerprintCacheSize,
+                false,
+                null);
+    }
+
+    /**
+     * Connects to the agent over a Unix domain socket and executes inputs through its Execute RPC.
+     * The agent delivers them to the port and path of {@code targetUri} on its own loopback
+     * interface.
+     */
+    public static GrpcInstrumentedExecutor forExecuteRpc(
             String socketPath, URI targetUri, Duration requestTimeout, Duration coverageTimeout)
             throws IOException {
+        return forExecuteRpc(socketPath, targetUri, requestTimeout, coverageTimeout, null);
+    }
+
+    /**
+     * Like {@link #forExecuteRpc(String, URI, Duration, Duration)}, but unless
+     * {@code inProcessServlet} is null the agent calls a servlet of the target in-process instead
+     * of connecting to it: the one of that class, or its default choice if the name is empty.
+     */
+    public static GrpcInstrumentedExecutor forExecuteRpc(
+            String socketPath,
+            URI targetUri,
+            Duration requestTimeout,
+            Duration coverageTimeout,
+            String inProcessServlet)
+            throws IOException {
+        return connect(
+                socketPath,
+                targetUri,
+                requestTimeout,
+                coverageTimeout,
+                null,
+                false,
+                0,
+                true,
+                inProcessServlet);
+    }
+
+    private static GrpcInstrumentedExecutor connect(
+            String socketPath,
+            URI targetUri,
+            Duration requestTimeout,
+            Duration coverageTimeout,
+            SharedCoverageRegion sharedRegion,
+            boolean noveltyOnly,
+            int fingerprintCacheSize,
+            boolean executeRpc,
+            String inProcessServlet)
+            throws IOException {
         if (!Epoll.isAvailable()) {
             throw new IOException("epoll is required for Unix domain sockets", Epoll.unavailabilityCause());
         }
@@ -89,9 +267,11 @@ public final class GrpcInstrumentedExecutor implements InstrumentedExecutor, Aut
                         .usePlaintext()
                         .build();
         HttpClient client =
-                HttpClient.newBuilder()
-                        .connectTimeout(requestTimeout)
-                        .build();
+                executeRpc
+                        ? null
+                        : HttpClient.newBuilder()
+                                .connectTimeout(requestTimeout)
+                                .build();
         return new GrpcInstrumentedExecutor(
                 channel,
                 CoverageServiceGrpc.newStub(channel),
@@ -99,8 +279,22 @@ public final class GrpcInstrumentedExecutor implements InstrumentedExecutor, Aut
                 targetUri,
                 requestTimeout,
                 coverageTimeout,
-                () -> UUID.randomUUID().toString(),
-                group);
+                compactRequestIds(),
+                group,
+                sharedRegion,
+                noveltyOnly,
+                fingerprintCacheSize,
+                executeRpc,
+                inProcessServlet);
+    }
+
+    /**
+     * Request IDs counting up from a random start, in hex: short to send and hash, and unlikely to
+     * clash with those of another fuzzer subscribed to the same agent.
+     */
+    private static Supplier<String> compactRequestIds() {
+        AtomicLong next = new AtomicLong(ThreadLocalRandom.current().nextLong());
+        return () -> Long.toHexString(next.getAndIncrement());
     }
 
     /** Visible for testing. */
@@ -119,57 +313,276 @@ public final class GrpcInstrumentedExecutor implements InstrumentedExecutor, Aut
                 requestTimeout,
                 coverageTimeout,
                 requestIdSupplier,
+                null,
+                null,
+                false,
+                0,
+                false,
+                null);
+    }
+
+    /** Visible for testing. */
+    static GrpcInstrumentedExecutor forExecuteRpc(
+            ManagedChannel channel,
+            URI targetUri,
+            Duration requestTimeout,
+            Duration coverageTimeout) {
+        return new GrpcInstrumentedExecutor(
+                channel,
+                CoverageServiceGrpc.newStub(channel),
+                null,
+                targetUri,
+                requestTimeout,
+                coverageTimeout,
+                null,
+                null,
+                null,
+                false,
+                0,
+                true,
                 null);
     }
 
     @Override
     public ExecutionResult run(byte[] input) throws Exception {
+        return await(execute(input, true));
+    }
+
+    @Override
+    public ExecutionResult runForNovelty(byte[] input) throws Exception {
+        return await(execute(input, false));
+    }
+
+    /**
+     * Sends the input without waiting for its response or coverage. Over the Execute RPC this
+     * blocks while all {@value #EXECUTE_SLOTS} slots are in use; over HTTP the caller bounds the
+     * inputs in flight.
+     */
+    @Override
+    public CompletableFuture<ExecutionResult> submit(byte[] input) {
+        return execute(input, true);
+    }
+
+    @Override
+    public CompletableFuture<ExecutionResult> submitForNovelty(byte[] input) {
+        return execute(input, false);
+    }
+
+    private static ExecutionResult await(CompletableFuture<ExecutionResult> result)
+            throws Exception {
+        try {
+            return result.get();
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof Exception exception) {
+                throw exception;
+            }
+            throw new RuntimeException(cause);
+        }
+    }
+
+    private CompletableFuture<ExecutionResult> execute(byte[] input, boolean fullTrace) {
         Objects.requireNonNull(input, "input");
         if (shutdown) {
-            throw new IllegalStateException("Executor has been shut down");
+            return CompletableFuture.failedFuture(
+                    new IllegalStateException("Executor has been shut down"));
+        }
+        if (executions != null) {
+            return executeOverRpc(input);
         }
         String requestId = requestIdSupplier.get();
-        CompletableFuture<byte[]> coverageFuture = new CompletableFuture<>();
+        CompletableFuture<Feedback> coverageFuture = new CompletableFuture<>();
         pending.put(requestId, coverageFuture);
 
         String requestBody = new String(input, StandardCharsets.UTF_8);
         System.out.println("[Fuzzer] Request " + requestId + " payload: " + requestBody);
 
-        HttpRequest request =
+        HttpRequest.Builder request =
                 HttpRequest.newBuilder(targetUri)
                         .timeout(requestTimeout)
                         .header(HEADER_NAME, requestId)
                         .header("Content-Type", "application/json")
-                        .POST(HttpRequest.BodyPublishers.ofByteArray(input))
-                        .build();
+                        .POST(HttpRequest.BodyPublishers.ofByteArray(input));
+        if (!fullTrace) {
+            request.header(TRIAGE_HEADER_NAME, "1");
+        }
 
-        HttpResponse<byte[]> response;
+        return httpClient
+                .sendAsync(request.build(), HttpResponse.BodyHandlers.ofByteArray())
+                .whenComplete(
+                        (response, error) -> {
+                            if (error != null) {
+                                pending.remove(requestId);
+                                coverageFuture.completeExceptionally(error);
+                            }
+                        })
+                .thenCompose(
+                        response -> httpResult(requestId, coverageFuture, response, fullTrace));
+    }
+
+    /** Combines an HTTP response with its coverage once that is in. */
+    private CompletableFuture<ExecutionResult> httpResult(
+            String requestId,
+            CompletableFuture<Feedback> coverageFuture,
+            HttpResponse<byte[]> response,
+            boolean fullTrace) {
+        CompletableFuture<Feedback> feedback =
+                awaitCoverage(requestId, coverageFuture)
+                        .thenCompose(
+                                received ->
+                                        received.traceOmitted()
+                                                        && (fullTrace || received.newCoverage())
+                                                ? fetchOmittedTrace(requestId, received)
+                                                : CompletableFuture.completedFuture(received));
+        boolean crashed = response.statusCode() >= 500;
+        byte[] stderr = response.body() != null ? response.body() : new byte[0];
+        return feedback.thenApply(
+                received ->
+                        new ExecutionResult(
+                                crashed, received.edges(), stderr, received.comparisons()));
+    }
+
+    private CompletableFuture<ExecutionResult> executeOverRpc(byte[] input) {
+        int slot;
         try {
-            response = httpClient.send(request, HttpResponse.BodyHandlers.ofByteArray());
+            slot = freeSlots.take();
         } catch (InterruptedException e) {
-            pending.remove(requestId);
             Thread.currentThread().interrupt();
-            throw e;
-        } catch (IOException | RuntimeException e) {
-            pending.remove(requestId);
-            coverageFuture.completeExceptionally(e);
-            throw e;
+            return CompletableFuture.failedFuture(e);
         }
+        long sequence = (nextSequence.getAndIncrement() << EXECUTE_SLOT_BITS) | slot;
+        PendingExecution execution = new PendingExecution(sequence, new CompletableFuture<>());
+        executions.set(slot, execution);
+        try {
+            sendInput(sequence, input);
+        } catch (RuntimeException e) {
+            execution.result().completeExceptionally(e);
+        }
+        return execution
+                .result()
+                .orTimeout(requestTimeout.plus(coverageTimeout).toMillis(), TimeUnit.MILLISECONDS)
+                .handle(
+                        (result, error) -> {
+                            // A result arriving after this finds the slot cleared and is dropped.
+                            executions.compareAndSet(slot, execution, null);
+                            freeSlots.add(slot);
+                            Throwable cause =
+                                    error instanceof CompletionException && error.getCause() != null
+                                            ? error.getCause()
+                                            : error;
+                            if (cause instanceof TimeoutException) {
+                                return new ExecutionResult(
+                                        false, CoverageBitmap.empty(), new byte[0], List.of());
+                            }
+                            if (cause != null) {
+                                throw new CompletionException(cause);
+                            }
+                            if (!result.getError().isEmpty()) {
+                                throw new CompletionException(
+                                        new IOException(
+                                                "Agent could not deliver input: "
+                                                        + result.getError()));
+                            }
+                            CoverageEvent coverage = result.getCoverage();
+                            if (coverage.getMapSize() > mapSize) {
+                                mapSize = coverage.getMapSize();
+                            }
+                            return new ExecutionResult(
+                                    result.getStatus() >= 500,
+                                    inlineTrace(coverage),
+                                    result.getResponseBody().toByteArray(),
+                                    comparisons(coverage));
+                        });
+    }
 
-        byte[] traceBitmap = awaitCoverage(requestId, coverageFuture);
-        boolean crashed = response.statusCode() >= 500;
-        byte[] stderr = response.body() != null ? response.body() : new byte[0];
-        CoverageBitmap edges = CoverageBitmap.fromBytes(traceBitmap);
-        return new ExecutionResult(crashed, edges, stderr);
+    /** Sends an input on the Execute stream, opening one with the target first if needed. */
+    private synchronized void sendInput(long sequence, byte[] input) {
+        ExecuteRequest.Builder request =
+                ExecuteRequest.newBuilder()
+                        .setSequence(sequence)
+                        .setBody(ByteString.copyFrom(input));
+        if (executeResults == null) {
+            ExecuteResults results = new ExecuteResults();
+            results.requests = stub.withWaitForReady().execute(results);
+            executeResults = results;
+            request.setTarget(executeTarget());
+        }
+        executeResults.requests.onNext(request.build());
+    }
+
+    private ExecuteTarget executeTarget() {
+        String path = targetUri.getRawPath() != null ? targetUri.getRawPath() : "";
+        if (targetUri.getRawQuery() != null) {
+            path += "?" + targetUri.getRawQuery();
+        }
+        ExecuteTarget.Builder target =
+                ExecuteTarget.newBuilder()
+                        .setPort(targetUri.getPort() >= 0 ? targetUri.getPort() : 80)
+                        .setPath(path)
+                        .setMethod("POST")
+                        .setContentType("application/json")
+                        .addAllTraceEncodings(TraceDecoder.ACCEPTED)
+                        .setTimeoutMillis((int) requestTimeout.toMillis());
+        if (inProcessServlet != null) {
+            target.setInProcess(true).setServletClass(inProcessServlet);
+        }
+        return target.build();
+    }
+
+    /**
+     * Returns the coverage map size most recently advertised by the agent, i.e. the number of
+     * probes it has emitted so far. Zero until the first coverage event arrives.
+     */
+    public int mapSize() {
+        return mapSize;
+    }
+
+    /**
+     * Resolves probe identifiers (coverage map indices) to the class, method and source line the
+     * agent emitted them into. Unknown identifiers are omitted from the result.
+     */
+    public List<ProbeSymbol> lookupProbes(Collection<Integer> probeIds) {
+        return CoverageServiceGrpc.newBlockingStub(channel)
+                .withDeadlineAfter(coverageTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                .lookupProbes(ProbeLookupRequest.newBuilder().addAllProbeIds(probeIds).build())
+                .getSymbolsList();
+    }
+
+    /** Queries the agent's state, including the TCP ports the instrumented JVM listens on. */
+    public HealthResponse health() {
+        return CoverageServiceGrpc.newBlockingStub(channel)
+                .withDeadlineAfter(coverageTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                .health(HealthRequest.getDefaultInstance());
+    }
+
+    /**
+     * Changes the agent's instrumentation scope and/or coverage mode. A scope change retransforms
+     * the affected classes in the target, so it can take a while on large applications.
+     */
+    public ConfigureResponse configure(ConfigureRequest request) {
+        return CoverageServiceGrpc.newBlockingStub(channel).configure(request);
+    }
+
+    /**
+     * Clears the agent's cumulative coverage map.
+     *
+     * @return the number of probes hit since the previous reset
+     */
+    public int resetCoverage() {
+        return CoverageServiceGrpc.newBlockingStub(channel)
+                .withDeadlineAfter(coverageTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                .resetCoverage(ResetCoverageRequest.getDefaultInstance())
+                .getCoveredProbes();
     }
 
     @Override
     public void close() {
         shutdown = true;
-        for (CompletableFuture<byte[]> future : pending.values()) {
-            future.complete(new byte[0]);
+        for (CompletableFuture<Feedback> future : pending.values()) {
+            future.complete(Feedback.EMPTY);
         }
         pending.clear();
+        failExecutions(null);
         channel.shutdownNow();
         try {
             channel.awaitTermination(5, TimeUnit.SECONDS);
@@ -179,44 +592,65 @@ public final class GrpcInstrumentedExecutor implements InstrumentedExecutor, Aut
         if (eventLoopGroup != null) {
             eventLoopGroup.shutdownGracefully();
         }
+        if (sharedRegion != null) {
+            sharedRegion.close();
+        }
     }
 
-    private byte[] awaitCoverage(
-            String requestId, CompletableFuture<byte[]> future)
-            throws Exception {
+    /**
+     * The coverage of a request whose response is in, or {@link Feedback#EMPTY} if it does not
+     * arrive within the coverage timeout.
+     */
+    private CompletableFuture<Feedback> awaitCoverage(
+            String requestId, CompletableFuture<Feedback> future) {
+        return future.completeOnTimeout(
+                        Feedback.EMPTY, coverageTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                .whenComplete((feedback, error) -> pending.remove(requestId, future));
+    }
+
+    /** Fetches an omitted trace off the thread that delivered the event; the call blocks. */
+    private CompletableFuture<Feedback> fetchOmittedTrace(String requestId, Feedback feedback) {
+        return CompletableFuture.supplyAsync(
+                () ->
+                        new Feedback(
+                                fetchTrace(requestId),
+                                feedback.comparisons(),
+                                false,
+                                feedback.newCoverage()));
+    }
+
+    /** Fetches a trace the agent left out of an event. */
+    private CoverageBitmap fetchTrace(String requestId) {
         try {
-            return future.get(coverageTimeout.toMillis(), TimeUnit.MILLISECONDS);
-        } catch (TimeoutException e) {
-            pending.remove(requestId, future);
-            return new byte[0];
-        } catch (ExecutionException e) {
-            Throwable cause = e.getCause();
-            if (cause instanceof Exception exception) {
-                throw exception;
-            }
-            throw new RuntimeException(cause);
+            CoverageEvent event =
+                    CoverageServiceGrpc.newBlockingStub(channel)
+                            .withDeadlineAfter(coverageTimeout.toMillis(), TimeUnit.MILLISECONDS)
+                            .fetchTrace(
+                                    FetchTraceRequest.newBuilder()
+                                            .setRequestId(requestId)
+                                            .addAllTraceEncodings(TraceDecoder.ACCEPTED)
+                                            .build());
+            return inlineTrace(event);
+        } catch (StatusRuntimeException e) {
+            System.err.println(
+                    "[JAF] Could not fetch trace of " + requestId + ": " + e.getStatus());
+            return CoverageBitmap.empty();
         }
     }
 
     private void startSubscription() {
-        StreamObserver<CoverageEvent> observer =
+        StreamObserver<CoverageEventBatch> observer =
                 new StreamObserver<>() {
                     @Override
-                    public void onNext(CoverageEvent value) {
-                        String requestId = value.getRequestId();
-                        if (requestId == null || requestId.isBlank()) {
-                            return;
-                        }
-                        CompletableFuture<byte[]> future = pending.remove(requestId);
-                        if (future != null) {
-                            byte[] bitmap = value.getTraceBitmap().toByteArray();
-                            future.complete(bitmap);
+                    public void onNext(CoverageEventBatch batch) {
+                        for (CoverageEvent event : batch.getEventsList()) {
+                            handleEvent(event);
                         }
                     }
 
                     @Override
                     public void onError(Throwable t) {
-                        for (Map.Entry<String, CompletableFuture<byte[]>> entry :
+                        for (Map.Entry<String, CompletableFuture<Feedback>> entry :
                                 pending.entrySet()) {
                             entry.getValue().completeExceptionally(t);
                         }
@@ -233,8 +667,19 @@ public final class GrpcInstrumentedExecutor implements InstrumentedExecutor, Aut
                         }
                     }
                 };
+        SubscribeRequest.Builder request = SubscribeRequest.newBuilder();
+        request.setNoveltyOnly(noveltyOnly);
+        request.setFingerprintCacheSize(fingerprintCacheSize);
+        request.addAllTraceEncodings(TraceDecoder.ACCEPTED);
+        // A new stream starts with an empty cache on the agent's side.
+        tracesByFingerprint.clear();
+        if (sharedRegion != null) {
+            // Slots parked by a previous stream will never be announced, so reclaim them first.
+            sharedRegion.releaseAll();
+            request.setShmPath(sharedRegion.path().toString());
+        }
         try {
-            stub.withWaitForReady().subscribe(SubscribeRequest.getDefaultInstance(), observer);
+            stub.withWaitForReady().subscribeBatches(request.build(), observer);
         } catch (StatusRuntimeException e) {
             if (!shutdown) {
                 restartSubscription();
@@ -242,6 +687,114 @@ public final class GrpcInstrumentedExecutor implements InstrumentedExecutor, Aut
         }
     }
 
+    private void handleEvent(CoverageEvent value) {
+        if (value.getMapSize() > mapSize) {
+            mapSize = value.getMapSize();
+        }
+        // Shared-memory slots must be handed back even if nobody waits for them.
+        CoverageBitmap sharedTrace = null;
+        if (value.hasShmSlot()) {
+            sharedTrace =
+                    sharedRegion != null
+                            ? sharedRegion.read(value.getShmSlot())
+                            : CoverageBitmap.empty();
+        }
+        // Likewise every fingerprint updates the cache, so it stays in step with the agent's.
+        CoverageBitmap cachedTrace = null;
+        if (value.hasTraceFingerprint() && !value.getTraceDropped()) {
+            cachedTrace = cachedTrace(value, sharedTrace);
+        }
+        String requestId = value.getRequestId();
+        if (requestId == null || requestId.isBlank()) {
+            return;
+        }
+        CompletableFuture<Feedback> future = pending.remove(requestId);
+        if (future == null) {
+            return;
+        }
+        CoverageBitmap edges;
+        if (cachedTrace != null) {
+            edges = cachedTrace;
+        } else if (sharedTrace != null) {
+            edges = sharedTrace;
+        } else {
+            edges = inlineTrace(value);
+        }
+        // A full agent queue may drop a trace, which FetchTrace can still return.
+        boolean omitted =
+                value.getTraceDropped()
+                        || (noveltyOnly && !value.getHasNewCoverage() && sharedTrace == null);
+        // Past its queue's capacity the agent leaves out even traces with new coverage.
+        boolean newCoverage = noveltyOnly && value.getHasNewCoverage();
+        future.complete(new Feedback(edges, comparisons(value), omitted, newCoverage));
+    }
+
+    /**
+     * Looks up the trace of a cached event, or decodes and caches the trace of an event that
+     * carries one.
+     */
+    private CoverageBitmap cachedTrace(CoverageEvent event, CoverageBitmap sharedTrace) {
+        long fingerprint = event.getTraceFingerprint();
+        if (event.getTraceCached()) {
+            CoverageBitmap trace = tracesByFingerprint.get(fingerprint);
+            if (trace == null) {
+                System.err.println(
+                        "[JAF] Trace of " + event.getRequestId() + " is missing from the cache");
+                return CoverageBitmap.empty();
+            }
+            return trace;
+        }
+        CoverageBitmap trace =
+                sharedTrace != null
+                        ? sharedTrace
+                        : inlineTrace(event);
+        tracesByFingerprint.put(fingerprint, trace);
+        return trace;
+    }
+
+    private static CoverageBitmap inlineTrace(CoverageEvent event) {
+        try {
+            return TraceDecoder.decode(
+                    event.getTraceEncoding(), event.getTraceBitmap(), event.getMapSize());
+        } catch (IllegalArgumentException e) {
+            System.err.println(
+                    "[JAF] Could not decode trace of " + event.getRequestId() + ": " + e);
+            return CoverageBitmap.empty();
+        }
+    }
+
+    private static List<ComparisonOperands> comparisons(CoverageEvent event) {
+        if (event.getComparisonsCount() == 0) {
+            return List.of();
+        }
+        List<ComparisonOperands> result = new ArrayList<>(event.getComparisonsCount());
+        for (Comparison comparison : event.getComparisonsList()) {
+            result.add(new ComparisonOperands(comparison.getLeft(), comparison.getRight()));
+        }
+        return result;
+    }
+
+    /**
+     * Completes every input in flight on the Execute stream: with an empty result when
+     * {@code error} is {@code null}, exceptionally otherwise.
+     */
+    private void failExecutions(Throwable error) {
+        if (executions == null) {
+            return;
+        }
+        for (int slot = 0; slot < EXECUTE_SLOTS; slot++) {
+            PendingExecution execution = executions.get(slot);
+            if (execution == null) {
+                continue;
+            }
+            if (error != null) {
+                execution.result().completeExceptionally(error);
+            } else {
+                execution.result().complete(ExecuteResult.getDefaultInstance());
+            }
+        }
+    }
+
     private void restartSubscription() {
         try {
             TimeUnit.MILLISECONDS.sleep(200);
@@ -254,4 +807,56 @@ public final class GrpcInstrumentedExecutor implements InstrumentedExecutor, Aut
         }
     }
 
+    /** One input in flight on the Execute stream. */
+    private record PendingExecution(long sequence, CompletableFuture<ExecuteResult> result) {}
+
+    /** Receives the results of one Execute stream; the next input reopens a failed stream. */
+    private final class ExecuteResults implements StreamObserver<ExecuteResult> {
+        private StreamObserver<ExecuteRequest> requests;
+
+        @Override
+        public void onNext(ExecuteResult result) {
+            long sequence = result.getSequence();
+            PendingExecution execution =
+                    executions.get((int) (sequence & (EXECUTE_SLOTS - 1)));
+            // A result that arrives after its input timed out finds the slot reused or empty.
+            if (execution != null && execution.sequence() == sequence) {
+                execution.result().complete(result);
+            }
+        }
+
+        @Override
+        public void onError(Throwable t) {
+            closed();
+            failExecutions(t);
+        }
+
+        @Override
+        public void onCompleted() {
+            closed();
+            failExecutions(new IOException("Agent closed the Execute stream"));
+        }
+
+        private void closed() {
+            synchronized (GrpcInstrumentedExecutor.this) {
+                if (executeResults == this) {
+                    executeResults = null;
+                }
+            }
+        }
+    }
+
+    /**
+     * Coverage and comparisons reported by the agent for one request; {@code traceOmitted} when the
+     * agent left out the trace, and {@code newCoverage} when that trace reached new coverage all
+     * the same, so that even triage has to fetch it.
+     */
+    private record Feedback(
+            CoverageBitmap edges,
+            List<ComparisonOperands> comparisons,
+            boolean traceOmitted,
+            boolean newCoverage) {
+        static final Feedback EMPTY =
+                new Feedback(CoverageBitmap.empty(), List.of(), false, false);
+    }
 }
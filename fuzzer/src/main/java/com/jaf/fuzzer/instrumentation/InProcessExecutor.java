@@ -0,0 +1,95 @@
+package com.jaf.fuzzer.instrumentation;
+
+import com.jaf.agent.InProcessTarget;
+import com.jaf.agent.SparseTrace;
+import com.jaf.fuzzer.coverage.CoverageBitmap;
+import com.jaf.fuzzer.nautilus.exec.ComparisonOperands;
+import com.jaf.fuzzer.nautilus.exec.ExecutionResult;
+import com.jaf.fuzzer.nautilus.exec.InstrumentedExecutor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * {@link InstrumentedExecutor} running a fuzzing harness inside the fuzzer's own JVM through the
+ * agent's {@link InProcessTarget}: each input is a method call, and its trace is read straight from
+ * the coverage runtime without any socket, protobuf or HTTP in between. An exception escaping the
+ * harness counts as a crash, with its stack trace as the output.
+ */
+public final class InProcessExecutor implements InstrumentedExecutor, AutoCloseable {
+    private final InProcessTarget target;
+
+    private InProcessExecutor(InProcessTarget target) {
+        this.target = target;
+    }
+
+    /**
+     * Loads and initializes {@code harnessClass} from {@code classPath}, instrumenting the classes
+     * matching {@code includes} (all of them when empty).
+     */
+    public static InProcessExecutor load(
+            List<Path> classPath, String harnessClass, List<String> includes)
+            throws IOException, ReflectiveOperationException {
+        return new InProcessExecutor(
+                InProcessTarget.load(classPath, harnessClass, includes, new String[0]));
+    }
+
+    @Override
+    public ExecutionResult run(byte[] input) {
+        InProcessTarget.Outcome outcome = target.execute(input);
+        byte[] output =
+                outcome.crashed()
+                        ? stackTrace(outcome.failure()).getBytes(StandardCharsets.UTF_8)
+                        : new byte[0];
+        return new ExecutionResult(
+                outcome.crashed(),
+                bitmap(outcome.trace()),
+                output,
+                comparisons(outcome.comparisons()));
+    }
+
+    /** The number of probes emitted so far, as for {@link GrpcInstrumentedExecutor#mapSize()}. */
+    public int mapSize() {
+        return target.mapSize();
+    }
+
+    @Override
+    public void close() throws IOException {
+        target.close();
+    }
+
+    private CoverageBitmap bitmap(SparseTrace trace) {
+        if (trace.isEmpty()) {
+            return CoverageBitmap.empty();
+        }
+        int[] indices = new int[trace.size()];
+        byte[] counts = new byte[indices.length];
+        for (int i = 0; i < indices.length; i++) {
+            indices[i] = trace.indexAt(i);
+            counts[i] = (byte) trace.countAt(i);
+        }
+        int length = Math.max(target.mapSize(), trace.maxIndex() + 1);
+        return CoverageBitmap.fromSparse(length, indices, counts, indices.length);
+    }
+
+    private static List<ComparisonOperands> comparisons(String[] flattened) {
+        if (flattened.length == 0) {
+            return List.of();
+        }
+        List<ComparisonOperands> result = new ArrayList<>(flattened.length / 2);
+        for (int i = 0; i + 1 < flattened.length; i += 2) {
+            result.add(new ComparisonOperands(flattened[i], flattened[i + 1]));
+        }
+        return result;
+    }
+
+    private static String stackTrace(Throwable failure) {
+        StringWriter out = new StringWriter();
+        failure.printStackTrace(new PrintWriter(out));
+        return out.toString();
+    }
+}
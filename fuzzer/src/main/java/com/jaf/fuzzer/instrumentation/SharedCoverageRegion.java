@@ -0,0 +1,166 @@
+package com.jaf.fuzzer.instrumentation;
+
+import com.jaf.fuzzer.coverage.CoverageBitmap;
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Fuzzer half of the shared-memory coverage transport. The fuzzer creates and owns the region; the
+ * agent maps it when the subscription names its path, writes finished traces into free slots and
+ * only sends the slot number over gRPC.
+ *
+ * <p>The layout must match the agent's {@code SharedCoverageWriter}. All values are
+ * little-endian:</p>
+ *
+ * <pre>
+ * header (64 bytes): int magic, int version, int slotCount, int slotCapacity, reserved
+ * slot i at 64 + i * slotStride:
+ *   int state (FREE, WRITING, READY), int entryCount, int mapSize, int reserved,
+ *   int[slotCapacity] indices, byte[slotCapacity] counts
+ * </pre>
+ */
+public final class SharedCoverageRegion implements AutoCloseable {
+    public static final int DEFAULT_SLOTS = 32;
+    public static final int DEFAULT_SLOT_CAPACITY = 1 << 16;
+
+    static final int MAGIC = 0x4A414653; // "JAFS"
+    static final int VERSION = 1;
+    static final int HEADER_SIZE = 64;
+    static final int SLOT_HEADER_SIZE = 16;
+    static final int STATE_FREE = 0;
+    static final int STATE_READY = 2;
+
+    private static final VarHandle INT_HANDLE =
+            MethodHandles.byteBufferViewVarHandle(int[].class, ByteOrder.LITTLE_ENDIAN);
+
+    private final Path path;
+    private final FileChannel channel;
+    private final MappedByteBuffer buffer;
+    private final int slotCount;
+    private final int slotCapacity;
+    private final long slotStride;
+    private final int[] scratchIndices;
+    private final byte[] scratchCounts;
+
+    private SharedCoverageRegion(
+            Path path, FileChannel channel, MappedByteBuffer buffer, int slotCount, int slotCapacity) {
+        this.path = path;
+        this.channel = channel;
+        this.buffer = buffer;
+        this.slotCount = slotCount;
+        this.slotCapacity = slotCapacity;
+        this.slotStride = slotStride(slotCapacity);
+        this.scratchIndices = new int[slotCapacity];
+        this.scratchCounts = new byte[slotCapacity];
+    }
+
+    /**
+     * Creates (or truncates) the region file and writes its header.
+     *
+     * @param slotCount number of traces that can be in flight at once
+     * @param slotCapacity maximum number of touched map entries per trace; larger traces are sent
+     *     inline by the agent
+     */
+    public static SharedCoverageRegion create(Path path, int slotCount, int slotCapacity)
+            throws IOException {
+        if (slotCount <= 0 || slotCapacity <= 0) {
+            throw new IllegalArgumentException(
+                    "slotCount and slotCapacity must be positive: " + slotCount + ", " + slotCapacity);
+        }
+        if (slotStride(slotCapacity) > (Integer.MAX_VALUE - HEADER_SIZE) / slotCount) {
+            throw new IllegalArgumentException(
+                    "Shared coverage region too large: " + slotCount + " slots of " + slotCapacity);
+        }
+        long size = HEADER_SIZE + slotCount * slotStride(slotCapacity);
+        FileChannel channel =
+                FileChannel.open(
+                        path,
+                        StandardOpenOption.CREATE,
+                        StandardOpenOption.TRUNCATE_EXISTING,
+                        StandardOpenOption.READ,
+                        StandardOpenOption.WRITE);
+        try {
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.putInt(4, VERSION);
+            buffer.putInt(8, slotCount);
+            buffer.putInt(12, slotCapacity);
+            // Magic goes last so a concurrently mapping agent never sees a half-written header.
+            INT_HANDLE.setRelease(buffer, 0, MAGIC);
+            return new SharedCoverageRegion(path, channel, buffer, slotCount, slotCapacity);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    static long slotStride(int slotCapacity) {
+        long raw = SLOT_HEADER_SIZE + (long) slotCapacity * 5;
+        return (raw + 7) & ~7L;
+    }
+
+    public Path path() {
+        return path;
+    }
+
+    /**
+     * Reads the trace the agent published in {@code slot} and hands the slot back to the agent.
+     *
+     * @return the trace as a coverage bitmap, or an empty bitmap if the slot is not ready
+     */
+    public synchronized CoverageBitmap read(int slot) {
+        if (slot < 0 || slot >= slotCount) {
+            return CoverageBitmap.empty();
+        }
+        int base = slotOffset(slot);
+        if ((int) INT_HANDLE.getAcquire(buffer, base) != STATE_READY) {
+            return CoverageBitmap.empty();
+        }
+        int entries = Math.min(buffer.getInt(base + 4), slotCapacity);
+        int mapSize = buffer.getInt(base + 8);
+        int indexBase = base + SLOT_HEADER_SIZE;
+        int countBase = indexBase + slotCapacity * 4;
+        for (int i = 0; i < entries; i++) {
+            scratchIndices[i] = buffer.getInt(indexBase + i * 4);
+        }
+        buffer.get(countBase, scratchCounts, 0, entries);
+        INT_HANDLE.setRelease(buffer, base, STATE_FREE);
+        return CoverageBitmap.fromSparse(mapSize, scratchIndices, scratchCounts, entries);
+    }
+
+    /**
+     * Returns every slot to the agent. Used when the coverage stream restarts, since events for
+     * traces still parked in the region will never arrive.
+     */
+    public synchronized void releaseAll() {
+        for (int slot = 0; slot < slotCount; slot++) {
+            INT_HANDLE.setRelease(buffer, slotOffset(slot), STATE_FREE);
+        }
+    }
+
+    /** Slot offsets fit in an int: create() keeps the whole region below 2 GiB. */
+    private int slotOffset(int slot) {
+        return (int) (HEADER_SIZE + slot * slotStride);
+    }
+
+    @Override
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+            // best effort cleanup
+        }
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException ignored) {
+            // best effort cleanup
+        }
+    }
+}
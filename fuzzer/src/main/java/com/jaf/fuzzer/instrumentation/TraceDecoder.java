@@ -0,0 +1,76 @@
+package com.jaf.fuzzer.instrumentation;
+
+import com.google.protobuf.ByteString;
+import com.google.protobuf.CodedInputStream;
+import com.jaf.fuzzer.coverage.CoverageBitmap;
+import com.jaf.proto.CoverageProto.TraceEncoding;
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Builds {@link CoverageBitmap}s from the inline traces of coverage events, in any of the
+ * {@link TraceEncoding}s the agent may pick. Sparse and run-length traces are read straight into
+ * the bitmap without an intermediate dense copy.
+ */
+final class TraceDecoder {
+    /** The encodings this decoder handles besides dense, as listed in subscriptions. */
+    static final List<TraceEncoding> ACCEPTED =
+            List.of(TraceEncoding.SPARSE, TraceEncoding.RUN_LENGTH);
+
+    private TraceDecoder() {}
+
+    /**
+     * Decodes a trace of a coverage map with {@code mapSize} slots.
+     *
+     * @throws IllegalArgumentException if the trace is malformed or uses an unknown encoding
+     */
+    static CoverageBitmap decode(TraceEncoding encoding, ByteString bytes, int mapSize) {
+        if (bytes.isEmpty()) {
+            return CoverageBitmap.empty();
+        }
+        try {
+            return switch (encoding) {
+                case DENSE -> CoverageBitmap.fromBytes(bytes.toByteArray());
+                case SPARSE -> decodeSparse(bytes, mapSize);
+                case RUN_LENGTH -> decodeRunLength(bytes, mapSize);
+                default -> throw new IllegalArgumentException("Unknown trace encoding " + encoding);
+            };
+        } catch (IOException | ArrayIndexOutOfBoundsException e) {
+            throw new IllegalArgumentException("Malformed " + encoding + " trace", e);
+        }
+    }
+
+    private static CoverageBitmap decodeSparse(ByteString bytes, int mapSize) throws IOException {
+        // Every entry takes at least two bytes.
+        int[] indices = new int[bytes.size() / 2];
+        byte[] counts = new byte[indices.length];
+        int count = 0;
+        int index = -1;
+        CodedInputStream in = bytes.newCodedInput();
+        while (!in.isAtEnd()) {
+            index += in.readUInt32() + 1;
+            indices[count] = index;
+            counts[count++] = in.readRawByte();
+        }
+        return CoverageBitmap.fromSparse(mapSize, indices, counts, count);
+    }
+
+    private static CoverageBitmap decodeRunLength(ByteString bytes, int mapSize)
+            throws IOException {
+        // Every counter byte is an entry, so there are fewer entries than bytes.
+        int[] indices = new int[bytes.size()];
+        byte[] counts = new byte[indices.length];
+        int count = 0;
+        int index = 0;
+        CodedInputStream in = bytes.newCodedInput();
+        while (!in.isAtEnd()) {
+            index += in.readUInt32();
+            int length = in.readUInt32();
+            for (int i = 0; i < length; i++) {
+                indices[count] = index++;
+                counts[count++] = in.readRawByte();
+            }
+        }
+        return CoverageBitmap.fromSparse(mapSize, indices, counts, count);
+    }
+}
@@ -44,15 +44,13 @@ public final class DeterminismChecker {
         }
         debug(
                 "Determinism check start runs=" + runs + " initial=" + initial.countNonZero());
-        CoverageBitmap intersection = initial;
-        CoverageBitmap union = initial;
+        // An edge is flaky if it comes and goes or if its hit-count bucket changes between runs.
+        CoverageBitmap newlyFlaky = CoverageBitmap.empty();
         for (int i = 1; i < runs; i++) {
             ExecutionResult result = runner.run(input);
             CoverageBitmap edges = filterKnownFlakyEdges(result.edges);
-            union = union.union(edges);
-            intersection = intersection.intersect(edges);
+            newlyFlaky = newlyFlaky.union(initial.bucketDifference(edges));
         }
-        CoverageBitmap newlyFlaky = union.minus(intersection);
         if (!newlyFlaky.isEmpty()) {
             debug("Determinism check found flaky=" + newlyFlaky.countNonZero());
             recordFlakyEdges(newlyFlaky);
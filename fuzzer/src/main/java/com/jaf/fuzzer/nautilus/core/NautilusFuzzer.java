@@ -1,6 +1,8 @@
 package com.jaf.fuzzer.nautilus.core;
 
 import com.jaf.fuzzer.coverage.CoverageBitmap;
+import com.jaf.fuzzer.coverage.VirginMap;
+import com.jaf.fuzzer.nautilus.exec.ComparisonOperands;
 import com.jaf.fuzzer.nautilus.exec.ExecutionResult;
 import com.jaf.fuzzer.nautilus.exec.InstrumentedExecutor;
 import com.jaf.fuzzer.nautilus.gen.TreeGenerators;
@@ -18,10 +20,15 @@ import java.util.ArrayList;
 import java.util.Deque;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Objects;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * Core Nautilus fuzzer implementation. Closely follows the queue/scheduler defined in the plan:
@@ -44,6 +51,15 @@ public final class NautilusFuzzer {
         public int determinismRuns = 3;
         public boolean enableUniformGeneration = true;
         public int maxCorpus = 10_000;
+        /** Most recent distinct comparison operand pairs kept for comparison splicing. */
+        public int maxComparisons = 512;
+        /** Comparison-splicing attempts per queue item in the deterministic stage. */
+        public int comparisonSplicesPerItem = 16;
+        /**
+         * Inputs triaged at once. Above 1, triage submits inputs to the executor and handles their
+         * results in the order they complete, while mutation carries on producing the next ones.
+         */
+        public int maxInFlight = 1;
         public Random random = new Random();
     }
 
@@ -57,8 +73,17 @@ public final class NautilusFuzzer {
 
     private final Deque<QueueItem> queue = new ArrayDeque<>();
     private final List<DerivationTree> corpus = new ArrayList<>();
-    private CoverageBitmap globalEdges = CoverageBitmap.empty();
+    private final VirginMap virgin = new VirginMap();
     private final Set<Integer> seenHashes = new HashSet<>();
+    private final LinkedHashSet<ComparisonOperands> comparisons = new LinkedHashSet<>();
+    private List<ComparisonOperands> comparisonSnapshot = List.of();
+    /** Submitted inputs whose results are in, filled by the executor's threads. */
+    private final BlockingQueue<Submission> completed = new LinkedBlockingQueue<>();
+    /** Inputs submitted and not yet handled; like the rest, only used by the fuzzing thread. */
+    private int inFlight;
+
+    private record Submission(
+            DerivationTree tree, byte[] input, ExecutionResult result, Throwable error) {}
 
     public NautilusFuzzer(
             Grammar grammar, Grammar.NonTerminal start, InstrumentedExecutor executor, Config config) {
@@ -80,6 +105,11 @@ public final class NautilusFuzzer {
         Instant deadline = Instant.now().plus(budget);
         while (Instant.now().isBefore(deadline)) {
             QueueItem item = queue.pollFirst();
+            if (item == null && inFlight > 0) {
+                // Results still on their way may enqueue new items.
+                drainInFlight();
+                item = queue.pollFirst();
+            }
             if (item != null) {
                 String rendered = unparser.unparse(item.tree.root, new HashMap<>());
                 debug(
@@ -103,6 +133,7 @@ public final class NautilusFuzzer {
                 case RANDOM -> processRandom(item, deadline);
             }
         }
+        drainInFlight();
     }
 
     public List<DerivationTree> corpus() {
@@ -110,11 +141,16 @@ public final class NautilusFuzzer {
     }
 
     public CoverageBitmap coverage() {
-        return globalEdges;
+        return determinismChecker.filterKnownFlakyEdges(virgin.coverage());
     }
 
     public int coverageCount() {
-        return globalEdges.countNonZero();
+        return coverage().countNonZero();
+    }
+
+    /** Returns the comparison operand pairs currently available for splicing, oldest first. */
+    public List<ComparisonOperands> comparisons() {
+        return comparisonSnapshot;
     }
 
     private void seed() {
@@ -146,6 +182,15 @@ public final class NautilusFuzzer {
             triageAndEnqueue(next);
             current = next;
         }
+        // Input-to-state: splice values the target compared against straight into the item.
+        var comparisonSplicing = new Mutators.ComparisonSplicingMutation(this::comparisons);
+        for (int i = 0; i < config.comparisonSplicesPerItem && !comparisonSnapshot.isEmpty(); i++) {
+            DerivationTree spliced = comparisonSplicing.mutate(item.tree, random);
+            if (spliced == null) {
+                break;
+            }
+            triageAndEnqueue(spliced);
+        }
         enqueue(new QueueItem(current, Stage.RANDOM, item.newEdges));
     }
 
@@ -169,6 +214,7 @@ public final class NautilusFuzzer {
                                 ? null
                                 : corpus.get(random.nextInt(corpus.size())));
         var stringTerminalMutation = new Mutators.StringTerminalMutation();
+        var comparisonSplicing = new Mutators.ComparisonSplicingMutation(this::comparisons);
 
         DerivationTree current = start;
         while (Instant.now().isBefore(deadline) && (stop == null || Instant.now().isBefore(stop))) {
@@ -178,8 +224,13 @@ public final class NautilusFuzzer {
                 mutated = subtreeReplacement.mutate(current, random);
             } else if (pick < 8) { // 30%
                 mutated = splicing.mutate(current, random);
-            } else { // 20%
+            } else if (pick < 9) { // 10%
                 mutated = stringTerminalMutation.mutate(current, random);
+            } else { // 10%, falling back to plain string mutation without comparisons
+                mutated = comparisonSplicing.mutate(current, random);
+                if (mutated == null) {
+                    mutated = stringTerminalMutation.mutate(current, random);
+                }
             }
             if (mutated != null) {
                 triageAndEnqueue(mutated);
@@ -198,7 +249,59 @@ public final class NautilusFuzzer {
             return;
         }
         byte[] inputBytes = input.getBytes(StandardCharsets.UTF_8);
-        ExecutionResult result = run(inputBytes);
+        if (config.maxInFlight <= 1) {
+            triage(tree, inputBytes, run(inputBytes, true));
+            return;
+        }
+        while (inFlight >= config.maxInFlight) {
+            handleCompletion(awaitCompletion());
+        }
+        inFlight++;
+        executor.submitForNovelty(inputBytes)
+                .whenComplete(
+                        (result, error) ->
+                                completed.add(new Submission(tree, inputBytes, result, error)));
+        Submission done;
+        while ((done = completed.poll()) != null) {
+            handleCompletion(done);
+        }
+    }
+
+    /** Handles every submitted input still in flight. */
+    private void drainInFlight() {
+        while (inFlight > 0) {
+            handleCompletion(awaitCompletion());
+        }
+    }
+
+    private Submission awaitCompletion() {
+        try {
+            return completed.take();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for execution results", e);
+        }
+    }
+
+    private void handleCompletion(Submission submission) {
+        inFlight--;
+        ExecutionResult result;
+        if (submission.error() != null) {
+            Throwable cause =
+                    submission.error() instanceof CompletionException
+                                    && submission.error().getCause() != null
+                            ? submission.error().getCause()
+                            : submission.error();
+            result = failedExecution(cause);
+        } else {
+            result = submission.result();
+            rememberComparisons(result.comparisons);
+        }
+        triage(submission.tree(), submission.input(), result);
+    }
+
+    /** Keeps an executed input that crashed or reached new coverage, minimized, and queues it. */
+    private void triage(DerivationTree tree, byte[] inputBytes, ExecutionResult result) {
         CoverageBitmap edges = determinismChecker.filterKnownFlakyEdges(result.edges);
         CoverageBitmap newEdges = computeNewEdges(edges);
         if (!newEdges.isEmpty()) {
@@ -209,7 +312,7 @@ public final class NautilusFuzzer {
         if (!result.crashed && newEdges.isEmpty()) {
             return;
         }
-        globalEdges = globalEdges.union(edges);
+        virgin.update(edges);
         Minimizer minimizer = new Minimizer(grammar, unparser, generator, determinismChecker);
         DerivationTree minimized = minimizer.run(tree, newEdges, result.crashed, executor);
         String minimizedInput = unparser.unparse(minimized.root, new HashMap<>());
@@ -239,27 +342,58 @@ public final class NautilusFuzzer {
     // Visible for testing.
     void triageForTesting(DerivationTree tree) {
         triageAndEnqueue(tree);
+        drainInFlight();
     }
 
     private ExecutionResult run(byte[] input) {
+        return run(input, false);
+    }
+
+    private ExecutionResult run(byte[] input, boolean noveltyOnly) {
         try {
-            return executor.run(input);
+            ExecutionResult result =
+                    noveltyOnly ? executor.runForNovelty(input) : executor.run(input);
+            rememberComparisons(result.comparisons);
+            return result;
         } catch (Exception e) {
-            System.err.println("[NautilusFuzzer] Executor threw exception: " + e);
-            e.printStackTrace(System.err);
-            return new ExecutionResult(
-                    true,
-                    CoverageBitmap.empty(),
-                    e.getMessage() == null ? new byte[0] : e.getMessage().getBytes());
+            return failedExecution(e);
+        }
+    }
+
+    private static ExecutionResult failedExecution(Throwable e) {
+        System.err.println("[NautilusFuzzer] Executor threw exception: " + e);
+        e.printStackTrace(System.err);
+        return new ExecutionResult(
+                true,
+                CoverageBitmap.empty(),
+                e.getMessage() == null ? new byte[0] : e.getMessage().getBytes());
+    }
+
+    private void rememberComparisons(List<ComparisonOperands> observed) {
+        boolean changed = false;
+        for (ComparisonOperands operands : observed) {
+            // Re-inserting moves a pair to the young end so frequently seen values survive.
+            comparisons.remove(operands);
+            comparisons.add(operands);
+            changed = true;
+        }
+        if (!changed) {
+            return;
+        }
+        Iterator<ComparisonOperands> oldest = comparisons.iterator();
+        while (comparisons.size() > config.maxComparisons && oldest.hasNext()) {
+            oldest.next();
+            oldest.remove();
         }
+        comparisonSnapshot = List.copyOf(comparisons);
     }
 
+    /** Entries of {@code edges} reaching a hit-count bucket not seen before in the campaign. */
     private CoverageBitmap computeNewEdges(CoverageBitmap edges) {
-        return edges.minus(globalEdges);
+        return virgin.newCoverage(edges);
     }
 
     private CoverageBitmap refreshFilteredEdges(CoverageBitmap edges) {
-        globalEdges = determinismChecker.filterKnownFlakyEdges(globalEdges);
         return determinismChecker.filterKnownFlakyEdges(edges);
     }
 
@@ -0,0 +1,15 @@
+package com.jaf.fuzzer.nautilus.exec;
+
+import java.util.Objects;
+
+/**
+ * Operands of a comparison the target executed while processing an input (CmpLog). One side
+ * usually derives from the input, the other is the value the target expected, so substituting one
+ * for the other is a cheap way past magic-value checks. Numbers arrive rendered in decimal.
+ */
+public record ComparisonOperands(String left, String right) {
+    public ComparisonOperands {
+        Objects.requireNonNull(left, "left");
+        Objects.requireNonNull(right, "right");
+    }
+}
@@ -1,20 +1,32 @@
 package com.jaf.fuzzer.nautilus.exec;
 
 import com.jaf.fuzzer.coverage.CoverageBitmap;
+import java.util.List;
 import java.util.Objects;
 
 /**
  * Outcome of executing the target with a fuzz input. Coverage is expressed as an AFL-style
- * bitmap to enable "new transition" checks within the Nautilus queue.
+ * bitmap to enable "new transition" checks within the Nautilus queue; comparisons observed by the
+ * agent feed the comparison-splicing mutator.
  */
 public final class ExecutionResult {
     public final boolean crashed;
     public final CoverageBitmap edges;
     public final byte[] stderr;
+    public final List<ComparisonOperands> comparisons;
 
     public ExecutionResult(boolean crashed, CoverageBitmap edges, byte[] stderr) {
+        this(crashed, edges, stderr, List.of());
+    }
+
+    public ExecutionResult(
+            boolean crashed,
+            CoverageBitmap edges,
+            byte[] stderr,
+            List<ComparisonOperands> comparisons) {
         this.crashed = crashed;
         this.edges = Objects.requireNonNull(edges, "edges");
         this.stderr = Objects.requireNonNull(stderr, "stderr");
+        this.comparisons = List.copyOf(Objects.requireNonNull(comparisons, "comparisons"));
     }
 }
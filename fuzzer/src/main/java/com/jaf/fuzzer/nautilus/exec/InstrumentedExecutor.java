@@ -1,5 +1,7 @@
 package com.jaf.fuzzer.nautilus.exec;
 
+import java.util.concurrent.CompletableFuture;
+
 /**
  * Abstraction over the fuzzing target execution that provides coverage feedback. The Nautilus
  * fuzzer invokes this for every generated input.
@@ -14,4 +16,35 @@ public interface InstrumentedExecutor {
      * @throws Exception when the invocation itself fails (HTTP/network issues, etc.)
      */
     ExecutionResult run(byte[] input) throws Exception;
+
+    /**
+     * Executes the target only to find out whether the input reaches new coverage. Implementations
+     * may return empty edges for executions that reach nothing new instead of their full coverage.
+     */
+    default ExecutionResult runForNovelty(byte[] input) throws Exception {
+        return run(input);
+    }
+
+    /**
+     * Starts executing the target with the input and returns its result once it is in, so that
+     * several inputs can be in flight at once. Executors that can only run one input at a time
+     * keep the default, which runs it before returning. Failures complete the future
+     * exceptionally, as {@link #run} would have thrown them.
+     */
+    default CompletableFuture<ExecutionResult> submit(byte[] input) {
+        try {
+            return CompletableFuture.completedFuture(run(input));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
+
+    /** {@link #submit} for {@link #runForNovelty}. */
+    default CompletableFuture<ExecutionResult> submitForNovelty(byte[] input) {
+        try {
+            return CompletableFuture.completedFuture(runForNovelty(input));
+        } catch (Exception e) {
+            return CompletableFuture.failedFuture(e);
+        }
+    }
 }
@@ -225,7 +225,8 @@ public final class Minimizer {
                 return false;
             }
             CoverageBitmap edges = determinismChecker.filterKnownFlakyEdges(result.edges);
-            return edges.covers(mustCover);
+            // mustCover holds bucket bits: a loop that ran 8 times must still run 8-15 times.
+            return edges.reachesBuckets(mustCover);
         } catch (Exception ignored) {
             return false;
         }
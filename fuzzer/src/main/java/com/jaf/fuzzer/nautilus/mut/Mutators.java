@@ -1,5 +1,6 @@
 package com.jaf.fuzzer.nautilus.mut;
 
+import com.jaf.fuzzer.nautilus.exec.ComparisonOperands;
 import com.jaf.fuzzer.nautilus.gen.TreeGenerators;
 import com.jaf.fuzzer.nautilus.grammar.Grammar;
 import com.jaf.fuzzer.nautilus.grammar.Grammar.NT;
@@ -15,6 +16,7 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
+import java.util.function.Supplier;
 
 /**
  * Grammar-aware mutators adapted from the Nautilus implementation plan. These operate on derivation
@@ -227,6 +229,71 @@ public final class Mutators {
         }
     }
 
+    /**
+     * Input-to-state mutation driven by comparisons the agent observed (CmpLog). When a string
+     * terminal contains one operand of a comparison, that occurrence is replaced with the other
+     * operand; otherwise the terminal is overwritten with an operand wholesale, since the target
+     * often compares the complete value. Spliced values deliberately ignore the terminal's charset
+     * and length bounds: the target itself compared against them.
+     */
+    public static final class ComparisonSplicingMutation implements Mutator {
+        private static final int MAX_ATTEMPTS = 8;
+
+        private final Supplier<List<ComparisonOperands>> comparisons;
+
+        public ComparisonSplicingMutation(Supplier<List<ComparisonOperands>> comparisons) {
+            this.comparisons = comparisons;
+        }
+
+        @Override
+        public DerivationTree mutate(DerivationTree tree, Random random) {
+            List<ComparisonOperands> pool = comparisons.get();
+            if (pool == null || pool.isEmpty()) {
+                return null;
+            }
+            List<DerivationTree.Node> targets = new ArrayList<>();
+            List<Integer> positions = new ArrayList<>();
+            for (DerivationTree.Node node : tree.root.preOrder()) {
+                for (int i = 0; i < node.rhs.size(); i++) {
+                    if (node.rhs.get(i) instanceof StringValue) {
+                        targets.add(node);
+                        positions.add(i);
+                    }
+                }
+            }
+            if (targets.isEmpty()) {
+                return null;
+            }
+            for (int attempt = 0; attempt < MAX_ATTEMPTS; attempt++) {
+                int pick = random.nextInt(targets.size());
+                DerivationTree.Node target = targets.get(pick);
+                int symbolIndex = positions.get(pick);
+                StringValue value = (StringValue) target.rhs.get(symbolIndex);
+                ComparisonOperands operands = pool.get(random.nextInt(pool.size()));
+                String spliced = splice(value.value, operands, random);
+                if (spliced.equals(value.value)) {
+                    continue;
+                }
+                List<Symbol> newRhs = new ArrayList<>(target.rhs);
+                newRhs.set(symbolIndex, new StringValue(value.terminal, spliced));
+                return TreeOps.replace(tree, target, target.copyWithRhs(newRhs));
+            }
+            return null;
+        }
+
+        private static String splice(String current, ComparisonOperands operands, Random random) {
+            String left = operands.left();
+            String right = operands.right();
+            if (!left.isEmpty() && current.contains(left)) {
+                return current.replace(left, right);
+            }
+            if (!right.isEmpty() && current.contains(right)) {
+                return current.replace(right, left);
+            }
+            return random.nextBoolean() ? right : left;
+        }
+    }
+
     /**
      * Expansion mutation that wraps an existing subtree with a recursive production, keeping the
      * original subtree intact while adding freshly generated siblings.
@@ -0,0 +1,63 @@
+package com.jaf.fuzzer.coverage;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+
+final class VirginMapTest {
+
+    @Test
+    void classifiesHitCountsIntoBuckets() {
+        assertEquals(0, CoverageBitmap.bucketOf(0));
+        assertEquals(1, CoverageBitmap.bucketOf(1));
+        assertEquals(2, CoverageBitmap.bucketOf(2));
+        assertEquals(4, CoverageBitmap.bucketOf(3));
+        assertEquals(8, CoverageBitmap.bucketOf(4));
+        assertEquals(8, CoverageBitmap.bucketOf(7));
+        assertEquals(16, CoverageBitmap.bucketOf(15));
+        assertEquals(32, CoverageBitmap.bucketOf(16));
+        assertEquals(64, CoverageBitmap.bucketOf(32));
+        assertEquals(64, CoverageBitmap.bucketOf(127));
+        assertEquals(128, CoverageBitmap.bucketOf(255));
+    }
+
+    @Test
+    void newHitCountBucketIsNewCoverage() {
+        VirginMap virgin = new VirginMap();
+        assertTrue(virgin.update(trace(20, 17, 1)));
+
+        assertTrue(virgin.newCoverage(trace(20, 17, 1)).isEmpty());
+        CoverageBitmap loopedMore = virgin.newCoverage(trace(20, 17, 5));
+        assertEquals(1, loopedMore.countNonZero());
+        assertEquals(8, loopedMore.toByteArray()[17]);
+
+        assertTrue(virgin.update(trace(20, 17, 6)));
+        assertTrue(virgin.newCoverage(trace(20, 17, 4)).isEmpty());
+        assertFalse(virgin.update(trace(20, 17, 7)));
+        assertEquals(1, virgin.coverage().countNonZero());
+    }
+
+    @Test
+    void findsEntriesInWordsAndTail() {
+        VirginMap virgin = new VirginMap();
+        virgin.update(trace(12, 3, 1));
+
+        byte[] bytes = new byte[22];
+        bytes[3] = 1;
+        bytes[9] = 2;
+        bytes[21] = 1;
+        CoverageBitmap longer = CoverageBitmap.fromBytes(bytes);
+        CoverageBitmap novel = virgin.newCoverage(longer);
+
+        assertEquals(2, novel.countNonZero());
+        assertTrue(novel.covers(CoverageBitmap.fromIndices(9, 21)));
+    }
+
+    private static CoverageBitmap trace(int length, int index, int hits) {
+        byte[] bytes = new byte[length];
+        bytes[index] = (byte) hits;
+        return CoverageBitmap.fromBytes(bytes);
+    }
+}
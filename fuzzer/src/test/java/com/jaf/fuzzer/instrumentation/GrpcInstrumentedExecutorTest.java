@@ -0,0 +1,208 @@
+package com.jaf.fuzzer.instrumentation;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.google.protobuf.ByteString;
+import com.jaf.fuzzer.coverage.CoverageBitmap;
+import com.jaf.fuzzer.nautilus.exec.ExecutionResult;
+import com.jaf.proto.CoverageProto.CoverageEvent;
+import com.jaf.proto.CoverageProto.CoverageEventBatch;
+import com.jaf.proto.CoverageProto.ExecuteRequest;
+import com.jaf.proto.CoverageProto.ExecuteResult;
+import com.jaf.proto.CoverageProto.SubscribeRequest;
+import com.jaf.proto.CoverageProto.TraceEncoding;
+import com.jaf.proto.CoverageServiceGrpc;
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpServer;
+import io.grpc.ManagedChannel;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.inprocess.InProcessServerBuilder;
+import io.grpc.stub.StreamObserver;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+final class GrpcInstrumentedExecutorTest {
+    private FakeCoverageService service;
+    private Server server;
+    private ManagedChannel channel;
+
+    @BeforeEach
+    void startAgent() throws Exception {
+        String name = InProcessServerBuilder.generateName();
+        service = new FakeCoverageService();
+        server =
+                InProcessServerBuilder.forName(name)
+                        .directExecutor()
+                        .addService(service)
+                        .build()
+                        .start();
+        channel = InProcessChannelBuilder.forName(name).directExecutor().build();
+    }
+
+    @AfterEach
+    void stopAgent() throws Exception {
+        channel.shutdownNow();
+        server.shutdownNow().awaitTermination(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    void submittedHttpRequestsAreInFlightTogether() throws Exception {
+        int inputs = 4;
+        CountDownLatch arrived = new CountDownLatch(inputs);
+        Map<String, Boolean> triageByRequest = new ConcurrentHashMap<>();
+        ExecutorService handlers = Executors.newCachedThreadPool();
+        HttpServer target =
+                HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 0);
+        target.setExecutor(handlers);
+        target.createContext(
+                "/",
+                exchange -> {
+                    Headers headers = exchange.getRequestHeaders();
+                    triageByRequest.put(
+                            headers.getFirst("X-Fuzzing-Request-Id"),
+                            "1".equals(headers.getFirst("X-Fuzzing-Triage")));
+                    exchange.getRequestBody().readAllBytes();
+                    arrived.countDown();
+                    try {
+                        // No response goes out before every input has reached the target.
+                        arrived.await(5, TimeUnit.SECONDS);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    exchange.sendResponseHeaders(200, -1);
+                    exchange.close();
+                });
+        target.start();
+        AtomicInteger nextId = new AtomicInteger();
+        URI targetUri =
+                URI.create("http://127.0.0.1:" + target.getAddress().getPort() + "/fuzz");
+        try (GrpcInstrumentedExecutor executor =
+                new GrpcInstrumentedExecutor(
+                        channel,
+                        HttpClient.newHttpClient(),
+                        targetUri,
+                        Duration.ofSeconds(5),
+                        Duration.ofSeconds(5),
+                        () -> "req-" + nextId.getAndIncrement())) {
+            StreamObserver<CoverageEventBatch> events =
+                    service.subscription.get(5, TimeUnit.SECONDS);
+            List<CompletableFuture<ExecutionResult>> results = new ArrayList<>();
+            for (int i = 0; i < inputs; i++) {
+                byte[] input = {(byte) ('a' + i)};
+                results.add(i % 2 == 0 ? executor.submit(input) : executor.submitForNovelty(input));
+            }
+            assertTrue(arrived.await(5, TimeUnit.SECONDS), "inputs were sent one at a time");
+
+            // Coverage comes in the reverse order; each result still gets its own.
+            CoverageEventBatch.Builder batch = CoverageEventBatch.newBuilder();
+            for (int i = inputs - 1; i >= 0; i--) {
+                batch.addEvents(
+                        CoverageEvent.newBuilder()
+                                .setRequestId("req-" + i)
+                                .setMapSize(inputs)
+                                .setTraceEncoding(TraceEncoding.DENSE)
+                                .setTraceBitmap(ByteString.copyFrom(trace(inputs, i))));
+            }
+            events.onNext(batch.build());
+
+            for (int i = 0; i < inputs; i++) {
+                ExecutionResult result = results.get(i).get(5, TimeUnit.SECONDS);
+                assertEquals(CoverageBitmap.fromBytes(trace(inputs, i)), result.edges);
+                assertFalse(result.crashed);
+                assertEquals(i % 2 == 1, triageByRequest.get("req-" + i));
+            }
+        } finally {
+            target.stop(0);
+            handlers.shutdownNow();
+        }
+    }
+
+    @Test
+    void timedOutExecutionsFreeTheirSlots() throws Exception {
+        int inputs = 65;
+        try (GrpcInstrumentedExecutor executor =
+                GrpcInstrumentedExecutor.forExecuteRpc(
+                        channel,
+                        URI.create("http://127.0.0.1:8080/fuzz"),
+                        Duration.ofMillis(50),
+                        Duration.ofMillis(50))) {
+            // The agent never answers, and there is one input more than there are slots.
+            List<CompletableFuture<ExecutionResult>> results = new ArrayList<>();
+            for (int i = 0; i < inputs; i++) {
+                results.add(executor.submit(new byte[] {(byte) i}));
+            }
+            for (CompletableFuture<ExecutionResult> result : results) {
+                ExecutionResult timedOut = result.get(5, TimeUnit.SECONDS);
+                assertTrue(timedOut.edges.isEmpty());
+                assertFalse(timedOut.crashed);
+            }
+        }
+
+        assertEquals(inputs, service.executed.size());
+        Set<Long> slots = new HashSet<>();
+        for (ExecuteRequest request : service.executed) {
+            slots.add(request.getSequence() & 63);
+        }
+        assertEquals(64, slots.size());
+    }
+
+    private static byte[] trace(int mapSize, int index) {
+        byte[] trace = new byte[mapSize];
+        trace[index] = 1;
+        return trace;
+    }
+
+    /** Hands out the coverage stream to the test and swallows every input it is asked to run. */
+    private static final class FakeCoverageService
+            extends CoverageServiceGrpc.CoverageServiceImplBase {
+        final CompletableFuture<StreamObserver<CoverageEventBatch>> subscription =
+                new CompletableFuture<>();
+        final List<ExecuteRequest> executed = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void subscribeBatches(
+                SubscribeRequest request, StreamObserver<CoverageEventBatch> observer) {
+            subscription.complete(observer);
+        }
+
+        @Override
+        public StreamObserver<ExecuteRequest> execute(StreamObserver<ExecuteResult> results) {
+            return new StreamObserver<>() {
+                @Override
+                public void onNext(ExecuteRequest request) {
+                    executed.add(request);
+                }
+
+                @Override
+                public void onError(Throwable t) {}
+
+                @Override
+                public void onCompleted() {
+                    results.onCompleted();
+                }
+            };
+        }
+    }
+}
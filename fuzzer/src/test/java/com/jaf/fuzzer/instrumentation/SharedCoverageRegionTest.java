@@ -0,0 +1,56 @@
+package com.jaf.fuzzer.instrumentation;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import com.jaf.fuzzer.coverage.CoverageBitmap;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import org.junit.jupiter.api.Test;
+
+final class SharedCoverageRegionTest {
+
+    @Test
+    void readsPublishedSlotAndHandsItBack() throws Exception {
+        Path path = Files.createTempFile("jaf-shm", ".map");
+        try (SharedCoverageRegion region = SharedCoverageRegion.create(path, 2, 8)) {
+            MappedByteBuffer agentView = mapAsAgent(path);
+            assertEquals(SharedCoverageRegion.MAGIC, agentView.getInt(0));
+
+            int base =
+                    (int) (SharedCoverageRegion.HEADER_SIZE + SharedCoverageRegion.slotStride(8));
+            int indexBase = base + SharedCoverageRegion.SLOT_HEADER_SIZE;
+            agentView.putInt(indexBase, 3);
+            agentView.putInt(indexBase + 4, 7);
+            agentView.put(indexBase + 8 * 4, (byte) 1);
+            agentView.put(indexBase + 8 * 4 + 1, (byte) 5);
+            agentView.putInt(base + 4, 2);
+            agentView.putInt(base + 8, 10);
+            agentView.putInt(base, SharedCoverageRegion.STATE_READY);
+
+            CoverageBitmap bitmap = region.read(1);
+
+            assertEquals(10, bitmap.length());
+            assertEquals(2, bitmap.countNonZero());
+            assertTrue(bitmap.covers(CoverageBitmap.fromIndices(3, 7)));
+            assertEquals(5, bitmap.toByteArray()[7]);
+            assertEquals(SharedCoverageRegion.STATE_FREE, agentView.getInt(base));
+            assertTrue(region.read(1).isEmpty(), "a released slot must not be read twice");
+        }
+        assertTrue(Files.notExists(path), "closing the region removes its file");
+    }
+
+    private static MappedByteBuffer mapAsAgent(Path path) throws Exception {
+        try (FileChannel channel =
+                FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            MappedByteBuffer buffer =
+                    channel.map(FileChannel.MapMode.READ_WRITE, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            return buffer;
+        }
+    }
+}
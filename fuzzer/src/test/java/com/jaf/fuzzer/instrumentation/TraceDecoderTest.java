@@ -0,0 +1,51 @@
+package com.jaf.fuzzer.instrumentation;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import com.google.protobuf.ByteString;
+import com.jaf.fuzzer.coverage.CoverageBitmap;
+import com.jaf.proto.CoverageProto.TraceEncoding;
+import org.junit.jupiter.api.Test;
+
+final class TraceDecoderTest {
+
+    @Test
+    void decodesEveryEncodingIntoTheSameBitmap() {
+        byte[] dense = new byte[400];
+        dense[2] = 1;
+        dense[300] = 7;
+        dense[301] = 8;
+        CoverageBitmap expected = CoverageBitmap.fromBytes(dense);
+
+        CoverageBitmap sparse =
+                TraceDecoder.decode(
+                        TraceEncoding.SPARSE, bytes(2, 1, 0xA9, 0x02, 7, 0, 8), dense.length);
+        CoverageBitmap runs =
+                TraceDecoder.decode(
+                        TraceEncoding.RUN_LENGTH,
+                        bytes(2, 1, 1, 0xA9, 0x02, 2, 7, 8),
+                        dense.length);
+        CoverageBitmap plain =
+                TraceDecoder.decode(TraceEncoding.DENSE, ByteString.copyFrom(dense), dense.length);
+
+        assertEquals(expected, sparse);
+        assertEquals(expected, runs);
+        assertEquals(expected, plain);
+    }
+
+    @Test
+    void rejectsTruncatedTraces() {
+        assertThrows(
+                IllegalArgumentException.class,
+                () -> TraceDecoder.decode(TraceEncoding.SPARSE, bytes(2, 1, 0xA9), 400));
+    }
+
+    private static ByteString bytes(int... values) {
+        byte[] bytes = new byte[values.length];
+        for (int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return ByteString.copyFrom(bytes);
+    }
+}
@@ -66,6 +66,23 @@ final class DeterminismCheckerTest {
         assertTrue(filtered.covers(CoverageBitmap.fromIndices(1)));
     }
 
+    @Test
+    void recordFlakyEdgesMarksEdgesWhoseHitBucketChanges() {
+        DeterminismChecker checker =
+                new DeterminismChecker(
+                        new QueueRunner(
+                                CoverageBitmap.fromBytes(new byte[] {0, 1, 5}),
+                                CoverageBitmap.fromBytes(new byte[] {0, 1, 9})),
+                        3);
+
+        checker.recordFlakyEdges(new byte[0], CoverageBitmap.fromBytes(new byte[] {0, 1, 6}));
+
+        CoverageBitmap filtered =
+                checker.filterKnownFlakyEdges(CoverageBitmap.fromIndices(1, 2));
+        assertEquals(1, filtered.countNonZero());
+        assertTrue(filtered.covers(CoverageBitmap.fromIndices(1)));
+    }
+
     private static final class QueueRunner implements DeterminismChecker.Runner {
         private final Deque<CoverageBitmap> results = new ArrayDeque<>();
 
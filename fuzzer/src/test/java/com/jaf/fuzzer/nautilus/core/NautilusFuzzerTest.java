@@ -11,6 +11,10 @@ import com.jaf.fuzzer.nautilus.grammar.Grammar.Rule;
 import com.jaf.fuzzer.nautilus.grammar.Grammar.T;
 import com.jaf.fuzzer.nautilus.tree.DerivationTree;
 import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 final class NautilusFuzzerTest {
 
@@ -43,6 +47,53 @@ final class NautilusFuzzerTest {
         assertEquals(1, fuzzer.coverageCount());
     }
 
+    @org.junit.jupiter.api.Test
+    void pipelinedTriageKeepsSeveralInputsInFlight() {
+        NonTerminal start = new NonTerminal("START");
+        Grammar grammar = new Grammar(start);
+        grammar.add(new Rule(start, java.util.List.of(new T("a"))));
+        grammar.add(new Rule(start, java.util.List.of(new T("b"))));
+
+        PipelinedExecutor executor = new PipelinedExecutor();
+
+        NautilusFuzzer.Config config = new NautilusFuzzer.Config();
+        config.initialSeeds = 20;
+        config.enableUniformGeneration = false;
+        config.maxInFlight = 2;
+        config.random = new java.util.Random(1);
+
+        NautilusFuzzer fuzzer = new NautilusFuzzer(grammar, start, executor, config);
+        fuzzer.fuzz(Duration.ZERO);
+
+        assertEquals(2, executor.maxInFlight.get());
+        assertEquals(0, executor.inFlight.get());
+        assertEquals(1, fuzzer.corpus().size());
+        assertTrue(fuzzer.coverage().covers(CoverageBitmap.fromIndices(1)));
+    }
+
+    /** Completes submitted inputs a little later on another thread. */
+    private static final class PipelinedExecutor implements InstrumentedExecutor {
+        private final StubExecutor results = new StubExecutor();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger maxInFlight = new AtomicInteger();
+
+        @Override
+        public ExecutionResult run(byte[] input) {
+            return results.run(input);
+        }
+
+        @Override
+        public CompletableFuture<ExecutionResult> submitForNovelty(byte[] input) {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            return CompletableFuture.supplyAsync(
+                    () -> {
+                        inFlight.decrementAndGet();
+                        return results.run(input);
+                    },
+                    CompletableFuture.delayedExecutor(20, TimeUnit.MILLISECONDS));
+        }
+    }
+
     private static final class StubExecutor implements InstrumentedExecutor {
         @Override
         public ExecutionResult run(byte[] input) {
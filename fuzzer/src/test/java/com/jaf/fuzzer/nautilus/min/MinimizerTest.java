@@ -114,6 +114,41 @@ final class MinimizerTest {
         assertEquals("a", minimizedInput);
     }
 
+    @Test
+    void keepsTheHitCountBucketThatWasNew() {
+        NonTerminal start = new NonTerminal("S");
+        Grammar grammar = new Grammar(start);
+        StringTerminal terminal = new StringTerminal(Grammar.CharSet.of("ab"), 1, 12);
+        Rule rule = new Rule(start, List.of(terminal));
+        grammar.add(rule);
+
+        List<Grammar.Symbol> rhs = List.of(new StringValue(terminal, "bbbbbbbbb"));
+        DerivationTree tree = new DerivationTree(new DerivationTree.Node(start, rule, rhs));
+
+        TreeGenerators.TreeGenerator generator = (startSymbol, maxSize) -> tree;
+        DerivationTree.Unparser unparser = new DerivationTree.ConcatenationUnparser();
+        // Entry 1 counts the b's, like a loop running once per character.
+        InstrumentedExecutor executor =
+                input -> {
+                    String value = new String(input, StandardCharsets.UTF_8);
+                    byte[] counts = {0, (byte) value.chars().filter(c -> c == 'b').count()};
+                    return new ExecutionResult(
+                            false, CoverageBitmap.fromBytes(counts), new byte[0]);
+                };
+
+        DeterminismChecker checker =
+                new DeterminismChecker(
+                        input -> new ExecutionResult(false, CoverageBitmap.empty(), new byte[0]), 1);
+        Minimizer minimizer = new Minimizer(grammar, unparser, generator, checker);
+        // The input was new only for reaching entry 1 in the 8-15 hits bucket.
+        CoverageBitmap mustCover =
+                CoverageBitmap.fromBytes(new byte[] {0, (byte) CoverageBitmap.bucketOf(9)});
+        DerivationTree minimized = minimizer.run(tree, mustCover, false, executor);
+
+        String minimizedInput = unparser.unparse(minimized.root, Map.of());
+        assertEquals("bbbbbbbb", minimizedInput);
+    }
+
     private static int countNodes(DerivationTree.Node node) {
         return node.preOrder().size();
     }
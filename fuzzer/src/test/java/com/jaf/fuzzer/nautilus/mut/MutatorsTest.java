@@ -2,6 +2,7 @@ package com.jaf.fuzzer.nautilus.mut;
 
 import static org.junit.jupiter.api.Assertions.*;
 
+import com.jaf.fuzzer.nautilus.exec.ComparisonOperands;
 import com.jaf.fuzzer.nautilus.gen.TreeGenerators;
 import com.jaf.fuzzer.nautilus.grammar.Grammar;
 import com.jaf.fuzzer.nautilus.grammar.Grammar.NT;
@@ -276,6 +277,26 @@ final class MutatorsTest {
         }
     }
 
+    @Test
+    void comparisonSplicingReplacesObservedOperand() {
+        NonTerminal start = new NonTerminal("S");
+        StringTerminal terminal =
+                new StringTerminal(Grammar.CharSet.of("abcdefghijklmnopqrstuvwxyz"), 0, 16);
+        Rule rule = new Rule(start, List.of(terminal));
+        List<Grammar.Symbol> rhs = List.of(new StringValue(terminal, "xinputx"));
+        DerivationTree tree = new DerivationTree(new DerivationTree.Node(start, rule, rhs));
+
+        Mutators.ComparisonSplicingMutation mutator =
+                new Mutators.ComparisonSplicingMutation(
+                        () -> List.of(new ComparisonOperands("input", "magic")));
+        DerivationTree mutated = mutator.mutate(tree, new Random(0));
+        assertNotNull(mutated);
+        assertEquals(
+                "xmagicx",
+                new ConcatenationUnparser().unparse(mutated.root, new java.util.HashMap<>()));
+        assertNull(new Mutators.ComparisonSplicingMutation(List::of).mutate(tree, new Random(0)));
+    }
+
     private static final class TestRandom extends Random {
         private final int[] values;
         private int index = 0;